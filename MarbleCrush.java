@@ -6,6 +6,41 @@ import static comp1110.lib.Functions.*;
 import comp1110.lib.*;
 import comp1110.lib.Date;
 import static comp1110.testing.Comp1110Unit.*;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
 
 /* The width and height of the world (in pixels) */
 int WORLD_WIDTH = 300;
@@ -27,22 +62,169 @@ enum MarbleColour {
     BLACK 
 }
 
+/**
+ * [S]: a seedable source of random marble colours.
+ * A ColourSource draws 64 random bits at a time from a SplittableRandom and
+ * hands them out 2 bits per colour, so one draw gives 32 colours.
+ * The same seed always gives the same colours, and split() gives a new
+ * source with an independent stream, so each thread can have its own.
+ * A ColourSource is not thread-safe: it must only be used by one thread.
+ * It is a class rather than a record because drawing a colour changes it:
+ * - random: the generator the bits are drawn from
+ * - bits: the random bits not handed out yet, lowest 2 bits first
+ * - coloursLeft: the number of colours left in bits, from 0 to 32
+ *
+ * Examples:
+ * - new ColourSource(42) gives the same colours as every other new ColourSource(42)
+ * - new ColourSource(42).split() gives colours independent of new ColourSource(42)
+ */
+static final class ColourSource {
+    private final SplittableRandom random;
+    private long bits = 0;
+    private int coloursLeft = 0;
+
+    /**
+     * Create a source of colours from a seed.
+     *
+     * Examples:
+     *   - new ColourSource(1).nextOrdinal() is the same ordinal on every run
+     *
+     * Design Strategy: Combining functions
+     *
+     * @param seed the seed of the generator
+     */
+    ColourSource(long seed) {
+        this(new SplittableRandom(seed));
+    }
+
+    /**
+     * Create a source of colours drawing from a given generator, with no bits drawn yet.
+     *
+     * Examples:
+     *   - new ColourSource(new SplittableRandom(1)) gives the same colours as new ColourSource(1)
+     *
+     * Design Strategy: Simple Expression
+     *
+     * @param random the generator to draw from, used by this source only
+     */
+    ColourSource(SplittableRandom random) {
+        this.random = random;
+    }
+
+    /**
+     * Problem analysis and data design
+     * Function purpose statement and signature
+     * - Hand out the next random colour ordinal, from 0 to 3.
+     * - The ordinal is the lowest 2 bits of bits, which are then shifted out;
+     *   64 new bits are drawn only once all 32 colours of the last draw are used.
+     *
+     * Examples:
+     *   - If bits = 0b10_01 and coloursLeft = 2, returns 1, then 2 on the next call
+     *   - If coloursLeft = 0, draws 64 new bits and returns their lowest 2
+     *
+     * Design Strategy: Case Distinction
+     *
+     * @return an ordinal of MarbleColour, each equally likely
+     */
+    int nextOrdinal() {
+        if (coloursLeft == 0) {
+            bits = random.nextLong();
+            coloursLeft = Long.SIZE / 2;
+        }
+        int ordinal = (int) (bits & 3);
+        bits >>>= 2;
+        coloursLeft--;
+        return ordinal;
+    }
+
+    /**
+     * Draw 64 random bits at once, for callers that draw many colours together,
+     * such as 16 cells of 4 bits each. The bits left of nextOrdinal are not used.
+     *
+     * Examples:
+     *   - new ColourSource(1).nextBits() = new SplittableRandom(1).nextLong()
+     *
+     * Design Strategy: Simple Expression
+     *
+     * @return 64 random bits
+     */
+    long nextBits() {
+        return random.nextLong();
+    }
+
+    /**
+     * Draw a random index, such as a cell of a board to click.
+     *
+     * Examples:
+     *   - new ColourSource(1).nextIndex(10) is from 0 to 9, the same on every run
+     *
+     * Design Strategy: Simple Expression
+     *
+     * @param bound the number of indices (> 0)
+     * @return a random index from 0 to bound - 1
+     */
+    int nextIndex(int bound) {
+        return random.nextInt(bound);
+    }
+
+    /**
+     * Split off a new source whose colours are independent of this one,
+     * for another thread or another stripe of a board.
+     *
+     * Examples:
+     *   - Two sources split in the same order from new ColourSource(1) give the same colours
+     *
+     * Design Strategy: Simple Expression
+     *
+     * @return a new ColourSource, with a generator split from random
+     */
+    ColourSource split() {
+        return new ColourSource(random.split());
+    }
+}
+/**
+ * ... source.nextOrdinal() ...
+ * ... source.nextBits() ...
+ * ... source.nextIndex(bound) ...
+ * ... source.split() ...
+ */
+
+/* The seed of the random colours of this session, and the source built from it */
+long sessionSeed = System.nanoTime();
+ColourSource sessionColours = new ColourSource(sessionSeed);
+
+/**
+ * Generate a random marble colour from the four available colours,
+ * using the colour source of the session.
+ * 
+ * Examples:
+ *   - randomColour() = randomColour(sessionColours)
+ * 
+ * Design Strategy: Combining functions
+ * 
+ * @return a randomly chosen MarbleColour (BLUE, RED, GREEN, BLACK)
+ */
+MarbleColour randomColour() {
+    return randomColour(sessionColours);
+}
+
 /**
  * Generate a random marble colour from the four available colours.
  * Each colour is equally likely to be chosen.
  * 
  * Examples:
- *   - If RandomNumber returns 0, MarbleColour.BLUE
- *   - If RandomNumber returns 1, MarbleColour.RED
- *   - If RandomNumber returns 2, MarbleColour.GREEN
- *   - If RandomNumber returns 3, MarbleColour.BLACK
+ *   - If source gives 0, MarbleColour.BLUE
+ *   - If source gives 1, MarbleColour.RED
+ *   - If source gives 2, MarbleColour.GREEN
+ *   - If source gives 3, MarbleColour.BLACK
  * 
  * Design Strategy: Case distinction
  * 
+ * @param source the source of random colours
  * @return a randomly chosen MarbleColour (BLUE, RED, GREEN, BLACK)
  */
-MarbleColour randomColour() {
-    int r = RandomNumber(0,4);
+MarbleColour randomColour(ColourSource source) {
+    int r = source.nextOrdinal();
     return switch(r) {
         case 0 -> MarbleColour.BLUE;
         case 1 -> MarbleColour.RED;
@@ -96,1216 +278,8036 @@ record Marble(int x, int y, MarbleColour colour) {}
  * ... marble.colour() ...
  */
 
+/* Cell value of a grid location that holds no marble */
+byte EMPTY = -1;
+
+/* All marble colours, indexed by the value stored in an occupied cell */
+MarbleColour[] MARBLE_COLOURS = MarbleColour.values();
+
 /**
- * [W]: world state is just the list of marbles currently present
- * A WorldState is represented by a record that contains
- * all the marbles currently present in the world.
- * 
+ * [B]: the configuration of a board of marbles
+ * A BoardConfig is represented by a record that contains the number of rows
+ * and columns of the grid and the radius of its marbles. Boards of any size
+ * can be created in the same run, each with its own configuration; the board
+ * is 2 * marbleRadius pixels wide per column and high per row.
+ *
  * Examples:
- * - An empty world: marbles is Nil
- * - A world with two marbles:
- *   marbles = Cons(Marble(50, 100, BLUE),
- *                  Cons(Marble(200, 150, RED), Nil))
+ * - The standard board: BoardConfig(25, 15, 10), drawn on a 300x500 canvas
+ * - A large headless board: BoardConfig(2000, 2000, 10)
  *
- * @param marbles the ConsList of Marble currently in the world
+ * @param rows the number of rows of the grid (non-negative)
+ * @param cols the number of columns of the grid (non-negative)
+ * @param marbleRadius the radius of each marble in pixels (>0)
  */
-record WorldState(ConsList<Marble> marbles) {}
+record BoardConfig(int rows, int cols, int marbleRadius) {}
 /**
- * ... w.marbles() ...
+ * ... board.rows() ...
+ * ... board.cols() ...
+ * ... board.marbleRadius() ...
  */
 
 /**
- * Advance the world by one time step.
- * The world does not evolve over time, so the function simply returns the input world unchanged.
- * 
+ * The configuration of the standard board, built from
+ * numMarbleRows, numMarbleCols and marbleRadius.
+ *
  * Examples:
- * - If w = WorldState(Nil), step(w) = WorldState(Nil).
- * - If w = WorldState(Cons(Marble(50, 100, BLUE), Nil)),
- *   step(w) = the same WorldState with the same marbles.
+ * - defaultBoard() = BoardConfig(25, 15, 10)
  *
  * Design Strategy: Simple expression
  *
- * @param w the current WorldState
- * @return the same WorldState, unchanged
+ * @return the BoardConfig of the standard board
  */
-WorldState step(WorldState w) {
-    return w;
+BoardConfig defaultBoard() {
+    return new BoardConfig(numMarbleRows, numMarbleCols, marbleRadius);
 }
 
 /**
- * Problem analysis and data design
- * Function purpose statement and signature
- * - Draw the entire world by starting from a white background,
- *   and then drawing all marbles on top of it.
- * 
+ * Compute the width of a board in pixels.
+ *
  * Examples:
- *   - If w has no marbles, returns just a white background.
- *   - If w has some marbles, returns background plus those marbles.
- * 
- * Design Strategy: Combining functions
- * 
- * @param w the current WorldState containing all marbles
- * @return an Image with background and all marbles drawn
+ * - boardWidth(BoardConfig(25, 15, 10)) = 300
+ *
+ * Design Strategy: Simple expression
+ *
+ * @param board the BoardConfig
+ * @return the width of the board in pixels
  */
-Image draw(WorldState w) {
-    Image bg = Rectangle(WORLD_WIDTH, WORLD_HEIGHT, Colour.WHITE);
-    return drawMarbles(w.marbles(), bg);
+int boardWidth(BoardConfig board) {
+    return board.cols() * 2 * board.marbleRadius();
 }
 
 /**
- * Problem analysis and data design
- * Function purpose statement and signature
- * - Draw all marbles in a list on background image.
- *   Each marble is drawn as a coloured circle at its (x, y) coordinate.
- * 
+ * Compute the height of a board in pixels.
+ *
  * Examples:
- *   - If listOfMarbles is Nil, returns bg unchanged.
- * 
- *   - If listOfMarbles has one marble (x=10, y=20, red),
- *     returns bg with a red circle drawn at (10, 20).
- * 
- *   - If listOfMarbles has multiple marbles,
- *       recursively draws each marble on bg.
- * 
- * Design Strategy: Template application
- * 
- * @param listOfMarbles a ConsList of marbles to be drawn
- * @param bg the background image on which marbles will be placed
- * @return an Image with all marbles drawn on top of the background
+ * - boardHeight(BoardConfig(25, 15, 10)) = 500
+ *
+ * Design Strategy: Simple expression
+ *
+ * @param board the BoardConfig
+ * @return the height of the board in pixels
  */
-Image drawMarbles(ConsList<Marble> listOfMarbles, Image bg) {
-    return switch (listOfMarbles) {
-        case Nil<Marble>() -> bg;
-        case Cons<Marble>(Marble first, ConsList<Marble> rest) -> 
-            drawMarbles(rest, PlaceXY(bg, Circle(marbleRadius, convertToColour(first.colour())), first.x(), first.y()));
-    };
+int boardHeight(BoardConfig board) {
+    return board.rows() * 2 * board.marbleRadius();
 }
 
 /**
- * Construct and return the initial state of the world.
- * The world starts with a full grid of marbles placed at regularly spaced positions.
- * 
+ * [W]: world state is the grid of cells, each holding a marble colour or EMPTY
+ * A WorldState is represented by a record that contains the configuration of
+ * its board and a dense row-major cell array with one slot per grid location.
+ * An occupied cell stores the ordinal of its marble's MarbleColour,
+ * an empty cell stores EMPTY.
+ * The cell of row r and column c is cells[r * cols + c], and the centre of
+ * its marble is (R + c * 2R, R + r * 2R) where R is the marble radius of the board.
+ * The world also keeps a free-cell index: the indices of its EMPTY cells in
+ * increasing order. Crushing and refilling update it, so vacancies are listed
+ * without visiting occupied cells and counted without visiting any cell.
+ * Likewise it keeps the number of marbles of each MarbleColour, so colour
+ * counts are read without visiting any cell.
+ *
  * Examples:
- *   - If numMarbleRows = 0 or numMarbleCols = 0，
- *     returns a WorldState with an empty marble list.
- * 
- *   - If numMarbleRows = 2 and numMarbleCols = 3,
- *     returns a WorldState with 6 marbles placed in a 2×3 grid.
- * 
+ * - An empty 2x2 world: board = BoardConfig(2, 2, 10), cells = [EMPTY, EMPTY, EMPTY, EMPTY],
+ *   vacancies = [0, 1, 2, 3], colourCounts = [0, 0, 0, 0]
+ * - A 1x3 world with BLUE at (10,10), nothing at (30,10) and RED at (50,10):
+ *   board = BoardConfig(1, 3, 10), cells = [0, EMPTY, 1], vacancies = [1], colourCounts = [1, 1, 0, 0]
+ *
+ * @param board the configuration of the board
+ * @param cells the row-major cells of the grid, of length rows * cols
+ * @param vacancies the indices of the EMPTY cells, in increasing order
+ * @param colourCounts the number of marbles of each MarbleColour, indexed by ordinal
+ */
+record WorldState(BoardConfig board, byte[] cells, int[] vacancies, int[] colourCounts) {}
+/**
+ * ... w.board() ...
+ * ... w.cells() ...
+ * ... w.vacancies() ...
+ * ... w.colourCounts() ...
+ */
+
+/**
+ * Create a world on a board in which every cell is empty.
+ *
+ * Examples:
+ * - emptyWorld(BoardConfig(2, 2, 10)) = WorldState(board, [EMPTY, EMPTY, EMPTY, EMPTY], [0, 1, 2, 3], [0, 0, 0, 0])
+ * - emptyWorld(BoardConfig(0, 5, 10)) = WorldState(board, [], [], [0, 0, 0, 0])
+ *
  * Design Strategy: Combining functions
- * 
- * @return a WorldState containing all marbles
+ *
+ * @param board the configuration of the board
+ * @return a WorldState with rows * cols empty cells
  */
-WorldState getInitialState() {
-    ConsList<Pair<Integer,Integer>> positions = 
-        generateAllMarblesCenterPositionRecursively(marbleRadius, numMarbleRows, numMarbleCols);
-    ConsList<Marble> marbles = marblesFromPositions(positions, MakeList());
-    return new WorldState(marbles);
+WorldState emptyWorld(BoardConfig board) {
+    byte[] cells = new byte[board.rows() * board.cols()];
+    Arrays.fill(cells, EMPTY);
+    return new WorldState(board, cells, IntStream.range(0, cells.length).toArray(),
+                          new int[MARBLE_COLOURS.length]);
 }
 
 /**
- * Convert a list of marble center positions into a list of Marble objects.
- * Each position (x, y) becomes a Marble with a randomly assigned colour.
- * 
+ * Create a world from a filled-in cell array, building its free-cell index
+ * and colour counts with one sweep over the cells.
+ *
  * Examples:
- *   - If Nil, returns acc (no new marbles to add).
- *   - If listOfPositions = [(10,20)] and acc = [],
- *       returns [Marble(10,20,colour)] with random colour.
- *   - If listOfPositions = [(10,20), (30,40)] and acc = [],
- *       returns [Marble(10,20,colour), Marble(30,40,colour)] with random colours.
- * 
- * Design Strategy: Template application
- * 
- * @param listOfPositions A list of (x, y) coordinate pairs for marbles
- * @param acc             An accumulator list of already-created marbles
- * @return                A ConsList<Marble> containing all marbles from the given positions
+ * - worldFromCells(BoardConfig(1, 3, 10), [0, EMPTY, 1]) = WorldState(board, [0, EMPTY, 1], [1], [1, 1, 0, 0])
+ * - worldFromCells(BoardConfig(1, 2, 10), [2, 3]) = WorldState(board, [2, 3], [], [0, 0, 1, 1])
+ *
+ * Design Strategy: Iteration
+ *
+ * @param board the configuration of the board
+ * @param cells the row-major cells of the grid, of length rows * cols
+ * @return a WorldState with the given cells, their free-cell index and colour counts
  */
-ConsList<Marble> marblesFromPositions(ConsList<Pair<Integer,Integer>> listOfPositions, ConsList<Marble> acc) {
-    return switch (listOfPositions) {
-        case Nil<Pair<Integer,Integer>>() -> acc;
-        case Cons<Pair<Integer,Integer>>(Pair<Integer,Integer> position, ConsList<Pair<Integer,Integer>> rest) -> 
-            marblesFromPositions(rest, Append(acc, MakeList(new Marble(position.first(), position.second(), randomColour()))));
-    };
+WorldState worldFromCells(BoardConfig board, byte[] cells) {
+    int numVacancies = 0;
+    int[] colourCounts = new int[MARBLE_COLOURS.length];
+    for (byte cell : cells) {
+        if (cell == EMPTY) {
+            numVacancies++;
+        } else {
+            colourCounts[cell]++;
+        }
+    }
+    int[] vacancies = new int[numVacancies];
+    int next = 0;
+    for (int i = 0; i < cells.length; i++) {
+        if (cells[i] == EMPTY) {
+            vacancies[next++] = i;
+        }
+    }
+    return new WorldState(board, cells, vacancies, colourCounts);
 }
 
 /**
- * 1. Handle keyEvent
- * Problem analysis and data design
- * Function purpose statement and signature
- * - Handle a keyboard event on the world state.  
- * - If the SPACE key is pressed, generate new marbles at all vacant positions;  
- * - Otherwise, leave the world unchanged.
- * 
+ * Convert a MarbleColour into the value stored in an occupied cell.
+ *
  * Examples:
- * - We have a world with has 300 marbles and 75 vacancies, total 15*25=375 marbles.
- *   Pressing SPACE, return a new world with 375 marbles.
- *   Pressing any other key, return w unchanged.
- * 
- * Design Strategy: Combining functions
- * 
- * @param w the current WorldState
- * @param keyEvent the keyboard event to handle
- * @return a new WorldState reflecting the event
+ * - cellOf(MarbleColour.BLUE)  = 0
+ * - cellOf(MarbleColour.BLACK) = 3
+ *
+ * Design Strategy: Simple expression
+ *
+ * @param colour the MarbleColour of a marble
+ * @return the cell value representing a marble of that colour
  */
-WorldState keyEvent(WorldState w, KeyEvent keyEvent) {
-    println("keyEvent kind: " + keyEvent.kind());
-    println("Current marble count: " + Length(w.marbles()));
-    return processKeyEvent(w, keyEvent.kind(), keyEvent.key());
+byte cellOf(MarbleColour colour) {
+    return (byte) colour.ordinal();
 }
 
 /**
- * Problem analysis and data design
- * Function purpose statement and signature
- * - Handle a keyboard event on the world state.  
- * - If the SPACE key is pressed, firstly we need to find vacancies, 
- *   than add new marbles to the vacancies,
- *   finally get new marbles at all vacant positions;  
- * - Otherwise, leave the world unchanged.
- * 
+ * Find the cell value of the marbles that are drawn in a given Universe Colour.
+ *
  * Examples:
- * - Given: processKeyEvent(w, KEY_PRESSED, "Space") 
- *   Expect: new WorldState with added marbles
- * 
- * Design Strategy: Case Distinction
- * 
- * @param w the current WorldState
- * @param keyEvent the keyboard event to handle
- * @param key the actual key string (e.g., "Space")
- * @return a new WorldState after applying the event
+ * - cellOfColour(Colour.RED)   = cellOf(MarbleColour.RED)
+ * - cellOfColour(Colour.WHITE) = EMPTY, no marble is white
+ *
+ * Design Strategy: Iteration
+ *
+ * @param colour the Universe Colour to look for
+ * @return the cell value of marbles of that colour, or EMPTY if no MarbleColour is drawn in it
  */
-WorldState processKeyEvent(WorldState w, KeyEventKind keyEventKind, String key) {
-    boolean isSpace = (keyEventKind == KeyEventKind.KEY_PRESSED) && Equals(key, "Space");
-    if (isSpace) {
-        ConsList<Pair<Integer,Integer>> vacancies = findVacancies(w.marbles());
-        ConsList<Marble> added = addMarblesAtVacancies(vacancies, w.marbles());
-        return new WorldState(added);
-    } else {
-        return w;
+byte cellOfColour(Colour colour) {
+    for (MarbleColour marbleColour : MARBLE_COLOURS) {
+        if (convertToColour(marbleColour) == colour) {
+            return cellOf(marbleColour);
+        }
     }
+    return EMPTY;
 }
 
-/** 
- * 1.1 Find all vacant positions
- * Problem analysis and data design
- * Function purpose statement and signature
- * - Firstly, we hava a world with all possible coordinates (generated recursively).
- *   Then, find the coordinates of existing marbles.
- *   Return positions are currently empty (not occupied by a marble).
- * 
+/**
+ * Compute the x-coordinate of the marble centres in a grid column.
+ *
  * Examples:
- * - Given: Suppose numMarbleRows = 2, numMarbleCols = 2, marbleRadius = 1.
- *          allPositions = [(1,1), (1,2), (2,1), (2,2)]
- *          listOfMarbles = [(2,2)]  (occupiedPositions)
- *   Expect: findVacancies(list) = [(1,1), (1,2), (2,1)]
+ * - with a marble radius of 10, cellX(board, 0) = 10, cellX(board, 2) = 50
  *
- * Design Strategy: Combining Functions
- * 
- * @param listOfMarbles the current marbles in the world
- * @return a ConsList of (x,y) coordinate pairs representing vacant positions
-*/
-ConsList<Pair<Integer,Integer>> findVacancies(ConsList<Marble> listOfMarbles) {
-    ConsList<Pair<Integer,Integer>> allPositions = 
-        generateAllMarblesCenterPositionRecursively(marbleRadius, numMarbleRows, numMarbleCols);
-    ConsList<Pair<Integer,Integer>> occupiedPositions = 
-        positionsFromMarbles(listOfMarbles);
-    return subtractPositions(allPositions, occupiedPositions); 
+ * Design Strategy: Simple expression
+ *
+ * @param board the configuration of the board
+ * @param col the column index (0-based)
+ * @return the x-coordinate in pixels of the centre of cells in that column
+ */
+int cellX(BoardConfig board, int col) {
+    return board.marbleRadius() + col * 2 * board.marbleRadius();
 }
 
 /**
-* 1.1.1 
-* Problem analysis and data design
-* Function purpose statement and signature
-* - Generates a list of pairs with the coordinates of the centers of the marbles 
-*   laid out in a two-dimensional grid of marbles with numMarbleRows rows and numMarbleCols columns. 
-* - The marbles are positioned to be touching the adjacent marbles in the grid, 
-*   with no space in between them and no overlapping. 
-* - The positions of the marble centers are ordered in row-major order,i.e., 
-*   first by rows, and then by columns. 
-* - The x-axis points right, and the y-axis points down.
-* 
-* Example:
-*   - Given: marbleRadius=10, numMarbleRows=2, numMarbleCols=3
-*   - Expect: [(10,10),(30,10),(50,10),(10,30),(30,30),(50,30)]
-* 
-* Design strategy: Combining functions
-
-* @param marbleRadius The radius of the marble in pixels (>0)
-* @param numMarbleRows The number of rows in the 2D grid of marbles (>0)
-* @param numMarbleCols The number of columns in the 2D grid of marbles (>0)
-* @return A list with the coordinates of the marble centers in the 2D grid
-*/ 
-ConsList<Pair<Integer,Integer>> generateAllMarblesCenterPositionRecursively(
-    int marbleRadius, int numMarbleRows, int numMarbleCols) {
-        return generateAllGridCentersRecursively(marbleRadius, 0, 0, numMarbleRows, numMarbleCols, MakeList());
+ * Compute the y-coordinate of the marble centres in a grid row.
+ *
+ * Examples:
+ * - with a marble radius of 10, cellY(board, 0) = 10, cellY(board, 3) = 70
+ *
+ * Design Strategy: Simple expression
+ *
+ * @param board the configuration of the board
+ * @param row the row index (0-based)
+ * @return the y-coordinate in pixels of the centre of cells in that row
+ */
+int cellY(BoardConfig board, int row) {
+    return board.marbleRadius() + row * 2 * board.marbleRadius();
 }
 
 /**
- * Problem analysis and data design
- * Function purpose statement and signature
- * - Recursive helper to generate marble center coordinates row by row.  
- * - Uses accumulator to build the list increasely.
- * 
- * Example:
- *   - Given: marbleRadius=10, numMarbleRows=2, numMarbleCols=3
- *   - Expect: [(10,10),(30,10),(50,10),(10,30),(30,30),(50,30)]
- * 
+ * Find the cell whose marble centre is exactly at a pixel coordinate.
+ *
+ * Examples:
+ * - with marbleRadius = 10 and a 25x15 grid:
+ *   centreToCell(w, 10, 10) = 0
+ *   centreToCell(w, 30, 30) = 16
+ *   centreToCell(w, 20, 10) = -1, (20,10) is not a marble centre
+ *
  * Design Strategy: Case distinction
- * 
- * @param marbleRadius the radius of each marble
- * @param row current row index (0-based)
- * @param col current column index (0-based)
- * @param numMarbleRows total rows
- * @param numMarbleCols total cols
- * @param acc accumulated positions so far
- * @return completed ConsList of positions after traversal
+ *
+ * @param w the WorldState giving the size of the grid
+ * @param x the x-coordinate in pixels
+ * @param y the y-coordinate in pixels
+ * @return the index of the cell centred at (x, y), or -1 if there is none
  */
-ConsList<Pair<Integer,Integer>> generateAllGridCentersRecursively(
-    int marbleRadius, int row, int Col, int numMarbleRows, int numMarbleCols, ConsList<Pair<Integer,Integer>> acc) {
-        if (row >= numMarbleRows) {
-            return acc;
-        }
-        int marbleDiameter = marbleRadius * 2;
-        int x = marbleRadius + Col * marbleDiameter;
-        int y = marbleRadius + row * marbleDiameter;
-        ConsList<Pair<Integer,Integer>> nextAcc = Append(acc, MakeList(new Pair<Integer,Integer>(x, y)));
-        int nextCol = Col + 1;
-        int nextRow = row;
-        if (nextCol >= numMarbleCols) {
-            nextCol = 0;
-            nextRow = row + 1;
-        }
-        return generateAllGridCentersRecursively(marbleRadius, nextRow, nextCol, numMarbleRows, numMarbleCols, nextAcc);
+int centreToCell(WorldState w, int x, int y) {
+    BoardConfig board = w.board();
+    int marbleDiameter = 2 * board.marbleRadius();
+    int dx = x - board.marbleRadius();
+    int dy = y - board.marbleRadius();
+    if (dx < 0 || dy < 0 || dx % marbleDiameter != 0 || dy % marbleDiameter != 0) {
+        return -1;
+    }
+    int col = dx / marbleDiameter;
+    int row = dy / marbleDiameter;
+    return (row < board.rows() && col < board.cols()) ? row * board.cols() + col : -1;
 }
 
 /**
- * 1.1.2 
- * Problem analysis and data design
- * Function purpose statement and signature
- * - Convert a list of Marble into a list of (x,y) coordinate pairs.  
- *   Preserves the original left-to-right order.
- * - Base case: if the marble list is empty (Nil), return an empty list of coordinates.
- * - Recursive case: if there is a Cons node (i.e., one marble + the remaining list):
- *   Take the current marble’s (x, y) coordinates and wrap them into a Pair.
- *   Use Append to add this coordinate to the front of the recursive result.
- *   Recursively call positionsFromMarbles(remainingMarbles) until all marbles are processed.
- * 
+ * Get the marble stored in an occupied cell.
+ *
  * Examples:
- * - Given: (Empty list) positionsFromMarbles(Nil())
- *   Expect: Nil()
- * - Given: m1 = Marble(10, 20, Red), positionsFromMarbles(MakeList(m1))
- *   Expect: [(10,20)]
- * - Given: m1 = Marble(10, 10, Red), m2 = Marble(30, 10, Blue), m3 = Marble(50, 10, Green)
- *          positionsFromMarbles(MakeList(m1, m2, m3))
- *   Expect: [(10,10), (30,10), (50,10)]
- * 
- * Design Strategy: Template application
- * 
- * @param marbles the list of marbles (ConsList<Marble>)
- * @return a ConsList<Pair<Integer,Integer>> of (x,y) centers
+ * - In a 1x3 world with cells [0, EMPTY, 1],
+ *   marbleInCell(w, 2) = Marble(50, 10, RED)
+ *
+ * Design Strategy: Combining functions
+ *
+ * @param w the current WorldState
+ * @param index the index of an occupied cell
+ * @return the Marble in that cell, with its centre coordinates and colour
  */
-ConsList<Pair<Integer,Integer>> positionsFromMarbles(ConsList<Marble> marbles) {
-    return switch (marbles) {
-        case Nil<Marble>() -> MakeList();
-        case Cons<Marble>(Marble marble, ConsList<Marble> rest) -> 
-            Append(MakeList(new Pair<Integer,Integer>(marble.x(), marble.y())), positionsFromMarbles(rest));
-    };
+Marble marbleInCell(WorldState w, int index) {
+    BoardConfig board = w.board();
+    return new Marble(cellX(board, index % board.cols()), cellY(board, index / board.cols()),
+                      MARBLE_COLOURS[w.cells()[index]]);
 }
 
-/** 
- * 1.1.3 
- * Problem analysis and data design
- * Function purpose statement and signature
- * - Compute the list of vacant positions by subtracting occupied coordinates from all possible coordinates    
- *   Traverses allPositions recursively and excludes any position found in occupiedPositions.
- * - Base case: no remaining positions.
- * - Recursive case: current position + remaining positions.
- * 
+/**
+ * Copy the elements of a ConsList into an ArrayList, in order.
+ * The list is walked with a loop, so the stack use does not grow with its length.
+ *
  * Examples:
- * - Given: allPositions = [(10,10), (30,10), (50,10)]  
- *          occupiedPositions = [(30,10)]  
- *          subtractPositions(all, occupied) 
- *   Expect: [(10,10), (50,10)]
- * 
- * Design Strategy: Structural Template Application
- * 
- * @param allPositions all possible grid positions (ConsList<Pair<Integer,Integer>>)  
- * @param occupiedPositions coordinates of marbles currently present (ConsList<Pair<Integer,Integer>>)  
- * @return a ConsList<Pair<Integer,Integer>> of positions that are vacant
+ * - elementsOf(Nil) = []
+ * - elementsOf([Marble(10, 10, RED), Marble(30, 10, BLUE)]) = [Marble(10, 10, RED), Marble(30, 10, BLUE)]
+ *
+ * Design Strategy: Iteration
+ *
+ * @param list the ConsList to copy
+ * @return an ArrayList with the elements of list in the same order
  */
-ConsList<Pair<Integer,Integer>> subtractPositions(ConsList<Pair<Integer,Integer>> allPositions, 
-                                                  ConsList<Pair<Integer,Integer>> occupiedPositions) {
-    return switch (allPositions) {
-        case Nil<Pair<Integer,Integer>>() -> MakeList();
-        case Cons<Pair<Integer,Integer>>(Pair<Integer,Integer> position, ConsList<Pair<Integer,Integer>> remaining) ->
-            containsPos(occupiedPositions, position)
-            ? subtractPositions(remaining, occupiedPositions)                              // occupied
-            : Append(MakeList(position), subtractPositions(remaining, occupiedPositions)); // empty
-    };
+<T> ArrayList<T> elementsOf(ConsList<T> list) {
+    ArrayList<T> elements = new ArrayList<T>();
+    ConsList<T> rest = list;
+    boolean done = false;
+    while (!done) {
+        switch (rest) {
+            case Nil<T>() -> done = true;
+            case Cons<T>(T first, ConsList<T> tail) -> {
+                elements.add(first);
+                rest = tail;
+            }
+        }
+    }
+    return elements;
 }
 
 /**
- * Check whether a given target coordinate (x,y) exists in the positions list.
- * 
+ * Build a ConsList holding the elements of a java List, in order.
+ * The list is built from its last element backwards, one Cons per element.
+ *
  * Examples:
- * - Given: positions = [(10,10), (20,20), (30,30)], target = (20,20)  
- *   Expect: containsPos(positions, target) = true
- * - Given: positions = [(10,10), (20,20), (30,30)], target = (40,40)  
- *   Expect: containsPos(positions, target) = false
- * 
- * Design Strategy: Template application
- * 
- * @param positions a list of coordinate pairs (ConsList<Pair<Integer,Integer>>)
- * @param target the coordinate pair to search for
- * @return true if target is in positions, false otherwise
+ * - consListOf([]) = Nil
+ * - consListOf([(10,10), (30,10)]) = [(10,10), (30,10)]
+ *
+ * Design Strategy: Iteration
+ *
+ * @param elements the elements of the new list
+ * @return a ConsList with the given elements in the same order
  */
-boolean containsPos(ConsList<Pair<Integer,Integer>> occupiedPositions, Pair<Integer,Integer> target) {
-    return switch (occupiedPositions) {
-        case Nil<Pair<Integer,Integer>>() -> false;
-        case Cons<Pair<Integer,Integer>>(Pair<Integer,Integer> first, ConsList<Pair<Integer,Integer>> rest) -> 
-            Equals(first, target) || containsPos(rest, target);
-    };
+<T> ConsList<T> consListOf(List<T> elements) {
+    ConsList<T> acc = new Nil<T>();
+    for (int i = elements.size() - 1; i >= 0; i--) {
+        acc = new Cons<T>(elements.get(i), acc);
+    }
+    return acc;
 }
 
 /**
- * 1.2 
- * Problem analysis and data design
- * Function purpose statement and signature
- * - Place new marbles into all vacant positions.  
- * - Takes a list of empty positions and adds a new Marble (with random colour) at each coordinate,
- *   appending them to the current list of marbles.  
- * - Base case: no vacant positions
- * - Recursive case: directly return the recursive result
- * 
+ * Build a world of numMarbleRows x numMarbleCols cells from a list of marbles.
+ * Each marble is stored in the cell centred at its (x, y) coordinate.
+ * A world holds marbles only at grid centres, so a marble that is not centred on
+ * a cell of the grid (between centres, or outside the board) is silently dropped:
+ * it is not in the result, and marbles(worldFromMarbles(list)) can be shorter than list.
+ * Two marbles at the same centre leave only the later one.
+ *
  * Examples:
- *  - Given: emptyPositions = [(10,10), (30,10)], currentMarbles = [Marble(50,10,Red)]  
- *    Expect: [Marble(50,10,Red), Marble(10,10,Blue), Marble(30,10,Green)]  
- *   (colours chosen randomly, order preserved by recursion)
- * 
- * Design Strategy: Template application 
- * 
- * @param emptyPositions a list of vacant coordinates 
- * @param currentMarbles the list of marbles currently in the world 
- * @return a ConsList<Marble> containing both old marbles and newly created ones
+ * - worldFromMarbles(Nil) is a world with every cell empty
+ * - worldFromMarbles([Marble(30, 10, RED)]) is a world with only cell 1 holding RED
+ * - worldFromMarbles([Marble(15, 10, RED)]) is a world with every cell empty, the marble being dropped
+ *
+ * Design Strategy: Combining functions
+ *
+ * @param listOfMarbles the marbles to place on the grid
+ * @return a WorldState holding the given marbles
  */
-ConsList<Marble> addMarblesAtVacancies(ConsList<Pair<Integer,Integer>> emptyPositions,
-                                       ConsList<Marble> currentMarbles) {
-    return switch (emptyPositions) {
-        case Nil<Pair<Integer,Integer>>() -> currentMarbles;
-        case Cons<Pair<Integer,Integer>>(Pair<Integer,Integer> position, ConsList<Pair<Integer,Integer>> remainingPositions) ->
-            addMarblesAtVacancies(remainingPositions,
-                Append(currentMarbles, MakeList(new Marble(position.first(), position.second(), randomColour()))));
-    };
+WorldState worldFromMarbles(ConsList<Marble> listOfMarbles) {
+    WorldState w = emptyWorld(defaultBoard());
+    placeMarbles(w, listOfMarbles);
+    return worldFromCells(w.board(), w.cells());
 }
 
+/**
+ * Store every marble of a list into the cell centred at its coordinate.
+ * Marbles not centred on a cell of w are skipped.
+ * Only the cells are written; the free-cell index of w is not updated.
+ *
+ * Examples:
+ * - placeMarbles(w, Nil) leaves w unchanged
+ * - placeMarbles(w, [Marble(10, 10, BLUE)]) stores BLUE into cell 0 of w
+ *
+ * Design Strategy: Iteration
+ *
+ * @param w the WorldState whose cells are filled in
+ * @param listOfMarbles the marbles to store
+ */
+void placeMarbles(WorldState w, ConsList<Marble> listOfMarbles) {
+    for (Marble marble : elementsOf(listOfMarbles)) {
+        int index = centreToCell(w, marble.x(), marble.y());
+        if (index >= 0) {
+            w.cells()[index] = cellOf(marble.colour());
+        }
+    }
+}
 
 /**
- * 2. Handle a mouse event
- * Problem analysis and data design
- * Function purpose statement and signature
- * - If the event is a LEFT_CLICK, use onLeftClick to update the world.  
- * - Otherwise, ignore the event and return the world unchanged.
- * 
+ * List the marbles currently in the world, in row-major order.
+ *
  * Examples:
- *  - Given: Left click on a marble 
- *    Expect: use onLeftClick function, world may change
- *  - Given: Right click or other kind 
- *    Expect: return w unchanged
- * 
- * Design Strategy: Case Distinction
- * 
+ * - If every cell of w is empty, returns Nil
+ * - In a 1x3 world with cells [0, EMPTY, 1],
+ *   returns [Marble(10, 10, BLUE), Marble(50, 10, RED)]
+ *
+ * Design Strategy: Iteration
+ *
  * @param w the current WorldState
- * @param mouseEvent the mouse event to handle
- * @return a new WorldState after the mouseEvent
-*/
-WorldState mouseEvent(WorldState w, MouseEvent mouseEvent) {
-    return (mouseEvent.kind() == MouseEventKind.LEFT_CLICK) ? leftClick(w, mouseEvent) : w;
+ * @return a ConsList of all marbles in w
+ */
+ConsList<Marble> marbles(WorldState w) {
+    ConsList<Marble> acc = new Nil<Marble>();
+    for (int i = w.cells().length - 1; i >= 0; i--) {
+        if (w.cells()[i] != EMPTY) {
+            acc = new Cons<Marble>(marbleInCell(w, i), acc);
+        }
+    }
+    return acc;
 }
 
-/** 
- * Problem analysis and data design
- * Function purpose statement and signature
- * - Handle a left-click event on the world
- * - If the click hits a marble, remove all marbles of the same colour.  
- * - If no marble is hit, return the world unchanged.
- * 
+/**
+ * Count the marbles currently in the world.
+ *
  * Examples:
- *  - Given: WorldState( [Marble(10, 10, RED), Marble(30, 10, BLUE), Marble(50, 10, RED)] )
- *           Left-click at Marble(10, 10, RED)
- *    Expect: removes all RED marbles, return WorldState( [Marble(30, 10, BLUE)] )
- * 
- *  - Given: Left-click at Marble(10, 11, RED) hits nothing
- *    Expect: returns the original world unchanged
+ * - If every cell of w is empty, returns 0
+ * - In a 1x3 world with cells [0, EMPTY, 1], returns 2
+ *
+ * Design Strategy: Combining functions
  *
- * Design Strategy: Case Distinction
- * 
  * @param w the current WorldState
- * @param mouseEvent the MouseEvent describing the click
- * @return a new WorldState after applying the left-click logic
+ * @return the number of occupied cells of w
  */
-WorldState leftClick(WorldState w, MouseEvent mouseEvent) {
-    Maybe<Marble> hit = findClickedMarble(mouseEvent, w.marbles());
-    return switch (hit) {
-        case Nothing<Marble>() -> w;
-        case Something<Marble>(Marble marble) -> new WorldState(filterOutSameColour(marble, w.marbles()));
-    };
+int numberOfMarbles(WorldState w) {
+    return w.cells().length - w.vacancies().length;
 }
 
-/** 
- * 2.1
- * Problem analysis and data design
- * Function purpose statement and signature
- * - Detect whether a mouse click hits any marble on the screen,
- *   (click coordinates must lie within the square centered at the marble with 2R).  
- * - If a marble is hit, return Something<Marble>(that marble);  
- * - otherwise, return Nothing.
+/**
+ * Advance the world by one time step.
+ * The world does not evolve over time. If input is batched, the events queued
+ * since the last frame are applied here by applyFrame, and the rules they
+ * switched become the rules of the game; otherwise the
+ * function simply returns the input world unchanged.
  * 
  * Examples:
- *  - Given: World contains [Marble(50, 50, RED), Marble(100, 100, BLUE)], marbleRadius = 10
- *           mouseEvent at (55,55)
- *    Expect: Within bounding box of Marble(50,50,RED), return Something(Marble(50,50,RED))
- * 
- *  - Given: mouseEvent at (95,105)
- *    Expect: Within bounding box of Marble(100,100,BLUE), return Something(Marble(100,100,BLUE))
- * 
- *  - Given: mouseEvent at (200,200)
- *    Expect: Nothing
- * 
- * Design Strategy: Template application
- * 
- * @param mouseEvent  the MouseEvent containing click coordinates
- * @param list        the list of marbles currently in the world
- * @return            Maybe<Marble> (Something if hit, Nothing if no hit)
+ * - If w = WorldState(Nil), step(w) = WorldState(Nil).
+ * - If w = WorldState(Cons(Marble(50, 100, BLUE), Nil)),
+ *   step(w) = the same WorldState with the same marbles.
+ * - If a click on a BLUE marble is queued, step(w) has no BLUE marble.
+ *
+ * Design Strategy: Case distinction
+ *
+ * @param w the current WorldState
+ * @return the WorldState after the queued events, or w if there are none
  */
-Maybe<Marble> findClickedMarble(MouseEvent mouseEvent, ConsList<Marble> list) {
-    return switch (list) {
-        case Nil<Marble>() -> new Nothing<Marble>();
-        case Cons<Marble>(Marble first, ConsList<Marble> rest) -> 
-            ((mouseEvent.x() >= first.x() - marbleRadius) && 
-            (mouseEvent.x() <= first.x() + marbleRadius) &&
-            (mouseEvent.y() >= first.y() - marbleRadius) && 
-            (mouseEvent.y() <= first.y() + marbleRadius)) ? new Something<Marble>(first)
-                                                          : findClickedMarble(mouseEvent, rest);
-    };
+WorldState step(WorldState w) {
+    if (pendingEvents.isEmpty()) {
+        return w;
+    }
+    recordFrame();
+    Played next = applyFrame(w, gameRules(), pendingEvents, sessionColours);
+    pendingEvents.clear();
+    commitRules(next.rules());
+    return next.world();
 }
 
-/** 
- * 2.2
+/**
+ * The last frame composed by draw, kept so the next frame can reuse it.
+ * - world: the WorldState that the frame shows
+ * - rowStrips: the strip image of every row of world, or Nothing for an empty row
+ * - frame: the composed image of world
+ */
+record RetainedFrame(WorldState world, ArrayList<Maybe<Image>> rowStrips, Image frame) {}
+/**
+ * ... f.world() ...
+ * ... f.rowStrips() ...
+ * ... f.frame() ...
+ */
+
+/* The last frame composed by draw, or Nothing before the first frame */
+Maybe<RetainedFrame> retainedFrame = new Nothing<RetainedFrame>();
+
+/**
  * Problem analysis and data design
  * Function purpose statement and signature
- * - Remove all marbles that have the same colour as the given target marble.
- *   Traverses the list recursively from left to right, keeping only marbles of a different colour.
+ * - Draw the entire world by starting from a white background,
+ *   and then drawing all marbles on top of it.
+ * - The last frame is retained. If w is the world drawn last time, that frame
+ *   is returned as it is. Otherwise only the rows whose cells changed since the
+ *   last frame are drawn again, and the strips of the other rows are reused.
  * 
  * Examples:
- *  - Given: filterOutSameColour(RED, [RED, BLUE, RED, GREEN])
- *    Expect: [BLUE, GREEN]
- *  - Given: filterOutSameColour(BLUE, [GREEN, RED])
- *    Expect: [GREEN, RED]
- *  - Given: filterOutSameColour(GREEN, []) 
- *    Expect: []
+ *   - If w has no marbles, returns just a white background.
+ *   - If w has some marbles, returns background plus those marbles.
+ *   - draw(w) twice in a row returns the same Image object.
  * 
- * Design Strategy: Template application
+ * Design Strategy: Case distinction
  * 
- * @param target  the marble clicked, all same colour marbles are removed
- * @param current the current list of marbles (possibly empty)
- * @return        a new list of marbles with all marbles of target.colour() removed
+ * @param w the current WorldState containing all marbles
+ * @return an Image with background and all marbles drawn
  */
-ConsList<Marble> filterOutSameColour(Marble target, ConsList<Marble> current) {
-    return switch (current) {
-        case Nil<Marble>() -> MakeList();
-        case Cons<Marble>(Marble first, ConsList<Marble> rest) -> 
-            (Equals(first.colour(), target.colour())) ? filterOutSameColour(target, rest)
-                                                      : Append(MakeList(first), filterOutSameColour(target, rest));
+Image draw(WorldState w) {
+    RetainedFrame next = switch (retainedFrame) {
+        case Nothing<RetainedFrame>() -> renderFrame(w);
+        case Something<RetainedFrame>(RetainedFrame last) -> last.world() == w ? last : updateFrame(last, w);
     };
+    retainedFrame = new Something<RetainedFrame>(next);
+    return next.frame();
 }
 
 /**
- * Get marble at a pixel coordinate.
- * - Given the current world state and a pixel coordinate (x, y),
- *   returns the marble at pixel coordinate (x, y) or Nothing.
- * 
+ * Compose a frame of w from nothing, drawing the strip of every row.
+ *
  * Examples:
- * - If a marble exists at (10, 20), return Something(marble).
- * - If no marble exists at (10, 10), return Nothing.
- * 
- * Design Strategy: Combining functions
- * 
- * @param w the current world state containing marbles
- * @param x the x-coordinate (in pixels)
- * @param y the y-coordinate (in pixels)
- * @return Something<Marble> if a marble is found at (x, y), otherwise Nothing<Marble>
+ *   - renderFrame(w).frame() = drawCells(w, Rectangle(boardWidth, boardHeight, WHITE))
+ *
+ * Design Strategy: Iteration
+ *
+ * @param w the WorldState to draw
+ * @return the RetainedFrame of w
  */
-Maybe<Marble> getMarbleAt(WorldState w, int x, int y) {
-    return findClickedMarble(new MouseEvent(MouseEventKind.LEFT_CLICK, x, y), w.marbles());
+RetainedFrame renderFrame(WorldState w) {
+    ArrayList<Maybe<Image>> strips = new ArrayList<Maybe<Image>>(w.board().rows());
+    for (int row = 0; row < w.board().rows(); row++) {
+        strips.add(drawRow(w, row));
+    }
+    return new RetainedFrame(w, strips, composeFrame(w.board(), strips));
 }
 
 /**
- * Get the display colour (Universe Colour) of a given marble.
- * Convert a Marble's own MarbleColour into a Universe Colour
- * that can be drawn on the screen.
+ * Compose a frame of w from the last frame, drawing again only the rows
+ * whose cells differ from the world of the last frame.
+ * If the board configuration changed, nothing can be reused.
  *
  * Examples:
- * - m = Marble(10, 20, MarbleColour.BLUE), 
- *   getColour(m) = Colour.BLUE
- * - m = Marble(50, 70, MarbleColour.RED), 
- *   getColour(m) = Colour.RED
+ *   - If w is last.world() after crushing a colour found only in row 3,
+ *     only the strip of row 3 is drawn again.
  *
- * Design Strategy: Combining functions
+ * Design Strategy: Iteration
  *
- * @param m the Marble whose colour we want
- * @return the Colour corresponding to the Marble's MarbleColour
+ * @param last the frame drawn last time
+ * @param w the WorldState to draw
+ * @return the RetainedFrame of w
  */
-Colour getColour(Marble marble) {
-    return convertToColour(marble.colour());
+RetainedFrame updateFrame(RetainedFrame last, WorldState w) {
+    BoardConfig board = w.board();
+    if (!last.world().board().equals(board)) {
+        return renderFrame(w);
+    }
+    byte[] before = last.world().cells();
+    byte[] after = w.cells();
+    ArrayList<Maybe<Image>> strips = new ArrayList<Maybe<Image>>(last.rowStrips());
+    for (int row = 0; row < board.rows(); row++) {
+        int from = row * board.cols();
+        int to = from + board.cols();
+        if (!Arrays.equals(before, from, to, after, from, to)) {
+            strips.set(row, drawRow(w, row));
+        }
+    }
+    return new RetainedFrame(w, strips, composeFrame(board, strips));
 }
 
 /**
- * Count how many marbles in the current world have a given target colour.
- * 
- * Examples:  
- *   - If w has no marbles, return 0.  
- *   - If w has 3 marbles and 2 of them are RED, then 
- *     numberOfMarblesOfColour(w, Colour.RED) = 2.  
- * 
- * Design Strategy: Combining functions  
- *  
- * @param w the current WorldState containing all marbles  
- * @param colour the target Colour to count  
- * @return the number of marbles of the given colour in the world  
- */
-int numberOfMarblesOfColour(WorldState w, Colour colour) {
-    return countColour(w.marbles(), colour);
-}
+ * Place the strips of the non-empty rows on a white background as large as the board.
+ *
+ * Examples:
+ *   - If every strip is Nothing, returns the white background.
+ *
+ * Design Strategy: Iteration
+ *
+ * @param board the board configuration of the frame
+ * @param strips the strip image of every row, or Nothing for an empty row
+ * @return the composed frame
+ */
+Image composeFrame(BoardConfig board, ArrayList<Maybe<Image>> strips) {
+    Image image = Rectangle(boardWidth(board), boardHeight(board), Colour.WHITE);
+    for (int row = 0; row < strips.size(); row++) {
+        image = switch (strips.get(row)) {
+            case Nothing<Image>() -> image;
+            case Something<Image>(Image strip) -> PlaceXY(image, strip, boardWidth(board) / 2, cellY(board, row));
+        };
+    }
+    return image;
+}
+
+/* Pre-rendered marble images: for each marble radius, one image per MarbleColour, indexed by ordinal */
+HashMap<Integer, Image[]> marbleSprites = new HashMap<Integer, Image[]>();
 
 /**
- * Count how many marbles in a given list match the target colour.  
- * Works recursively: check the first marble, then recurse on the rest.  
+ * Get the image of a marble of a given radius and colour.
+ * The images of each radius are built once, on first use, and then
+ * shared by every marble drawn with that radius and colour.
+ *
+ * Examples:
+ *   - marbleSprite(10, MarbleColour.RED) is Circle(10, Colour.RED),
+ *     and the same Image object on every call.
+ *
+ * Design Strategy: Combining functions
+ *
+ * @param radius the radius of the marble in pixels (>0)
+ * @param colour the MarbleColour of the marble
+ * @return the cached Image of that marble
+ */
+Image marbleSprite(int radius, MarbleColour colour) {
+    Image[] sprites = marbleSprites.computeIfAbsent(radius, r -> buildSprites(r));
+    return sprites[colour.ordinal()];
+}
+
+/**
+ * Build the images of the marbles of one radius, one per MarbleColour.
+ *
+ * Examples:
+ *   - buildSprites(10) = [Circle(10, BLUE), Circle(10, RED), Circle(10, GREEN), Circle(10, BLACK)]
+ *
+ * Design Strategy: Iteration
+ *
+ * @param radius the radius of the marbles in pixels (>0)
+ * @return the marble images, indexed by MarbleColour ordinal
+ */
+Image[] buildSprites(int radius) {
+    Image[] sprites = new Image[MARBLE_COLOURS.length];
+    for (MarbleColour colour : MARBLE_COLOURS) {
+        sprites[colour.ordinal()] = Circle(radius, convertToColour(colour));
+    }
+    return sprites;
+}
+
+/**
+ * Problem analysis and data design
+ * Function purpose statement and signature
+ * - Draw the marble of every occupied cell of the grid on a background image.
+ *   Each marble is drawn with its cached sprite at the centre of its cell.
+ * - Each row of marbles is composed into its own strip image, and the strips are
+ *   then placed on the background. The image is nested as deep as one row plus
+ *   the number of rows, not as deep as the number of marbles.
+ *   Rows without any marble are not drawn.
+ *
+ * Examples:
+ *   - If every cell of w is empty, returns bg unchanged.
+ *   - If only cell 0 holds RED, returns bg with a strip of row 0 placed on it,
+ *     where the strip has a red circle drawn at (10, 10).
+ *
+ * Design Strategy: Iteration
+ *
+ * @param w the WorldState whose cells are drawn
+ * @param bg the background image on which marbles will be placed
+ * @return an Image with all marbles of w drawn on top of the background
+ */
+Image drawCells(WorldState w, Image bg) {
+    Image image = bg;
+    BoardConfig board = w.board();
+    for (int row = 0; row < board.rows(); row++) {
+        image = switch (drawRow(w, row)) {
+            case Nothing<Image>() -> image;
+            case Something<Image>(Image strip) -> PlaceXY(image, strip, boardWidth(board) / 2, cellY(board, row));
+        };
+    }
+    return image;
+}
+
+/**
+ * Problem analysis and data design
+ * Function purpose statement and signature
+ * - Draw one row of the grid as a strip image: a white rectangle as wide as
+ *   the board and one marble high, with the sprite of every marble of the row
+ *   placed at its x-coordinate.
+ * - If the row holds no marble, there is nothing to draw.
+ *
+ * Examples:
+ *   - If every cell of row 2 is empty, drawRow(w, 2) = Nothing
+ *   - If only cell 1 of row 0 holds BLUE on the standard board,
+ *     drawRow(w, 0) = Something(PlaceXY(Rectangle(300, 20, WHITE), Circle(10, BLUE), 30, 10))
+ *
+ * Design Strategy: Iteration
+ *
+ * @param w the WorldState whose row is drawn
+ * @param row the index of the row (0-based)
+ * @return Something with the strip image of the row, or Nothing if the row is empty
+ */
+Maybe<Image> drawRow(WorldState w, int row) {
+    BoardConfig board = w.board();
+    int radius = board.marbleRadius();
+    byte[] cells = w.cells();
+    Image strip = null;
+    for (int col = 0; col < board.cols(); col++) {
+        byte cell = cells[row * board.cols() + col];
+        if (cell != EMPTY) {
+            if (strip == null) {
+                strip = Rectangle(boardWidth(board), 2 * radius, Colour.WHITE);
+            }
+            strip = PlaceXY(strip, marbleSprite(radius, MARBLE_COLOURS[cell]), cellX(board, col), radius);
+        }
+    }
+    return (strip == null) ? new Nothing<Image>() : new Something<Image>(strip);
+}
+
+/**
+ * Problem analysis and data design
+ * Function purpose statement and signature
+ * - Draw all marbles in a list on background image.
+ *   Each marble is drawn as a coloured circle at its (x, y) coordinate.
  * 
- * Examples:  
- *   - If marbles = Nil, return 0.  
- *   - If marbles = [RED, BLUE, RED] and colour = RED, return 2.  
- *   - If marbles = [GREEN, GREEN] and colour = RED, return 0.  
+ * Examples:
+ *   - If listOfMarbles is Nil, returns bg unchanged.
  * 
- * Design Strategy: Template application
+ *   - If listOfMarbles has one marble (x=10, y=20, red),
+ *     returns bg with a red circle drawn at (10, 20).
  * 
- * @param marbles the ConsList of marbles to search  
- * @param colour the target Colour to count  
- * @return the number of marbles in the list that have the given colour  
+ *   - If listOfMarbles has multiple marbles,
+ *       draws each marble on bg in list order.
+ * 
+ * Design Strategy: Iteration
+ * 
+ * @param listOfMarbles a ConsList of marbles to be drawn
+ * @param bg the background image on which marbles will be placed
+ * @return an Image with all marbles drawn on top of the background
  */
-int countColour(ConsList<Marble> marbles, Colour colour) {
-    return switch (marbles) {
-        case Nil<Marble>() -> 0;
-        case Cons<Marble>(Marble first, ConsList<Marble> rest) ->
-            (Equals(convertToColour(first.colour()), colour) ? 1 : 0) + countColour(rest, colour);
-    };
+Image drawMarbles(ConsList<Marble> listOfMarbles, Image bg) {
+    Image image = bg;
+    for (Marble marble : elementsOf(listOfMarbles)) {
+        image = PlaceXY(image, marbleSprite(marbleRadius, marble.colour()), marble.x(), marble.y());
+    }
+    return image;
 }
 
 /**
- * Returns the number of empty locations in the grid of marbles
- * Achieved by finding all vacancies and then taking their length.
+ * Construct and return the initial state of the world.
+ * The world starts with a full grid of marbles placed at regularly spaced positions.
  * 
- * Examples:  
- *   - If w has a full grid of marbles, return 0.  
- *   - If w has 3 empty positions, return 3.  
+ * Examples:
+ *   - If numMarbleRows = 0 or numMarbleCols = 0，
+ *     returns a WorldState with an empty marble list.
+ * 
+ *   - If numMarbleRows = 2 and numMarbleCols = 3,
+ *     returns a WorldState with 6 marbles placed in a 2×3 grid.
  * 
  * Design Strategy: Combining functions
  * 
- * @param w the current WorldState containing all marbles  
- * @return the number of empty grid locations (int) 
+ * @return a WorldState containing all marbles
  */
-int numberOfEmptyLocations(WorldState w) {
-    return Length(findVacancies(w.marbles()));
+WorldState getInitialState() {
+    return getInitialState(sessionColours);
+}
+
+/**
+ * Construct the initial state of the world with the colours of a given source,
+ * so that the same seed always gives the same initial board.
+ *
+ * Examples:
+ *   - getInitialState(new ColourSource(1)) is the same board on every call.
+ *
+ * Design Strategy: Combining functions
+ *
+ * @param source the source of random colours
+ * @return a WorldState containing all marbles
+ */
+WorldState getInitialState(ColourSource source) {
+    return buildFullBoard(defaultBoard(), source);
+}
+
+/**
+ * Build a world on a board in which every cell holds a marble of a random colour.
+ * The cells are filled in one pass, without any intermediate list of positions
+ * or marbles, so the cost is linear in the number of cells and the stack use is constant.
+ *
+ * Examples:
+ *   - buildFullBoard(BoardConfig(0, 5, 10)) returns a WorldState with no cells.
+ *   - buildFullBoard(BoardConfig(2, 3, 10)) returns a WorldState with 6 marbles in a 2×3 grid,
+ *     an empty free-cell index and colour counts adding up to 6.
+ *
+ * Design Strategy: Iteration
+ *
+ * @param board the configuration of the board, giving its rows and columns
+ * @return a full WorldState of rows * cols marbles
+ */
+WorldState buildFullBoard(BoardConfig board) {
+    return buildFullBoard(board, sessionColours);
+}
+
+/**
+ * Build a full board with the colours of a given source.
+ *
+ * Examples:
+ *   - buildFullBoard(board, new ColourSource(1)) is the same board on every call.
+ *
+ * Design Strategy: Iteration
+ *
+ * @param board the configuration of the board, giving its rows and columns
+ * @param source the source of random colours
+ * @return a full WorldState of rows * cols marbles
+ */
+WorldState buildFullBoard(BoardConfig board, ColourSource source) {
+    byte[] cells = new byte[board.rows() * board.cols()];
+    int[] colourCounts = new int[MARBLE_COLOURS.length];
+    for (int i = 0; i < cells.length; i++) {
+        cells[i] = (byte) source.nextOrdinal();
+        colourCounts[cells[i]]++;
+    }
+    return new WorldState(board, cells, new int[0], colourCounts);
+}
+
+/**
+ * Convert a list of marble center positions into a list of Marble objects.
+ * Each position (x, y) becomes a Marble with a randomly assigned colour.
+ * 
+ * Examples:
+ *   - If Nil, returns acc (no new marbles to add).
+ *   - If listOfPositions = [(10,20)] and acc = [],
+ *       returns [Marble(10,20,colour)] with random colour.
+ *   - If listOfPositions = [(10,20), (30,40)] and acc = [],
+ *       returns [Marble(10,20,colour), Marble(30,40,colour)] with random colours.
+ * 
+ * Design Strategy: Iteration
+ * 
+ * @param listOfPositions A list of (x, y) coordinate pairs for marbles
+ * @param acc             An accumulator list of already-created marbles
+ * @return                A ConsList<Marble> containing all marbles from the given positions
+ */
+ConsList<Marble> marblesFromPositions(ConsList<Pair<Integer,Integer>> listOfPositions, ConsList<Marble> acc) {
+    return marblesFromPositions(listOfPositions, acc, sessionColours);
+}
+
+/**
+ * Convert a list of marble center positions into a list of Marble objects,
+ * with the colours of a given source.
+ *
+ * Examples:
+ *   - marblesFromPositions([(10,20)], [], new ColourSource(1)) gives the same marble on every call.
+ *
+ * Design Strategy: Iteration
+ *
+ * @param listOfPositions A list of (x, y) coordinate pairs for marbles
+ * @param acc             An accumulator list of already-created marbles
+ * @param source          The source of random colours
+ * @return                A ConsList<Marble> containing all marbles from the given positions
+ */
+ConsList<Marble> marblesFromPositions(ConsList<Pair<Integer,Integer>> listOfPositions, ConsList<Marble> acc,
+                                      ColourSource source) {
+    ArrayList<Marble> marbles = elementsOf(acc);
+    for (Pair<Integer,Integer> position : elementsOf(listOfPositions)) {
+        marbles.add(new Marble(position.first(), position.second(), randomColour(source)));
+    }
+    return consListOf(marbles);
+}
+
+/**
+ * 1. Handle keyEvent
+ * Problem analysis and data design
+ * Function purpose statement and signature
+ * - Handle a keyboard event on the world state.  
+ * - If the SPACE key is pressed, generate new marbles at all vacant positions;  
+ * - If UNDO_KEY or REDO_KEY is pressed, undo or redo the last change;
+ * - If CRUSH_MODE_KEY is pressed, switch the crush mode between COLOUR and REGION;
+ * - If GRAVITY_KEY is pressed, turn gravity on or off;
+ * - Otherwise, leave the world unchanged.
+ * - If input is batched, a key press is queued for the next step instead,
+ *   and the world is returned unchanged.
+ * 
+ * Examples:
+ * - We have a world with has 300 marbles and 75 vacancies, total 15*25=375 marbles.
+ *   Pressing SPACE, return a new world with 375 marbles.
+ *   Pressing any other key, return w unchanged.
+ * 
+ * Design Strategy: Combining functions
+ * 
+ * @param w the current WorldState
+ * @param keyEvent the keyboard event to handle
+ * @return a new WorldState reflecting the event
+ */
+WorldState keyEvent(WorldState w, KeyEvent keyEvent) {
+    recordKeyEvent(keyEvent);
+    if (batchInput) {
+        if (keyEvent.kind() == KeyEventKind.KEY_PRESSED) {
+            queueEvent(new Press(keyEvent.key()));
+        }
+        return w;
+    }
+    recordFrame();
+    return applyKey(w, keyEvent.kind(), keyEvent.key());
+}
+
+/**
+ * Problem analysis and data design
+ * Function purpose statement and signature
+ * - Handle a keyboard event on the world state.  
+ * - If the SPACE key is pressed, every empty cell of the grid
+ *   gets a new marble of a random colour;  
+ * - Otherwise, leave the world unchanged.
+ * 
+ * Examples:
+ * - Given: processKeyEvent(w, KEY_PRESSED, "Space") 
+ *   Expect: new WorldState with added marbles
+ * 
+ * Design Strategy: Case Distinction
+ * 
+ * @param w the current WorldState
+ * @param keyEvent the keyboard event to handle
+ * @param key the actual key string (e.g., "Space")
+ * @return a new WorldState after applying the event
+ */
+WorldState processKeyEvent(WorldState w, KeyEventKind keyEventKind, String key) {
+    boolean isSpace = (keyEventKind == KeyEventKind.KEY_PRESSED) && Equals(key, "Space");
+    if (isSpace) {
+        return fillEmptyCells(w);
+    } else {
+        return w;
+    }
+}
+
+/**
+ * Problem analysis and data design
+ * Function purpose statement and signature
+ * - Fill every empty cell of the grid with a marble of a random colour.
+ *   Only the cells of the free-cell index are visited, and the new world
+ *   has an empty index. Each new marble is added to the count of its colour.
+ *   Occupied cells keep their marble.
+ *
+ * Examples:
+ * - Given: a 1x3 world with cells [0, EMPTY, 1], vacancies [1]
+ *   Expect: cells [0, c, 1] where c is the value of a random colour, vacancies []
+ * - Given: a full world
+ *   Expect: w unchanged
+ *
+ * Design Strategy: Iteration
+ *
+ * @param w the current WorldState
+ * @return a new WorldState in which no cell is empty
+ */
+WorldState fillEmptyCells(WorldState w) {
+    return fillEmptyCells(w, sessionColours);
+}
+
+/**
+ * Fill every empty cell of the grid with the colours of a given source.
+ *
+ * Examples:
+ *   - fillEmptyCells(w, new ColourSource(1)) is the same world on every call.
+ *
+ * Design Strategy: Iteration
+ *
+ * @param w the current WorldState
+ * @param source the source of random colours
+ * @return a new WorldState in which no cell is empty
+ */
+WorldState fillEmptyCells(WorldState w, ColourSource source) {
+    int[] vacancies = w.vacancies();
+    if (vacancies.length == 0) {
+        return w;
+    }
+    byte[] cells = w.cells().clone();
+    int[] colourCounts = w.colourCounts().clone();
+    refillVacancies(w.board(), cells, vacancies, source, colourCounts);
+    return new WorldState(w.board(), cells, new int[0], colourCounts);
+}
+
+/**
+ * Fill every vacancy of a board in place: on the calling thread if there are fewer than
+ * PARALLEL_REFILL_THRESHOLD of them, with fillStripesInParallel otherwise.
+ * Every refill of the game goes through here, so a seeded source gives the same
+ * colours whichever path the refill takes.
+ *
+ * Examples:
+ *   - refillVacancies(board, cells, [1, 4], source, counts) sets cells 1 and 4
+ *     and adds 2 to the counts
+ *
+ * Design Strategy: Case Distinction
+ *
+ * @param board the configuration of the board
+ * @param cells the cells to fill, modified in place
+ * @param vacancies the sorted indices of the empty cells
+ * @param source the source of random colours
+ * @param colourCounts the colour counts to add the new marbles to, modified in place
+ */
+void refillVacancies(BoardConfig board, byte[] cells, int[] vacancies, ColourSource source, int[] colourCounts) {
+    if (vacancies.length < PARALLEL_REFILL_THRESHOLD) {
+        fillVacancies(cells, vacancies, 0, vacancies.length, source, colourCounts);
+    } else {
+        fillStripesInParallel(board, cells, vacancies, source, colourCounts);
+    }
+}
+
+/* Refills of fewer vacancies than this are done on the calling thread */
+int PARALLEL_REFILL_THRESHOLD = 1 << 16;
+
+/* The number of cells in each row stripe of a parallel refill, rounded down to whole rows */
+int REFILL_STRIPE_CELLS = 1 << 16;
+
+/**
+ * Fill the cells of vacancies[from .. to) with colours of a source,
+ * adding each new marble to the count of its colour.
+ *
+ * Examples:
+ *   - fillVacancies(cells, [1, 4], 0, 2, source, counts) sets cells 1 and 4
+ *     and adds 2 to the counts.
+ *
+ * Design Strategy: Iteration
+ *
+ * @param cells the cells to fill, modified in place
+ * @param vacancies indices of empty cells
+ * @param from the first position of vacancies to fill
+ * @param to one past the last position of vacancies to fill
+ * @param source the source of random colours
+ * @param colourCounts the colour counts to add the new marbles to, modified in place
+ */
+void fillVacancies(byte[] cells, int[] vacancies, int from, int to, ColourSource source, int[] colourCounts) {
+    for (int k = from; k < to; k++) {
+        byte cell = (byte) source.nextOrdinal();
+        cells[vacancies[k]] = cell;
+        colourCounts[cell]++;
+    }
+}
+
+/**
+ * Problem analysis and data design
+ * Function purpose statement and signature
+ * - Fill the vacancies of a large board in parallel on the common fork-join pool.
+ * - The board is cut into stripes of whole rows of about REFILL_STRIPE_CELLS cells.
+ *   Since the free-cell index is sorted, the vacancies of a stripe are one range of it,
+ *   found by binary search. Each stripe writes only its own cells and its own
+ *   colour counts, which are added up at the end.
+ * - Each stripe gets its own colour source, split from source before any work starts.
+ *   The stripes depend only on the board, so a seeded refill gives the same board
+ *   whatever the number of threads.
+ *
+ * Examples:
+ *   - On a 1000x1000 board, there are 16 stripes of 65 rows (the last one shorter).
+ *
+ * Design Strategy: Iteration
+ *
+ * @param board the configuration of the board
+ * @param cells the cells to fill, modified in place
+ * @param vacancies the sorted indices of the empty cells
+ * @param source the source from which the stripe sources are split
+ * @param colourCounts the colour counts to add the new marbles to, modified in place
+ */
+void fillStripesInParallel(BoardConfig board, byte[] cells, int[] vacancies, ColourSource source, int[] colourCounts) {
+    int stripeCells = Math.max(1, REFILL_STRIPE_CELLS / board.cols()) * board.cols();
+    int numStripes = (cells.length + stripeCells - 1) / stripeCells;
+    int[] bounds = new int[numStripes + 1];
+    ColourSource[] sources = new ColourSource[numStripes];
+    for (int s = 0; s < numStripes; s++) {
+        int found = Arrays.binarySearch(vacancies, s * stripeCells);
+        bounds[s] = (found >= 0) ? found : -found - 1;
+        sources[s] = source.split();
+    }
+    bounds[numStripes] = vacancies.length;
+    int[][] stripeCounts = new int[numStripes][MARBLE_COLOURS.length];
+    IntStream.range(0, numStripes).parallel().forEach(s ->
+        fillVacancies(cells, vacancies, bounds[s], bounds[s + 1], sources[s], stripeCounts[s]));
+    for (int[] counts : stripeCounts) {
+        for (int c = 0; c < counts.length; c++) {
+            colourCounts[c] += counts[c];
+        }
+    }
+}
+
+/**
+ * 1.1 Find all vacant positions of a grid world
+ * Problem analysis and data design
+ * Function purpose statement and signature
+ * - List the centres of the empty cells of the world, in row-major order.
+ *   The positions come from the free-cell index, so only empty cells are visited.
+ *
+ * Examples:
+ * - Given: a 1x3 world with cells [0, EMPTY, EMPTY]
+ *   Expect: [(30,10), (50,10)]
+ * - Given: a full world
+ *   Expect: []
+ *
+ * Design Strategy: Iteration
+ *
+ * @param w the current WorldState
+ * @return a ConsList of (x,y) coordinate pairs representing vacant positions
+ */
+ConsList<Pair<Integer,Integer>> findVacancies(WorldState w) {
+    ConsList<Pair<Integer,Integer>> acc = new Nil<Pair<Integer,Integer>>();
+    BoardConfig board = w.board();
+    int[] vacancies = w.vacancies();
+    for (int k = vacancies.length - 1; k >= 0; k--) {
+        int i = vacancies[k];
+        acc = new Cons<Pair<Integer,Integer>>(
+            new Pair<Integer,Integer>(cellX(board, i % board.cols()), cellY(board, i / board.cols())), acc);
+    }
+    return acc;
+}
+
+/** 
+ * 1.1 Find all vacant positions of a list of marbles
+ * Problem analysis and data design
+ * Function purpose statement and signature
+ * - Firstly, we hava a world with all possible coordinates (generated recursively).
+ *   Then, find the coordinates of existing marbles.
+ *   Return positions are currently empty (not occupied by a marble).
+ * 
+ * Examples:
+ * - Given: Suppose numMarbleRows = 2, numMarbleCols = 2, marbleRadius = 1.
+ *          allPositions = [(1,1), (1,2), (2,1), (2,2)]
+ *          listOfMarbles = [(2,2)]  (occupiedPositions)
+ *   Expect: findVacancies(list) = [(1,1), (1,2), (2,1)]
+ *
+ * Design Strategy: Combining Functions
+ * 
+ * @param listOfMarbles the current marbles in the world
+ * @return a ConsList of (x,y) coordinate pairs representing vacant positions
+*/
+ConsList<Pair<Integer,Integer>> findVacancies(ConsList<Marble> listOfMarbles) {
+    ConsList<Pair<Integer,Integer>> allPositions = 
+        generateAllMarblesCenterPositionRecursively(marbleRadius, numMarbleRows, numMarbleCols);
+    ConsList<Pair<Integer,Integer>> occupiedPositions = 
+        positionsFromMarbles(listOfMarbles);
+    return subtractPositions(allPositions, occupiedPositions); 
+}
+
+/**
+* 1.1.1 
+* Problem analysis and data design
+* Function purpose statement and signature
+* - Generates a list of pairs with the coordinates of the centers of the marbles 
+*   laid out in a two-dimensional grid of marbles with numMarbleRows rows and numMarbleCols columns. 
+* - The marbles are positioned to be touching the adjacent marbles in the grid, 
+*   with no space in between them and no overlapping. 
+* - The positions of the marble centers are ordered in row-major order,i.e., 
+*   first by rows, and then by columns. 
+* - The x-axis points right, and the y-axis points down.
+* 
+* Example:
+*   - Given: marbleRadius=10, numMarbleRows=2, numMarbleCols=3
+*   - Expect: [(10,10),(30,10),(50,10),(10,30),(30,30),(50,30)]
+* 
+* Design strategy: Combining functions
+
+* @param marbleRadius The radius of the marble in pixels (>0)
+* @param numMarbleRows The number of rows in the 2D grid of marbles (>0)
+* @param numMarbleCols The number of columns in the 2D grid of marbles (>0)
+* @return A list with the coordinates of the marble centers in the 2D grid
+*/ 
+ConsList<Pair<Integer,Integer>> generateAllMarblesCenterPositionRecursively(
+    int marbleRadius, int numMarbleRows, int numMarbleCols) {
+        return generateAllGridCentersRecursively(marbleRadius, 0, 0, numMarbleRows, numMarbleCols, MakeList());
+}
+
+/**
+ * Problem analysis and data design
+ * Function purpose statement and signature
+ * - Helper to generate marble center coordinates row by row,
+ *   starting at (row, Col) and continuing to the end of the grid.
+ * - Returns the accumulator followed by the generated coordinates.
+ *   The cells are visited with a loop, so the stack use is constant.
+ * 
+ * Example:
+ *   - Given: marbleRadius=10, numMarbleRows=2, numMarbleCols=3
+ *   - Expect: [(10,10),(30,10),(50,10),(10,30),(30,30),(50,30)]
+ * 
+ * Design Strategy: Iteration
+ * 
+ * @param marbleRadius the radius of each marble
+ * @param row current row index (0-based)
+ * @param col current column index (0-based)
+ * @param numMarbleRows total rows
+ * @param numMarbleCols total cols
+ * @param acc accumulated positions so far
+ * @return completed ConsList of positions after traversal
+ */
+ConsList<Pair<Integer,Integer>> generateAllGridCentersRecursively(
+    int marbleRadius, int row, int Col, int numMarbleRows, int numMarbleCols, ConsList<Pair<Integer,Integer>> acc) {
+        ArrayList<Pair<Integer,Integer>> positions = elementsOf(acc);
+        int marbleDiameter = marbleRadius * 2;
+        int nextRow = row;
+        int nextCol = Col;
+        while (nextRow < numMarbleRows) {
+            int x = marbleRadius + nextCol * marbleDiameter;
+            int y = marbleRadius + nextRow * marbleDiameter;
+            positions.add(new Pair<Integer,Integer>(x, y));
+            nextCol = nextCol + 1;
+            if (nextCol >= numMarbleCols) {
+                nextCol = 0;
+                nextRow = nextRow + 1;
+            }
+        }
+        return consListOf(positions);
+}
+
+/**
+ * 1.1.2 
+ * Problem analysis and data design
+ * Function purpose statement and signature
+ * - Convert a list of Marble into a list of (x,y) coordinate pairs.  
+ *   Preserves the original left-to-right order.
+ * - If the marble list is empty (Nil), return an empty list of coordinates.
+ * - Otherwise, take each marble’s (x, y) coordinates in turn, wrap them into a Pair
+ *   and collect them, then build the result list once from the collected pairs.
+ * 
+ * Examples:
+ * - Given: (Empty list) positionsFromMarbles(Nil())
+ *   Expect: Nil()
+ * - Given: m1 = Marble(10, 20, Red), positionsFromMarbles(MakeList(m1))
+ *   Expect: [(10,20)]
+ * - Given: m1 = Marble(10, 10, Red), m2 = Marble(30, 10, Blue), m3 = Marble(50, 10, Green)
+ *          positionsFromMarbles(MakeList(m1, m2, m3))
+ *   Expect: [(10,10), (30,10), (50,10)]
+ * 
+ * Design Strategy: Iteration
+ * 
+ * @param marbles the list of marbles (ConsList<Marble>)
+ * @return a ConsList<Pair<Integer,Integer>> of (x,y) centers
+ */
+ConsList<Pair<Integer,Integer>> positionsFromMarbles(ConsList<Marble> marbles) {
+    ArrayList<Pair<Integer,Integer>> positions = new ArrayList<Pair<Integer,Integer>>();
+    for (Marble marble : elementsOf(marbles)) {
+        positions.add(new Pair<Integer,Integer>(marble.x(), marble.y()));
+    }
+    return consListOf(positions);
+}
+
+/** 
+ * 1.1.3 
+ * Problem analysis and data design
+ * Function purpose statement and signature
+ * - Compute the list of vacant positions by subtracting occupied coordinates from all possible coordinates    
+ *   Traverses allPositions in order and excludes any position found in occupiedPositions.
+ * - The occupied coordinates are put in a hash set first, so each position
+ *   is checked in constant time.
+ * 
+ * Examples:
+ * - Given: allPositions = [(10,10), (30,10), (50,10)]  
+ *          occupiedPositions = [(30,10)]  
+ *          subtractPositions(all, occupied) 
+ *   Expect: [(10,10), (50,10)]
+ * 
+ * Design Strategy: Iteration
+ * 
+ * @param allPositions all possible grid positions (ConsList<Pair<Integer,Integer>>)  
+ * @param occupiedPositions coordinates of marbles currently present (ConsList<Pair<Integer,Integer>>)  
+ * @return a ConsList<Pair<Integer,Integer>> of positions that are vacant
+ */
+ConsList<Pair<Integer,Integer>> subtractPositions(ConsList<Pair<Integer,Integer>> allPositions, 
+                                                  ConsList<Pair<Integer,Integer>> occupiedPositions) {
+    HashSet<Pair<Integer,Integer>> occupied = new HashSet<Pair<Integer,Integer>>(elementsOf(occupiedPositions));
+    ArrayList<Pair<Integer,Integer>> vacant = new ArrayList<Pair<Integer,Integer>>();
+    for (Pair<Integer,Integer> position : elementsOf(allPositions)) {
+        if (!occupied.contains(position)) {
+            vacant.add(position);
+        }
+    }
+    return consListOf(vacant);
+}
+
+/**
+ * Check whether a given target coordinate (x,y) exists in the positions list.
+ * 
+ * Examples:
+ * - Given: positions = [(10,10), (20,20), (30,30)], target = (20,20)  
+ *   Expect: containsPos(positions, target) = true
+ * - Given: positions = [(10,10), (20,20), (30,30)], target = (40,40)  
+ *   Expect: containsPos(positions, target) = false
+ * 
+ * Design Strategy: Iteration
+ * 
+ * @param positions a list of coordinate pairs (ConsList<Pair<Integer,Integer>>)
+ * @param target the coordinate pair to search for
+ * @return true if target is in positions, false otherwise
+ */
+boolean containsPos(ConsList<Pair<Integer,Integer>> occupiedPositions, Pair<Integer,Integer> target) {
+    for (Pair<Integer,Integer> position : elementsOf(occupiedPositions)) {
+        if (Equals(position, target)) {
+            return true;
+        }
+    }
+    return false;
+}
+
+/**
+ * 1.2 
+ * Problem analysis and data design
+ * Function purpose statement and signature
+ * - Place new marbles into all vacant positions.  
+ * - Takes a list of empty positions and adds a new Marble (with random colour) at each coordinate,
+ *   appending them to the current list of marbles.  
+ * - The new marbles follow the current ones, in the order of the vacant positions.
+ * 
+ * Examples:
+ *  - Given: emptyPositions = [(10,10), (30,10)], currentMarbles = [Marble(50,10,Red)]  
+ *    Expect: [Marble(50,10,Red), Marble(10,10,Blue), Marble(30,10,Green)]  
+ *   (colours chosen randomly, order preserved)
+ * 
+ * Design Strategy: Iteration
+ * 
+ * @param emptyPositions a list of vacant coordinates 
+ * @param currentMarbles the list of marbles currently in the world 
+ * @return a ConsList<Marble> containing both old marbles and newly created ones
+ */
+ConsList<Marble> addMarblesAtVacancies(ConsList<Pair<Integer,Integer>> emptyPositions,
+                                       ConsList<Marble> currentMarbles) {
+    return addMarblesAtVacancies(emptyPositions, currentMarbles, sessionColours);
+}
+
+/**
+ * Place new marbles into all vacant positions, with the colours of a given source.
+ *
+ * Examples:
+ *  - addMarblesAtVacancies([(10,10)], [], new ColourSource(1)) gives the same marble on every call.
+ *
+ * Design Strategy: Iteration
+ *
+ * @param emptyPositions a list of vacant coordinates
+ * @param currentMarbles the list of marbles currently in the world
+ * @param source the source of random colours
+ * @return a ConsList<Marble> containing both old marbles and newly created ones
+ */
+ConsList<Marble> addMarblesAtVacancies(ConsList<Pair<Integer,Integer>> emptyPositions,
+                                       ConsList<Marble> currentMarbles, ColourSource source) {
+    ArrayList<Marble> marbles = elementsOf(currentMarbles);
+    for (Pair<Integer,Integer> position : elementsOf(emptyPositions)) {
+        marbles.add(new Marble(position.first(), position.second(), randomColour(source)));
+    }
+    return consListOf(marbles);
+}
+
+
+/**
+ * 2. Handle a mouse event
+ * Problem analysis and data design
+ * Function purpose statement and signature
+ * - If the event is a LEFT_CLICK, use onLeftClick to update the world.  
+ * - Otherwise, ignore the event and return the world unchanged.
+ * - If input is batched, a LEFT_CLICK is queued for the next step instead,
+ *   and the world is returned unchanged.
+ * 
+ * Examples:
+ *  - Given: Left click on a marble 
+ *    Expect: use onLeftClick function, world may change
+ *  - Given: Right click or other kind 
+ *    Expect: return w unchanged
+ * 
+ * Design Strategy: Case Distinction
+ * 
+ * @param w the current WorldState
+ * @param mouseEvent the mouse event to handle
+ * @return a new WorldState after the mouseEvent
+*/
+WorldState mouseEvent(WorldState w, MouseEvent mouseEvent) {
+    recordMouseEvent(mouseEvent);
+    if (batchInput) {
+        if (mouseEvent.kind() == MouseEventKind.LEFT_CLICK) {
+            queueEvent(new Click(mouseEvent.x(), mouseEvent.y()));
+        }
+        return w;
+    }
+    recordFrame();
+    return (mouseEvent.kind() == MouseEventKind.LEFT_CLICK) ? remember(w, leftClick(w, mouseEvent)) : w;
+}
+
+/** 
+ * Problem analysis and data design
+ * Function purpose statement and signature
+ * - Handle a left-click event on the world
+ * - If the click hits a marble, remove all marbles of the same colour,
+ *   or in REGION crush mode only those connected to it.
+ * - If no marble is hit, return the world unchanged.
+ * 
+ * Examples:
+ *  - Given: WorldState( [Marble(10, 10, RED), Marble(30, 10, BLUE), Marble(50, 10, RED)] )
+ *           Left-click at Marble(10, 10, RED)
+ *    Expect: removes all RED marbles, return WorldState( [Marble(30, 10, BLUE)] )
+ * 
+ *  - Given: Left-click at Marble(10, 11, RED) hits nothing
+ *    Expect: returns the original world unchanged
+ *
+ * Design Strategy: Case Distinction
+ * 
+ * @param w the current WorldState
+ * @param mouseEvent the MouseEvent describing the click
+ * @return a new WorldState after applying the left-click logic
+ */
+WorldState leftClick(WorldState w, MouseEvent mouseEvent) {
+    return clickAt(w, mouseEvent.x(), mouseEvent.y());
+}
+
+/**
+ * Handle a left click at (x, y) with the rules of the game.
+ *
+ * Examples:
+ *   - If (10, 10) is inside a RED marble, clickAt(w, 10, 10) removes every RED marble
+ *     in COLOUR mode.
+ *
+ * Design Strategy: Combining functions
+ *
+ * @param w the current WorldState
+ * @param x the x-coordinate of the click in pixels
+ * @param y the y-coordinate of the click in pixels
+ * @return the WorldState after the click
+ */
+WorldState clickAt(WorldState w, int x, int y) {
+    return clickAt(w, gameRules(), x, y);
+}
+
+/**
+ * Handle a left click at (x, y): crush the marble hit, if any, by the crush mode of the rules.
+ * With gravity, the marbles above the crushed ones then fall down their columns.
+ * The rules are an input, so a click never reads the rules of the game while they change.
+ *
+ * Examples:
+ *   - If (10, 10) is inside a RED marble, clickAt(w, Rules(COLOUR, false), 10, 10)
+ *     removes every RED marble.
+ *   - If (x, y) hits no marble, returns w.
+ *
+ * Design Strategy: Case Distinction
+ *
+ * @param w the current WorldState
+ * @param rules the rules of the click
+ * @param x the x-coordinate of the click in pixels
+ * @param y the y-coordinate of the click in pixels
+ * @return the WorldState after the click
+ */
+WorldState clickAt(WorldState w, Rules rules, int x, int y) {
+    byte[] cells = w.cells();
+    int hit = hitTest(x, y, w.board(), i -> cells[i] != EMPTY);
+    if (hit < 0) {
+        return w;
+    }
+    WorldState crushed = crush(w, rules.crushMode(), hit);
+    return rules.gravity() ? applyGravity(crushed) : crushed;
+}
+
+/**
+ * Problem analysis and data design
+ * Function purpose statement and signature
+ * - Detect whether a mouse click hits the marble of an occupied cell,
+ *   using the same bounding-box rule as findClickedMarble.
+ * - Cells are checked in row-major order, so a click on the edge shared
+ *   by two marbles hits the first of them.
+ * - The clicked cells are computed directly from the click coordinates,
+ *   so the cost does not depend on the size of the grid.
+ *
+ * Examples:
+ *  - Given: cell 0 holds a marble centred at (10,10), click at (15,5)
+ *    Expect: 0
+ *  - Given: cells 0 and 1 hold marbles, click at (20,10) on their shared edge
+ *    Expect: 0
+ *  - Given: click at (20,10) but only cell 1 holds a marble
+ *    Expect: 1
+ *  - Given: click on an empty cell
+ *    Expect: -1
+ *
+ * Design Strategy: Combining functions
+ *
+ * @param mouseEvent the MouseEvent containing click coordinates
+ * @param w the current WorldState
+ * @return the index of the clicked cell, or -1 if no marble is hit
+ */
+int findClickedCell(MouseEvent mouseEvent, WorldState w) {
+    byte[] cells = w.cells();
+    return hitTest(mouseEvent.x(), mouseEvent.y(), w.board(), i -> cells[i] != EMPTY);
+}
+
+/**
+ * Problem analysis and data design
+ * Function purpose statement and signature
+ * - Find the first occupied cell, in row-major order, whose bounding box
+ *   contains a pixel coordinate.
+ * - Bounding boxes include their edges and neighbouring boxes share them,
+ *   so a coordinate on a shared edge lies in the boxes of up to 2 rows
+ *   and up to 2 columns; at most 4 cells are checked.
+ *
+ * Examples:
+ *  - with a marble radius of 10 and every cell occupied:
+ *    hitTest(15, 5, ...)  = 0
+ *    hitTest(20, 20, ...) = 0, the corner shared by cells 0, 1, cols and cols + 1
+ *  - with only cell cols + 1 occupied:
+ *    hitTest(20, 20, ...) = cols + 1
+ *  - hitTest(-1, 5, ...) = -1, left of the grid
+ *
+ * Design Strategy: Iteration
+ *
+ * @param x the x-coordinate in pixels
+ * @param y the y-coordinate in pixels
+ * @param board the configuration of the board
+ * @param isOccupied tells whether the cell with a given index holds a marble
+ * @return the index of the hit cell, or -1 if no marble is hit
+ */
+int hitTest(int x, int y, BoardConfig board, IntPredicate isOccupied) {
+    int rows = board.rows();
+    int cols = board.cols();
+    int marbleDiameter = 2 * board.marbleRadius();
+    if (x < 0 || y < 0) {
+        return -1;
+    }
+    int col = x / marbleDiameter;
+    int row = y / marbleDiameter;
+    int firstCol = (x % marbleDiameter == 0 && col > 0) ? col - 1 : col;
+    int firstRow = (y % marbleDiameter == 0 && row > 0) ? row - 1 : row;
+    int lastCol = Math.min(col, cols - 1);
+    int lastRow = Math.min(row, rows - 1);
+    for (int r = firstRow; r <= lastRow; r++) {
+        for (int c = firstCol; c <= lastCol; c++) {
+            if (isOccupied.test(r * cols + c)) {
+                return r * cols + c;
+            }
+        }
+    }
+    return -1;
+}
+
+/**
+ * Problem analysis and data design
+ * Function purpose statement and signature
+ * - Crush every marble of one colour: the cells holding that colour become EMPTY,
+ *   in one sweep over a copy of the cells.
+ * - The crushed cells are found in increasing order, and are merged
+ *   into the free-cell index of w. The count of the crushed colour drops to 0,
+ *   and tells in advance how many cells are crushed.
+ *
+ * Examples:
+ *  - Given: crushColour(w, RED) with cells [RED, BLUE, RED, EMPTY], vacancies [3]
+ *    Expect: cells [EMPTY, BLUE, EMPTY, EMPTY], vacancies [0, 2, 3], no RED counted
+ *  - Given: crushColour(w, GREEN) with cells [RED, BLUE]
+ *    Expect: cells [RED, BLUE]
+ *
+ * Design Strategy: Iteration
+ *
+ * @param w the current WorldState
+ * @param cell the cell value of the colour to crush
+ * @return a new WorldState without any marble of that colour
+ */
+WorldState crushColour(WorldState w, byte cell) {
+    byte[] cells = w.cells().clone();
+    int[] crushed = emptyColour(cells, cell, w.colourCounts()[cell]);
+    int[] colourCounts = w.colourCounts().clone();
+    colourCounts[cell] = 0;
+    return new WorldState(w.board(), cells, mergeVacancies(w.vacancies(), crushed), colourCounts);
+}
+
+/**
+ * Empty every cell of one colour, in place, stopping as soon as the known number
+ * of cells of that colour have been emptied.
+ *
+ * Examples:
+ *   - emptyColour([RED, BLUE, RED], RED, 2) = [0, 2], cells become [EMPTY, BLUE, EMPTY]
+ *   - emptyColour(cells, GREEN, 0) = [], without looking at any cell
+ *
+ * Design Strategy: Iteration
+ *
+ * @param cells the cells of the board, modified in place
+ * @param cell the cell value of the colour to empty
+ * @param count the number of cells of that colour
+ * @return the indices of the emptied cells, in increasing order
+ */
+int[] emptyColour(byte[] cells, byte cell, int count) {
+    int[] crushed = new int[count];
+    int next = 0;
+    for (int i = 0; next < count; i++) {
+        if (cells[i] == cell) {
+            cells[i] = EMPTY;
+            crushed[next++] = i;
+        }
+    }
+    return crushed;
+}
+
+/**
+ * [K]: the rule used to crush marbles when one is clicked
+ * - COLOUR: every marble of the clicked colour on the whole board is crushed
+ * - REGION: only the marbles of the clicked colour connected to the clicked one,
+ *   through cells that share an edge, are crushed
+ */
+enum CrushMode {
+    COLOUR,
+    REGION
+}
+
+/* The crush rule of the game */
+CrushMode crushMode = CrushMode.COLOUR;
+
+/* The key that switches the crush rule between COLOUR and REGION */
+String CRUSH_MODE_KEY = "M";
+
+/* The key that turns gravity on or off */
+String GRAVITY_KEY = "G";
+
+/**
+ * [I]: the rules a transition of the world is played with
+ * The rules are not part of the world. The game keeps its own in crushMode and gravity;
+ * transitions take them as an input, and only the game handlers commit a change back.
+ *
+ * Examples:
+ * - The rules of a new game: new Rules(CrushMode.COLOUR, false)
+ *
+ * @param crushMode the crush rule of a click
+ * @param gravity true if marbles fall into the cells emptied by a crush
+ */
+record Rules(CrushMode crushMode, boolean gravity) {}
+/**
+ * ... r.crushMode() ...
+ * ... r.gravity() ...
+ */
+
+/**
+ * The current rules of the game.
+ *
+ * Examples:
+ *   - gameRules() = Rules(COLOUR, false) in a new game
+ *
+ * Design Strategy: Simple Expression
+ *
+ * @return the Rules made of crushMode and gravity
+ */
+Rules gameRules() {
+    return new Rules(crushMode, gravity);
+}
+
+/**
+ * Make some rules the rules of the game.
+ *
+ * Examples:
+ *   - After commitRules(Rules(REGION, true)), crushMode = REGION and gravity = true
+ *
+ * Design Strategy: Simple Expression
+ *
+ * @param rules the new rules of the game
+ */
+void commitRules(Rules rules) {
+    crushMode = rules.crushMode();
+    gravity = rules.gravity();
+}
+
+/**
+ * Tell whether a key is the key of a rule: CRUSH_MODE_KEY or GRAVITY_KEY.
+ *
+ * Examples:
+ *   - isRuleKey(GRAVITY_KEY) = true
+ *   - isRuleKey("Space") = false
+ *
+ * Design Strategy: Simple Expression
+ *
+ * @param key the pressed key
+ * @return true if the key switches a rule
+ */
+boolean isRuleKey(String key) {
+    return Equals(key, CRUSH_MODE_KEY) || Equals(key, GRAVITY_KEY);
+}
+
+/**
+ * The rules after a key: CRUSH_MODE_KEY switches the crush mode between COLOUR and REGION,
+ * GRAVITY_KEY turns gravity on or off, and every other key leaves the rules as they are.
+ *
+ * Examples:
+ *   - switchedRules(Rules(COLOUR, false), CRUSH_MODE_KEY) = Rules(REGION, false)
+ *   - switchedRules(Rules(COLOUR, false), GRAVITY_KEY) = Rules(COLOUR, true)
+ *   - switchedRules(r, "Space") = r
+ *
+ * Design Strategy: Case Distinction
+ *
+ * @param rules the rules before the key
+ * @param key the pressed key
+ * @return the rules after the key
+ */
+Rules switchedRules(Rules rules, String key) {
+    if (Equals(key, CRUSH_MODE_KEY)) {
+        return new Rules(rules.crushMode() == CrushMode.COLOUR ? CrushMode.REGION : CrushMode.COLOUR, rules.gravity());
+    }
+    if (Equals(key, GRAVITY_KEY)) {
+        return new Rules(rules.crushMode(), !rules.gravity());
+    }
+    return rules;
+}
+
+/**
+ * Switch a rule of the game if a key is the key of that rule, as by switchedRules,
+ * and commit it. The rules are not part of the world, so switching one leaves the world unchanged.
+ *
+ * Examples:
+ *   - switchRule(CRUSH_MODE_KEY) = true, and crushMode goes from COLOUR to REGION
+ *   - switchRule(GRAVITY_KEY) = true, and gravity goes from false to true
+ *   - switchRule("Space") = false, and no rule changes
+ *
+ * Design Strategy: Case Distinction
+ *
+ * @param key the pressed key
+ * @return true if the key switched a rule, false otherwise
+ */
+boolean switchRule(String key) {
+    if (!isRuleKey(key)) {
+        return false;
+    }
+    commitRules(switchedRules(gameRules(), key));
+    return true;
+}
+
+/* The work queue of floodFill of each thread, kept between calls so a flood fill does not allocate */
+ThreadLocal<int[]> floodQueue = ThreadLocal.withInitial(() -> new int[0]);
+
+/**
+ * Crush the marble in a cell according to the crush mode of the game.
+ *
+ * Examples:
+ *   - In COLOUR mode, crush(w, i) = crushColour(w, w.cells()[i])
+ *   - In REGION mode, crush(w, i) = crushRegion(w, i)
+ *
+ * Design Strategy: Case Distinction
+ *
+ * @param w the current WorldState
+ * @param index the index of an occupied cell
+ * @return the WorldState after the crush
+ */
+WorldState crush(WorldState w, int index) {
+    return crush(w, crushMode, index);
+}
+
+/**
+ * Crush the marble in a cell according to a given crush mode.
+ *
+ * Examples:
+ *   - crush(w, COLOUR, i) = crushColour(w, w.cells()[i])
+ *   - crush(w, REGION, i) = crushRegion(w, i)
+ *
+ * Design Strategy: Case Distinction
+ *
+ * @param w the current WorldState
+ * @param mode the crush rule
+ * @param index the index of an occupied cell
+ * @return the WorldState after the crush
+ */
+WorldState crush(WorldState w, CrushMode mode, int index) {
+    return switch (mode) {
+        case COLOUR -> crushColour(w, w.cells()[index]);
+        case REGION -> crushRegion(w, index);
+    };
+}
+
+/**
+ * Problem analysis and data design
+ * Function purpose statement and signature
+ * - Crush the region of a cell: the cell and every cell of the same colour
+ *   connected to it through cells that share an edge.
+ * - The region is found by floodFill on a copy of the cells; the crushed cells
+ *   are sorted and merged into the free-cell index, and the count of the colour
+ *   drops by the size of the region.
+ *
+ * Examples:
+ *  - Given: a 1x4 world with cells [RED, RED, BLUE, RED], crushRegion(w, 0)
+ *    Expect: cells [EMPTY, EMPTY, BLUE, RED], one RED left
+ *
+ * Design Strategy: Combining functions
+ *
+ * @param w the current WorldState
+ * @param index the index of an occupied cell
+ * @return a new WorldState without the region of that cell
+ */
+WorldState crushRegion(WorldState w, int index) {
+    byte[] cells = w.cells().clone();
+    byte colour = cells[index];
+    int[] crushed = emptyRegion(cells, w.board(), index, w.colourCounts()[colour]);
+    int[] colourCounts = w.colourCounts().clone();
+    colourCounts[colour] -= crushed.length;
+    return new WorldState(w.board(), cells, mergeVacancies(w.vacancies(), crushed), colourCounts);
+}
+
+/**
+ * Empty the region of a cell in place with floodFill, and list its cells.
+ *
+ * Examples:
+ *   - On a 1x4 board [RED, RED, BLUE, RED], emptyRegion(cells, board, 1, 3) = [0, 1]
+ *
+ * Design Strategy: Combining functions
+ *
+ * @param cells the cells of the board, modified in place
+ * @param board the configuration of the board
+ * @param index the index of an occupied cell
+ * @param maxSize an upper bound on the size of the region, such as the count of its colour
+ * @return the indices of the emptied cells, in increasing order
+ */
+int[] emptyRegion(byte[] cells, BoardConfig board, int index, int maxSize) {
+    int size = floodFill(cells, board, index, maxSize);
+    int[] crushed = Arrays.copyOf(floodQueue.get(), size);
+    Arrays.sort(crushed);
+    return crushed;
+}
+
+/**
+ * Problem analysis and data design
+ * Function purpose statement and signature
+ * - Empty the 4-connected region of same-coloured cells around a start cell, in place.
+ * - Breadth-first search with the floodQueue of the thread as a plain int queue, without recursion,
+ *   so the stack use is the same for a region of any size. A cell is emptied when it
+ *   is added to the queue, which marks it as visited without any other array.
+ * - Each cell is added at most once, so the queue never holds more than the number of
+ *   marbles of the colour; it is only grown when that is more than it has ever held.
+ * - At the end floodQueue.get()[0 .. size) holds the cells of the region, in visiting order.
+ *
+ * Examples:
+ *   - On a 2x2 board [RED, RED, BLUE, RED], floodFill(cells, board, 0, 3) = 3,
+ *     cells become [EMPTY, EMPTY, BLUE, EMPTY]
+ *   - On a 1x3 board [RED, BLUE, RED], floodFill(cells, board, 0, 2) = 1
+ *
+ * Design Strategy: Iteration
+ *
+ * @param cells the cells of the board, modified in place
+ * @param board the configuration of the board
+ * @param start the index of an occupied cell
+ * @param maxSize an upper bound on the size of the region, such as the count of its colour
+ * @return the number of cells emptied
+ */
+int floodFill(byte[] cells, BoardConfig board, int start, int maxSize) {
+    int[] queue = floodQueue.get();
+    if (queue.length < maxSize) {
+        queue = new int[Math.max(maxSize, 2 * queue.length)];
+        floodQueue.set(queue);
+    }
+    return floodFillWith(cells, board.cols(), start, queue);
+}
+
+/**
+ * Empty the 4-connected region of same-coloured cells around a start cell, in place,
+ * using a given work queue. This is floodFill for callers that keep their own queue,
+ * such as threads working on boards of their own.
+ *
+ * Examples:
+ *   - floodFillWith(cells, 2, 0, new int[4]) on [RED, RED, BLUE, RED] = 3
+ *
+ * Design Strategy: Iteration
+ *
+ * @param cells the cells of the board, modified in place
+ * @param cols the number of columns of the board
+ * @param start the index of an occupied cell
+ * @param queue the work queue, large enough to hold the whole region
+ * @return the number of cells emptied, whose indices are then queue[0 .. size)
+ */
+int floodFillWith(byte[] cells, int cols, int start, int[] queue) {
+    byte colour = cells[start];
+    cells[start] = EMPTY;
+    queue[0] = start;
+    int head = 0;
+    int tail = 1;
+    while (head < tail) {
+        int i = queue[head++];
+        int col = i % cols;
+        if (col > 0 && cells[i - 1] == colour) {
+            cells[i - 1] = EMPTY;
+            queue[tail++] = i - 1;
+        }
+        if (col < cols - 1 && cells[i + 1] == colour) {
+            cells[i + 1] = EMPTY;
+            queue[tail++] = i + 1;
+        }
+        if (i >= cols && cells[i - cols] == colour) {
+            cells[i - cols] = EMPTY;
+            queue[tail++] = i - cols;
+        }
+        if (i + cols < cells.length && cells[i + cols] == colour) {
+            cells[i + cols] = EMPTY;
+            queue[tail++] = i + cols;
+        }
+    }
+    return tail;
+}
+
+/* If true, marbles fall down their column into the cells emptied by a crush */
+boolean gravity = false;
+
+/**
+ * Problem analysis and data design
+ * Function purpose statement and signature
+ * - Let every marble fall down its column: each column is compacted so that its
+ *   marbles keep their order but lie at the bottom, and its empty cells are at the top.
+ * - One sweep over the cells. As the empty cells of each column are then its top gap,
+ *   the free-cell index is built from the gap heights alone, row by row, without a
+ *   second sweep. The colour counts do not change.
+ * - A later SPACE visits only the free-cell index, that is the top of each column.
+ *
+ * Examples:
+ *  - Given: a 3x1 world with cells [RED, EMPTY, BLUE] (top to bottom)
+ *    Expect: cells [EMPTY, RED, BLUE], vacancies [0]
+ *  - Given: a world without any marble above an empty cell
+ *    Expect: a world with the same cells
+ *
+ * Design Strategy: Combining functions
+ *
+ * @param w the current WorldState
+ * @return a new WorldState in which no marble is above an empty cell
+ */
+WorldState applyGravity(WorldState w) {
+    BoardConfig board = w.board();
+    byte[] cells = w.cells().clone();
+    int[] gaps = compactColumns(cells, board);
+    return new WorldState(board, cells, vacanciesOfGaps(board, gaps, w.vacancies().length), w.colourCounts());
+}
+
+/**
+ * Compact every column of a board in place, moving its marbles to the bottom
+ * in the same order, and count the empty cells left at the top of each column.
+ *
+ * Examples:
+ *   - On a 3x2 board with cells [RED, EMPTY, EMPTY, BLUE, BLUE, EMPTY],
+ *     cells become [EMPTY, EMPTY, RED, EMPTY, BLUE, BLUE] and returns [1, 2]
+ *
+ * Design Strategy: Iteration
+ *
+ * @param cells the cells of the board, modified in place
+ * @param board the configuration of the board
+ * @return the number of empty cells at the top of each column
+ */
+int[] compactColumns(byte[] cells, BoardConfig board) {
+    int[] gaps = new int[board.cols()];
+    for (int col = 0; col < gaps.length; col++) {
+        gaps[col] = compactColumn(cells, board, col);
+    }
+    return gaps;
+}
+
+/**
+ * Compact one column of a board in place, moving its marbles to the bottom
+ * in the same order, and count the empty cells left at its top.
+ *
+ * Examples:
+ *   - On a 3x1 board with cells [RED, EMPTY, BLUE], cells become [EMPTY, RED, BLUE] and returns 1
+ *
+ * Design Strategy: Iteration
+ *
+ * @param cells the cells of the board, modified in place
+ * @param board the configuration of the board
+ * @param col the index of the column
+ * @return the number of empty cells at the top of the column
+ */
+int compactColumn(byte[] cells, BoardConfig board, int col) {
+    int cols = board.cols();
+    int write = (board.rows() - 1) * cols + col;
+    for (int read = write; read >= 0; read -= cols) {
+        if (cells[read] != EMPTY) {
+            cells[write] = cells[read];
+            write -= cols;
+        }
+    }
+    int gap = 0;
+    for (; write >= 0; write -= cols) {
+        cells[write] = EMPTY;
+        gap++;
+    }
+    return gap;
+}
+
+/**
+ * Build the free-cell index of a board whose empty cells are the top gaps[col]
+ * cells of each column, in increasing order.
+ *
+ * Examples:
+ *   - On a 3x2 board with gaps [1, 2], returns [0, 1, 3]
+ *
+ * Design Strategy: Iteration
+ *
+ * @param board the configuration of the board
+ * @param gaps the number of empty cells at the top of each column
+ * @param numEmpty the total of gaps
+ * @return the sorted indices of the empty cells
+ */
+int[] vacanciesOfGaps(BoardConfig board, int[] gaps, int numEmpty) {
+    int[] vacancies = new int[numEmpty];
+    int next = 0;
+    for (int row = 0; next < numEmpty; row++) {
+        for (int col = 0; col < board.cols(); col++) {
+            if (row < gaps[col]) {
+                vacancies[next++] = row * board.cols() + col;
+            }
+        }
+    }
+    return vacancies;
+}
+
+/**
+ * Merge two increasing arrays of cell indices with no index in common
+ * into one increasing array.
+ *
+ * Examples:
+ *  - mergeVacancies([3], [0, 2]) = [0, 2, 3]
+ *  - mergeVacancies([], [1]) = [1]
+ *
+ * Design Strategy: Iteration
+ *
+ * @param a an increasing array of cell indices
+ * @param b an increasing array of cell indices, disjoint from a
+ * @return the increasing array of all indices of a and b
+ */
+int[] mergeVacancies(int[] a, int[] b) {
+    int[] merged = new int[a.length + b.length];
+    int i = 0, j = 0, k = 0;
+    while (i < a.length && j < b.length) {
+        merged[k++] = (a[i] < b[j]) ? a[i++] : b[j++];
+    }
+    while (i < a.length) {
+        merged[k++] = a[i++];
+    }
+    while (j < b.length) {
+        merged[k++] = b[j++];
+    }
+    return merged;
+}
+
+/** 
+ * 2.1
+ * Problem analysis and data design
+ * Function purpose statement and signature
+ * - Detect whether a mouse click hits any marble on the screen,
+ *   (click coordinates must lie within the square centered at the marble with 2R).  
+ * - If a marble is hit, return Something<Marble>(that marble);  
+ * - otherwise, return Nothing.
+ * 
+ * Examples:
+ *  - Given: World contains [Marble(50, 50, RED), Marble(100, 100, BLUE)], marbleRadius = 10
+ *           mouseEvent at (55,55)
+ *    Expect: Within bounding box of Marble(50,50,RED), return Something(Marble(50,50,RED))
+ * 
+ *  - Given: mouseEvent at (95,105)
+ *    Expect: Within bounding box of Marble(100,100,BLUE), return Something(Marble(100,100,BLUE))
+ * 
+ *  - Given: mouseEvent at (200,200)
+ *    Expect: Nothing
+ * 
+ * Design Strategy: Iteration
+ * 
+ * @param mouseEvent  the MouseEvent containing click coordinates
+ * @param list        the list of marbles currently in the world
+ * @return            Maybe<Marble> (Something if hit, Nothing if no hit)
+ */
+Maybe<Marble> findClickedMarble(MouseEvent mouseEvent, ConsList<Marble> list) {
+    for (Marble marble : elementsOf(list)) {
+        if ((mouseEvent.x() >= marble.x() - marbleRadius) && 
+            (mouseEvent.x() <= marble.x() + marbleRadius) &&
+            (mouseEvent.y() >= marble.y() - marbleRadius) && 
+            (mouseEvent.y() <= marble.y() + marbleRadius)) {
+            return new Something<Marble>(marble);
+        }
+    }
+    return new Nothing<Marble>();
+}
+
+/** 
+ * 2.2
+ * Problem analysis and data design
+ * Function purpose statement and signature
+ * - Remove all marbles that have the same colour as the given target marble.
+ *   Traverses the list from left to right, keeping only marbles of a different colour.
+ * 
+ * Examples:
+ *  - Given: filterOutSameColour(RED, [RED, BLUE, RED, GREEN])
+ *    Expect: [BLUE, GREEN]
+ *  - Given: filterOutSameColour(BLUE, [GREEN, RED])
+ *    Expect: [GREEN, RED]
+ *  - Given: filterOutSameColour(GREEN, []) 
+ *    Expect: []
+ * 
+ * Design Strategy: Iteration
+ * 
+ * @param target  the marble clicked, all same colour marbles are removed
+ * @param current the current list of marbles (possibly empty)
+ * @return        a new list of marbles with all marbles of target.colour() removed
+ */
+ConsList<Marble> filterOutSameColour(Marble target, ConsList<Marble> current) {
+    ArrayList<Marble> kept = new ArrayList<Marble>();
+    for (Marble marble : elementsOf(current)) {
+        if (!Equals(marble.colour(), target.colour())) {
+            kept.add(marble);
+        }
+    }
+    return consListOf(kept);
+}
+
+/**
+ * Get marble at a pixel coordinate.
+ * - Given the current world state and a pixel coordinate (x, y),
+ *   returns the marble at pixel coordinate (x, y) or Nothing.
+ * 
+ * Examples:
+ * - If a marble exists at (10, 20), return Something(marble).
+ * - If no marble exists at (10, 10), return Nothing.
+ * 
+ * Design Strategy: Combining functions
+ * 
+ * @param w the current world state containing marbles
+ * @param x the x-coordinate (in pixels)
+ * @param y the y-coordinate (in pixels)
+ * @return Something<Marble> if a marble is found at (x, y), otherwise Nothing<Marble>
+ */
+Maybe<Marble> getMarbleAt(WorldState w, int x, int y) {
+    int hit = findClickedCell(new MouseEvent(MouseEventKind.LEFT_CLICK, x, y), w);
+    return (hit < 0) ? new Nothing<Marble>() : new Something<Marble>(marbleInCell(w, hit));
+}
+
+/**
+ * Get the display colour (Universe Colour) of a given marble.
+ * Convert a Marble's own MarbleColour into a Universe Colour
+ * that can be drawn on the screen.
+ *
+ * Examples:
+ * - m = Marble(10, 20, MarbleColour.BLUE), 
+ *   getColour(m) = Colour.BLUE
+ * - m = Marble(50, 70, MarbleColour.RED), 
+ *   getColour(m) = Colour.RED
+ *
+ * Design Strategy: Combining functions
+ *
+ * @param m the Marble whose colour we want
+ * @return the Colour corresponding to the Marble's MarbleColour
+ */
+Colour getColour(Marble marble) {
+    return convertToColour(marble.colour());
+}
+
+/**
+ * Count how many marbles in the current world have a given target colour.
+ * Reads the colour count kept by the world; countColour gives the same
+ * result by walking the list of marbles.
+ * 
+ * Examples:  
+ *   - If w has no marbles, return 0.  
+ *   - If w has 3 marbles and 2 of them are RED, then 
+ *     numberOfMarblesOfColour(w, Colour.RED) = 2.  
+ * 
+ * Design Strategy: Case distinction  
+ *  
+ * @param w the current WorldState containing all marbles  
+ * @param colour the target Colour to count  
+ * @return the number of marbles of the given colour in the world  
+ */
+int numberOfMarblesOfColour(WorldState w, Colour colour) {
+    byte target = cellOfColour(colour);
+    return (target == EMPTY) ? 0 : w.colourCounts()[target];
+}
+
+/**
+ * Count how many marbles in a given list match the target colour.  
+ * Checks each marble in turn, from the first to the last.  
+ * 
+ * Examples:  
+ *   - If marbles = Nil, return 0.  
+ *   - If marbles = [RED, BLUE, RED] and colour = RED, return 2.  
+ *   - If marbles = [GREEN, GREEN] and colour = RED, return 0.  
+ * 
+ * Design Strategy: Iteration
+ * 
+ * @param marbles the ConsList of marbles to search  
+ * @param colour the target Colour to count  
+ * @return the number of marbles in the list that have the given colour  
+ */
+int countColour(ConsList<Marble> marbles, Colour colour) {
+    int count = 0;
+    for (Marble marble : elementsOf(marbles)) {
+        if (Equals(convertToColour(marble.colour()), colour)) {
+            count++;
+        }
+    }
+    return count;
+}
+
+/**
+ * Returns the number of empty locations in the grid of marbles
+ * Achieved by taking the length of the free-cell index.
+ * 
+ * Examples:  
+ *   - If w has a full grid of marbles, return 0.  
+ *   - If w has 3 empty positions, return 3.  
+ * 
+ * Design Strategy: Simple expression
+ * 
+ * @param w the current WorldState containing all marbles  
+ * @return the number of empty grid locations (int) 
+ */
+int numberOfEmptyLocations(WorldState w) {
+    return w.vacancies().length;
+}
+
+/**
+ * [E]: a synthetic input event for the headless engine
+ * A GameEvent is one of:
+ * - Click: a left click at (x, y) in pixels
+ * - Press: a key press (KEY_PRESSED) of the given key
+ * Events are applied with the same rules as the mouseEvent and keyEvent
+ * handlers of the game, but without a window and without drawing.
+ *
+ * Examples:
+ * - new Click(10, 10) crushes the colour of the marble in cell 0
+ * - new Press("Space") fills every empty cell
+ */
+sealed interface GameEvent permits Click, Press {}
+record Click(int x, int y) implements GameEvent {}
+/**
+ * ... c.x() ...
+ * ... c.y() ...
+ */
+record Press(String key) implements GameEvent {}
+/**
+ * ... p.key() ...
+ */
+
+/**
+ * [R]: the result of running a batch of events through the headless engine
+ *
+ * Examples:
+ * - Running 1000 events in 2 ms gives new SimulationReport(w, 1000, 2000000)
+ *
+ * @param world the WorldState after the last event
+ * @param events the number of events applied
+ * @param nanos the time taken to apply them, in nanoseconds
+ */
+record SimulationReport(WorldState world, int events, long nanos) {}
+/**
+ * ... r.world() ...
+ * ... r.events() ...
+ * ... r.nanos() ...
+ */
+
+/**
+ * Problem analysis and data design
+ * Function purpose statement and signature
+ * - Apply one synthetic event to the world, exactly as a left click
+ *   or a key press would be handled by the game.
+ *
+ * Examples:
+ *   - applyEvent(w, new Click(10, 10)) = leftClick(w, LEFT_CLICK at (10, 10))
+ *   - applyEvent(w, new Press("Space")) = processKeyEvent(w, KEY_PRESSED, "Space")
+ *
+ * Design Strategy: Case Distinction
+ *
+ * @param w the current WorldState
+ * @param event the GameEvent to apply
+ * @return the WorldState after the event
+ */
+WorldState applyEvent(WorldState w, GameEvent event) {
+    return switch (event) {
+        case Click(int x, int y) -> clickAt(w, x, y);
+        case Press(String key) -> processKeyEvent(w, KeyEventKind.KEY_PRESSED, key);
+    };
+}
+
+/**
+ * Problem analysis and data design
+ * Function purpose statement and signature
+ * - Apply a batch of events to the world in order, without drawing,
+ *   and measure how long it takes.
+ *
+ * Examples:
+ *   - simulate(w, []) = SimulationReport(w, 0, t) for some small t
+ *   - simulate(w, [Click(10, 10), Press("Space")]).world() is a full board
+ *
+ * Design Strategy: Iteration
+ *
+ * @param w the WorldState before the first event
+ * @param events the events to apply, in order
+ * @return the report with the final WorldState, the number of events and the time taken
+ */
+SimulationReport simulate(WorldState w, List<GameEvent> events) {
+    long start = System.nanoTime();
+    WorldState current = w;
+    for (GameEvent event : events) {
+        current = applyEvent(current, event);
+    }
+    return new SimulationReport(current, events.size(), System.nanoTime() - start);
+}
+
+/**
+ * Compute the throughput of a simulation run in events per second.
+ *
+ * Examples:
+ *   - eventsPerSecond(SimulationReport(w, 1000, 1000000)) = 1000000.0
+ *   - eventsPerSecond(SimulationReport(w, 0, 0)) = 0.0
+ *
+ * Design Strategy: Simple Expression
+ *
+ * @param report the report of the run
+ * @return the number of events applied per second of the run
+ */
+double eventsPerSecond(SimulationReport report) {
+    return report.nanos() <= 0 ? 0.0 : report.events() * 1e9 / report.nanos();
+}
+
+/**
+ * Problem analysis and data design
+ * Function purpose statement and signature
+ * - Generate a batch of synthetic events for a board: clicks on the centres of
+ *   cells spread across the grid, with a SPACE press after every spaceEvery clicks.
+ * - The batch is the same on every call, so runs can be compared with each other.
+ *
+ * Examples:
+ *   - syntheticEvents(defaultBoard(), 3, 2) = [Click(cell 0), Click(cell 7919 % 375), Press("Space")]
+ *   - syntheticEvents(board, 0, 5) = []
+ *
+ * Design Strategy: Iteration
+ *
+ * @param board the board whose cells are clicked
+ * @param count the number of events (>=0)
+ * @param spaceEvery the number of clicks between two SPACE presses (>0)
+ * @return the list of count events
+ */
+List<GameEvent> syntheticEvents(BoardConfig board, int count, int spaceEvery) {
+    ArrayList<GameEvent> events = new ArrayList<GameEvent>(count);
+    int numCells = board.rows() * board.cols();
+    for (int i = 0; i < count; i++) {
+        if (numCells == 0 || i % (spaceEvery + 1) == spaceEvery) {
+            events.add(new Press("Space"));
+        } else {
+            int cell = (int) ((long) i * 7919 % numCells);
+            events.add(new Click(cellX(board, cell % board.cols()), cellY(board, cell / board.cols())));
+        }
+    }
+    return events;
+}
+
+/* If true, keyEvent and mouseEvent queue their events and step applies them once per frame */
+boolean batchInput = false;
+
+/* The events queued since the last frame, in the order they arrived */
+ArrayList<GameEvent> pendingEvents = new ArrayList<GameEvent>();
+
+/**
+ * [J]: the outcome of a transition played with some rules
+ *
+ * Examples:
+ * - A batch with a CRUSH_MODE_KEY press and no click on a 2-row board:
+ *   new Played(w, Rules(REGION, false), [false, false])
+ *
+ * @param world the WorldState after the transition
+ * @param rules the rules after the transition, switched by the rule keys it held
+ * @param changedRows one flag per row of the board, true if the transition changed a cell of the row
+ */
+record Played(WorldState world, Rules rules, boolean[] changedRows) {}
+/**
+ * ... p.world() ...
+ * ... p.rules() ...
+ * ... p.changedRows() ...
+ */
+
+/**
+ * Apply a batch of events as one world transition, with the rules of the game.
+ * A rule key in the batch switches the rule for the events after it, but not the
+ * rules of the game: they are committed only by step.
+ *
+ * Examples:
+ *   - applyBatch(w, [], source) = w
+ *
+ * Design Strategy: Combining functions
+ *
+ * @param w the WorldState before the batch
+ * @param events the events of the batch, in order
+ * @param source the source of random colours for refills
+ * @return the WorldState after the batch, or w itself if no event changed it
+ */
+WorldState applyBatch(WorldState w, List<GameEvent> events, ColourSource source) {
+    return applyBatch(w, gameRules(), events, source).world();
+}
+
+/**
+ * Problem analysis and data design
+ * Function purpose statement and signature
+ * - Apply a batch of events as one world transition: the cells and colour counts are
+ *   copied once, every event works on the copies, and the free-cell index is kept up
+ *   to date as events go, so the new WorldState is built at the end without a sweep.
+ * - A click crushes with emptyColour or emptyRegion, as crushColour and crushRegion do,
+ *   and with gravity compacts the columns as applyGravity does. A SPACE press refills
+ *   the vacancies with refillVacancies, as fillEmptyCells does, in parallel on large boards.
+ * - Events that would not change the world are dropped without any work:
+ *   a click that hits no marble (such as a second click where a colour was
+ *   already crushed), a key that is not a SPACE press, and a SPACE press on a full board.
+ * - The key of a rule switches that rule for the events after it in the batch. The rules
+ *   are local to the batch and returned with the world; nothing global is changed.
+ * - The rows touched by each crush, fall and refill are marked as they go, so the
+ *   history can share every other row without comparing it.
+ * - The result is the same as applying the events one by one with clickAt and
+ *   fillEmptyCells, as long as the colours come from the same stream.
+ *
+ * Examples:
+ *   - applyBatch(w, r, [], source) = Played(w, r, no row changed)
+ *   - applyBatch(w, r, [Click on RED, Click on the same spot], source) removes every RED marble
+ *   - applyBatch(full, r, [Press("Space"), Press("Space")], source) = Played(full, r, no row changed)
+ *   - applyBatch(w, Rules(COLOUR, false), [Press(CRUSH_MODE_KEY)], source)
+ *     = Played(w, Rules(REGION, false), no row changed)
+ *
+ * Design Strategy: Iteration
+ *
+ * @param w the WorldState before the batch
+ * @param rules the rules at the start of the batch
+ * @param events the events of the batch, in order
+ * @param source the source of random colours for refills
+ * @return the WorldState after the batch, or w itself if no event changed it, with the rules
+ *         after it and the rows it changed
+ */
+Played applyBatch(WorldState w, Rules rules, List<GameEvent> events, ColourSource source) {
+    BoardConfig board = w.board();
+    byte[] cells = w.cells();
+    int[] vacancies = w.vacancies();
+    int[] colourCounts = w.colourCounts();
+    boolean copied = false;
+    boolean[] changed = new boolean[board.rows()];
+    Rules current = rules;
+    for (GameEvent event : events) {
+        switch (event) {
+            case Click(int x, int y) -> {
+                byte[] seen = cells;
+                int hit = hitTest(x, y, board, i -> seen[i] != EMPTY);
+                if (hit >= 0) {
+                    if (!copied) {
+                        cells = cells.clone();
+                        colourCounts = colourCounts.clone();
+                        copied = true;
+                    }
+                    byte colour = cells[hit];
+                    int[] crushed = switch (current.crushMode()) {
+                        case COLOUR -> emptyColour(cells, colour, colourCounts[colour]);
+                        case REGION -> emptyRegion(cells, board, hit, colourCounts[colour]);
+                    };
+                    colourCounts[colour] -= crushed.length;
+                    markRows(changed, crushed, board.cols());
+                    if (current.gravity()) {
+                        // Marbles fall only in the rows above the lowest empty cell
+                        int lowest = Math.max(crushed[crushed.length - 1],
+                            vacancies.length > 0 ? vacancies[vacancies.length - 1] : 0);
+                        Arrays.fill(changed, 0, lowest / board.cols() + 1, true);
+                        vacancies = vacanciesOfGaps(board, compactColumns(cells, board), vacancies.length + crushed.length);
+                    } else {
+                        vacancies = mergeVacancies(vacancies, crushed);
+                    }
+                }
+            }
+            case Press(String key) -> {
+                if (isRuleKey(key)) {
+                    current = switchedRules(current, key);
+                } else if (vacancies.length > 0 && Equals(key, "Space")) {
+                    if (!copied) {
+                        cells = cells.clone();
+                        colourCounts = colourCounts.clone();
+                        copied = true;
+                    }
+                    refillVacancies(board, cells, vacancies, source, colourCounts);
+                    markRows(changed, vacancies, board.cols());
+                    vacancies = new int[0];
+                }
+            }
+        }
+    }
+    return new Played(copied ? new WorldState(board, cells, vacancies, colourCounts) : w, current, changed);
+}
+
+/**
+ * Mark the rows of some cells as changed.
+ *
+ * Examples:
+ *   - With 3 columns, markRows(changed, [1, 7], 3) marks rows 0 and 2
+ *
+ * Design Strategy: Iteration
+ *
+ * @param changed one flag per row, modified in place
+ * @param indices the indices of the cells
+ * @param cols the number of columns of the board
+ */
+void markRows(boolean[] changed, int[] indices, int cols) {
+    for (int i : indices) {
+        changed[i / cols] = true;
+    }
+}
+
+/**
+ * Queue an event for the next frame.
+ *
+ * Examples:
+ *   - After queueEvent(new Click(10, 10)), pendingEvents ends with Click(10, 10).
+ *
+ * Design Strategy: Simple Expression
+ *
+ * @param event the event to queue
+ */
+void queueEvent(GameEvent event) {
+    pendingEvents.add(event);
+}
+
+/**
+ * [P]: a persistent snapshot of a world
+ * The cells are kept row by row, and the rows are grouped into chunks of
+ * SNAPSHOT_CHUNK_ROWS rows: chunks[k][r] holds the cells of row k * SNAPSHOT_CHUNK_ROWS + r.
+ * The arrays of a snapshot are never modified once it is built, so a new snapshot
+ * shares every row and every chunk that did not change with the one it was made from.
+ * Its own memory is then the rows that changed, the chunks holding them and the
+ * list of chunks, rather than a copy of the whole board.
+ * The free-cell index and colour counts of the world are kept with it (they are never
+ * modified either), so the world is rebuilt without looking at its cells.
+ *
+ * Examples:
+ * - A 2x3 board with cells [0, 1, 2, 3, EMPTY, 0]:
+ *   chunks = [[[0, 1, 2], [3, EMPTY, 0]]], vacancies = [4], colourCounts = [2, 1, 1, 1]
+ *
+ * @param board the configuration of the board
+ * @param chunks the rows of cells, in chunks of SNAPSHOT_CHUNK_ROWS rows (the last may be shorter)
+ * @param vacancies the free-cell index of the world
+ * @param colourCounts the colour counts of the world
+ */
+record Snapshot(BoardConfig board, byte[][][] chunks, int[] vacancies, int[] colourCounts) {}
+/**
+ * ... s.board() ...
+ * ... s.chunks() ...
+ * ... s.vacancies() ...
+ * ... s.colourCounts() ...
+ */
+
+int SNAPSHOT_CHUNK_ROWS = 32;
+
+/**
+ * [U]: the undo/redo history of a game
+ * The history is the current snapshot with two stacks of snapshots: the states
+ * before it (most recent first) and the states undone after it (next one first).
+ * The stacks are ConsLists, so undo and redo move one snapshot from a stack
+ * to the other in constant time, without copying any cells.
+ *
+ * Examples:
+ * - After a crush from s0 to s1: History([s0], s1, [])
+ * - After undoing it: History([], s0, [s1])
+ *
+ * @param undo the snapshots before current, most recent first
+ * @param current the snapshot of the current world
+ * @param redo the snapshots undone after current, next one first
+ */
+record History(ConsList<Snapshot> undo, Snapshot current, ConsList<Snapshot> redo) {}
+/**
+ * ... h.undo() ...
+ * ... h.current() ...
+ * ... h.redo() ...
+ */
+
+/**
+ * Take a snapshot of w, sharing the rows equal to those of a previous snapshot.
+ * When the changed rows are not known, they are found by changedRows, which compares
+ * every row: O(cells), with one vectorised Arrays.equals per row.
+ *
+ * Examples:
+ *   - snapshotOf(w, Nothing) copies every row of w.
+ *   - If w differs from previous only in row 3, the result shares all chunks but
+ *     the first, and the first shares all its rows but row 3.
+ *
+ * Design Strategy: Combining functions
+ *
+ * @param w the WorldState to take a snapshot of
+ * @param previous Something with the snapshot to share with, or Nothing
+ * @return the snapshot of w
+ */
+Snapshot snapshotOf(WorldState w, Maybe<Snapshot> previous) {
+    return snapshotOf(w, previous, changedRows(w, previous));
+}
+
+/**
+ * Problem analysis and data design
+ * Function purpose statement and signature
+ * - Take a snapshot of w, sharing what did not change with a previous snapshot.
+ * - A row not marked in changed is shared with previous without being looked at,
+ *   and a chunk whose rows are all shared is shared as a whole. Only the changed rows
+ *   are copied, so the cost is O(rows + cells of the changed rows), and that is also
+ *   the memory the new snapshot adds.
+ * - If there is no previous snapshot, or it is of another board, every row is copied.
+ * - changed must mark every row in which w differs from previous; a transition that
+ *   knows the cells it touched, such as applyBatch, gives them directly.
+ *
+ * Examples:
+ *   - snapshotOf(w, Nothing, changed) copies every row of w.
+ *   - snapshotOf(w, Something(s), [false, false, false, true, ...]) shares every row of s but row 3.
+ *
+ * Design Strategy: Iteration
+ *
+ * @param w the WorldState to take a snapshot of
+ * @param previous Something with the snapshot to share with, or Nothing
+ * @param changed the rows in which w differs from previous
+ * @return the snapshot of w
+ */
+Snapshot snapshotOf(WorldState w, Maybe<Snapshot> previous, boolean[] changed) {
+    BoardConfig board = w.board();
+    byte[][][] before = switch (previous) {
+        case Nothing<Snapshot>() -> new byte[0][][];
+        case Something<Snapshot>(Snapshot s) -> s.board().equals(board) ? s.chunks() : new byte[0][][];
+    };
+    int cols = board.cols();
+    int numChunks = (board.rows() + SNAPSHOT_CHUNK_ROWS - 1) / SNAPSHOT_CHUNK_ROWS;
+    byte[][][] chunks = new byte[numChunks][][];
+    for (int k = 0; k < numChunks; k++) {
+        int chunkRows = Math.min(SNAPSHOT_CHUNK_ROWS, board.rows() - k * SNAPSHOT_CHUNK_ROWS);
+        byte[][] rows = new byte[chunkRows][];
+        boolean shared = (k < before.length);
+        for (int r = 0; r < chunkRows; r++) {
+            int row = k * SNAPSHOT_CHUNK_ROWS + r;
+            if (k < before.length && !changed[row]) {
+                rows[r] = before[k][r];
+            } else {
+                rows[r] = Arrays.copyOfRange(w.cells(), row * cols, (row + 1) * cols);
+                shared = false;
+            }
+        }
+        chunks[k] = shared ? before[k] : rows;
+    }
+    return new Snapshot(board, chunks, w.vacancies(), w.colourCounts());
+}
+
+/**
+ * Find the rows in which the cells of w differ from those of a previous snapshot,
+ * by comparing every row. Every row is changed if there is no previous snapshot
+ * of the same board.
+ *
+ * Examples:
+ *   - changedRows(w, Something(snapshotOf(w, Nothing))) marks no row
+ *   - changedRows(w, Nothing) marks every row
+ *
+ * Design Strategy: Iteration
+ *
+ * @param w the WorldState
+ * @param previous Something with the snapshot to compare with, or Nothing
+ * @return one flag per row of w, true if the row changed
+ */
+boolean[] changedRows(WorldState w, Maybe<Snapshot> previous) {
+    BoardConfig board = w.board();
+    boolean[] changed = new boolean[board.rows()];
+    Arrays.fill(changed, true);
+    switch (previous) {
+        case Nothing<Snapshot>() -> { }
+        case Something<Snapshot>(Snapshot s) -> {
+            if (s.board().equals(board)) {
+                int cols = board.cols();
+                for (int row = 0; row < changed.length; row++) {
+                    byte[] before = s.chunks()[row / SNAPSHOT_CHUNK_ROWS][row % SNAPSHOT_CHUNK_ROWS];
+                    changed[row] = !Arrays.equals(before, 0, cols, w.cells(), row * cols, (row + 1) * cols);
+                }
+            }
+        }
+    }
+    return changed;
+}
+
+/**
+ * Build the WorldState of a snapshot: its cells laid out row by row, with the
+ * free-cell index and colour counts kept in the snapshot.
+ * The cost is one System.arraycopy per row, O(cells) bytes copied, without
+ * looking at any cell; the index is not rebuilt.
+ *
+ * Examples:
+ *   - worldFromSnapshot(snapshotOf(w, Nothing)) has the same cells, vacancies and counts as w
+ *
+ * Design Strategy: Iteration
+ *
+ * @param s the snapshot
+ * @return the WorldState of s
+ */
+WorldState worldFromSnapshot(Snapshot s) {
+    int cols = s.board().cols();
+    byte[] cells = new byte[s.board().rows() * cols];
+    int row = 0;
+    for (byte[][] chunk : s.chunks()) {
+        for (byte[] cellsOfRow : chunk) {
+            System.arraycopy(cellsOfRow, 0, cells, row * cols, cols);
+            row++;
+        }
+    }
+    return new WorldState(s.board(), cells, s.vacancies(), s.colourCounts());
+}
+
+/**
+ * Start a history whose current state is w, with nothing to undo or redo.
+ *
+ * Examples:
+ *   - startHistory(w) = History([], snapshotOf(w, Nothing), [])
+ *
+ * Design Strategy: Simple Expression
+ *
+ * @param w the current WorldState
+ * @return the new History
+ */
+History startHistory(WorldState w) {
+    return new History(new Nil<Snapshot>(), snapshotOf(w, new Nothing<Snapshot>()), new Nil<Snapshot>());
+}
+
+/**
+ * Add a new current state to a history: the old current state can be undone,
+ * and the states that were undone can no longer be redone.
+ *
+ * Examples:
+ *   - pushHistory(History([s0], s1, [s2]), w) = History([s1, s0], snapshot of w, [])
+ *
+ * Design Strategy: Simple Expression
+ *
+ * @param h the history
+ * @param w the new current WorldState
+ * @return the new History
+ */
+History pushHistory(History h, WorldState w) {
+    return pushHistory(h, w, changedRows(w, new Something<Snapshot>(h.current())));
+}
+
+/**
+ * Add a new current state to a history, given the rows in which it differs
+ * from the current state: only those rows are copied.
+ *
+ * Examples:
+ *   - pushHistory(History([s0], s1, [s2]), w, changed) = History([s1, s0], snapshot of w, [])
+ *
+ * Design Strategy: Simple Expression
+ *
+ * @param h the history
+ * @param w the new current WorldState
+ * @param changed the rows in which w differs from the current state of h
+ * @return the new History
+ */
+History pushHistory(History h, WorldState w, boolean[] changed) {
+    Snapshot next = snapshotOf(w, new Something<Snapshot>(h.current()), changed);
+    return new History(new Cons<Snapshot>(h.current(), h.undo()), next, new Nil<Snapshot>());
+}
+
+/**
+ * Undo the last change of a history.
+ *
+ * Examples:
+ *   - undo(History([s0], s1, [])) = Something(History([], s0, [s1]))
+ *   - undo(History([], s0, [s1])) = Nothing
+ *
+ * Design Strategy: Case Distinction
+ *
+ * @param h the history
+ * @return Something with the history one state back, or Nothing if there is nothing to undo
+ */
+Maybe<History> undo(History h) {
+    return switch (h.undo()) {
+        case Nil<Snapshot>() -> new Nothing<History>();
+        case Cons<Snapshot>(Snapshot previous, ConsList<Snapshot> rest) ->
+            new Something<History>(new History(rest, previous, new Cons<Snapshot>(h.current(), h.redo())));
+    };
+}
+
+/**
+ * Redo the last change undone in a history.
+ *
+ * Examples:
+ *   - redo(History([], s0, [s1])) = Something(History([s0], s1, []))
+ *   - redo(History([s0], s1, [])) = Nothing
+ *
+ * Design Strategy: Case Distinction
+ *
+ * @param h the history
+ * @return Something with the history one state forward, or Nothing if there is nothing to redo
+ */
+Maybe<History> redo(History h) {
+    return switch (h.redo()) {
+        case Nil<Snapshot>() -> new Nothing<History>();
+        case Cons<Snapshot>(Snapshot next, ConsList<Snapshot> rest) ->
+            new Something<History>(new History(new Cons<Snapshot>(h.current(), h.undo()), next, rest));
+    };
+}
+
+/* The keys that undo and redo the last change of the game */
+String UNDO_KEY = "Z";
+String REDO_KEY = "Y";
+
+/* The undo/redo history of the game, started at its first change */
+Maybe<History> history = new Nothing<History>();
+
+/**
+ * Remember a transition of the game in its history, if it changed the world.
+ * The changed rows are found by comparing every row, as by changedRows.
+ *
+ * Examples:
+ *   - remember(w, w) = w, and the history is unchanged
+ *   - remember(w, next) = next, and next is the new current state of the history
+ *
+ * Design Strategy: Combining functions
+ *
+ * @param before the WorldState before the transition
+ * @param after the WorldState after the transition
+ * @return after
+ */
+WorldState remember(WorldState before, WorldState after) {
+    if (after == before) {
+        return after;
+    }
+    return remember(before, after, changedRows(after, currentSnapshot()));
+}
+
+/**
+ * Remember a transition of the game in its history, if it changed the world,
+ * given the rows it changed: only those rows are copied into the new snapshot.
+ *
+ * Examples:
+ *   - remember(w, w, changed) = w, and the history is unchanged
+ *   - remember(w, next, rows of next that differ from w) = next, and next is
+ *     the new current state of the history
+ *
+ * Design Strategy: Case Distinction
+ *
+ * @param before the WorldState before the transition, the current state of the history
+ * @param after the WorldState after the transition
+ * @param changed the rows in which after differs from before
+ * @return after
+ */
+WorldState remember(WorldState before, WorldState after, boolean[] changed) {
+    if (after == before) {
+        return after;
+    }
+    History h = switch (history) {
+        case Nothing<History>() -> startHistory(before);
+        case Something<History>(History current) -> current;
+    };
+    history = new Something<History>(pushHistory(h, after, changed));
+    return after;
+}
+
+/**
+ * The snapshot of the current state of the history of the game, or Nothing
+ * before its first change.
+ *
+ * Examples:
+ *   - With no history, currentSnapshot() = Nothing
+ *
+ * Design Strategy: Case Distinction
+ *
+ * @return Something with the current snapshot, or Nothing
+ */
+Maybe<Snapshot> currentSnapshot() {
+    return switch (history) {
+        case Nothing<History>() -> new Nothing<Snapshot>();
+        case Something<History>(History h) -> new Something<Snapshot>(h.current());
+    };
+}
+
+/**
+ * Move the history of the game one state back (undo) or forward (redo)
+ * and return the world of its new current state.
+ * The history moves in O(1): only the pointers of its stacks move. The world is then
+ * rebuilt by worldFromSnapshot, one arraycopy per row with the index and counts
+ * kept in the snapshot, so the cost is O(cells) bytes copied and no per-cell work.
+ *
+ * Examples:
+ *   - After a crush from w0, moveInHistory(w1, true) has the cells of w0
+ *   - With nothing to undo, moveInHistory(w, true) = w
+ *
+ * Design Strategy: Case Distinction
+ *
+ * @param w the current WorldState
+ * @param back true to undo, false to redo
+ * @return the WorldState of the new current state, or w if there is nowhere to move
+ */
+WorldState moveInHistory(WorldState w, boolean back) {
+    Maybe<History> moved = switch (history) {
+        case Nothing<History>() -> new Nothing<History>();
+        case Something<History>(History h) -> back ? undo(h) : redo(h);
+    };
+    return switch (moved) {
+        case Nothing<History>() -> w;
+        case Something<History>(History h) -> {
+            history = moved;
+            yield worldFromSnapshot(h.current());
+        }
+    };
+}
+
+/**
+ * Handle a key of the game: the undo and redo keys move in the history, the key
+ * of a rule switches it, and every other key goes through processKeyEvent,
+ * with its change remembered.
+ *
+ * Examples:
+ *   - applyKey(w, KEY_PRESSED, "Space") fills the board and remembers it
+ *   - applyKey(w, KEY_PRESSED, UNDO_KEY) is the world before the last change
+ *   - applyKey(w, KEY_PRESSED, CRUSH_MODE_KEY) = w, with the other crush mode
+ *
+ * Design Strategy: Case Distinction
+ *
+ * @param w the current WorldState
+ * @param keyEventKind the kind of key event
+ * @param key the key
+ * @return the WorldState after the key
+ */
+WorldState applyKey(WorldState w, KeyEventKind keyEventKind, String key) {
+    if (keyEventKind == KeyEventKind.KEY_PRESSED && (Equals(key, UNDO_KEY) || Equals(key, REDO_KEY))) {
+        return moveInHistory(w, Equals(key, UNDO_KEY));
+    }
+    if (keyEventKind == KeyEventKind.KEY_PRESSED && switchRule(key)) {
+        return w;
+    }
+    return remember(w, processKeyEvent(w, keyEventKind, key));
+}
+
+/**
+ * Problem analysis and data design
+ * Function purpose statement and signature
+ * - Apply the events queued during one frame. The events between two undo or redo
+ *   presses are applied as one batch and remembered as one change, so undo steps
+ *   back over the input of one frame at a time.
+ * - The rules are threaded from batch to batch and returned; the caller decides
+ *   whether they become the rules of the game. Each batch gives the history the rows it changed.
+ *
+ * Examples:
+ *   - applyFrame(w, r, [Click, Click]) = applyBatch(w, r, [Click, Click]), remembered once
+ *   - applyFrame(w, r, [Click, Press(UNDO_KEY)]).world() = w (the click is undone)
+ *
+ * Design Strategy: Iteration
+ *
+ * @param w the WorldState before the frame
+ * @param rules the rules at the start of the frame
+ * @param events the events of the frame, in order
+ * @param source the source of random colours for refills
+ * @return the WorldState after the frame, with the rules after it and the rows it changed
+ */
+Played applyFrame(WorldState w, Rules rules, List<GameEvent> events, ColourSource source) {
+    WorldState current = w;
+    Rules currentRules = rules;
+    int from = 0;
+    for (int i = 0; i < events.size(); i++) {
+        String key = switch (events.get(i)) {
+            case Click(int x, int y) -> "";
+            case Press(String k) -> k;
+        };
+        if (Equals(key, UNDO_KEY) || Equals(key, REDO_KEY)) {
+            Played batch = applyBatch(current, currentRules, events.subList(from, i), source);
+            currentRules = batch.rules();
+            current = remember(current, batch.world(), batch.changedRows());
+            current = moveInHistory(current, Equals(key, UNDO_KEY));
+            from = i + 1;
+        }
+    }
+    Played batch = applyBatch(current, currentRules, events.subList(from, events.size()), source);
+    WorldState after = remember(current, batch.world(), batch.changedRows());
+    boolean[] changed = batch.changedRows();
+    if (from > 0) {
+        // An undo or redo in the frame may have changed any row
+        Arrays.fill(changed, true);
+    }
+    return new Played(after, batch.rules(), changed);
+}
+
+/**
+ * [L]: an open binary log of the input events of a session
+ * The log file starts with a header of LOG_HEADER_BYTES bytes:
+ *   the magic number LOG_MAGIC (int), the random seed of the session (long),
+ *   the rows, columns and marble radius of the board (3 ints),
+ *   the ordinal of the CrushMode when the log was opened (int),
+ *   and 1 if gravity was on then, 0 otherwise (int).
+ * Rules switched during the session are replayed from their key presses.
+ * It is followed by one record of LOG_RECORD_BYTES bytes per event:
+ *   byte 0: LOG_KEY, LOG_MOUSE or LOG_FRAME
+ *   byte 1: the ordinal of the KeyEventKind or MouseEventKind
+ *   key events: byte 2 is the length n of the key, bytes 3 .. 3+n-1 its ASCII characters
+ *   mouse events: bytes 4-7 the x-coordinate and bytes 8-11 the y-coordinate (ints)
+ * A LOG_FRAME record has no data: it marks that the events since the previous
+ * marker were applied together, as the input of one frame.
+ * Unused bytes are 0. Keys longer than LOG_KEY_CHARS characters are cut; this never
+ * changes how they are handled, since the only keys with an effect are one letter or "Space".
+ * Records are collected in a direct buffer and written to the channel when it is full.
+ *
+ * Examples:
+ * - A left click at (10, 30) is the record [1, 0, 0, 0, 0,0,0,10, 0,0,0,30, 0,0,0,0]
+ *
+ * @param channel the channel of the log file
+ * @param buffer the records not yet written to the channel
+ */
+record EventLog(FileChannel channel, ByteBuffer buffer) {}
+/**
+ * ... log.channel() ...
+ * ... log.buffer() ...
+ */
+
+int LOG_MAGIC = 0x4D434C47; // "MCLG"
+int LOG_HEADER_BYTES = 4 + 8 + 5 * 4;
+int LOG_RECORD_BYTES = 16;
+int LOG_KEY_CHARS = 12;
+int LOG_BUFFER_BYTES = 64 * 1024;
+byte LOG_KEY = 0;
+byte LOG_MOUSE = 1;
+byte LOG_FRAME = 2;
+
+/* The largest board, in cells, that replay accepts from the header of a log */
+int MAX_LOG_CELLS = 1 << 24;
+
+/**
+ * The file in which main() records the events of a session, named after the seed
+ * of the session so that a new game never overwrites the log of an earlier one.
+ *
+ * Examples:
+ *   - sessionLog(42) = Path.of("session-42.mclog")
+ *
+ * Design Strategy: Simple Expression
+ *
+ * @param seed the seed of the session
+ * @return the path of its event log
+ */
+Path sessionLog(long seed) {
+    return Path.of("session-" + seed + ".mclog");
+}
+
+/* The log of the current session, if one is being recorded */
+Maybe<EventLog> eventLog = new Nothing<EventLog>();
+
+/**
+ * Restart the random colours of the session, and those of the advisor, from the given seed,
+ * so the same seed gives the same sequence of colours again.
+ *
+ * Examples:
+ *   - reseed(42); randomColour() is the same colour after every reseed(42)
+ *
+ * Design Strategy: Simple Expression
+ *
+ * @param seed the new seed of the session
+ */
+void reseed(long seed) {
+    sessionSeed = seed;
+    sessionColours = new ColourSource(seed);
+    adviceColours = new ColourSource(seed);
+}
+
+/**
+ * Problem analysis and data design
+ * Function purpose statement and signature
+ * - Create (or replace) a log file and write its header: the seed of the
+ *   session, the configuration of the board, the current crush mode and gravity.
+ * - If the file cannot be written, there is no log, and the game runs without it.
+ *
+ * Examples:
+ *   - openEventLog(path, 42, defaultBoard()) = Something(log), with 32 bytes in path
+ *   - openEventLog(path in a missing directory, 42, board) = Nothing
+ *
+ * Design Strategy: Case Distinction
+ *
+ * @param path the path of the log file
+ * @param seed the random seed of the session
+ * @param board the configuration of the board of the session
+ * @return Something with the open log, or Nothing if it cannot be created
+ */
+Maybe<EventLog> openEventLog(Path path, long seed, BoardConfig board) {
+    try {
+        FileChannel channel = FileChannel.open(path,
+            StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(LOG_BUFFER_BYTES);
+        buffer.putInt(LOG_MAGIC).putLong(seed)
+            .putInt(board.rows()).putInt(board.cols()).putInt(board.marbleRadius())
+            .putInt(crushMode.ordinal()).putInt(gravity ? 1 : 0);
+        return new Something<EventLog>(new EventLog(channel, buffer));
+    } catch (IOException e) {
+        return new Nothing<EventLog>();
+    }
+}
+
+/**
+ * Add the record of a key event to the log.
+ *
+ * Examples:
+ *   - logKeyEvent(log, KeyEvent(KEY_PRESSED, "Space")) adds [0, 0, 5, 'S', 'p', 'a', 'c', 'e', 0, ...]
+ *
+ * Design Strategy: Iteration
+ *
+ * @param log the open log
+ * @param keyEvent the event to record
+ * @return true if the record was added, false if the log could not be written
+ */
+boolean logKeyEvent(EventLog log, KeyEvent keyEvent) {
+    if (!makeRoom(log)) {
+        return false;
+    }
+    ByteBuffer buffer = log.buffer();
+    int start = buffer.position();
+    String key = keyEvent.key();
+    int length = Math.min(key.length(), LOG_KEY_CHARS);
+    buffer.put(LOG_KEY).put((byte) keyEvent.kind().ordinal()).put((byte) length);
+    for (int i = 0; i < length; i++) {
+        buffer.put((byte) key.charAt(i));
+    }
+    buffer.position(start + LOG_RECORD_BYTES);
+    return true;
+}
+
+/**
+ * Add the record of a mouse event to the log.
+ *
+ * Examples:
+ *   - logMouseEvent(log, MouseEvent(LEFT_CLICK, 10, 30)) adds [1, 0, 0, 0, 10, 30, 0] (x, y and 0 as ints)
+ *
+ * Design Strategy: Simple Expression
+ *
+ * @param log the open log
+ * @param mouseEvent the event to record
+ * @return true if the record was added, false if the log could not be written
+ */
+boolean logMouseEvent(EventLog log, MouseEvent mouseEvent) {
+    if (!makeRoom(log)) {
+        return false;
+    }
+    log.buffer().put(LOG_MOUSE).put((byte) mouseEvent.kind().ordinal()).putShort((short) 0)
+        .putInt(mouseEvent.x()).putInt(mouseEvent.y()).putInt(0);
+    return true;
+}
+
+/**
+ * Add a frame marker to the log: the events recorded since the previous
+ * marker were applied together.
+ *
+ * Examples:
+ *   - logFrame(log) adds [2, 0, 0, ..., 0]
+ *
+ * Design Strategy: Simple Expression
+ *
+ * @param log the open log
+ * @return true if the record was added, false if the log could not be written
+ */
+boolean logFrame(EventLog log) {
+    if (!makeRoom(log)) {
+        return false;
+    }
+    ByteBuffer buffer = log.buffer();
+    buffer.put(LOG_FRAME).position(buffer.position() + LOG_RECORD_BYTES - 1);
+    return true;
+}
+
+/**
+ * Make room for one more record in the buffer of the log,
+ * writing the buffered records to the channel if the buffer is full.
+ * The buffer is zeroed after writing, so unused bytes of records stay 0.
+ *
+ * Examples:
+ *   - If the buffer has room, nothing is written and returns true.
+ *
+ * Design Strategy: Case Distinction
+ *
+ * @param log the open log
+ * @return true if there is room, false if the log could not be written
+ */
+boolean makeRoom(EventLog log) {
+    ByteBuffer buffer = log.buffer();
+    if (buffer.remaining() >= LOG_RECORD_BYTES) {
+        return true;
+    }
+    if (!flushEventLog(log)) {
+        return false;
+    }
+    buffer.put(new byte[buffer.capacity()]).clear();
+    return true;
+}
+
+/**
+ * Write every buffered record of the log to its channel.
+ *
+ * Examples:
+ *   - After flushEventLog(log), the file holds every record added so far.
+ *
+ * Design Strategy: Iteration
+ *
+ * @param log the open log
+ * @return true if the records were written, false if writing failed
+ */
+boolean flushEventLog(EventLog log) {
+    ByteBuffer buffer = log.buffer();
+    try {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            log.channel().write(buffer);
+        }
+        buffer.clear();
+        return true;
+    } catch (IOException e) {
+        return false;
+    }
+}
+
+/**
+ * Write the buffered records of the log and close its file.
+ *
+ * Examples:
+ *   - closeEventLog(log) = true, and the file holds the header and every record
+ *
+ * Design Strategy: Combining functions
+ *
+ * @param log the open log
+ * @return true if the log was written and closed, false otherwise
+ */
+boolean closeEventLog(EventLog log) {
+    boolean flushed = flushEventLog(log);
+    try {
+        log.channel().close();
+        return flushed;
+    } catch (IOException e) {
+        return false;
+    }
+}
+
+/**
+ * Record a key event in the log of the session, if there is one.
+ * If the log cannot be written any more, recording stops and the game goes on.
+ *
+ * Examples:
+ *   - With no log, does nothing.
+ *
+ * Design Strategy: Case Distinction
+ *
+ * @param keyEvent the event to record
+ */
+void recordKeyEvent(KeyEvent keyEvent) {
+    switch (eventLog) {
+        case Nothing<EventLog>() -> { }
+        case Something<EventLog>(EventLog log) -> {
+            if (!logKeyEvent(log, keyEvent)) {
+                eventLog = new Nothing<EventLog>();
+            }
+        }
+    }
+}
+
+/**
+ * Record a mouse event in the log of the session, if there is one.
+ * If the log cannot be written any more, recording stops and the game goes on.
+ *
+ * Examples:
+ *   - With no log, does nothing.
+ *
+ * Design Strategy: Case Distinction
+ *
+ * @param mouseEvent the event to record
+ */
+void recordMouseEvent(MouseEvent mouseEvent) {
+    switch (eventLog) {
+        case Nothing<EventLog>() -> { }
+        case Something<EventLog>(EventLog log) -> {
+            if (!logMouseEvent(log, mouseEvent)) {
+                eventLog = new Nothing<EventLog>();
+            }
+        }
+    }
+}
+
+/**
+ * Record the end of the input of a frame in the log of the session, if there is one.
+ * If the log cannot be written any more, recording stops and the game goes on.
+ *
+ * Examples:
+ *   - With no log, does nothing.
+ *
+ * Design Strategy: Case Distinction
+ */
+void recordFrame() {
+    switch (eventLog) {
+        case Nothing<EventLog>() -> { }
+        case Something<EventLog>(EventLog log) -> {
+            if (!logFrame(log)) {
+                eventLog = new Nothing<EventLog>();
+            }
+        }
+    }
+}
+
+/**
+ * Problem analysis and data design
+ * Function purpose statement and signature
+ * - Replay a recorded session without a window: draw the random colours from a
+ *   ColourSource of its own, seeded from the log, start from the crush mode and gravity
+ *   the session started with,
+ *   build the initial board of the session, and
+ *   apply the recorded events frame by frame, as the game did, as fast as they go.
+ *   The events up to each frame marker (and after the last one) go through applyFrame,
+ *   with a new undo/redo history. The rules switched by the logged keys are threaded
+ *   from frame to frame and never become the rules of the game, and the history of the
+ *   game is restored at the end, so a replay leaves the live session as it was.
+ * - The log is untrusted input: a board that is not 1 to MAX_LOG_CELLS cells with a
+ *   positive radius, a key longer than LOG_KEY_CHARS and a record of an unknown type
+ *   make the whole log unreadable rather than crash the caller.
+ * - The log is read in chunks of LOG_BUFFER_BYTES bytes; a last incomplete record is ignored.
+ *
+ * Examples:
+ *   - If path holds a session of 3 events, returns Something(SimulationReport(w, 3, t)),
+ *     where w is the world at the end of the session.
+ *   - If path does not exist or is not an event log, returns Nothing.
+ *   - If the header of path claims a board of -1 rows, returns Nothing.
+ *   - A session played in REGION mode is replayed in REGION mode, whatever crushMode is,
+ *     and likewise for gravity; crushMode and gravity are left as they were.
+ *
+ * Design Strategy: Iteration
+ *
+ * @param path the path of the log file
+ * @return Something with the report of the replay, or Nothing if the log cannot be read
+ */
+Maybe<SimulationReport> replay(Path path) {
+    Maybe<History> gameHistory = history;
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(LOG_BUFFER_BYTES);
+        while (buffer.position() < LOG_HEADER_BYTES && channel.read(buffer) >= 0) { }
+        if (buffer.position() < LOG_HEADER_BYTES || buffer.getInt(0) != LOG_MAGIC) {
+            return new Nothing<SimulationReport>();
+        }
+        buffer.flip();
+        buffer.getInt();
+        ColourSource colours = new ColourSource(buffer.getLong());
+        BoardConfig board = new BoardConfig(buffer.getInt(), buffer.getInt(), buffer.getInt());
+        int mode = buffer.getInt();
+        int falling = buffer.getInt();
+        if (board.rows() <= 0 || board.cols() <= 0 || board.marbleRadius() <= 0
+                || (long) board.rows() * board.cols() > MAX_LOG_CELLS
+                || mode < 0 || mode >= CrushMode.values().length || falling < 0 || falling > 1) {
+            return new Nothing<SimulationReport>();
+        }
+        Rules rules = new Rules(CrushMode.values()[mode], falling == 1);
+        long start = System.nanoTime();
+        WorldState w = buildFullBoard(board, colours);
+        history = new Nothing<History>();
+        ArrayList<GameEvent> frame = new ArrayList<GameEvent>();
+        int events = 0;
+        int pressed = KeyEventKind.KEY_PRESSED.ordinal();
+        int leftClick = MouseEventKind.LEFT_CLICK.ordinal();
+        byte[] key = new byte[LOG_KEY_CHARS];
+        while (true) {
+            while (buffer.remaining() >= LOG_RECORD_BYTES) {
+                int record = buffer.position();
+                byte type = buffer.get(record);
+                if (type == LOG_FRAME) {
+                    Played played = applyFrame(w, rules, frame, colours);
+                    w = played.world();
+                    rules = played.rules();
+                    frame.clear();
+                } else if (type == LOG_KEY) {
+                    int length = buffer.get(record + 2);
+                    if (length < 0 || length > LOG_KEY_CHARS) {
+                        return new Nothing<SimulationReport>();
+                    }
+                    buffer.position(record + 3).get(key, 0, length);
+                    if (buffer.get(record + 1) == pressed) {
+                        frame.add(new Press(new String(key, 0, length, StandardCharsets.US_ASCII)));
+                    }
+                    events++;
+                } else if (type == LOG_MOUSE) {
+                    if (buffer.get(record + 1) == leftClick) {
+                        frame.add(new Click(buffer.getInt(record + 4), buffer.getInt(record + 8)));
+                    }
+                    events++;
+                } else {
+                    return new Nothing<SimulationReport>();
+                }
+                buffer.position(record + LOG_RECORD_BYTES);
+            }
+            buffer.compact();
+            if (channel.read(buffer) < 0) {
+                break;
+            }
+            buffer.flip();
+        }
+        w = applyFrame(w, rules, frame, colours).world();
+        return new Something<SimulationReport>(new SimulationReport(w, events, System.nanoTime() - start));
+    } catch (IOException e) {
+        return new Nothing<SimulationReport>();
+    } finally {
+        history = gameHistory;
+    }
+}
+
+/**
+ * Replay the log of a session recorded by main() and print how many
+ * events it held and how fast they were replayed.
+ * Call it instead of main() to reproduce a session without opening a window;
+ * main() prints the seed of each session it records.
+ *
+ * Design Strategy: Case Distinction
+ *
+ * @param seed the seed of the session, as printed by main()
+ */
+void replaySession(long seed) {
+    switch (replay(sessionLog(seed))) {
+        case Nothing<SimulationReport>() -> {
+            println("Cannot read the event log " + sessionLog(seed));
+        }
+        case Something<SimulationReport>(SimulationReport r) -> {
+            println("Replayed " + r.events() + " events in " + r.nanos() / 1000000 + " ms ("
+                + (long) eventsPerSecond(r) + " events/s), " + numberOfMarbles(r.world()) + " marbles left");
+        }
+    }
+}
+
+/**
+ * A checkpoint file holds the cells of one board, packed:
+ *   a header of CHECKPOINT_HEADER_BYTES bytes: the magic number CHECKPOINT_MAGIC,
+ *   and the rows, columns and marble radius of the board (4 ints);
+ *   the colour plane: 2 bits per cell holding the ordinal of its MarbleColour,
+ *   32 cells per long, cell i in bits 2 * (i % 32) and up of long i / 32;
+ *   the occupancy bitmap: 1 bit per cell, set iff the cell holds a marble,
+ *   cell i in bit i % 64 of long i / 64.
+ * The colour bits of an EMPTY cell, and every bit past the last cell, are 0.
+ * Numbers are big-endian. A file is written from one buffer with a bulk copy of each
+ * plane, through its channel, and read through a memory mapping with a bulk copy of
+ * each plane. The mapping of a load is only released when the buffer is garbage
+ * collected, so on some platforms (such as Windows) a file that was just loaded
+ * cannot be replaced or deleted at once; saving never leaves a mapping behind.
+ * A board has at least one row and one column.
+ *
+ * Examples:
+ * - A 1x3 board with BLUE, nothing, RED is 16 + 8 + 8 = 32 bytes:
+ *   the header, the colour plane [0b01_00_00] and the occupancy bitmap [0b101]
+ */
+int CHECKPOINT_MAGIC = 0x4D43434B; // "MCCK"
+int CHECKPOINT_HEADER_BYTES = 4 * 4;
+
+/**
+ * The size of the checkpoint file of a board with a given number of cells.
+ *
+ * Examples:
+ *   - checkpointBytes(3) = 16 + 8 + 8 = 32
+ *   - checkpointBytes(64) = 16 + 2 * 8 + 8 = 40
+ *
+ * Design Strategy: Simple Expression
+ *
+ * @param numCells the number of cells of the board
+ * @return the number of bytes of its checkpoint file
+ */
+long checkpointBytes(int numCells) {
+    return CHECKPOINT_HEADER_BYTES + Long.BYTES * ((numCells + 31L) / 32 + (numCells + 63L) / 64);
+}
+
+/**
+ * The colour plane of some cells: 2 bits per cell, 32 cells per long.
+ *
+ * Examples:
+ *   - colourPlane([BLUE, EMPTY, RED]) = [0b01_00_00]
+ *
+ * Design Strategy: Iteration
+ *
+ * @param cells the row-major cells of a grid
+ * @return the ordinals of the colours of the cells, with 0 for EMPTY cells
+ */
+long[] colourPlane(byte[] cells) {
+    long[] plane = new long[(cells.length + 31) / 32];
+    for (int i = 0; i < cells.length; i++) {
+        if (cells[i] != EMPTY) {
+            plane[i >>> 5] |= (long) cells[i] << ((i & 31) << 1);
+        }
+    }
+    return plane;
+}
+
+/**
+ * The occupancy bitmap of some cells: 1 bit per cell, 64 cells per long.
+ *
+ * Examples:
+ *   - occupancyBitmap([BLUE, EMPTY, RED]) = [0b101]
+ *
+ * Design Strategy: Iteration
+ *
+ * @param cells the row-major cells of a grid
+ * @return the bits of the cells holding a marble
+ */
+long[] occupancyBitmap(byte[] cells) {
+    long[] bitmap = new long[(cells.length + 63) / 64];
+    for (int i = 0; i < cells.length; i++) {
+        if (cells[i] != EMPTY) {
+            bitmap[i >>> 6] |= 1L << i;
+        }
+    }
+    return bitmap;
+}
+
+/**
+ * Rebuild the cells of a grid from its colour plane and occupancy bitmap.
+ *
+ * Examples:
+ *   - unpackCells(3, [0b01_00_00], [0b101]) = [BLUE, EMPTY, RED]
+ *
+ * Design Strategy: Iteration
+ *
+ * @param numCells the number of cells of the grid
+ * @param plane the colour plane of the cells
+ * @param bitmap the occupancy bitmap of the cells
+ * @return the row-major cells of the grid
+ */
+byte[] unpackCells(int numCells, long[] plane, long[] bitmap) {
+    byte[] cells = new byte[numCells];
+    for (int i = 0; i < numCells; i++) {
+        cells[i] = ((bitmap[i >>> 6] >>> i) & 1) == 0 ? EMPTY : (byte) ((plane[i >>> 5] >>> ((i & 31) << 1)) & 3);
+    }
+    return cells;
+}
+
+/**
+ * Problem analysis and data design
+ * Function purpose statement and signature
+ * - Save the board of a world to a checkpoint file, replacing any file at the path.
+ * - The planes are packed in memory and copied with one bulk put each into a buffer
+ *   of the size of the file, which is written to the channel in one sequential write.
+ *   No mapping is left open, so the same path can be saved to again at once.
+ * - A world of 0 rows or 0 columns is refused, since loadCheckpoint could not load it back.
+ *
+ * Examples:
+ *   - saveCheckpoint(path, w) = true, with checkpointBytes(rows * cols) bytes in path
+ *   - saveCheckpoint(path in a missing directory, w) = false
+ *   - saveCheckpoint(path, a world of 0 rows) = false
+ *
+ * Design Strategy: Case Distinction
+ *
+ * @param path the path of the checkpoint file
+ * @param w the world to save
+ * @return true if the file was written, false otherwise
+ */
+boolean saveCheckpoint(Path path, WorldState w) {
+    BoardConfig board = w.board();
+    if (board.rows() <= 0 || board.cols() <= 0) {
+        return false;
+    }
+    long[] plane = colourPlane(w.cells());
+    long[] bitmap = occupancyBitmap(w.cells());
+    ByteBuffer file = ByteBuffer.allocate((int) checkpointBytes(w.cells().length));
+    file.putInt(CHECKPOINT_MAGIC).putInt(board.rows()).putInt(board.cols()).putInt(board.marbleRadius());
+    file.asLongBuffer().put(plane).put(bitmap);
+    file.clear();
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+             StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+        while (file.hasRemaining()) {
+            channel.write(file);
+        }
+        channel.force(false);
+        return true;
+    } catch (IOException e) {
+        return false;
+    }
+}
+
+/**
+ * Problem analysis and data design
+ * Function purpose statement and signature
+ * - Load a world from a checkpoint file.
+ * - The file is mapped, each plane is copied out of the mapping with one bulk get,
+ *   and the cells are unpacked; the free-cell index and colour counts are rebuilt
+ *   from them as by worldFromCells.
+ * - A file that is not a checkpoint, or whose size does not match its board, is refused.
+ *
+ * Examples:
+ *   - loadCheckpoint(path) after saveCheckpoint(path, w) = Something(a world with the cells of w)
+ *   - loadCheckpoint(missing file) = Nothing
+ *
+ * Design Strategy: Case Distinction
+ *
+ * @param path the path of the checkpoint file
+ * @return Something with the saved world, or Nothing if the file cannot be read
+ */
+Maybe<WorldState> loadCheckpoint(Path path) {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+        long size = channel.size();
+        if (size < CHECKPOINT_HEADER_BYTES) {
+            return new Nothing<WorldState>();
+        }
+        MappedByteBuffer file = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        int magic = file.getInt();
+        BoardConfig board = new BoardConfig(file.getInt(), file.getInt(), file.getInt());
+        long numCells = (long) board.rows() * board.cols();
+        if (magic != CHECKPOINT_MAGIC || board.rows() <= 0 || board.cols() <= 0
+                || numCells > Integer.MAX_VALUE || size != checkpointBytes((int) numCells)) {
+            return new Nothing<WorldState>();
+        }
+        long[] plane = new long[(int) ((numCells + 31) / 32)];
+        long[] bitmap = new long[(int) ((numCells + 63) / 64)];
+        file.asLongBuffer().get(plane).get(bitmap);
+        return new Something<WorldState>(worldFromCells(board, unpackCells((int) numCells, plane, bitmap)));
+    } catch (IOException e) {
+        return new Nothing<WorldState>();
+    }
+}
+
+/**
+ * [X]: the change made to a world by one transition, small enough to send to observers
+ * that hold the world before it
+ * - CrushDelta: every marble of one colour was crushed, as by crushColour
+ * - RefillDelta: every vacancy of the world was filled; the new colours are packed
+ *   2 bits each in the order of the vacancies, 32 per long, as in a colour plane
+ * - PatchDelta: any other change; runs holds a (start, length) pair for each run of
+ *   changed cells, and values the new values of the changed cells, run after run
+ *
+ * Examples:
+ * - A click crushing every RED marble: new CrushDelta(1)
+ * - A SPACE press filling the vacancies [1, 4] with RED and BLUE: new RefillDelta([0b00_01])
+ * - Cells 3 and 4 emptied by a region crush: new PatchDelta([3, 2], [EMPTY, EMPTY])
+ */
+sealed interface WorldDelta permits CrushDelta, RefillDelta, PatchDelta {}
+record CrushDelta(byte colour) implements WorldDelta {}
+/**
+ * ... d.colour() ...
+ */
+record RefillDelta(long[] colours) implements WorldDelta {}
+/**
+ * ... d.colours() ...
+ */
+record PatchDelta(int[] runs, byte[] values) implements WorldDelta {}
+/**
+ * ... d.runs() ...
+ * ... d.values() ...
+ */
+
+/* The first byte of an encoded delta, telling its kind */
+byte DELTA_CRUSH = 0;
+byte DELTA_REFILL = 1;
+byte DELTA_PATCH = 2;
+
+/**
+ * Problem analysis and data design
+ * Function purpose statement and signature
+ * - Find the delta of a transition between two worlds of the same board, with one
+ *   sweep comparing their cells that also tells which kind of delta fits:
+ * - a CrushDelta if the changed cells are exactly the marbles of one colour, now EMPTY;
+ * - a RefillDelta if the changed cells are exactly the vacancies, now all occupied;
+ * - a PatchDelta of the runs of changed cells otherwise, also when nothing changed.
+ *
+ * Examples:
+ *   - deltaOf(w, crushColour(w, RED)) = CrushDelta(RED), if w holds any RED marble
+ *   - deltaOf(w, fillEmptyCells(w)) = RefillDelta(the new colours), if w has vacancies
+ *   - deltaOf(w, w) = PatchDelta([], [])
+ *
+ * Design Strategy: Case Distinction
+ *
+ * @param before the world before the transition
+ * @param after the world after the transition, on the same board
+ * @return the delta that turns before into after
+ */
+WorldDelta deltaOf(WorldState before, WorldState after) {
+    byte[] from = before.cells();
+    byte[] to = after.cells();
+    int changed = 0;
+    int runs = 0;
+    byte crushed = EMPTY;
+    boolean isCrush = true;
+    boolean isRefill = true;
+    for (int i = 0; i < from.length; i++) {
+        if (from[i] != to[i]) {
+            changed++;
+            if (i == 0 || from[i - 1] == to[i - 1]) {
+                runs++;
+            }
+            isCrush = isCrush && to[i] == EMPTY && (crushed == EMPTY || from[i] == crushed);
+            crushed = from[i];
+            isRefill = isRefill && from[i] == EMPTY;
+        }
+    }
+    if (changed > 0 && isCrush && changed == before.colourCounts()[crushed]) {
+        return new CrushDelta(crushed);
+    }
+    if (changed > 0 && isRefill && changed == before.vacancies().length) {
+        byte[] filled = new byte[changed];
+        for (int k = 0; k < changed; k++) {
+            filled[k] = to[before.vacancies()[k]];
+        }
+        return new RefillDelta(colourPlane(filled));
+    }
+    return patchOf(from, to, runs, changed);
+}
+
+/**
+ * Collect the runs of changed cells between two cell arrays, and their new values.
+ *
+ * Examples:
+ *   - patchOf([0, 1, 1, 2], [0, EMPTY, EMPTY, 2], 1, 2) = PatchDelta([1, 2], [EMPTY, EMPTY])
+ *
+ * Design Strategy: Iteration
+ *
+ * @param from the cells before
+ * @param to the cells after
+ * @param runs the number of runs of changed cells
+ * @param changed the number of changed cells
+ * @return the PatchDelta that turns from into to
+ */
+PatchDelta patchOf(byte[] from, byte[] to, int runs, int changed) {
+    int[] pairs = new int[2 * runs];
+    byte[] values = new byte[changed];
+    int run = -1;
+    int next = 0;
+    for (int i = 0; i < from.length; i++) {
+        if (from[i] != to[i]) {
+            if (i == 0 || from[i - 1] == to[i - 1]) {
+                run++;
+                pairs[2 * run] = i;
+            }
+            pairs[2 * run + 1]++;
+            values[next++] = to[i];
+        }
+    }
+    return new PatchDelta(pairs, values);
+}
+
+/**
+ * Problem analysis and data design
+ * Function purpose statement and signature
+ * - Tell whether a delta can be applied to a world: deltas come from another
+ *   process, so nothing in them may be trusted to fit the board of the receiver.
+ * - A CrushDelta must name a colour from 0 to 3.
+ * - A RefillDelta must hold exactly the longs needed for a colour per vacancy of w.
+ * - A PatchDelta must have (start, length) pairs of runs that lie inside the cells
+ *   of w, as many values as the runs cover, and only colours or EMPTY as values.
+ *
+ * Examples:
+ *   - fitsWorld(w, deltaOf(w, next)) = true
+ *   - fitsWorld(w, CrushDelta(7)) = false
+ *   - fitsWorld(w of 4 cells, PatchDelta([3, 2], [EMPTY, EMPTY])) = false, past the last cell
+ *
+ * Design Strategy: Case Distinction
+ *
+ * @param w the world of the receiver
+ * @param delta the received delta
+ * @return true if applyDelta can apply delta to w
+ */
+boolean fitsWorld(WorldState w, WorldDelta delta) {
+    return switch (delta) {
+        case CrushDelta(byte colour) -> colour >= 0 && colour < MARBLE_COLOURS.length;
+        case RefillDelta(long[] colours) -> colours.length == (w.vacancies().length + 31) / 32;
+        case PatchDelta(int[] runs, byte[] values) -> {
+            boolean fits = runs.length % 2 == 0;
+            long covered = 0;
+            for (int r = 0; fits && r < runs.length; r += 2) {
+                fits = runs[r] >= 0 && runs[r + 1] >= 0 && (long) runs[r] + runs[r + 1] <= w.cells().length;
+                covered += runs[r + 1];
+            }
+            for (int k = 0; fits && k < values.length; k++) {
+                fits = values[k] == EMPTY || (values[k] >= 0 && values[k] < MARBLE_COLOURS.length);
+            }
+            yield fits && covered == values.length;
+        }
+    };
+}
+
+/**
+ * Problem analysis and data design
+ * Function purpose statement and signature
+ * - Rebuild the world after a transition from the world before it and its delta.
+ * - A delta that does not fit the world, as told by fitsWorld, is refused.
+ * - A crush is replayed with crushColour, and a refill writes the colours into the
+ *   vacancies in order, so both keep the free-cell index and colour counts up to date
+ *   without a sweep of the grid; a patch writes its runs and rebuilds them.
+ *
+ * Examples:
+ *   - applyDelta(w, deltaOf(w, next)) = Something(a world with the same cells as next)
+ *   - applyDelta(w, CrushDelta(RED)) = Something(crushColour(w, RED))
+ *   - applyDelta(w, CrushDelta(7)) = Nothing
+ *
+ * Design Strategy: Case Distinction
+ *
+ * @param w the world before the transition
+ * @param delta the delta of the transition
+ * @return Something with the world after the transition, or Nothing if delta does not fit w
+ */
+Maybe<WorldState> applyDelta(WorldState w, WorldDelta delta) {
+    if (!fitsWorld(w, delta)) {
+        return new Nothing<WorldState>();
+    }
+    return new Something<WorldState>(switch (delta) {
+        case CrushDelta(byte colour) -> crushColour(w, colour);
+        case RefillDelta(long[] colours) -> {
+            int[] vacancies = w.vacancies();
+            byte[] cells = w.cells().clone();
+            int[] colourCounts = w.colourCounts().clone();
+            for (int k = 0; k < vacancies.length; k++) {
+                byte colour = (byte) ((colours[k >>> 5] >>> ((k & 31) << 1)) & 3);
+                cells[vacancies[k]] = colour;
+                colourCounts[colour]++;
+            }
+            yield new WorldState(w.board(), cells, new int[0], colourCounts);
+        }
+        case PatchDelta(int[] runs, byte[] values) -> {
+            byte[] cells = w.cells().clone();
+            int next = 0;
+            for (int r = 0; r < runs.length; r += 2) {
+                System.arraycopy(values, next, cells, runs[r], runs[r + 1]);
+                next += runs[r + 1];
+            }
+            yield worldFromCells(w.board(), cells);
+        }
+    });
+}
+
+/**
+ * Problem analysis and data design
+ * Function purpose statement and signature
+ * - Encode a delta for sending, as its kind byte followed by:
+ *   CrushDelta: the colour (1 byte);
+ *   RefillDelta: the number of longs (int), then the longs;
+ *   PatchDelta: the number of runs (int), the start and length of each run (2 ints),
+ *   then the new values (1 byte each).
+ *
+ * Examples:
+ *   - encodeDelta(CrushDelta(1)) = [0, 1]
+ *   - encodeDelta(PatchDelta([3, 2], [EMPTY, EMPTY])) = [2, 0,0,0,1, 0,0,0,3, 0,0,0,2, -1, -1]
+ *
+ * Design Strategy: Case Distinction
+ *
+ * @param delta the delta to encode
+ * @return a buffer holding the encoded delta, ready to be read
+ */
+ByteBuffer encodeDelta(WorldDelta delta) {
+    return switch (delta) {
+        case CrushDelta(byte colour) -> ByteBuffer.allocate(2).put(DELTA_CRUSH).put(colour).flip();
+        case RefillDelta(long[] colours) -> {
+            ByteBuffer buffer = ByteBuffer.allocate(1 + 4 + Long.BYTES * colours.length);
+            buffer.put(DELTA_REFILL).putInt(colours.length).asLongBuffer().put(colours);
+            yield buffer.position(buffer.capacity()).flip();
+        }
+        case PatchDelta(int[] runs, byte[] values) -> {
+            ByteBuffer buffer = ByteBuffer.allocate(1 + 4 + 4 * runs.length + values.length);
+            buffer.put(DELTA_PATCH).putInt(runs.length / 2);
+            for (int run : runs) {
+                buffer.putInt(run);
+            }
+            yield buffer.put(values).flip();
+        }
+    };
+}
+
+/**
+ * Problem analysis and data design
+ * Function purpose statement and signature
+ * - Decode a delta written by encodeDelta, reading it from the position of a buffer.
+ * - A buffer that ends early, or starts with an unknown kind, holds no delta;
+ *   lengths are checked against the bytes left before anything is allocated.
+ *
+ * Examples:
+ *   - decodeDelta(encodeDelta(d)) = Something(a delta equal to d)
+ *   - decodeDelta([9]) = Nothing
+ *
+ * Design Strategy: Case Distinction
+ *
+ * @param buffer the buffer holding the encoded delta
+ * @return Something with the delta, or Nothing if the buffer does not hold one
+ */
+Maybe<WorldDelta> decodeDelta(ByteBuffer buffer) {
+    try {
+        byte kind = buffer.get();
+        if (kind == DELTA_CRUSH) {
+            return new Something<WorldDelta>(new CrushDelta(buffer.get()));
+        }
+        if (kind == DELTA_REFILL) {
+            int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining() / Long.BYTES) {
+                return new Nothing<WorldDelta>();
+            }
+            long[] colours = new long[length];
+            for (int k = 0; k < colours.length; k++) {
+                colours[k] = buffer.getLong();
+            }
+            return new Something<WorldDelta>(new RefillDelta(colours));
+        }
+        if (kind == DELTA_PATCH) {
+            int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining() / 8) {
+                return new Nothing<WorldDelta>();
+            }
+            int[] runs = new int[2 * length];
+            int changed = 0;
+            for (int r = 0; r < runs.length; r++) {
+                runs[r] = buffer.getInt();
+                changed += r % 2 == 1 ? runs[r] : 0;
+            }
+            if (changed < 0 || changed > buffer.remaining()) {
+                return new Nothing<WorldDelta>();
+            }
+            byte[] values = new byte[changed];
+            buffer.get(values);
+            return new Something<WorldDelta>(new PatchDelta(runs, values));
+        }
+        return new Nothing<WorldDelta>();
+    } catch (BufferUnderflowException e) {
+        return new Nothing<WorldDelta>();
+    }
+}
+
+/**
+ * [O]: the result of replicating a game to an observer through deltas
+ *
+ * @param world the world of the game after the events
+ * @param replica the world of the observer, rebuilt from the deltas only
+ * @param transitions the number of events that changed the world
+ * @param deltaBytes the number of bytes of the encoded deltas of those transitions
+ * @param fullBytes the number of bytes of sending each new world as a checkpoint instead
+ */
+record ReplicationReport(WorldState world, WorldState replica, int transitions, long deltaBytes, long fullBytes) {}
+/**
+ * ... r.world() ...
+ * ... r.replica() ...
+ * ... r.transitions() ...
+ * ... r.deltaBytes() ...
+ * ... r.fullBytes() ...
+ */
+
+/**
+ * Problem analysis and data design
+ * Function purpose statement and signature
+ * - Play a list of events on a world as the game would, and replicate each
+ *   transition to an observer that starts with the same world: the delta of the
+ *   transition is encoded, decoded and applied to the world of the observer.
+ * - Events that change nothing send nothing.
+ *
+ * Examples:
+ *   - replicate(w, [Click(10, 10), Press("Space")]) sends a CrushDelta and a
+ *     RefillDelta, and its replica has the same cells as its world
+ *
+ * Design Strategy: Iteration
+ *
+ * @param w the world before the first event, known to the observer
+ * @param events the events to play
+ * @return the report of the replication
+ */
+ReplicationReport replicate(WorldState w, List<GameEvent> events) {
+    WorldState world = w;
+    WorldState replica = w;
+    int transitions = 0;
+    long deltaBytes = 0;
+    for (GameEvent event : events) {
+        WorldState next = applyEvent(world, event);
+        if (!Arrays.equals(next.cells(), world.cells())) {
+            ByteBuffer sent = encodeDelta(deltaOf(world, next));
+            deltaBytes += sent.remaining();
+            transitions++;
+            switch (decodeDelta(sent)) {
+                case Nothing<WorldDelta>() -> { }
+                case Something<WorldDelta>(WorldDelta delta) -> {
+                    switch (applyDelta(replica, delta)) {
+                        case Nothing<WorldState>() -> { }
+                        case Something<WorldState>(WorldState applied) -> {
+                            replica = applied;
+                        }
+                    }
+                }
+            }
+        }
+        world = next;
+    }
+    return new ReplicationReport(world, replica, transitions, deltaBytes, transitions * checkpointBytes(w.cells().length));
+}
+
+/**
+ * Replicate a game of random clicks and SPACE presses on a 1000x1000 board, printing
+ * the bytes sent as deltas against the bytes of sending every new world.
+ * Call it instead of main() to see the bandwidth saved by deltas.
+ *
+ * Design Strategy: Simple Expression
+ */
+void replicationTest() {
+    BoardConfig board = new BoardConfig(1000, 1000, marbleRadius);
+    ReplicationReport r = replicate(buildFullBoard(board), syntheticEvents(board, 200, 2));
+    println(String.format("%d transitions: %d bytes of deltas, %d bytes of whole worlds (%.0fx less)%s",
+        r.transitions(), r.deltaBytes(), r.fullBytes(), (double) r.fullBytes() / Math.max(1, r.deltaBytes()),
+        Arrays.equals(r.world().cells(), r.replica().cells()) ? "" : ", REPLICA DIFFERS"));
+}
+
+/**
+ * [A]: the advice of the move advisor
+ *
+ * Examples:
+ * - Clicking cell 12 crushes 230.5 marbles on average over the next cycles:
+ *   new MoveAdvice(12, 230.5)
+ *
+ * @param cell the index of the cell to click
+ * @param expectedCrushed the average number of marbles crushed by the click and the cycles after it
+ */
+record MoveAdvice(int cell, double expectedCrushed) {}
+/**
+ * ... a.cell() ...
+ * ... a.expectedCrushed() ...
+ */
+
+/* The number of rollouts shared among the candidate moves of one piece of advice */
+int ROLLOUT_BUDGET = 2048;
+
+/* The number of click/refill cycles looked at by one piece of advice */
+int ADVICE_CYCLES = 3;
+
+/*
+ * The colour source of the rollouts of the advisor, seeded from the session seed.
+ * It is kept apart from sessionColours: advice is not in the event log, so drawing
+ * from the colours of the game would stop a logged session from replaying exactly.
+ */
+ColourSource adviceColours = new ColourSource(sessionSeed);
+
+/**
+ * Advise the move with the best expected outcome over ADVICE_CYCLES click/refill cycles,
+ * with the colour source of the advisor.
+ *
+ * Examples:
+ *   - If w has no marble, returns Nothing.
+ *   - adviseMove(w) never changes the colours that sessionColours gives next.
+ *
+ * Design Strategy: Combining functions
+ *
+ * @param w the current WorldState
+ * @return Something with the advised move, or Nothing if there is nothing to click
+ */
+Maybe<MoveAdvice> adviseMove(WorldState w) {
+    return adviseMove(w, ADVICE_CYCLES, ROLLOUT_BUDGET, adviceColours);
+}
+
+/**
+ * Problem analysis and data design
+ * Function purpose statement and signature
+ * - Estimate, for each distinct move on w, the number of marbles crushed by that move
+ *   and the cycles after it, and advise the move with the highest estimate.
+ * - A distinct move is one colour in COLOUR mode, and one region in REGION mode;
+ *   clicks that crush the same marbles are the same move.
+ * - Each estimate is the average of Monte Carlo rollouts: make the move, refill with
+ *   random colours, then click a random marble and refill, until cycles clicks were
+ *   made, counting the marbles crushed with the crush rule and gravity of the game.
+ * - Rollouts are shared among one task per core on the common fork-join pool. Each
+ *   task has its own board, work queue and colour source (split from source up front),
+ *   made once and reused by all its rollouts, so rollouts do not allocate.
+ *
+ * Examples:
+ *   - On a board of one RED and one BLUE marble in COLOUR mode, with cycles = 1,
+ *     returns the cell of either marble with expectedCrushed = 1.0
+ *
+ * Design Strategy: Iteration
+ *
+ * @param w the current WorldState
+ * @param cycles the number of click/refill cycles of a rollout (>0)
+ * @param budget the total number of rollouts, shared among the moves
+ * @param source the source from which the colour sources of the tasks are split
+ * @return Something with the advised move, or Nothing if there is nothing to click
+ */
+Maybe<MoveAdvice> adviseMove(WorldState w, int cycles, int budget, ColourSource source) {
+    int[] moves = candidateMoves(w);
+    if (moves.length == 0) {
+        return new Nothing<MoveAdvice>();
+    }
+    int perMove = Math.max(1, budget / moves.length);
+    int tasks = Math.min(Runtime.getRuntime().availableProcessors(), moves.length * perMove);
+    ColourSource[] sources = new ColourSource[tasks];
+    for (int t = 0; t < tasks; t++) {
+        sources[t] = source.split();
+    }
+    long[][] totals = new long[tasks][moves.length];
+    IntStream.range(0, tasks).parallel().forEach(t -> {
+        byte[] board = new byte[w.cells().length];
+        int[] queue = new int[w.cells().length];
+        for (int r = t; r < moves.length * perMove; r += tasks) {
+            int move = r % moves.length;
+            totals[t][move] += rollout(w, moves[move], cycles, board, queue, sources[t]);
+        }
+    });
+    int best = 0;
+    long bestTotal = -1;
+    for (int move = 0; move < moves.length; move++) {
+        long total = 0;
+        for (long[] taskTotals : totals) {
+            total += taskTotals[move];
+        }
+        if (total > bestTotal) {
+            best = move;
+            bestTotal = total;
+        }
+    }
+    return new Something<MoveAdvice>(new MoveAdvice(moves[best], (double) bestTotal / perMove));
+}
+
+/**
+ * Find one cell for each distinct move on w: the first cell of each colour in
+ * COLOUR mode, and the first cell of each region in REGION mode.
+ *
+ * Examples:
+ *   - On cells [RED, RED, BLUE, RED] (1x4) in COLOUR mode, returns [0, 2]
+ *   - On the same cells in REGION mode, returns [0, 2, 3]
+ *
+ * Design Strategy: Iteration
+ *
+ * @param w the current WorldState
+ * @return the cells of the distinct moves, in increasing order
+ */
+int[] candidateMoves(WorldState w) {
+    byte[] cells = w.cells().clone();
+    int[] moves = new int[cells.length];
+    int count = 0;
+    for (int i = 0; i < cells.length; i++) {
+        if (cells[i] != EMPTY) {
+            moves[count++] = i;
+            switch (crushMode) {
+                case COLOUR -> {
+                    byte colour = cells[i];
+                    for (int j = i; j < cells.length; j++) {
+                        cells[j] = (cells[j] == colour) ? EMPTY : cells[j];
+                    }
+                }
+                case REGION -> floodFill(cells, w.board(), i, w.colourCounts()[cells[i]]);
+            }
+        }
+    }
+    return Arrays.copyOf(moves, count);
+}
+
+/**
+ * Problem analysis and data design
+ * Function purpose statement and signature
+ * - Play one rollout on a scratch board: copy the cells of w into it, click the
+ *   given cell, and then refill and click a random cell until cycles clicks were made.
+ * - The board is full after every refill, so every random cell holds a marble.
+ * - Works only on the given board and queue: nothing is allocated.
+ *
+ * Examples:
+ *   - With cycles = 1, returns the number of marbles crushed by clicking move.
+ *
+ * Design Strategy: Iteration
+ *
+ * @param w the WorldState to start from
+ * @param move the index of an occupied cell to click first
+ * @param cycles the number of clicks of the rollout (>0)
+ * @param board a scratch board as large as w, overwritten
+ * @param queue a scratch work queue as large as w, overwritten
+ * @param source the source of random colours and clicks
+ * @return the number of marbles crushed by the clicks of the rollout
+ */
+long rollout(WorldState w, int move, int cycles, byte[] board, int[] queue, ColourSource source) {
+    System.arraycopy(w.cells(), 0, board, 0, board.length);
+    long crushed = 0;
+    int click = move;
+    for (int cycle = 0; cycle < cycles; cycle++) {
+        crushed += crushInPlace(board, w.board(), click, queue);
+        if (cycle + 1 < cycles) {
+            for (int i = 0; i < board.length; i++) {
+                if (board[i] == EMPTY) {
+                    board[i] = (byte) source.nextOrdinal();
+                }
+            }
+            click = source.nextIndex(board.length);
+        }
+    }
+    return crushed;
+}
+
+/**
+ * Crush the marble in a cell of a scratch board in place, by the crush mode and
+ * gravity of the game.
+ *
+ * Examples:
+ *   - In COLOUR mode on [RED, BLUE, RED], crushInPlace(cells, board, 0, queue) = 2
+ *
+ * Design Strategy: Case Distinction
+ *
+ * @param cells the cells of the board, modified in place
+ * @param board the configuration of the board
+ * @param index the index of an occupied cell
+ * @param queue a work queue as large as the board
+ * @return the number of marbles crushed
+ */
+int crushInPlace(byte[] cells, BoardConfig board, int index, int[] queue) {
+    byte colour = cells[index];
+    int crushed = 0;
+    switch (crushMode) {
+        case COLOUR -> {
+            for (int i = 0; i < cells.length; i++) {
+                if (cells[i] == colour) {
+                    cells[i] = EMPTY;
+                    crushed++;
+                }
+            }
+        }
+        case REGION -> crushed = floodFillWith(cells, board.cols(), index, queue);
+    }
+    if (gravity) {
+        for (int col = 0; col < board.cols(); col++) {
+            compactColumn(cells, board, col);
+        }
+    }
+    return crushed;
+}
+
+/**
+ * [N]: a running board server
+ * The server keeps many independent boards and serves commands on a local socket,
+ * one line per command and one line per reply:
+ *   NEW [rows cols]          -> OK id           a new full board (standard size by default)
+ *   CLICK id x y             -> OK marbles      a left click on board id
+ *   SPACE id                 -> OK marbles      a SPACE press on board id
+ *   EMPTY id                 -> OK n            the number of empty cells of board id
+ *   COUNT id colour          -> OK n            the number of marbles of a MarbleColour
+ *   QUIT                     closes the connection
+ * A command that cannot be served is answered with ERR and a message; so is a NEW
+ * past MAX_SERVER_BOARDS boards or MAX_CONNECTION_CELLS cells on one connection.
+ * Each connection runs on a virtual thread of its own and owns the boards it creates,
+ * with its own colour source: a board is only ever used by the thread of its
+ * connection, so no lock is needed. The rules of the clicks are those of the game when
+ * the server was started, captured once: the threads of the server never read
+ * crushMode or gravity, which the game may switch at any time. Replies are flushed when no command is waiting,
+ * so a client may send several commands before reading their replies.
+ *
+ * Examples:
+ * - "NEW" -> "OK 0", then "CLICK 0 10 10" -> "OK 281"
+ *
+ * @param socket the listening socket, bound to the loopback address
+ * @param threads the executor running the accept loop and the connections, one virtual thread each
+ * @param commands the number of commands served so far
+ * @param rules the rules of every click served
+ */
+record BoardServer(ServerSocket socket, ExecutorService threads, LongAdder commands, Rules rules) {}
+/**
+ * ... s.socket() ...
+ * ... s.threads() ...
+ * ... s.commands() ...
+ * ... s.rules() ...
+ */
+
+/* The port on which serve() listens */
+int SERVER_PORT = 7110;
+
+/* The largest number of cells of a board created with NEW */
+int MAX_SERVER_CELLS = 4000000;
+
+/* The largest number of boards, and of cells on all of them, that one connection may create */
+int MAX_SERVER_BOARDS = 256;
+int MAX_CONNECTION_CELLS = 16000000;
+
+/* How long a client of the load generator waits for a reply before it gives up */
+int LOAD_REPLY_TIMEOUT_MILLIS = 10000;
+
+/**
+ * Start a board server on a local port, with its colour sources split from
+ * one seeded source, and the rules of the game at the time of the call.
+ *
+ * Examples:
+ *   - startServer(0, 1) = Something(server) listening on any free port
+ *   - startServer(port already in use, 1) = Nothing
+ *
+ * Design Strategy: Case Distinction
+ *
+ * @param port the port to listen on, or 0 for any free port
+ * @param seed the seed of the colours of the boards
+ * @return Something with the running server, or Nothing if the port cannot be opened
+ */
+Maybe<BoardServer> startServer(int port, long seed) {
+    try {
+        ServerSocket socket = new ServerSocket(port, 1024, InetAddress.getLoopbackAddress());
+        BoardServer server = new BoardServer(socket, Executors.newVirtualThreadPerTaskExecutor(), new LongAdder(), gameRules());
+        ColourSource root = new ColourSource(seed);
+        server.threads().submit(() -> acceptConnections(server, root));
+        return new Something<BoardServer>(server);
+    } catch (IOException e) {
+        return new Nothing<BoardServer>();
+    }
+}
+
+/**
+ * Stop a board server: close its socket and stop its threads.
+ *
+ * Design Strategy: Simple Expression
+ *
+ * @param server the running server
+ */
+void stopServer(BoardServer server) {
+    try {
+        server.socket().close();
+    } catch (IOException e) {
+        // The socket is closed either way
+    }
+    server.threads().shutdownNow();
+}
+
+/**
+ * Accept connections until the socket of the server is closed, serving each one
+ * on a new virtual thread with a colour source split from root.
+ * Only this thread uses root.
+ *
+ * Design Strategy: Iteration
+ *
+ * @param server the running server
+ * @param root the source from which the sources of the connections are split
+ */
+void acceptConnections(BoardServer server, ColourSource root) {
+    while (!server.socket().isClosed()) {
+        try {
+            Socket connection = server.socket().accept();
+            ColourSource source = root.split();
+            server.threads().submit(() -> serveConnection(server, connection, source));
+        } catch (IOException e) {
+            return;
+        }
+    }
+}
+
+/**
+ * Serve the commands of one connection until it sends QUIT or closes.
+ *
+ * Design Strategy: Iteration
+ *
+ * @param server the running server
+ * @param connection the socket of the connection
+ * @param source the colour source of the boards of this connection
+ */
+void serveConnection(BoardServer server, Socket connection, ColourSource source) {
+    ArrayList<WorldState> boards = new ArrayList<WorldState>();
+    try (connection;
+         BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.US_ASCII));
+         Writer out = new BufferedWriter(new OutputStreamWriter(connection.getOutputStream(), StandardCharsets.US_ASCII))) {
+        String line = in.readLine();
+        while (line != null && !Equals(line.trim(), "QUIT")) {
+            out.write(handleCommand(boards, line, source, server.rules()));
+            out.write('\n');
+            server.commands().increment();
+            if (!in.ready()) {
+                out.flush();
+            }
+            line = in.readLine();
+        }
+        out.flush();
+    } catch (IOException e) {
+        // The client went away; its boards go with it
+    }
+}
+
+/**
+ * Problem analysis and data design
+ * Function purpose statement and signature
+ * - Serve one command of the server protocol on the boards of a connection,
+ *   and return the reply.
+ * - Clicks follow the given rules, never the globals of the game; refills take their
+ *   colours from the source of the connection.
+ *
+ * Examples:
+ *   - handleCommand([], "NEW", source, rules) = "OK 0", and boards holds a full standard board
+ *   - handleCommand(boards, "SPACE 0", source, rules) = "OK 375" on a standard board
+ *   - handleCommand(boards, "CLICK 9 1 1", source, rules) = "ERR ..." if there is no board 9
+ *   - handleCommand(boards, "NEW", source, rules) = "ERR ..." if boards holds MAX_SERVER_BOARDS boards
+ *
+ * Design Strategy: Case Distinction
+ *
+ * @param boards the boards of the connection, by id; modified by NEW, CLICK and SPACE
+ * @param line the command
+ * @param source the colour source of the connection
+ * @param rules the rules of the clicks
+ * @return the reply to the command
+ */
+String handleCommand(ArrayList<WorldState> boards, String line, ColourSource source, Rules rules) {
+    String[] words = line.trim().split(" +");
+    try {
+        return switch (words[0]) {
+            case "NEW" -> {
+                BoardConfig board = (words.length == 3)
+                    ? new BoardConfig(Integer.parseInt(words[1]), Integer.parseInt(words[2]), marbleRadius)
+                    : defaultBoard();
+                if (board.rows() <= 0 || board.cols() <= 0 || (long) board.rows() * board.cols() > MAX_SERVER_CELLS) {
+                    yield "ERR board size must be 1 to " + MAX_SERVER_CELLS + " cells";
+                }
+                long cells = (long) board.rows() * board.cols();
+                for (WorldState w : boards) {
+                    cells += w.cells().length;
+                }
+                if (boards.size() >= MAX_SERVER_BOARDS || cells > MAX_CONNECTION_CELLS) {
+                    yield "ERR a connection may have at most " + MAX_SERVER_BOARDS + " boards and "
+                        + MAX_CONNECTION_CELLS + " cells";
+                }
+                boards.add(buildFullBoard(board, source));
+                yield "OK " + (boards.size() - 1);
+            }
+            case "CLICK" -> {
+                int id = Integer.parseInt(words[1]);
+                boards.set(id, clickAt(boards.get(id), rules, Integer.parseInt(words[2]), Integer.parseInt(words[3])));
+                yield "OK " + numberOfMarbles(boards.get(id));
+            }
+            case "SPACE" -> {
+                int id = Integer.parseInt(words[1]);
+                boards.set(id, fillEmptyCells(boards.get(id), source));
+                yield "OK " + numberOfMarbles(boards.get(id));
+            }
+            case "EMPTY" -> "OK " + numberOfEmptyLocations(boards.get(Integer.parseInt(words[1])));
+            case "COUNT" -> "OK " + boards.get(Integer.parseInt(words[1])).colourCounts()[MarbleColour.valueOf(words[2]).ordinal()];
+            default -> "ERR unknown command " + words[0];
+        };
+    } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+        return "ERR cannot serve " + line.trim();
+    }
+}
+
+/**
+ * [G]: the result of a run of the load generator
+ *
+ * @param connections the number of client connections
+ * @param boards the total number of boards played
+ * @param commands the number of commands sent after the boards were created
+ * @param nanos the time taken by those commands, in nanoseconds
+ */
+record LoadReport(int connections, int boards, long commands, long nanos) {}
+/**
+ * ... r.connections() ...
+ * ... r.boards() ...
+ * ... r.commands() ...
+ * ... r.nanos() ...
+ */
+
+/**
+ * Problem analysis and data design
+ * Function purpose statement and signature
+ * - Generate load on a board server: open connections, each on a virtual thread of
+ *   its own, create boards on each, and then play rounds in which every board gets
+ *   a click on a random cell and a SPACE press.
+ * - The commands of a round are sent together and then their replies are read,
+ *   so each round costs one round trip per connection.
+ * - Only the rounds are timed, not the connecting and the creation of the boards.
+ *
+ * Examples:
+ *   - runLoad(port, 2, 3, 10) plays 6 boards and sends 6 * 10 * 2 = 120 commands
+ *   - If the server cannot be reached, returns Nothing.
+ *
+ * Design Strategy: Iteration
+ *
+ * @param port the port of the server on the loopback address
+ * @param connections the number of connections (>0)
+ * @param boardsPerConnection the number of boards of each connection (>0)
+ * @param rounds the number of rounds (>=0)
+ * @return Something with the report of the run, or Nothing if a connection failed
+ */
+Maybe<LoadReport> runLoad(int port, int connections, int boardsPerConnection, int rounds) {
+    ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor();
+    CountDownLatch ready = new CountDownLatch(connections);
+    CountDownLatch go = new CountDownLatch(1);
+    ArrayList<Future<Long>> results = new ArrayList<Future<Long>>();
+    for (int c = 0; c < connections; c++) {
+        long seed = c;
+        results.add(clients.submit(() -> playBoards(port, boardsPerConnection, rounds, seed, ready, go)));
+    }
+    try {
+        ready.await();
+        long start = System.nanoTime();
+        go.countDown();
+        long commands = 0;
+        for (Future<Long> result : results) {
+            commands += result.get();
+        }
+        long nanos = System.nanoTime() - start;
+        return new Something<LoadReport>(new LoadReport(connections, connections * boardsPerConnection, commands, nanos));
+    } catch (InterruptedException | ExecutionException e) {
+        return new Nothing<LoadReport>();
+    } finally {
+        go.countDown();
+        clients.shutdownNow();
+    }
+}
+
+/**
+ * Play the boards of one connection of the load generator: create them, signal
+ * ready, wait for the go signal, then play the rounds.
+ *
+ * Design Strategy: Iteration
+ *
+ * @param port the port of the server
+ * @param numBoards the number of boards to create
+ * @param rounds the number of rounds to play
+ * @param seed the seed of the random clicks
+ * @param ready counted down once the boards are created, or once the connection fails
+ * @param go waited on before the rounds
+ * @return the number of commands sent in the rounds
+ * @throws IOException if the connection fails, a reply takes longer than
+ *         LOAD_REPLY_TIMEOUT_MILLIS or the server answers ERR
+ * @throws InterruptedException if interrupted while waiting for the go signal
+ */
+long playBoards(int port, int numBoards, int rounds, long seed, CountDownLatch ready, CountDownLatch go)
+        throws IOException, InterruptedException {
+    boolean signalled = false;
+    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+         BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+         Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.US_ASCII))) {
+        socket.setSoTimeout(LOAD_REPLY_TIMEOUT_MILLIS);
+        for (int b = 0; b < numBoards; b++) {
+            out.write("NEW\n");
+        }
+        out.flush();
+        readReplies(in, numBoards);
+        signalled = true;
+        ready.countDown();
+        go.await();
+        SplittableRandom random = new SplittableRandom(seed);
+        BoardConfig board = defaultBoard();
+        for (int r = 0; r < rounds; r++) {
+            for (int b = 0; b < numBoards; b++) {
+                int cell = random.nextInt(board.rows() * board.cols());
+                out.write("CLICK " + b + " " + cellX(board, cell % board.cols()) + " " + cellY(board, cell / board.cols()) + "\n");
+                out.write("SPACE " + b + "\n");
+            }
+            out.flush();
+            readReplies(in, 2 * numBoards);
+        }
+        out.write("QUIT\n");
+        out.flush();
+        return 2L * numBoards * rounds;
+    } finally {
+        // A connection that fails before it is ready must not keep the others waiting
+        if (!signalled) {
+            ready.countDown();
+        }
+    }
+}
+
+/**
+ * Read a number of replies from the server, failing on any reply that is not OK.
+ *
+ * Design Strategy: Iteration
+ *
+ * @param in the reader of the connection
+ * @param count the number of replies to read
+ * @throws IOException if the connection fails, closes early or a reply is not OK
+ */
+void readReplies(BufferedReader in, int count) throws IOException {
+    for (int i = 0; i < count; i++) {
+        String reply = in.readLine();
+        if (reply == null || !reply.startsWith("OK")) {
+            throw new IOException("Unexpected reply from the server: " + reply);
+        }
+    }
+}
+
+/**
+ * Compute the throughput of a load run in commands per second.
+ *
+ * Examples:
+ *   - commandsPerSecond(LoadReport(1, 1, 1000, 1000000)) = 1000000.0
+ *
+ * Design Strategy: Simple Expression
+ *
+ * @param report the report of the run
+ * @return the number of commands served per second of the run
+ */
+double commandsPerSecond(LoadReport report) {
+    return report.nanos() <= 0 ? 0.0 : report.commands() * 1e9 / report.nanos();
+}
+
+/**
+ * Run a board server on SERVER_PORT until the program is stopped.
+ * Call it instead of main() to host games without a window.
+ *
+ * Design Strategy: Case Distinction
+ */
+void serve() {
+    switch (startServer(SERVER_PORT, sessionSeed)) {
+        case Nothing<BoardServer>() -> {
+            println("Cannot listen on port " + SERVER_PORT);
+        }
+        case Something<BoardServer>(BoardServer server) -> {
+            println("Serving boards on " + server.socket().getLocalSocketAddress());
+            try {
+                server.threads().awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+            } catch (InterruptedException e) {
+                stopServer(server);
+            }
+        }
+    }
+}
+
+/**
+ * Measure a local board server with the load generator, as the number of boards grows
+ * from 10 to 10000, printing the sustained commands per second of each run.
+ * Call it instead of main() to load-test the server.
+ *
+ * Design Strategy: Iteration
+ */
+void loadTest() {
+    switch (startServer(0, sessionSeed)) {
+        case Nothing<BoardServer>() -> {
+            println("Cannot start a server");
+        }
+        case Something<BoardServer>(BoardServer server) -> {
+            int port = server.socket().getLocalPort();
+            for (int boards = 10; boards <= 10000; boards *= 10) {
+                int connections = Math.min(boards, 100);
+                switch (runLoad(port, connections, boards / connections, 50)) {
+                    case Nothing<LoadReport>() -> {
+                        println(boards + " boards: the load run failed");
+                    }
+                    case Something<LoadReport>(LoadReport r) -> {
+                        println(String.format("%d boards on %d connections: %d commands, %.0f commands/s",
+                            r.boards(), r.connections(), r.commands(), commandsPerSecond(r)));
+                    }
+                }
+            }
+            stopServer(server);
+        }
+    }
+}
+
+/**
+ * [D]: a board shared by several players, updated without locks
+ * The cells of a SharedBoard are packed 16 to a 64-bit word, 4 bits per cell:
+ * a cell holds the ordinal of its MarbleColour (0 to 3), or EMPTY_NIBBLE.
+ * Cell i is nibble i % 16 of word i / 16; nibbles past the last cell hold
+ * PAD_NIBBLE, which is neither a colour nor empty, so no operation touches them.
+ * Each operation sweeps the words, and changes a word by computing its new value
+ * with a few bit operations and swapping it in with compareAndSet; if another
+ * player changed the word in between, the new value is computed again from the
+ * fresh word. No player ever waits for another: a crush of RED and a crush of BLUE
+ * running at once both get through every word, retrying only the words they hit
+ * at the same instant.
+ * Rule for conflicting operations: every operation is atomic word by word, not on
+ * the whole board.
+ * - A click crushes the colour its cell holds when the click is made; if the cell
+ *   is already EMPTY, because another player crushed it first, the click does nothing.
+ * - A crush empties the marbles of its colour that each word holds when that word
+ *   is swapped, so a marble refilled into a word after the crush swept it survives.
+ * - A marble is crushed at most once, and counted by the one player whose
+ *   compareAndSet emptied it; a cell is refilled at most once per EMPTY in the same way.
+ * So once all players stop, marbles = initial marbles + refilled - crushed.
+ * Shared boards always crush by colour and have no gravity.
+ *
+ * Examples:
+ * - A 1x3 board with BLUE, nothing, RED: words = [0xEEEE_EEEE_EEEE_E1F0]
+ *
+ * @param board the configuration of the board
+ * @param words the packed cells, (rows * cols + 15) / 16 words
+ */
+record SharedBoard(BoardConfig board, AtomicLongArray words) {}
+/**
+ * ... s.board() ...
+ * ... s.words() ...
+ */
+
+/* The number of cells packed in a word of a SharedBoard, and the bits of each */
+int CELLS_PER_WORD = 16;
+int NIBBLE_BITS = 4;
+
+/* The nibble of an EMPTY cell, and of the padding past the last cell */
+long EMPTY_NIBBLE = 0xF;
+long PAD_NIBBLE = 0xE;
+
+/* A word with the lowest bit of every nibble set */
+long NIBBLE_LOW_BITS = 0x1111111111111111L;
+
+/* A word with the 2 lowest bits of every nibble set: the bits of a colour ordinal */
+long NIBBLE_COLOUR_BITS = 0x3333333333333333L;
+
+/**
+ * Build a shared board holding the cells of a world.
+ *
+ * Examples:
+ *   - sharedBoardOf(1x3 world with BLUE, EMPTY, RED) has words [0xEEEE_EEEE_EEEE_E1F0]
+ *
+ * Design Strategy: Iteration
+ *
+ * @param w the world to share
+ * @return a new SharedBoard with the same cells as w
+ */
+SharedBoard sharedBoardOf(WorldState w) {
+    byte[] cells = w.cells();
+    long[] words = new long[(cells.length + CELLS_PER_WORD - 1) / CELLS_PER_WORD];
+    for (int i = 0; i < words.length * CELLS_PER_WORD; i++) {
+        long nibble = i < cells.length ? cells[i] & EMPTY_NIBBLE : PAD_NIBBLE;
+        words[i / CELLS_PER_WORD] |= nibble << (NIBBLE_BITS * (i % CELLS_PER_WORD));
+    }
+    return new SharedBoard(w.board(), new AtomicLongArray(words));
+}
+
+/**
+ * Take a world from the cells of a shared board. Each word is read atomically, but
+ * players may change other words during the read, so the world is only a consistent
+ * picture of the board while nobody plays.
+ *
+ * Examples:
+ *   - worldFromShared(sharedBoardOf(w)) has the same cells as w
+ *
+ * Design Strategy: Iteration
+ *
+ * @param s the shared board
+ * @return a WorldState with the cells of s
+ */
+WorldState worldFromShared(SharedBoard s) {
+    byte[] cells = new byte[s.board().rows() * s.board().cols()];
+    for (int i = 0; i < cells.length; i++) {
+        cells[i] = sharedCell(s, i);
+    }
+    return worldFromCells(s.board(), cells);
+}
+
+/**
+ * The cell value of one cell of a shared board.
+ *
+ * Examples:
+ *   - On a 1x3 board with BLUE, nothing, RED: sharedCell(s, 0) = 0, sharedCell(s, 1) = EMPTY
+ *
+ * Design Strategy: Simple Expression
+ *
+ * @param s the shared board
+ * @param index the index of the cell
+ * @return the colour ordinal of the marble in the cell, or EMPTY
+ */
+byte sharedCell(SharedBoard s, int index) {
+    long word = s.words().get(index / CELLS_PER_WORD);
+    long nibble = (word >>> (NIBBLE_BITS * (index % CELLS_PER_WORD))) & EMPTY_NIBBLE;
+    return nibble == EMPTY_NIBBLE ? EMPTY : (byte) nibble;
+}
+
+/**
+ * Problem analysis and data design
+ * Function purpose statement and signature
+ * - Find the nibbles of a word that hold a given value, in one go: xor-ing the word
+ *   with the value repeated in every nibble turns exactly those nibbles into 0,
+ *   and a nibble is 0 iff none of its 4 bits is set.
+ * - The result has the lowest bit of each matching nibble set, so its bitCount is the
+ *   number of matches and multiplying it by 0xF gives a mask of the matching nibbles.
+ *
+ * Examples:
+ *   - nibblesEqual(0xF1F0, 0xF) = 0x1010, nibbles 1 and 3
+ *   - nibblesEqual(0xF1F0, 0x2) = 0
+ *
+ * Design Strategy: Simple Expression
+ *
+ * @param word a word of packed cells
+ * @param nibble the value to look for, from 0 to 15
+ * @return the lowest bit of every nibble of word that equals nibble
+ */
+long nibblesEqual(long word, long nibble) {
+    long x = word ^ (nibble * NIBBLE_LOW_BITS);
+    return ~(x | (x >>> 1) | (x >>> 2) | (x >>> 3)) & NIBBLE_LOW_BITS;
+}
+
+/**
+ * Problem analysis and data design
+ * Function purpose statement and signature
+ * - Crush every marble of one colour on a shared board, word by word: the matching
+ *   nibbles of a word are set to EMPTY_NIBBLE and the word is swapped in with
+ *   compareAndSet, which is retried on a fresh word if another player got there first.
+ * - Words holding no marble of the colour are only read.
+ *
+ * Examples:
+ *   - On a 1x3 board with BLUE, nothing, RED: crushShared(s, 1) = 1, leaving BLUE, nothing, nothing
+ *   - crushShared(s, GREEN) = 0 when no marble is GREEN
+ *
+ * Design Strategy: Iteration
+ *
+ * @param s the shared board
+ * @param cell the cell value of the colour to crush
+ * @return the number of marbles this call crushed
+ */
+int crushShared(SharedBoard s, byte cell) {
+    AtomicLongArray words = s.words();
+    int crushed = 0;
+    for (int i = 0; i < words.length(); i++) {
+        long word = words.get(i);
+        long matches = nibblesEqual(word, cell);
+        while (matches != 0 && !words.compareAndSet(i, word, word | (matches * EMPTY_NIBBLE))) {
+            word = words.get(i);
+            matches = nibblesEqual(word, cell);
+        }
+        crushed += Long.bitCount(matches);
+    }
+    return crushed;
+}
+
+/**
+ * Problem analysis and data design
+ * Function purpose statement and signature
+ * - Fill every EMPTY cell of a shared board with a random marble, word by word:
+ *   one draw of 64 random bits gives 2 random bits to every nibble, which are
+ *   written into the empty nibbles only, and the word is swapped in with compareAndSet.
+ *
+ * Examples:
+ *   - On a 1x3 board with BLUE, nothing, RED: refillShared(s, source) = 1, leaving no EMPTY cell
+ *   - On a full board: refillShared(s, source) = 0
+ *
+ * Design Strategy: Iteration
+ *
+ * @param s the shared board
+ * @param source the colour source of the calling player
+ * @return the number of cells this call filled
+ */
+int refillShared(SharedBoard s, ColourSource source) {
+    AtomicLongArray words = s.words();
+    int filled = 0;
+    for (int i = 0; i < words.length(); i++) {
+        long word = words.get(i);
+        long empty = nibblesEqual(word, EMPTY_NIBBLE) * EMPTY_NIBBLE;
+        while (empty != 0 && !words.compareAndSet(i, word, (word & ~empty) | (source.nextBits() & NIBBLE_COLOUR_BITS & empty))) {
+            word = words.get(i);
+            empty = nibblesEqual(word, EMPTY_NIBBLE) * EMPTY_NIBBLE;
+        }
+        filled += Long.bitCount(empty) / NIBBLE_BITS;
+    }
+    return filled;
+}
+
+/**
+ * Handle a left click of a player on a shared board: crush the colour of the
+ * clicked marble, if the click hits one.
+ *
+ * Examples:
+ *   - clickShared(s, 10, 10) on a board whose cell 0 is RED crushes every RED marble
+ *   - A click on an EMPTY cell, or outside the grid, crushes nothing
+ *
+ * Design Strategy: Case Distinction
+ *
+ * @param s the shared board
+ * @param x the x-coordinate of the click in pixels
+ * @param y the y-coordinate of the click in pixels
+ * @return the number of marbles this click crushed
+ */
+int clickShared(SharedBoard s, int x, int y) {
+    int index = hitTest(x, y, s.board(), i -> sharedCell(s, i) != EMPTY);
+    if (index < 0) {
+        return 0;
+    }
+    byte cell = sharedCell(s, index);
+    return cell == EMPTY ? 0 : crushShared(s, cell);
+}
+
+/**
+ * The number of marbles of one colour on a shared board, or of EMPTY cells.
+ *
+ * Examples:
+ *   - On a 1x3 board with BLUE, nothing, RED: sharedCount(s, 0) = 1, sharedCount(s, EMPTY) = 1
+ *
+ * Design Strategy: Iteration
+ *
+ * @param s the shared board
+ * @param cell the cell value to count
+ * @return the number of cells holding that value
+ */
+int sharedCount(SharedBoard s, byte cell) {
+    int count = 0;
+    for (int i = 0; i < s.words().length(); i++) {
+        count += Long.bitCount(nibblesEqual(s.words().get(i), cell & EMPTY_NIBBLE));
+    }
+    return count;
+}
+
+/**
+ * [F]: the result of a run of the shared-board stress harness
+ *
+ * @param threads the number of players, one thread each
+ * @param operations the number of clicks and refills made by all players
+ * @param crushed the number of marbles crushed by all players
+ * @param refilled the number of cells filled by all players
+ * @param nanos the time taken by the run, in nanoseconds
+ */
+record StressReport(int threads, long operations, long crushed, long refilled, long nanos) {}
+/**
+ * ... r.threads() ...
+ * ... r.operations() ...
+ * ... r.crushed() ...
+ * ... r.refilled() ...
+ * ... r.nanos() ...
+ */
+
+/* One operation in this many of a stress-harness player is a refill, the others are clicks */
+int STRESS_REFILL_EVERY = 4;
+
+/**
+ * Problem analysis and data design
+ * Function purpose statement and signature
+ * - Stress a shared board: start a number of players at the same moment, one
+ *   platform thread each, and let each make a number of operations: clicks on
+ *   random cells, and one refill every STRESS_REFILL_EVERY operations.
+ * - Each player has its own random clicks and its own colour source, split from
+ *   one seeded source before the players start.
+ *
+ * Examples:
+ *   - stressShared(s, 4, 1000, 1) = Something(report of 4000 operations), after which
+ *     the marbles of s = the marbles before + report.refilled() - report.crushed()
+ *
+ * Design Strategy: Iteration
+ *
+ * @param s the shared board
+ * @param threads the number of players (>0)
+ * @param operationsPerThread the number of operations of each player
+ * @param seed the seed of the clicks and colours of the players
+ * @return Something with the report of the run, or Nothing if it was interrupted
+ */
+Maybe<StressReport> stressShared(SharedBoard s, int threads, int operationsPerThread, long seed) {
+    ExecutorService players = Executors.newFixedThreadPool(threads);
+    CountDownLatch go = new CountDownLatch(1);
+    ColourSource root = new ColourSource(seed);
+    ArrayList<Future<long[]>> results = new ArrayList<Future<long[]>>();
+    for (int t = 0; t < threads; t++) {
+        ColourSource source = root.split();
+        results.add(players.submit(() -> {
+            go.await();
+            return playShared(s, operationsPerThread, source);
+        }));
+    }
+    try {
+        long start = System.nanoTime();
+        go.countDown();
+        long crushed = 0;
+        long refilled = 0;
+        for (Future<long[]> result : results) {
+            long[] counts = result.get();
+            crushed += counts[0];
+            refilled += counts[1];
+        }
+        long nanos = System.nanoTime() - start;
+        return new Something<StressReport>(new StressReport(threads, (long) threads * operationsPerThread, crushed, refilled, nanos));
+    } catch (InterruptedException | ExecutionException e) {
+        return new Nothing<StressReport>();
+    } finally {
+        players.shutdownNow();
+    }
+}
+
+/**
+ * Play the operations of one player of the stress harness.
+ *
+ * Design Strategy: Iteration
+ *
+ * @param s the shared board
+ * @param operations the number of operations to make
+ * @param source the colour source of the player, also used to choose the clicked cells
+ * @return the number of marbles crushed and of cells filled by the player, in that order
+ */
+long[] playShared(SharedBoard s, int operations, ColourSource source) {
+    BoardConfig board = s.board();
+    int numCells = board.rows() * board.cols();
+    long crushed = 0;
+    long refilled = 0;
+    for (int op = 1; op <= operations; op++) {
+        if (op % STRESS_REFILL_EVERY == 0) {
+            refilled += refillShared(s, source);
+        } else {
+            int cell = source.nextIndex(numCells);
+            crushed += clickShared(s, cellX(board, cell % board.cols()), cellY(board, cell / board.cols()));
+        }
+    }
+    return new long[] {crushed, refilled};
+}
+
+/**
+ * The throughput of a stress run, in operations per second.
+ *
+ * Examples:
+ *   - operationsPerSecond(StressReport(1, 1000, 0, 0, 1000000)) = 1000000.0
+ *
+ * Design Strategy: Simple Expression
+ *
+ * @param r the report of the run
+ * @return the operations made per second
+ */
+double operationsPerSecond(StressReport r) {
+    return r.operations() * 1e9 / Math.max(1, r.nanos());
+}
+
+/**
+ * Stress a shared 1000x1000 board with 1 player, then 2, 4, ... up to the number of
+ * cores, printing the operations per second of each run and the speed-up over 1 player.
+ * Call it instead of main() to see how the shared board scales.
+ *
+ * Design Strategy: Iteration
+ */
+void stressTest() {
+    BoardConfig board = new BoardConfig(1000, 1000, 10);
+    int cores = Runtime.getRuntime().availableProcessors();
+    double single = 0;
+    for (int threads = 1; threads <= cores; threads = threads == cores ? cores + 1 : Math.min(2 * threads, cores)) {
+        SharedBoard s = sharedBoardOf(buildFullBoard(board, new ColourSource(sessionSeed)));
+        switch (stressShared(s, threads, 2000, sessionSeed)) {
+            case Nothing<StressReport>() -> {
+                println(threads + " players: the stress run was interrupted");
+            }
+            case Something<StressReport>(StressReport r) -> {
+                double perSecond = operationsPerSecond(r);
+                single = threads == 1 ? perSecond : single;
+                println(String.format("%d players: %d operations, %.0f operations/s, %.2fx",
+                    r.threads(), r.operations(), perSecond, perSecond / single));
+            }
+        }
+    }
+}
+
+/**
+ * [B]: an optional bitboard engine for the grid of marbles
+ * A BitBoard is represented by a record that contains the size of the grid,
+ * one bitset per MarbleColour and one occupancy bitset, each stored as an array of
+ * 64-bit words. Bit i (bit i % 64 of word i / 64) stands for cell i of the
+ * row-major grid: it is set in colourBits[c] iff cell i holds a marble of the
+ * MarbleColour with ordinal c, and set in occupied iff cell i holds any marble.
+ * Bits past the last cell are always 0.
+ * Crushing a colour clears one bitset, vacancies are the inverse of the occupancy
+ * bitset and colour counts are popcounts, so none of them allocates per marble.
+ * The bitsets of a BitBoard are never modified once it is built, so a new
+ * BitBoard may share the bitsets that did not change.
+ *
+ * Examples:
+ * - An empty 2x2 board: colourBits = [[0], [0], [0], [0]], occupied = [0]
+ * - A 1x3 board with BLUE, nothing, RED:
+ *   colourBits = [[0b001], [0b100], [0], [0]], occupied = [0b101]
+ *
+ * @param board the configuration of the board
+ * @param colourBits one bitset of occupied cells per MarbleColour, indexed by ordinal
+ * @param occupied the bitset of cells holding a marble of any colour
+ */
+record BitBoard(BoardConfig board, long[][] colourBits, long[] occupied) {}
+/**
+ * ... b.board() ...
+ * ... b.colourBits() ...
+ * ... b.occupied() ...
+ */
+
+/**
+ * Compute the number of 64-bit words needed for a bitset with one bit per cell.
+ *
+ * Examples:
+ * - bitWords(375) = 6
+ * - bitWords(64) = 1
+ * - bitWords(0) = 0
+ *
+ * Design Strategy: Simple expression
+ *
+ * @param numCells the number of cells of the grid (non-negative)
+ * @return the number of words of a bitset over numCells cells
+ */
+int bitWords(int numCells) {
+    return (numCells + 63) >>> 6;
+}
+
+/**
+ * Compute the bitset in which every cell of a grid is set.
+ * Bits past the last cell are left 0.
+ *
+ * Examples:
+ * - allCellsBits(3) = [0b111]
+ * - allCellsBits(64) = [0xFFFFFFFFFFFFFFFF]
+ *
+ * Design Strategy: Combining functions
+ *
+ * @param numCells the number of cells of the grid (non-negative)
+ * @return a bitset with the bits of all numCells cells set
+ */
+long[] allCellsBits(int numCells) {
+    long[] bits = new long[bitWords(numCells)];
+    Arrays.fill(bits, -1L);
+    if ((numCells & 63) != 0) {
+        bits[bits.length - 1] = (1L << (numCells & 63)) - 1;
+    }
+    return bits;
+}
+
+/**
+ * Count the cells set in a bitset.
+ *
+ * Examples:
+ * - popCount([0b101, 0b1]) = 3
+ * - popCount([]) = 0
+ *
+ * Design Strategy: Iteration
+ *
+ * @param bits a bitset over the cells of a grid
+ * @return the number of set bits
+ */
+int popCount(long[] bits) {
+    int count = 0;
+    for (long word : bits) {
+        count += Long.bitCount(word);
+    }
+    return count;
+}
+
+/**
+ * Convert a WorldState into a BitBoard holding the same marbles.
+ *
+ * Examples:
+ * - A 1x3 world with cells [0, EMPTY, 1] gives
+ *   colourBits = [[0b001], [0b100], [0], [0]], occupied = [0b101]
+ *
+ * Design Strategy: Iteration
+ *
+ * @param w the WorldState to convert
+ * @return a BitBoard with the same size and marbles as w
+ */
+BitBoard bitBoardFromWorld(WorldState w) {
+    byte[] cells = w.cells();
+    long[][] colourBits = new long[MARBLE_COLOURS.length][bitWords(cells.length)];
+    long[] occupied = new long[bitWords(cells.length)];
+    for (int i = 0; i < cells.length; i++) {
+        if (cells[i] != EMPTY) {
+            colourBits[cells[i]][i >>> 6] |= 1L << i;
+            occupied[i >>> 6] |= 1L << i;
+        }
+    }
+    return new BitBoard(w.board(), colourBits, occupied);
+}
+
+/**
+ * Convert a BitBoard back into a WorldState holding the same marbles.
+ *
+ * Examples:
+ * - colourBits = [[0b001], [0b100], [0], [0]] on a 1x3 board
+ *   gives a world with cells [0, EMPTY, 1]
+ *
+ * Design Strategy: Iteration
+ *
+ * @param b the BitBoard to convert
+ * @return a WorldState with the same size and marbles as b
+ */
+WorldState worldFromBitBoard(BitBoard b) {
+    byte[] cells = new byte[b.board().rows() * b.board().cols()];
+    Arrays.fill(cells, EMPTY);
+    for (int c = 0; c < b.colourBits().length; c++) {
+        long[] bits = b.colourBits()[c];
+        for (int word = 0; word < bits.length; word++) {
+            long remaining = bits[word];
+            while (remaining != 0) {
+                cells[(word << 6) + Long.numberOfTrailingZeros(remaining)] = (byte) c;
+                remaining &= remaining - 1;
+            }
+        }
+    }
+    return worldFromCells(b.board(), cells);
+}
+
+/**
+ * Get the value of a cell of a BitBoard, as stored in a WorldState cell.
+ *
+ * Examples:
+ * - On a 1x3 board with BLUE, nothing, RED:
+ *   bitCell(b, 0) = 0, bitCell(b, 1) = EMPTY, bitCell(b, 2) = 1
+ *
+ * Design Strategy: Case distinction
+ *
+ * @param b the BitBoard
+ * @param index the index of a cell of the grid
+ * @return the ordinal of the colour of the marble in that cell, or EMPTY
+ */
+byte bitCell(BitBoard b, int index) {
+    long mask = 1L << index;
+    if ((b.occupied()[index >>> 6] & mask) == 0) {
+        return EMPTY;
+    }
+    int c = 0;
+    while ((b.colourBits()[c][index >>> 6] & mask) == 0) {
+        c++;
+    }
+    return (byte) c;
+}
+
+/**
+ * Handle a left-click on a BitBoard, with the same behaviour as
+ * leftClick on a WorldState: if the click hits a marble, every marble
+ * of its colour is crushed; otherwise the board is returned unchanged.
+ *
+ * Examples:
+ *  - Given: a board with RED at (10,10), BLUE at (30,10), RED at (50,10),
+ *           left-click at (10,10)
+ *    Expect: a board with only BLUE at (30,10)
+ *  - Given: a click on an empty cell
+ *    Expect: b unchanged
+ *
+ * Design Strategy: Case distinction
+ *
+ * @param b the current BitBoard
+ * @param mouseEvent the MouseEvent describing the click
+ * @return a new BitBoard after applying the left-click logic
+ */
+BitBoard leftClick(BitBoard b, MouseEvent mouseEvent) {
+    int hit = findClickedBit(mouseEvent, b);
+    return (hit < 0) ? b : crushBits(b, bitCell(b, hit));
+}
+
+/**
+ * Detect whether a mouse click hits a marble of a BitBoard, with the same
+ * bounding-box rule and row-major order as findClickedCell.
+ * Only the occupancy bits of the at most 4 cells around the click are checked.
+ *
+ * Examples:
+ *  - Given: cells 0 and 1 hold marbles, click at (20,10) on their shared edge
+ *    Expect: 0
+ *  - Given: click on an empty cell
+ *    Expect: -1
+ *
+ * Design Strategy: Combining functions
+ *
+ * @param mouseEvent the MouseEvent containing click coordinates
+ * @param b the current BitBoard
+ * @return the index of the clicked cell, or -1 if no marble is hit
+ */
+int findClickedBit(MouseEvent mouseEvent, BitBoard b) {
+    long[] occupied = b.occupied();
+    return hitTest(mouseEvent.x(), mouseEvent.y(), b.board(),
+                   i -> (occupied[i >>> 6] & (1L << i)) != 0);
+}
+
+/**
+ * Crush every marble of one colour of a BitBoard: its bitset is cleared and
+ * its cells are removed from the occupancy bitset.
+ * The bitsets of the other colours are shared with b.
+ *
+ * Examples:
+ *  - Given: crushBits(b, RED) with colourBits[RED] = [0b101], occupied = [0b111]
+ *    Expect: colourBits[RED] = [0], occupied = [0b010]
+ *
+ * Design Strategy: Iteration
+ *
+ * @param b the current BitBoard
+ * @param cell the cell value (ordinal) of the colour to crush
+ * @return a new BitBoard without any marble of that colour
+ */
+BitBoard crushBits(BitBoard b, byte cell) {
+    long[] crushed = b.colourBits()[cell];
+    long[] occupied = new long[crushed.length];
+    for (int word = 0; word < occupied.length; word++) {
+        occupied[word] = b.occupied()[word] & ~crushed[word];
+    }
+    long[][] colourBits = b.colourBits().clone();
+    colourBits[cell] = new long[crushed.length];
+    return new BitBoard(b.board(), colourBits, occupied);
+}
+
+/**
+ * Handle a keyboard event on a BitBoard, with the same behaviour as
+ * processKeyEvent on a WorldState: SPACE fills every vacancy with a marble
+ * of a random colour, any other key leaves the board unchanged.
+ *
+ * Examples:
+ * - Given: processKeyEvent(b, KEY_PRESSED, "Space")
+ *   Expect: a new BitBoard in which every cell is occupied
+ * - Given: processKeyEvent(b, KEY_PRESSED, "A")
+ *   Expect: b unchanged
+ *
+ * Design Strategy: Case Distinction
+ *
+ * @param b the current BitBoard
+ * @param keyEventKind the kind of the keyboard event
+ * @param key the actual key string (e.g., "Space")
+ * @return a new BitBoard after applying the event
+ */
+BitBoard processKeyEvent(BitBoard b, KeyEventKind keyEventKind, String key) {
+    boolean isSpace = (keyEventKind == KeyEventKind.KEY_PRESSED) && Equals(key, "Space");
+    return isSpace ? fillVacantBits(b) : b;
+}
+
+/**
+ * Fill every vacancy of a BitBoard with a marble of a random colour.
+ * The vacancies are the cells missing from the occupancy bitset;
+ * each one is set in the bitset of its new colour.
+ *
+ * Examples:
+ * - Given: a 1x3 board with occupied = [0b101]
+ *   Expect: cell 1 set in one colour bitset, occupied = [0b111]
+ * - Given: a full board
+ *   Expect: a board with the same marbles
+ *
+ * Design Strategy: Iteration
+ *
+ * @param b the current BitBoard
+ * @return a new BitBoard in which every cell is occupied
+ */
+BitBoard fillVacantBits(BitBoard b) {
+    return fillVacantBits(b, sessionColours);
+}
+
+/**
+ * Fill every vacancy of a BitBoard with the colours of a given source.
+ * The vacancies are visited in increasing order, as by fillEmptyCells, so a seeded
+ * source fills a BitBoard and the WorldState it was made from with the same colours.
+ *
+ * Examples:
+ *   - fillVacantBits(b, new ColourSource(1)) is the same board on every call.
+ *
+ * Design Strategy: Iteration
+ *
+ * @param b the current BitBoard
+ * @param source the source of random colours
+ * @return a new BitBoard in which every cell is occupied
+ */
+BitBoard fillVacantBits(BitBoard b, ColourSource source) {
+    long[] full = allCellsBits(b.board().rows() * b.board().cols());
+    long[][] colourBits = new long[MARBLE_COLOURS.length][];
+    for (int c = 0; c < colourBits.length; c++) {
+        colourBits[c] = b.colourBits()[c].clone();
+    }
+    for (int word = 0; word < full.length; word++) {
+        long vacant = full[word] & ~b.occupied()[word];
+        while (vacant != 0) {
+            long bit = vacant & -vacant;
+            colourBits[source.nextOrdinal()][word] |= bit;
+            vacant ^= bit;
+        }
+    }
+    return new BitBoard(b.board(), colourBits, full);
+}
+
+/**
+ * Count how many marbles of a BitBoard have a given colour,
+ * as the popcount of that colour's bitset.
+ *
+ * Examples:
+ *   - If b has no marbles, return 0.
+ *   - If b has 3 marbles and 2 of them are RED, then
+ *     numberOfMarblesOfColour(b, Colour.RED) = 2.
+ *
+ * Design Strategy: Combining functions
+ *
+ * @param b the current BitBoard
+ * @param colour the target Colour to count
+ * @return the number of marbles of the given colour on the board
+ */
+int numberOfMarblesOfColour(BitBoard b, Colour colour) {
+    byte target = cellOfColour(colour);
+    return (target == EMPTY) ? 0 : popCount(b.colourBits()[target]);
+}
+
+/**
+ * Returns the number of empty locations of a BitBoard,
+ * as the number of cells minus the popcount of the occupancy bitset.
+ *
+ * Examples:
+ *   - If b is full, return 0.
+ *   - If b has 3 empty positions, return 3.
+ *
+ * Design Strategy: Combining functions
+ *
+ * @param b the current BitBoard
+ * @return the number of empty grid locations (int)
+ */
+int numberOfEmptyLocations(BitBoard b) {
+    return b.board().rows() * b.board().cols() - popCount(b.occupied());
+}
+
+/**
+ * [T]: a histogram of the latencies of one event handler, in nanoseconds
+ * Latencies are counted in buckets of about 6% of their value, so the histogram has
+ * a fixed size however many latencies it holds and recording one is a few instructions:
+ * - a latency below 16 ns has its own bucket, the latency itself;
+ * - otherwise, with e the index of its highest set bit, it goes to bucket
+ *   (e - 3) * 16 + (its 4 bits after the highest one).
+ * The counts are atomic, so the handler thread can record latencies while
+ * another thread reads them.
+ *
+ * Examples:
+ * - 5 ns goes to bucket 5, 16 ns to bucket 16, 1000 ns (0b1111101000) to bucket 6 * 16 + 15
+ *
+ * @param counts the number of latencies recorded in each bucket
+ */
+record LatencyHistogram(AtomicLongArray counts) {}
+/**
+ * ... h.counts() ...
+ */
+
+/* Buckets for every latency up to Long.MAX_VALUE ns, whose highest set bit is bit 62 */
+int HISTOGRAM_BUCKETS = (62 - 3 + 1) * 16;
+
+/* The number of seconds between two metrics reports of the game */
+long METRICS_PERIOD_SECONDS = 10;
+
+/**
+ * [Q]: the summary of a latency histogram: event count and percentiles, in nanoseconds
+ * Each percentile is the upper bound of the bucket holding it, so it is at most
+ * about 6% above the exact value.
+ *
+ * @param handler the name of the event handler
+ * @param count the number of events handled
+ * @param p50 the median latency
+ * @param p90 the 90th percentile latency
+ * @param p99 the 99th percentile latency
+ * @param p999 the 99.9th percentile latency
+ */
+record LatencySummary(String handler, long count, long p50, long p90, long p99, long p999) {}
+/**
+ * ... s.handler() ...
+ * ... s.count() ...
+ * ... s.p50() ...
+ * ... s.p90() ...
+ * ... s.p99() ...
+ * ... s.p999() ...
+ */
+
+/* The latencies of the handlers of the game, and the number of marbles after the last event */
+LatencyHistogram keyEventLatency = newHistogram();
+LatencyHistogram mouseEventLatency = newHistogram();
+LatencyHistogram drawLatency = newHistogram();
+LatencyHistogram stepLatency = newHistogram();
+volatile int lastMarbleCount = 0;
+
+/**
+ * Create a histogram with no latency recorded.
+ *
+ * Examples:
+ *   - summarise("x", newHistogram()).count() = 0
+ *
+ * Design Strategy: Simple Expression
+ *
+ * @return an empty LatencyHistogram
+ */
+LatencyHistogram newHistogram() {
+    return new LatencyHistogram(new AtomicLongArray(HISTOGRAM_BUCKETS));
+}
+
+/**
+ * Find the bucket of a latency.
+ *
+ * Examples:
+ *   - bucketOf(5) = 5
+ *   - bucketOf(16) = 16
+ *   - bucketOf(1000) = 111
+ *
+ * Design Strategy: Case Distinction
+ *
+ * @param nanos the latency in nanoseconds (negative values count as 0)
+ * @return the index of its bucket
+ */
+int bucketOf(long nanos) {
+    if (nanos < 16) {
+        return (int) Math.max(0, nanos);
+    }
+    int e = 63 - Long.numberOfLeadingZeros(nanos);
+    return (e - 3) * 16 + (int) ((nanos >>> (e - 4)) & 15);
+}
+
+/**
+ * Find the largest latency that goes to a bucket.
+ *
+ * Examples:
+ *   - bucketLimit(5) = 5
+ *   - bucketLimit(111) = 1023
+ *
+ * Design Strategy: Case Distinction
+ *
+ * @param bucket the index of the bucket
+ * @return the largest latency of the bucket, in nanoseconds
+ */
+long bucketLimit(int bucket) {
+    if (bucket < 16) {
+        return bucket;
+    }
+    int shift = bucket / 16 - 1;
+    long low = (16L + bucket % 16) << shift;
+    return low + (1L << shift) - 1;
+}
+
+/**
+ * Record one latency in a histogram.
+ *
+ * Examples:
+ *   - After recordLatency(h, 1000), bucket 111 of h counts one more latency.
+ *
+ * Design Strategy: Simple Expression
+ *
+ * @param h the histogram
+ * @param nanos the latency in nanoseconds
+ */
+void recordLatency(LatencyHistogram h, long nanos) {
+    h.counts().incrementAndGet(bucketOf(nanos));
+}
+
+/**
+ * Problem analysis and data design
+ * Function purpose statement and signature
+ * - Summarise a histogram: count its latencies and find its percentiles by walking
+ *   the buckets once, from the shortest latencies to the longest.
+ * - The counts are read one by one while the handler may still record, so the
+ *   summary is a close picture of the histogram, not an exact one.
+ *
+ * Examples:
+ *   - summarise("draw", newHistogram()) = LatencySummary("draw", 0, 0, 0, 0, 0)
+ *   - After recording 1000 ns 100 times, all percentiles are 1023
+ *
+ * Design Strategy: Iteration
+ *
+ * @param handler the name of the handler
+ * @param h its histogram
+ * @return the summary of h
+ */
+LatencySummary summarise(String handler, LatencyHistogram h) {
+    long[] counts = new long[HISTOGRAM_BUCKETS];
+    long total = 0;
+    for (int i = 0; i < counts.length; i++) {
+        counts[i] = h.counts().get(i);
+        total += counts[i];
+    }
+    double[] percentiles = {0.5, 0.9, 0.99, 0.999};
+    long[] values = new long[percentiles.length];
+    int next = 0;
+    long seen = 0;
+    for (int i = 0; i < counts.length && next < percentiles.length && total > 0; i++) {
+        seen += counts[i];
+        while (next < percentiles.length && seen >= Math.ceil(percentiles[next] * total)) {
+            values[next++] = bucketLimit(i);
+        }
+    }
+    return new LatencySummary(handler, total, values[0], values[1], values[2], values[3]);
+}
+
+/**
+ * Summarise the latencies of every handler of the game.
+ *
+ * Examples:
+ *   - handlerMetrics() lists keyEvent, mouseEvent, draw and step, in that order
+ *
+ * Design Strategy: Combining functions
+ *
+ * @return the summaries of the handlers
+ */
+List<LatencySummary> handlerMetrics() {
+    return List.of(
+        summarise("keyEvent", keyEventLatency),
+        summarise("mouseEvent", mouseEventLatency),
+        summarise("draw", drawLatency),
+        summarise("step", stepLatency));
+}
+
+/**
+ * Format the metrics of the game as one report: a line per handler, with its
+ * event count and latency percentiles in microseconds, and the marble count.
+ *
+ * Examples:
+ *   - "keyEvent n=3 p50=1.0us p90=1.0us p99=1.0us p99.9=1.0us\n... marbles=375"
+ *
+ * Design Strategy: Iteration
+ *
+ * @param summaries the summaries of the handlers
+ * @param marbles the number of marbles
+ * @return the report
+ */
+String formatMetrics(List<LatencySummary> summaries, int marbles) {
+    StringBuilder report = new StringBuilder();
+    for (LatencySummary s : summaries) {
+        report.append(String.format("%s n=%d p50=%.1fus p90=%.1fus p99=%.1fus p99.9=%.1fus%n",
+            s.handler(), s.count(), s.p50() / 1e3, s.p90() / 1e3, s.p99() / 1e3, s.p999() / 1e3));
+    }
+    return report.append("marbles=").append(marbles).toString();
+}
+
+/**
+ * Handle a key event with keyEvent, recording its latency and the marble count after it.
+ *
+ * Design Strategy: Combining functions
+ *
+ * @param w the current WorldState
+ * @param keyEvent the keyboard event to handle
+ * @return the WorldState returned by keyEvent
+ */
+WorldState timedKeyEvent(WorldState w, KeyEvent keyEvent) {
+    long start = System.nanoTime();
+    WorldState next = keyEvent(w, keyEvent);
+    recordLatency(keyEventLatency, System.nanoTime() - start);
+    lastMarbleCount = numberOfMarbles(next);
+    return next;
+}
+
+/**
+ * Handle a mouse event with mouseEvent, recording its latency and the marble count after it.
+ *
+ * Design Strategy: Combining functions
+ *
+ * @param w the current WorldState
+ * @param mouseEvent the mouse event to handle
+ * @return the WorldState returned by mouseEvent
+ */
+WorldState timedMouseEvent(WorldState w, MouseEvent mouseEvent) {
+    long start = System.nanoTime();
+    WorldState next = mouseEvent(w, mouseEvent);
+    recordLatency(mouseEventLatency, System.nanoTime() - start);
+    lastMarbleCount = numberOfMarbles(next);
+    return next;
+}
+
+/**
+ * Draw the world with draw, recording the latency.
+ *
+ * Design Strategy: Combining functions
+ *
+ * @param w the current WorldState
+ * @return the Image returned by draw
+ */
+Image timedDraw(WorldState w) {
+    long start = System.nanoTime();
+    Image image = draw(w);
+    recordLatency(drawLatency, System.nanoTime() - start);
+    return image;
+}
+
+/**
+ * Advance the world with step, recording its latency and the marble count after it.
+ *
+ * Design Strategy: Combining functions
+ *
+ * @param w the current WorldState
+ * @return the WorldState returned by step
+ */
+WorldState timedStep(WorldState w) {
+    long start = System.nanoTime();
+    WorldState next = step(w);
+    recordLatency(stepLatency, System.nanoTime() - start);
+    lastMarbleCount = numberOfMarbles(next);
+    return next;
+}
+
+/**
+ * [Z]: the counters of the frame scheduler
+ *
+ * Examples:
+ * - 100 ticks of an idle game after the first frame: new FrameStats(1, 100, 100, t)
+ *
+ * @param rendered the number of frames composed
+ * @param skipped the number of frames not composed, the last frame being shown again
+ * @param idleTicks the number of ticks on which step had no input to apply
+ * @param frameNanos the total time spent composing frames, in nanoseconds
+ */
+record FrameStats(long rendered, long skipped, long idleTicks, long frameNanos) {}
+/**
+ * ... s.rendered() ...
+ * ... s.skipped() ...
+ * ... s.idleTicks() ...
+ * ... s.frameNanos() ...
+ */
+
+/* The counters of the frame scheduler, read by the metrics reporter */
+LongAdder renderedFrames = new LongAdder();
+LongAdder skippedFrames = new LongAdder();
+LongAdder idleTicks = new LongAdder();
+LongAdder frameNanos = new LongAdder();
+
+/**
+ * Problem analysis and data design
+ * Function purpose statement and signature
+ * - Draw the world for BigBang, composing a frame only when there is something new to show,
+ *   and count what the scheduler did.
+ * - The frame of the last world is kept by draw in retainedFrame. If w is that very world
+ *   (the same reference), nothing changed: the frame is shown again without any work and
+ *   counted as skipped. Otherwise draw composes it and the time it took is counted.
+ * - With batched input, this is the pacing of the game: every change of the world comes
+ *   from input applied by scheduledStep, so while the game is idle no tick composes a frame,
+ *   and the tick on which input is applied composes its frame at once. BigBang keeps
+ *   ticking at its own rate, which the game cannot change; an idle tick just does no work.
+ *
+ * Examples:
+ *   - scheduledDraw(w) twice in a row composes one frame and skips one
+ *   - After a click is applied by scheduledStep, scheduledDraw(the new world) composes a frame at once
+ *
+ * Design Strategy: Case Distinction
+ *
+ * @param w the current WorldState
+ * @return the frame showing w
+ */
+Image scheduledDraw(WorldState w) {
+    switch (retainedFrame) {
+        case Nothing<RetainedFrame>() -> { }
+        case Something<RetainedFrame>(RetainedFrame last) -> {
+            if (last.world() == w) {
+                skippedFrames.increment();
+                return last.frame();
+            }
+        }
+    }
+    long start = System.nanoTime();
+    Image image = timedDraw(w);
+    renderedFrames.increment();
+    frameNanos.add(System.nanoTime() - start);
+    return image;
+}
+
+/**
+ * Advance the world for BigBang. A tick without queued input is idle: it is counted
+ * and returns w itself, without timing or any other work, so scheduledDraw skips
+ * the frame of that tick.
+ *
+ * Examples:
+ *   - scheduledStep(w) = w, counting an idle tick, if no input is queued
+ *   - scheduledStep(w) = timedStep(w) otherwise
+ *
+ * Design Strategy: Case Distinction
+ *
+ * @param w the current WorldState
+ * @return the WorldState after the queued input, or w on an idle tick
+ */
+WorldState scheduledStep(WorldState w) {
+    if (pendingEvents.isEmpty()) {
+        idleTicks.increment();
+        return w;
+    }
+    return timedStep(w);
+}
+
+/**
+ * The current counters of the frame scheduler.
+ *
+ * Design Strategy: Simple Expression
+ *
+ * @return the FrameStats of the game so far
+ */
+FrameStats frameStats() {
+    return new FrameStats(renderedFrames.sum(), skippedFrames.sum(), idleTicks.sum(), frameNanos.sum());
+}
+
+/**
+ * Format the counters of the frame scheduler as one line.
+ *
+ * Examples:
+ *   - formatFrameStats(FrameStats(10, 90, 85, 5000000))
+ *     = "frames rendered=10 skipped=90 idleTicks=85 avg=500.0us"
+ *
+ * Design Strategy: Simple Expression
+ *
+ * @param s the counters
+ * @return a line describing them
+ */
+String formatFrameStats(FrameStats s) {
+    return String.format("frames rendered=%d skipped=%d idleTicks=%d avg=%.1fus",
+        s.rendered(), s.skipped(), s.idleTicks(), s.frameNanos() / 1e3 / Math.max(1, s.rendered()));
+}
+
+/**
+ * Start printing the metrics of the game every period seconds, on a daemon thread
+ * of its own, so that neither formatting nor printing runs in the event handlers.
+ *
+ * Examples:
+ *   - startMetricsReporter(10) prints formatMetrics and formatFrameStats every 10 seconds until shut down.
+ *
+ * Design Strategy: Simple Expression
+ *
+ * @param period the number of seconds between two reports (>0)
+ * @return the executor running the reports, to shut down when the game ends
+ */
+ScheduledExecutorService startMetricsReporter(long period) {
+    ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "marblecrush-metrics");
+        thread.setDaemon(true);
+        return thread;
+    });
+    reporter.scheduleAtFixedRate(() -> println(formatMetrics(handlerMetrics(), lastMarbleCount) + "\n" + formatFrameStats(frameStats())),
+        period, period, TimeUnit.SECONDS);
+    return reporter;
+}
+
+/**
+ * [H]: the measurements of one handler on one board, taken by the benchmark harness
+ *
+ * Examples:
+ * - 1000 calls of numberOfEmptyLocations on the standard board, full, taking 20 µs
+ *   and allocating nothing:
+ *   new BenchmarkResult("numberOfEmptyLocations", defaultBoard(), 1.0, 1000, 20000, 0)
+ *
+ * @param name the name of the handler measured
+ * @param board the configuration of the board
+ * @param fillRatio the fraction of the cells that hold a marble (0.0 to 1.0)
+ * @param ops the number of measured calls
+ * @param nanos the time taken by the measured calls, in nanoseconds
+ * @param allocatedBytes the bytes allocated by the measured calls, or -1 if the JVM cannot tell
+ */
+record BenchmarkResult(String name, BoardConfig board, double fillRatio, int ops, long nanos, long allocatedBytes) {}
+/**
+ * ... r.name() ...
+ * ... r.board() ...
+ * ... r.fillRatio() ...
+ * ... r.ops() ...
+ * ... r.nanos() ...
+ * ... r.allocatedBytes() ...
+ */
+
+/* Results of benchmarked calls are stored here, so the JIT cannot drop the calls */
+Object benchmarkSink = null;
+
+/* The board sizes measured by benchmark(): the standard board up to 1000x1000 */
+List<BoardConfig> benchmarkBoards() {
+    return List.of(defaultBoard(), new BoardConfig(100, 100, marbleRadius), new BoardConfig(1000, 1000, marbleRadius));
+}
+
+/* The fill ratios measured by benchmark() */
+double[] benchmarkFillRatios = {1.0, 0.5, 0.1};
+
+/**
+ * Problem analysis and data design
+ * Function purpose statement and signature
+ * - Build a board in which the given fraction of the cells hold a marble.
+ * - The empty cells are spread over the grid by a fixed scattering of the
+ *   cell indices, so the same call always empties the same cells.
+ *
+ * Examples:
+ *   - worldWithFill(board, 1.0) has no empty cell
+ *   - worldWithFill(board, 0.0) has no marble
+ *   - worldWithFill(defaultBoard(), 0.5) has 375 - 187 = 188 marbles
+ *
+ * Design Strategy: Iteration
+ *
+ * @param board the configuration of the board
+ * @param fillRatio the fraction of the cells that hold a marble (0.0 to 1.0)
+ * @return a WorldState with about fillRatio of its cells occupied
+ */
+WorldState worldWithFill(BoardConfig board, double fillRatio) {
+    byte[] cells = buildFullBoard(board).cells().clone();
+    int numEmpty = (int) (cells.length * (1.0 - fillRatio));
+    // 7919 is prime, so stepping by it visits every cell once unless it divides the board size
+    int stride = (cells.length % 7919 == 0) ? 1 : 7919;
+    for (int i = 0; i < numEmpty; i++) {
+        cells[(int) ((long) i * stride % cells.length)] = EMPTY;
+    }
+    return worldFromCells(board, cells);
+}
+
+/**
+ * Get the number of bytes allocated so far by the current thread,
+ * or -1 if the JVM does not measure it.
+ *
+ * Examples:
+ *   - On HotSpot, a value that grows as the thread allocates.
+ *
+ * Design Strategy: Case Distinction
+ *
+ * @return the allocated bytes of the current thread, or -1
+ */
+long threadAllocatedBytes() {
+    return ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean bean
+        && bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled()
+        ? bean.getCurrentThreadAllocatedBytes()
+        : -1;
+}
+
+/**
+ * Problem analysis and data design
+ * Function purpose statement and signature
+ * - Measure a handler on one board: call it ops times to warm up the JIT,
+ *   then ops times more while measuring the elapsed time and the bytes allocated.
+ * - Each call gets the same world, so handlers that build a new world measure
+ *   one transition each time.
+ *
+ * Examples:
+ *   - benchmark("numberOfEmptyLocations", board, 1.0, 1000, w -> numberOfEmptyLocations(w))
+ *     = BenchmarkResult("numberOfEmptyLocations", board, 1.0, 1000, t, bytes)
+ *
+ * Design Strategy: Iteration
+ *
+ * @param name the name of the handler
+ * @param board the configuration of the board
+ * @param fillRatio the fraction of the cells that hold a marble
+ * @param ops the number of measured calls (>0)
+ * @param handler the handler to call on the world
+ * @return the measurements of the handler
+ */
+BenchmarkResult benchmark(String name, BoardConfig board, double fillRatio, int ops, Function<WorldState, Object> handler) {
+    WorldState w = worldWithFill(board, fillRatio);
+    for (int i = 0; i < ops; i++) {
+        benchmarkSink = handler.apply(w);
+    }
+    long bytesBefore = threadAllocatedBytes();
+    long start = System.nanoTime();
+    for (int i = 0; i < ops; i++) {
+        benchmarkSink = handler.apply(w);
+    }
+    long nanos = System.nanoTime() - start;
+    long bytesAfter = threadAllocatedBytes();
+    long allocated = (bytesBefore < 0 || bytesAfter < 0) ? -1 : bytesAfter - bytesBefore;
+    return new BenchmarkResult(name, board, fillRatio, ops, nanos, allocated);
+}
+
+/**
+ * Problem analysis and data design
+ * Function purpose statement and signature
+ * - Measure every event handler of the game on one board and fill ratio:
+ *   a left click on the first marble, a SPACE press, listing the vacancies,
+ *   building a full board and counting the empty cells.
+ *
+ * Examples:
+ *   - benchmarkHandlers(defaultBoard(), 1.0, 100) has 5 results, one per handler
+ *
+ * Design Strategy: Combining functions
+ *
+ * @param board the configuration of the board
+ * @param fillRatio the fraction of the cells that hold a marble
+ * @param ops the number of measured calls per handler (>0)
+ * @return the measurements of each handler
+ */
+List<BenchmarkResult> benchmarkHandlers(BoardConfig board, double fillRatio, int ops) {
+    WorldState sample = worldWithFill(board, fillRatio);
+    int first = firstOccupiedCell(sample);
+    MouseEvent click = (first < 0)
+        ? new MouseEvent(MouseEventKind.LEFT_CLICK, -1, -1)
+        : new MouseEvent(MouseEventKind.LEFT_CLICK, cellX(board, first % board.cols()), cellY(board, first / board.cols()));
+    return List.of(
+        benchmark("leftClick", board, fillRatio, ops, w -> leftClick(w, click)),
+        benchmark("processKeyEvent", board, fillRatio, ops, w -> processKeyEvent(w, KeyEventKind.KEY_PRESSED, "Space")),
+        benchmark("findVacancies", board, fillRatio, ops, w -> findVacancies(w)),
+        benchmark("getInitialState", board, fillRatio, ops, w -> buildFullBoard(w.board())),
+        benchmark("numberOfEmptyLocations", board, fillRatio, ops, w -> numberOfEmptyLocations(w)));
+}
+
+/**
+ * Find the index of the first cell of w that holds a marble, or -1 if w is empty.
+ *
+ * Examples:
+ *   - If cells = [EMPTY, RED, BLUE], returns 1
+ *
+ * Design Strategy: Iteration
+ *
+ * @param w the WorldState to search
+ * @return the index of the first occupied cell, or -1
+ */
+int firstOccupiedCell(WorldState w) {
+    byte[] cells = w.cells();
+    for (int i = 0; i < cells.length; i++) {
+        if (cells[i] != EMPTY) {
+            return i;
+        }
+    }
+    return -1;
+}
+
+/**
+ * Format one benchmark result as a line of the report:
+ * average time per call, calls per second and bytes allocated per call.
+ *
+ * Examples:
+ *   - "numberOfEmptyLocations 25x15 fill=1.00: 20.0 ns/op, 50000000 ops/s, 0.0 B/op"
+ *
+ * Design Strategy: Simple Expression
+ *
+ * @param r the result to format
+ * @return the report line of r
+ */
+String formatBenchmark(BenchmarkResult r) {
+    double nanosPerOp = (double) r.nanos() / r.ops();
+    long opsPerSecond = r.nanos() <= 0 ? 0 : (long) (r.ops() * 1e9 / r.nanos());
+    String bytes = r.allocatedBytes() < 0 ? "n/a" : String.format("%.1f", (double) r.allocatedBytes() / r.ops());
+    return String.format("%s %dx%d fill=%.2f: %.1f ns/op, %d ops/s, %s B/op",
+        r.name(), r.board().rows(), r.board().cols(), r.fillRatio(), nanosPerOp, opsPerSecond, bytes);
+}
+
+/**
+ * Run the benchmark harness: every handler on every board size of benchmarkBoards
+ * and every fill ratio of benchmarkFillRatios, printing one line per measurement.
+ * Larger boards get fewer calls, so each measurement takes about as long.
+ * Then measure the move advisor on the full standard board in each crush mode,
+ * whose time per call is the latency of one piece of advice.
+ * Call it instead of main() to measure the game without opening a window.
+ *
+ * Design Strategy: Iteration
+ */
+void benchmark() {
+    for (BoardConfig board : benchmarkBoards()) {
+        int ops = Math.max(10, 2000000 / Math.max(1, board.rows() * board.cols()));
+        for (double fillRatio : benchmarkFillRatios) {
+            for (BenchmarkResult r : benchmarkHandlers(board, fillRatio, ops)) {
+                println(formatBenchmark(r));
+            }
+        }
+    }
+    CrushMode mode = crushMode;
+    for (CrushMode m : CrushMode.values()) {
+        crushMode = m;
+        println(formatBenchmark(benchmark("adviseMove " + m, defaultBoard(), 1.0, 20, w -> adviseMove(w))));
+    }
+    crushMode = mode;
+}
+
+/**
+ * Launch the Marble Crush game using the BigBang.  
+ * Provide initial world state, draw/step/key/mouse handlers, and then run tests. 
+ * 
+ * Examples:  
+ *   - When run, opens a game window titled "Marble Crush".  
+ *   - World starts with the initial arrangement of marbles.  
+ *   - User interactions (keyboard/mouse) update the world accordingly.  
+ * 
+ * Design Strategy: Combining functions  
+ * 
+ * @return Opens a Marble Crush game window, executes the interactive loop until the user closes it.  
+ */
+void main() {
+    eventLog = openEventLog(sessionLog(sessionSeed), sessionSeed, defaultBoard());
+    println("Recording session " + sessionSeed + " to " + sessionLog(sessionSeed));
+    batchInput = true;
+    ScheduledExecutorService reporter = startMetricsReporter(METRICS_PERIOD_SECONDS);
+    BigBang("Marble Crush", getInitialState(), this::scheduledDraw, this::scheduledStep, this::timedKeyEvent, this::timedMouseEvent);
+    reporter.shutdown();
+    println(formatMetrics(handlerMetrics(), lastMarbleCount));
+    println(formatFrameStats(frameStats()));
+    switch (eventLog) {
+        case Nothing<EventLog>() -> { }
+        case Something<EventLog>(EventLog log) -> {
+            closeEventLog(log);
+        }
+    }
+    eventLog = new Nothing<EventLog>();
+    batchInput = false;
+    pendingEvents.clear();
+    test();
+}
+
+void test() {
+    runAsTest(this::testRandomColour);
+    runAsTest(this::testConvertToColour);
+    runAsTest(this::testStep);
+    runAsTest(this::testDraw);
+    runAsTest(this::testMarbleSprite);
+    runAsTest(this::testDrawRow);
+    runAsTest(this::testRetainedFrame);
+    runAsTest(this::testGetInitialState);
+    runAsTest(this::testBuildFullBoard);
+    runAsTest(this::testMarblesFromPositions);
+
+    runAsTest(this::testKeyEvent);
+    runAsTest(this::testProcessKeyEvent);
+    runAsTest(this::testFindVacancies);
+    runAsTest(this::testGenerateAllPositions);
+    runAsTest(this::testPositionsFromMarbles);
+    runAsTest(this::testSubtractPositions);
+    runAsTest(this::testContainsPos);
+    runAsTest(this::testAddMarblesAtVacancies);
+
+    runAsTest(this::testMouseEvent);
+    runAsTest(this::testLeftClick);
+    runAsTest(this::testFindClickedMarble);
+    runAsTest(this::testFilterOutSameColour);
+
+    runAsTest(this::testGetMarbleAt);
+    runAsTest(this::testGetColour);
+    runAsTest(this::testCountColour);
+    runAsTest(this::testNumberOfMarblesOfColour);
+    runAsTest(this::testNumberOfEmptyLocations);
+
+    runAsTest(this::testCentreToCell);
+    runAsTest(this::testWorldFromMarbles);
+    runAsTest(this::testFillEmptyCells);
+    runAsTest(this::testFindClickedCell);
+    runAsTest(this::testHitTest);
+    runAsTest(this::testCrushColour);
+    runAsTest(this::testVacancyIndex);
+    runAsTest(this::testColourCounts);
+
+    runAsTest(this::testBoardConfig);
+    runAsTest(this::testLargeBoards);
+
+    runAsTest(this::testBitBoardFromWorld);
+    runAsTest(this::testBitBoardLeftClick);
+    runAsTest(this::testBitBoardProcessKeyEvent);
+
+    runAsTest(this::testApplyEvent);
+    runAsTest(this::testSimulate);
+    runAsTest(this::testSyntheticEvents);
+
+    runAsTest(this::testWorldWithFill);
+    runAsTest(this::testBenchmark);
+    runAsTest(this::testFirstOccupiedCell);
+
+    runAsTest(this::testEventLog);
+    runAsTest(this::testMalformedLogs);
+    runAsTest(this::testReseed);
+    runAsTest(this::testColourSource);
+    runAsTest(this::testSeededBoards);
+    runAsTest(this::testParallelRefill);
+    runAsTest(this::testApplyBatch);
+    runAsTest(this::testBatchInput);
+    runAsTest(this::testSnapshotOf);
+    runAsTest(this::testHistory);
+    runAsTest(this::testUndoRedoKeys);
+    runAsTest(this::testFloodFill);
+    runAsTest(this::testCrushRegion);
+    runAsTest(this::testCrushModeKey);
+    runAsTest(this::testCompactColumns);
+    runAsTest(this::testApplyGravity);
+    runAsTest(this::testGravityKey);
+    runAsTest(this::testBucketOf);
+    runAsTest(this::testSummarise);
+    runAsTest(this::testTimedHandlers);
+    runAsTest(this::testCandidateMoves);
+    runAsTest(this::testRollout);
+    runAsTest(this::testAdviseMove);
+    runAsTest(this::testHandleCommand);
+    runAsTest(this::testBoardServer);
+    runAsTest(this::testNibblesEqual);
+    runAsTest(this::testSharedBoard);
+    runAsTest(this::testStressShared);
+    runAsTest(this::testPackedPlanes);
+    runAsTest(this::testCheckpoint);
+    runAsTest(this::testDeltaOf);
+    runAsTest(this::testDeltaEncoding);
+    runAsTest(this::testMalformedDeltas);
+    runAsTest(this::testSessionLog);
+    runAsTest(this::testReplicate);
+    runAsTest(this::testScheduledDraw);
+    runAsTest(this::testScheduledStep);
+    runAsTest(this::testFramePacing);
+}
+
+void testRandomColour() {
+    MarbleColour c = randomColour();
+    boolean valid = (c == MarbleColour.BLUE || c == MarbleColour.RED 
+                        || c == MarbleColour.GREEN || c == MarbleColour.BLACK);
+    testEqual(true, valid, "randomColour() must return one of the 4 colours");
+}
+
+void testConvertToColour() {
+    testEqual(Colour.BLUE, convertToColour(MarbleColour.BLUE), "convert BLUE");
+    testEqual(Colour.RED, convertToColour(MarbleColour.RED), "convert RED");
+    testEqual(Colour.GREEN, convertToColour(MarbleColour.GREEN), "convert GREEN");
+    testEqual(Colour.BLACK, convertToColour(MarbleColour.BLACK), "convert BLACK");
+}
+
+void testStep() {
+    WorldState empty = emptyWorld(defaultBoard());
+    testEqual(empty, step(empty), "step() on empty world should not change");
+
+    WorldState one = worldFromMarbles(MakeList(new Marble(10, 30, MarbleColour.BLUE)));
+    testEqual(one, step(one), "step() on non-empty world should not change");
+
+    WorldState many = worldFromMarbles(
+        MakeList(
+            new Marble(10, 10, MarbleColour.RED),
+            new Marble(30, 50, MarbleColour.GREEN),
+            new Marble(70, 90, MarbleColour.BLACK),
+            new Marble(90, 10, MarbleColour.BLUE)
+        )
+    );
+    testEqual(many, step(many), "step(many) should not change the world");
+
+    WorldState edges = worldFromMarbles(
+        MakeList(
+            new Marble(marbleRadius, marbleRadius, MarbleColour.RED),
+            new Marble(WORLD_WIDTH - marbleRadius, marbleRadius, MarbleColour.GREEN),
+            new Marble(marbleRadius, WORLD_HEIGHT - marbleRadius, MarbleColour.BLUE)
+        )
+    );
+    testEqual(edges, step(edges), "step(edges) should not move or alter marbles at boundaries");
+
+}
+
+void testDraw() {
+    Image img = draw(getInitialState());
+    testEqual(false, img == null, "draw should not return null.");
+    
+    Image bg = Rectangle(WORLD_WIDTH, WORLD_HEIGHT, Colour.WHITE);
+    Image res = drawMarbles(MakeList(), bg);
+    testEqual(true, Equals(res, bg), "empty world should equal plain white background.");
+
+    Image resCells = drawCells(emptyWorld(defaultBoard()), bg);
+    testEqual(true, Equals(resCells, bg), "grid with only empty cells should equal plain white background.");
+
+    Image oneCell = drawCells(worldFromMarbles(MakeList(new Marble(30, 10, MarbleColour.RED))), bg);
+    Image strip = PlaceXY(Rectangle(WORLD_WIDTH, 2 * marbleRadius, Colour.WHITE), Circle(marbleRadius, Colour.RED), 30, 10);
+    testEqual(true, Equals(oneCell, PlaceXY(bg, strip, WORLD_WIDTH / 2, 10)),
+        "one occupied cell should draw one circle at its centre, on the strip of its row.");
+}
+
+void testMarbleSprite() {
+    testEqual(Circle(marbleRadius, Colour.RED), marbleSprite(marbleRadius, MarbleColour.RED), "Sprite is the circle of the colour");
+    testEqual(true, marbleSprite(marbleRadius, MarbleColour.RED) == marbleSprite(marbleRadius, MarbleColour.RED),
+        "Same sprite object is reused");
+    testEqual(Circle(5, Colour.BLACK), marbleSprite(5, MarbleColour.BLACK), "Each radius has its own sprites");
+    testEqual(false, marbleSprite(5, MarbleColour.BLUE) == marbleSprite(marbleRadius, MarbleColour.BLUE),
+        "Different radius, different sprite");
+}
+
+void testDrawRow() {
+    WorldState w = worldFromMarbles(MakeList(
+        new Marble(30, 10, MarbleColour.BLUE), new Marble(10, 50, MarbleColour.GREEN)));
+    Image strip0 = PlaceXY(Rectangle(WORLD_WIDTH, 2 * marbleRadius, Colour.WHITE), Circle(marbleRadius, Colour.BLUE), 30, 10);
+    testEqual(new Something<Image>(strip0), drawRow(w, 0), "Row 0 strip holds BLUE at x = 30");
+    testEqual(new Nothing<Image>(), drawRow(w, 1), "Row 1 is empty");
+
+    // Only the non-empty rows are placed, each at its centre line
+    Image strip2 = PlaceXY(Rectangle(WORLD_WIDTH, 2 * marbleRadius, Colour.WHITE), Circle(marbleRadius, Colour.GREEN), 10, 10);
+    Image bg = Rectangle(WORLD_WIDTH, WORLD_HEIGHT, Colour.WHITE);
+    testEqual(PlaceXY(PlaceXY(bg, strip0, WORLD_WIDTH / 2, 10), strip2, WORLD_WIDTH / 2, 50), draw(w),
+        "Frame is the background with the two row strips");
+}
+
+// The retained frame, or a fresh one if draw(w) has not been called yet
+RetainedFrame retainedFrameOf(WorldState w) {
+    return switch (retainedFrame) {
+        case Nothing<RetainedFrame>() -> renderFrame(w);
+        case Something<RetainedFrame>(RetainedFrame f) -> f;
+    };
+}
+
+void testRetainedFrame() {
+    retainedFrame = new Nothing<RetainedFrame>();
+    WorldState w = worldFromMarbles(MakeList(
+        new Marble(30, 10, MarbleColour.BLUE), new Marble(10, 50, MarbleColour.GREEN)));
+    Image bg = Rectangle(WORLD_WIDTH, WORLD_HEIGHT, Colour.WHITE);
+    Image first = draw(w);
+    testEqual(drawCells(w, bg), first, "First frame is drawn in full");
+    testEqual(true, first == draw(w), "Unchanged world returns the cached frame");
+
+    // Crushing GREEN only redraws row 2; the strip of row 0 is reused
+    RetainedFrame before = retainedFrameOf(w);
+    WorldState crushed = crushColour(w, cellOf(MarbleColour.GREEN));
+    testEqual(drawCells(crushed, bg), draw(crushed), "Frame after a crush matches a full redraw");
+    RetainedFrame after = retainedFrameOf(crushed);
+    testEqual(true, before.rowStrips().get(0) == after.rowStrips().get(0), "Row 0 strip is reused");
+    testEqual(new Nothing<Image>(), after.rowStrips().get(2), "Row 2 is now empty");
+
+    // A refill and a different board are both drawn correctly
+    WorldState full = fillEmptyCells(crushed);
+    testEqual(drawCells(full, bg), draw(full), "Frame after a refill matches a full redraw");
+    WorldState small = buildFullBoard(new BoardConfig(2, 3, marbleRadius));
+    testEqual(drawCells(small, Rectangle(60, 40, Colour.WHITE)), draw(small), "New board is drawn in full");
+}
+
+void testGetInitialState() {
+    // Case 1: Normal case
+    WorldState init = getInitialState();
+    int expectedCount = numMarbleRows * numMarbleCols;
+    testEqual(expectedCount, Length(marbles(init)),
+        "initial state should have rows * cols marbles");
+
+    // Case 2: Edge case (0 rows or 0 cols: empty world)
+    WorldState noRows = buildFullBoard(new BoardConfig(0, numMarbleCols, marbleRadius));
+    testEqual(true, Equals(Length(marbles(noRows)), 0),
+        "if no rows, initial state should be empty");
+    WorldState noCols = buildFullBoard(new BoardConfig(numMarbleRows, 0, marbleRadius));
+    testEqual(true, Equals(Length(marbles(noCols)), 0),
+        "if no cols, initial state should be empty");
+
+    // Case 3: Sanity check (length is never negative)
+    testEqual(true, Length(marbles(init)) >= 0,
+        "initial state marble count should never be negative");
+}
+
+void testBuildFullBoard() {
+    // Empty sizes: no cells
+    WorldState none = buildFullBoard(new BoardConfig(0, 5, marbleRadius));
+    testEqual(0, none.cells().length, "0 rows: no cells");
+    testEqual(0, numberOfEmptyLocations(none), "0 rows: no vacancies");
+
+    // Small board: every cell holds a marble, listed at the grid centres
+    WorldState small = buildFullBoard(new BoardConfig(2, 3, marbleRadius));
+    testEqual(6, numberOfMarbles(small), "2x3 board has 6 marbles");
+    testEqual(0, numberOfEmptyLocations(small), "2x3 board is full");
+    testEqual(true, Equals(generateAllMarblesCenterPositionRecursively(marbleRadius, 2, 3),
+                           positionsFromMarbles(marbles(small))), "Marbles sit on the row-major grid centres");
+
+    // Large board: built without recursion
+    WorldState large = buildFullBoard(new BoardConfig(1000, 1000, marbleRadius));
+    testEqual(1000 * 1000, large.cells().length, "1000x1000 board has a million cells");
+    testEqual(0, numberOfEmptyLocations(large), "1000x1000 board is full");
+}
+
+void testMarblesFromPositions() {
+    // Case 1: Empty input: should return empty list
+    ConsList<Pair<Integer,Integer>> emptyPos = MakeList();
+    ConsList<Marble> resultEmpty = marblesFromPositions(emptyPos, MakeList());
+    testEqual(0, Length(resultEmpty), "empty positions should give no marbles");
+
+    // Case 2: Single position: produces exactly one marble with same x,y
+    ConsList<Pair<Integer,Integer>> onePos = MakeList(new Pair<Integer,Integer>(10,20));
+    ConsList<Marble> resultOne = marblesFromPositions(onePos, MakeList());
+    testEqual(1, Length(resultOne), "one position should give one marble");
+    testEqual(10, Nth(resultOne,0).x(), "x coordinate matches input");
+    testEqual(20, Nth(resultOne,0).y(), "y coordinate matches input");
+
+    // Case 3: Multiple positions: produces same number of marbles in same order
+    ConsList<Pair<Integer,Integer>> twoPos = MakeList(
+        new Pair<Integer,Integer>(5, 5),new Pair<Integer,Integer>(100, 200));
+    ConsList<Marble> resultTwo = marblesFromPositions(twoPos, MakeList());
+    testEqual(2, Length(resultTwo), "two positions should give two marbles");
+    testEqual(5, Nth(resultTwo,0).x(), "first marble x");
+    testEqual(5, Nth(resultTwo,0).y(), "first marble y");
+    testEqual(100, Nth(resultTwo,1).x(), "second marble x");
+    testEqual(200, Nth(resultTwo,1).y(), "second marble y");
+
+    // Case 4: Boundary positions
+    ConsList<Pair<Integer,Integer>> edgePos = MakeList(
+        new Pair<Integer,Integer>(0, 0), new Pair<Integer,Integer>(WORLD_WIDTH, WORLD_HEIGHT));
+    ConsList<Marble> resultEdges = marblesFromPositions(edgePos, MakeList());
+    testEqual(2, Length(resultEdges), "two edge positions → two marbles");
+    testEqual(0, Nth(resultEdges,0).x(), "left/top corner x");
+    testEqual(0, Nth(resultEdges,0).y(), "left/top corner y");
+    testEqual(WORLD_WIDTH, Nth(resultEdges,1).x(), "right/bottom corner x");
+    testEqual(WORLD_HEIGHT, Nth(resultEdges,1).y(), "right/bottom corner y");
+}
+
+
+void testKeyEvent() {
+    // Prepare a partially-filled world: occupy 1 known grid position.
+    ConsList<Pair<Integer,Integer>> all =
+        generateAllMarblesCenterPositionRecursively(marbleRadius, numMarbleRows, numMarbleCols);
+    Pair<Integer,Integer> p0 = Nth(all, 0); // first grid position
+    ConsList<Marble> partial = MakeList(new Marble(p0.first(), p0.second(), MarbleColour.BLUE));
+    WorldState w = worldFromMarbles(partial);
+
+    int total = numMarbleRows * numMarbleCols;
+    int before = Length(marbles(w));
+
+    // SPACE (KEY_PRESSED + "Space") should fill all vacancies
+    KeyEvent space = new KeyEvent(KeyEventKind.KEY_PRESSED, "Space");
+    WorldState afterSpace = keyEvent(w, space);
+    testEqual(total, Length(marbles(afterSpace)),
+        "SPACE should fill all vacancies (length == rows*cols)");
+
+    // Non-space key should keep world unchanged in size
+    KeyEvent other = new KeyEvent(KeyEventKind.KEY_PRESSED, "A");
+    WorldState afterOther = keyEvent(w, other);
+    testEqual(before, Length(marbles(afterOther)),
+        "Non-space key should leave world unchanged in size");
+
+    // Wrong kind (e.g., KEY_RELEASED "Space") should not trigger fill
+    KeyEvent releasedSpace = new KeyEvent(KeyEventKind.KEY_RELEASED, "Space");
+    WorldState afterReleased = keyEvent(w, releasedSpace);
+    testEqual(before, Length(marbles(afterReleased)),
+        "KEY_RELEASED Space should not change the world");
+}
+
+void testProcessKeyEvent() {
+    ConsList<Pair<Integer,Integer>> all =
+        generateAllMarblesCenterPositionRecursively(marbleRadius, numMarbleRows, numMarbleCols);
+
+    ConsList<Marble> full =
+        marblesFromPositions(all, MakeList());  
+
+    WorldState fullWorld = worldFromMarbles(full);
+        int total = numMarbleRows * numMarbleCols;
+
+    // SPACE on full world: still full
+    WorldState ws1 = processKeyEvent(fullWorld, KeyEventKind.KEY_PRESSED, "Space");
+    testEqual(total, Length(marbles(ws1)),
+        "SPACE on full world should keep it full (no vacancies to fill)");
+
+    // Wrong key or wrong kind: unchanged
+    WorldState ws2 = processKeyEvent(fullWorld, KeyEventKind.KEY_PRESSED, "X");
+    testEqual(total, Length(marbles(ws2)),
+        "Non-space key should not change a full world");
+
+    WorldState ws3 = processKeyEvent(fullWorld, KeyEventKind.KEY_RELEASED, "Space");
+    testEqual(total, Length(marbles(ws3)),
+        "KEY_RELEASED Space should not change a full world");
+}
+
+void testFindVacancies() {
+    // Start with empty world: all positions are vacant
+    ConsList<Marble> none = MakeList();
+    ConsList<Pair<Integer,Integer>> v1 = findVacancies(none);
+    int total = numMarbleRows * numMarbleCols;
+    testEqual(total, Length(v1), "Empty world: all positions vacant");
+
+    // Occupy one known position: vacancies = total-1, and not containing that position
+    ConsList<Pair<Integer,Integer>> all =
+        generateAllMarblesCenterPositionRecursively(marbleRadius, numMarbleRows, numMarbleCols);
+    Pair<Integer,Integer> p0 = Nth(all, 0);
+    ConsList<Marble> one = MakeList(new Marble(p0.first(), p0.second(), MarbleColour.RED));
+    ConsList<Pair<Integer,Integer>> v2 = findVacancies(one);
+    testEqual(total - 1, Length(v2), "One occupied: vacancies == total-1");
+    testEqual(false, containsPos(v2, p0), "Vacancies should not contain occupied p0");
+
+    // If we occupy two positions, both must be removed from vacancies
+    Pair<Integer,Integer> p1 = Nth(all, 1);
+    ConsList<Marble> two = MakeList(new Marble(p0.first(), p0.second(), MarbleColour.RED),
+                                    new Marble(p1.first(), p1.second(), MarbleColour.BLUE));
+    ConsList<Pair<Integer,Integer>> v3 = findVacancies(two);
+    testEqual(total - 2, Length(v3), "Two occupied: vacancies == total-2");
+    testEqual(false, containsPos(v3, p0), "Vacancies should not contain p0");
+    testEqual(false, containsPos(v3, p1), "Vacancies should not contain p1");
+}
+
+void testGenerateAllPositions() {
+    // Use a tiny grid to verify exact coordinates (r=10, rows=2, cols=3)
+    int r = 10, rows = 2, cols = 3;
+    ConsList<Pair<Integer,Integer>> expect =
+        MakeList(new Pair<Integer,Integer>(10,10),
+                 new Pair<Integer,Integer>(30,10),
+                 new Pair<Integer,Integer>(50,10),
+                 new Pair<Integer,Integer>(10,30),
+                 new Pair<Integer,Integer>(30,30),
+                 new Pair<Integer,Integer>(50,30));
+
+    ConsList<Pair<Integer,Integer>> got = generateAllMarblesCenterPositionRecursively(r, rows, cols);
+    testEqual(true, Equals(expect, got), "generateAllMarblesCenterPositionRecursively should match row-major grid");
+
+    // Helper base case: if row >= rows, returns acc unchanged
+    ConsList<Pair<Integer,Integer>> acc = MakeList(new Pair<Integer,Integer>(1,1));
+    ConsList<Pair<Integer,Integer>> base = generateAllGridCentersRecursively(r, rows, 0, rows, cols, acc);
+    testEqual(true, Equals(acc, base), "generateAllGridCentersRecursively base case should return acc");
+}
+
+void testPositionsFromMarbles() {
+    // Empty
+    ConsList<Pair<Integer,Integer>> p0 = positionsFromMarbles(MakeList());
+    testEqual(0, Length(p0), "Empty marbles: empty positions");
+
+    // One
+    Marble m1 = new Marble(10, 20, MarbleColour.BLUE);
+    ConsList<Pair<Integer,Integer>> p1 = positionsFromMarbles(MakeList(m1));
+    testEqual(1, Length(p1), "One marble: one position");
+    testEqual(true, Equals(new Pair<Integer,Integer>(10,20), Nth(p1,0)), "Position equals (10,20)");
+
+    // Many (preserve order)
+    Marble m2 = new Marble(30, 40, MarbleColour.RED);
+    Marble m3 = new Marble(50, 60, MarbleColour.GREEN);
+    ConsList<Pair<Integer,Integer>> p = positionsFromMarbles(MakeList(m1, m2, m3));
+    testEqual(3, Length(p), "Three marbles: three positions");
+    testEqual(true, Equals(new Pair<Integer,Integer>(10,20), Nth(p,0)), "pos[0] == (10,20)");
+    testEqual(true, Equals(new Pair<Integer,Integer>(30,40), Nth(p,1)), "pos[1] == (30,40)");
+    testEqual(true, Equals(new Pair<Integer,Integer>(50,60), Nth(p,2)), "pos[2] == (50,60)");
+}
+
+void testSubtractPositions() {
+    ConsList<Pair<Integer,Integer>> all =
+        MakeList(new Pair<Integer,Integer>(10,10),
+                 new Pair<Integer,Integer>(30,10),
+                 new Pair<Integer,Integer>(50,10));
+
+    // No occupied: get all
+    ConsList<Pair<Integer,Integer>> occ0 = MakeList();
+    ConsList<Pair<Integer,Integer>> v0 = subtractPositions(all, occ0);
+    testEqual(true, Equals(all, v0), "No occupied: vacancies == all");
+
+    // Occupy middle
+    ConsList<Pair<Integer,Integer>> occ1 = MakeList(new Pair<Integer,Integer>(30,10));
+    ConsList<Pair<Integer,Integer>> v1 = subtractPositions(all, occ1);
+    ConsList<Pair<Integer,Integer>> exp1 =
+        MakeList(new Pair<Integer,Integer>(10,10), new Pair<Integer,Integer>(50,10));
+    testEqual(true, Equals(exp1, v1), "Occupied {30,10}: vacancies exclude it, preserve order");
+
+    // Occupy all
+    ConsList<Pair<Integer,Integer>> occAll =
+        MakeList(new Pair<Integer,Integer>(10,10),
+                 new Pair<Integer,Integer>(30,10),
+                 new Pair<Integer,Integer>(50,10));
+    ConsList<Pair<Integer,Integer>> vAll = subtractPositions(all, occAll);
+    testEqual(0, Length(vAll), "Occupied all: vacancies empty");
+}
+
+void testContainsPos() {
+    ConsList<Pair<Integer,Integer>> ps =
+        MakeList(new Pair<Integer,Integer>(1,1),
+                 new Pair<Integer,Integer>(2,2),
+                 new Pair<Integer,Integer>(3,3));
+
+    testEqual(true,  containsPos(ps, new Pair<Integer,Integer>(2,2)), "Should find existing (2,2)");
+    testEqual(false, containsPos(ps, new Pair<Integer,Integer>(4,4)), "Should not find absent (4,4)");
+    testEqual(false, containsPos(MakeList(), new Pair<Integer,Integer>(1,1)), "Empty list: always false");
+}
+
+void testAddMarblesAtVacancies() {
+    // current: one marble at (5,5)
+    ConsList<Marble> current = MakeList(new Marble(5, 5, MarbleColour.BLACK));
+
+    // empty positions to fill: (10,10), (30,10)
+    ConsList<Pair<Integer,Integer>> empties =
+        MakeList(new Pair<Integer,Integer>(10,10),
+                 new Pair<Integer,Integer>(30,10));
+
+    ConsList<Marble> out = addMarblesAtVacancies(empties, current);
+
+    // Length check: 1 existing + 2 new = 3
+    testEqual(3, Length(out), "Length should be current + vacancies");
+
+    // Order check: first is the original (5,5)
+    testEqual(5, Nth(out,0).x(), "First marble keeps original x=5");
+    testEqual(5, Nth(out,0).y(), "First marble keeps original y=5");
+
+    // New marbles appear in the order of vacancies, coordinates must match
+    testEqual(10, Nth(out,1).x(), "Second marble x from first vacancy");
+    testEqual(10, Nth(out,1).y(), "Second marble y from first vacancy");
+    testEqual(30, Nth(out,2).x(), "Third marble x from second vacancy");
+    testEqual(10, Nth(out,2).y(), "Third marble y from second vacancy");
+}
+
+void testMouseEvent() {
+    // Prepare a world with two RED marbles and one BLUE marble.
+    Marble r1 = new Marble(50, 50, MarbleColour.RED);
+    Marble r2 = new Marble(90, 50, MarbleColour.RED);
+    Marble b1 = new Marble(210, 210, MarbleColour.BLUE);
+    WorldState w = worldFromMarbles(MakeList(r1, r2, b1));
+    int before = Length(marbles(w));
+
+    // LEFT_CLICK exactly on r1 center: all RED marbles removed
+    MouseEvent hitR1 = new MouseEvent(MouseEventKind.LEFT_CLICK, r1.x(), r1.y());
+    WorldState afterLeft = mouseEvent(w, hitR1);
+    testEqual(1, Length(marbles(afterLeft)),
+        "LEFT_CLICK on RED should remove all RED marbles (only BLUE remains)");
+    testEqual(true, Equals(Nth(marbles(afterLeft), 0), b1),
+        "Remaining marble should be the BLUE one");
+
+    // LEFT_CLICK that misses everything: unchanged
+    MouseEvent miss = new MouseEvent(MouseEventKind.LEFT_CLICK, 9999, 9999);
+    WorldState afterMiss = mouseEvent(w, miss);
+    testEqual(before, Length(marbles(afterMiss)),
+        "LEFT_CLICK on empty space should leave world unchanged");
+    testEqual(true, Equals(marbles(afterMiss), marbles(w)),
+        "World content unchanged when clicking empty space");
+
+    // Non-left event: unchanged
+    MouseEvent notLeft = new MouseEvent(MouseEventKind.RIGHT_CLICK, r1.x(), r1.y());
+    WorldState afterRight = mouseEvent(w, notLeft);
+    testEqual(true, Equals(marbles(afterRight), marbles(w)),
+        "Non-LEFT mouse event should not change the world");
+}
+
+void testLeftClick() {
+    // World with two REDs and one BLUE
+    Marble r1 = new Marble(50, 50, MarbleColour.RED);
+    Marble r2 = new Marble(150, 150, MarbleColour.RED);
+    Marble b1 = new Marble(210, 210, MarbleColour.BLUE);
+    WorldState w = worldFromMarbles(MakeList(r1, r2, b1));
+
+    // Hit r2: remove all REDs
+    MouseEvent hitR2 = new MouseEvent(MouseEventKind.LEFT_CLICK, r2.x(), r2.y());
+    WorldState afterHitR2 = leftClick(w, hitR2);
+    testEqual(1, Length(marbles(afterHitR2)),
+        "Hitting a RED should remove all REDs, leaving only BLUE");
+    testEqual(true, Equals(Nth(marbles(afterHitR2), 0), b1),
+        "Remaining marble should be BLUE");
+
+    // Not hit: unchanged
+    MouseEvent notHit = new MouseEvent(MouseEventKind.LEFT_CLICK, 20, 20);
+    WorldState afterMiss = leftClick(w, notHit);
+    testEqual(true, Equals(marbles(afterMiss), marbles(w)),
+        "Not hit Left-click should not change the world");
+
+    // Edge hit (on bounding box edge): x = center + R, y = center
+    MouseEvent edgeHit = new MouseEvent(MouseEventKind.LEFT_CLICK, r1.x() + marbleRadius, r1.y());
+    WorldState afterEdge = leftClick(w, edgeHit);
+    testEqual(1, Length(marbles(afterEdge)),
+        "Edge hit should count as hit (remove all REDs)");
+    testEqual(true, Equals(Nth(marbles(afterEdge), 0), b1),
+        "After edge hit, only BLUE remains");
+}
+
+void testFindClickedMarble() {
+    // Case 1: Empty list -> Nothing
+    testEqual(
+        new Nothing<Marble>(),
+        findClickedMarble(new MouseEvent(MouseEventKind.LEFT_CLICK, 0, 0), MakeList()),
+        "Empty list should return Nothing"
+    );
+
+    // Prepare a single marble
+    Marble m = new Marble(100, 100, MarbleColour.BLUE);
+    ConsList<Marble> one = MakeList(m);
+
+    // Case 2: Center hit -> Something(m)
+    testEqual(
+        new Something<Marble>(m),
+        findClickedMarble(new MouseEvent(MouseEventKind.LEFT_CLICK, 100, 100), one),
+        "Center click should hit the marble"
+    );
+
+    // Case 3: Edge hit (x+R, y) -> Something(m)
+    testEqual(
+        new Something<Marble>(m),
+        findClickedMarble(new MouseEvent(MouseEventKind.LEFT_CLICK, m.x() + marbleRadius, m.y()), one),
+        "Edge point should be considered a hit"
+    );
+
+    // Case 4: Outside by 1px (x+R+1, y) -> Nothing
+    testEqual(
+        new Nothing<Marble>(),
+        findClickedMarble(new MouseEvent(MouseEventKind.LEFT_CLICK, m.x() + marbleRadius + 1, m.y()), one),
+        "Outside bounding box by 1px should be miss"
+    );
+
+    // Case 5: Overlapping two marbles at same center -> first wins
+    Marble g = new Marble(300, 300, MarbleColour.GREEN);
+    Marble k = new Marble(300, 300, MarbleColour.BLACK);
+    ConsList<Marble> two = MakeList(g, k);
+    testEqual(
+        new Something<Marble>(g),
+        findClickedMarble(new MouseEvent(MouseEventKind.LEFT_CLICK, 300, 300), two),
+        "When overlapping, should return the first in the list"
+    );
+}
+
+void testFilterOutSameColour() {
+    // Empty list -> empty
+    ConsList<Marble> empty = MakeList();
+    ConsList<Marble> out0 = filterOutSameColour(new Marble(0, 0, MarbleColour.RED), empty);
+    testEqual(0, Length(out0), "Empty list remains empty");
+
+    // All same colour -> all removed
+    Marble r1 = new Marble(10, 10, MarbleColour.RED);
+    Marble r2 = new Marble(20, 20, MarbleColour.RED);
+    ConsList<Marble> reds = MakeList(r1, r2);
+    ConsList<Marble> outR = filterOutSameColour(r1, reds);
+    testEqual(0, Length(outR), "All RED removed");
+
+    // Mixed colours -> only target colour removed; order preserved for others
+    Marble b = new Marble(30, 30, MarbleColour.BLUE);
+    Marble g = new Marble(40, 40, MarbleColour.GREEN);
+    Marble r3 = new Marble(50, 50, MarbleColour.RED);
+    ConsList<Marble> mixed = MakeList(r1, b, g, r3);
+    ConsList<Marble> outMix = filterOutSameColour(r1, mixed);
+    testEqual(2, Length(outMix), "Should keep only non-RED marbles");
+    testEqual(true, Equals(Nth(outMix, 0), b), "First kept should be BLUE (order preserved)");
+    testEqual(true, Equals(Nth(outMix, 1), g), "Second kept should be GREEN (order preserved)");
+
+    // No target colour present -> list unchanged
+    Marble k = new Marble(60, 60, MarbleColour.BLACK);
+    ConsList<Marble> onlyBGK = MakeList(b, g, k);
+    ConsList<Marble> outNoRed = filterOutSameColour(r1, onlyBGK);
+    testEqual(true, Equals(outNoRed, onlyBGK), "If target colour absent, list unchanged");
+}
+
+
+void testGetMarbleAt() {
+    // Case 1: Empty world -> Nothing
+    WorldState empty = emptyWorld(defaultBoard());
+    testEqual(
+        new Nothing<Marble>(),
+        getMarbleAt(empty, 0, 0), "Empty world should return Nothing"
+    );
+
+    // Prepare single-marble world
+    Marble m = new Marble(110, 110, MarbleColour.BLUE);
+    WorldState one = worldFromMarbles(MakeList(m));
+
+    // Case 2: Center hit -> Something(m)
+    testEqual(
+        new Something<Marble>(m),
+        getMarbleAt(one, 110, 110), "Center click should hit"
+    );
+
+    // Case 3: Edge hit (x+R, y) -> Something(m)
+    testEqual(
+        new Something<Marble>(m),
+        getMarbleAt(one, m.x() + marbleRadius, m.y()), "Edge point should be considered a hit"
+    );
+
+    // Case 4: Outside -> Nothing
+    testEqual(
+        new Nothing<Marble>(),
+        getMarbleAt(one, m.x() + marbleRadius + 1, m.y()), "Outside by 1px should miss"
+    );
+
+    // Case 5: Shared edge of two neighbouring marbles -> first in row-major order wins
+    Marble g = new Marble(250, 290, MarbleColour.GREEN);
+    Marble k = new Marble(270, 290, MarbleColour.BLACK);
+    WorldState two = worldFromMarbles(MakeList(k, g));
+    testEqual(
+        new Something<Marble>(g),
+        getMarbleAt(two, 260, 290), "On a shared edge, should return the first in row-major order"
+    );
+    testEqual(
+        new Something<Marble>(k),
+        getMarbleAt(two, 261, 290), "Just past the shared edge, should return the second marble"
+    );
+}
+
+void testGetColour() {
+    // BLUE
+    Marble mb = new Marble(10, 10, MarbleColour.BLUE);
+    testEqual(Colour.BLUE, getColour(mb), "BLUE should map to Colour.BLUE");
+
+    // RED
+    Marble mr = new Marble(10, 10, MarbleColour.RED);
+    testEqual(Colour.RED, getColour(mr), "RED should map to Colour.RED");
+
+    // GREEN
+    Marble mg = new Marble(10, 10, MarbleColour.GREEN);
+    testEqual(Colour.GREEN, getColour(mg), "GREEN should map to Colour.GREEN");
+
+    // BLACK
+    Marble mk = new Marble(10, 10, MarbleColour.BLACK);
+    testEqual(Colour.BLACK, getColour(mk), "BLACK should map to Colour.BLACK");
+} 
+
+void testCountColour() {
+    // Case 1: Empty list
+    testEqual(0, countColour(MakeList(), Colour.RED), "Empty list should count 0");
+
+    // Case 2: Single match
+    ConsList<Marble> oneR = MakeList(new Marble(10, 10, MarbleColour.RED));
+    testEqual(1, countColour(oneR, Colour.RED), "Single matching marble should count 1");
+
+    // Case 3: Multiple: two RED, one BLUE
+    ConsList<Marble> mix = MakeList(
+        new Marble(0, 0, MarbleColour.RED),
+        new Marble(1, 1, MarbleColour.BLUE),
+        new Marble(2, 2, MarbleColour.RED)
+    );
+    testEqual(2, countColour(mix, Colour.RED), "Two RED should count 2");
+    testEqual(1, countColour(mix, Colour.BLUE), "One BLUE should count 1");
+    testEqual(0, countColour(mix, Colour.GREEN), "No GREEN should count 0");
+}
+
+void testNumberOfMarblesOfColour() {
+    // Case 1: Empty world
+    WorldState empty = emptyWorld(defaultBoard());
+    testEqual(0, numberOfMarblesOfColour(empty, Colour.RED), "Empty world: 0");
+
+    // Case 2: Mixed colours
+    WorldState w = worldFromMarbles(MakeList(
+        new Marble(10, 10, MarbleColour.RED),
+        new Marble(30, 30, MarbleColour.BLUE),
+        new Marble(50, 50, MarbleColour.RED),
+        new Marble(70, 70, MarbleColour.GREEN)
+    ));
+    testEqual(2, numberOfMarblesOfColour(w, Colour.RED), "Two RED in world: 2");
+    testEqual(1, numberOfMarblesOfColour(w, Colour.BLUE), "One BLUE in world: 1");
+    testEqual(1, numberOfMarblesOfColour(w, Colour.GREEN), "One GREEN in world: 1");
+    testEqual(0, numberOfMarblesOfColour(w, Colour.BLACK), "No BLACK in world: 0");
+    testEqual(0, numberOfMarblesOfColour(w, Colour.WHITE), "No marble is WHITE: 0");
+}
+
+void testNumberOfEmptyLocations() {
+    int total = numMarbleRows * numMarbleCols;
+
+    // Case 1: Empty world -> all vacant
+    WorldState empty = emptyWorld(defaultBoard());
+    testEqual(total, numberOfEmptyLocations(empty), "Empty world should have all positions vacant");
+
+    // Prepare all grid centers
+    ConsList<Pair<Integer,Integer>> all =
+        generateAllMarblesCenterPositionRecursively(marbleRadius, numMarbleRows, numMarbleCols);
+
+    // Case 2: Full world -> 0 vacancies
+    ConsList<Marble> fullList = marblesFromPositions(all, MakeList()); 
+    WorldState full = worldFromMarbles(fullList);
+    testEqual(0, numberOfEmptyLocations(full), "Full grid should have 0 vacancies");
+
+    // Case 3: Occupy first two centers -> total-2 
+    Pair<Integer,Integer> p0 = Nth(all, 0);
+    Pair<Integer,Integer> p1 = Nth(all, 1);
+    WorldState twoTaken = worldFromMarbles(MakeList(
+        new Marble(p0.first(), p0.second(), MarbleColour.RED),
+        new Marble(p1.first(), p1.second(), MarbleColour.BLUE)
+    ));
+    testEqual(total - 2, numberOfEmptyLocations(twoTaken),
+        "With two occupied centers, vacancies should be total-2");
+}
+
+void testCentreToCell() {
+    WorldState w = emptyWorld(defaultBoard());
+    testEqual(0, centreToCell(w, 10, 10), "First centre is cell 0");
+    testEqual(numMarbleCols + 1, centreToCell(w, 30, 30), "(30,30) is row 1, column 1");
+    testEqual(-1, centreToCell(w, 20, 10), "Between two centres is not a cell");
+    testEqual(-1, centreToCell(w, cellX(defaultBoard(), numMarbleCols), 10), "Past the last column is not a cell");
+    testEqual(-1, centreToCell(w, -10, 10), "Left of the grid is not a cell");
+}
+
+void testWorldFromMarbles() {
+    // Empty list: every cell empty
+    WorldState empty = worldFromMarbles(MakeList());
+    testEqual(numMarbleRows * numMarbleCols, numberOfEmptyLocations(empty), "No marbles: all cells empty");
+
+    // Marbles are stored at their cells and listed back in row-major order
+    Marble r = new Marble(30, 10, MarbleColour.RED);
+    Marble b = new Marble(10, 30, MarbleColour.BLUE);
+    WorldState w = worldFromMarbles(MakeList(b, r, new Marble(15, 15, MarbleColour.GREEN)));
+    testEqual(cellOf(MarbleColour.RED), w.cells()[1], "RED stored in cell 1");
+    testEqual(cellOf(MarbleColour.BLUE), w.cells()[numMarbleCols], "BLUE stored in row 1");
+    testEqual(true, Equals(MakeList(r, b), marbles(w)), "Off-grid marble ignored, row-major order");
+    testEqual(2, numberOfMarbles(w), "Two marbles on the grid");
+
+    // Marbles off the grid are dropped; at a shared centre the later one is kept
+    WorldState outside = worldFromMarbles(MakeList(new Marble(-10, 10, MarbleColour.RED), new Marble(10, 100000, MarbleColour.RED)));
+    testEqual(0, numberOfMarbles(outside), "Marbles outside the board dropped");
+    WorldState shared = worldFromMarbles(MakeList(new Marble(10, 10, MarbleColour.RED), new Marble(10, 10, MarbleColour.BLUE)));
+    testEqual(true, Equals(MakeList(new Marble(10, 10, MarbleColour.BLUE)), marbles(shared)), "Later marble at a shared centre kept");
+}
+
+void testFillEmptyCells() {
+    WorldState w = worldFromMarbles(MakeList(new Marble(10, 10, MarbleColour.BLACK)));
+    WorldState filled = fillEmptyCells(w);
+    testEqual(0, numberOfEmptyLocations(filled), "No empty cell after filling");
+    testEqual(cellOf(MarbleColour.BLACK), filled.cells()[0], "Occupied cell keeps its marble");
+    testEqual(numMarbleRows * numMarbleCols - 1, numberOfEmptyLocations(w), "Original world is not modified");
+}
+
+void testFindClickedCell() {
+    Marble g = new Marble(10, 10, MarbleColour.GREEN);
+    Marble k = new Marble(30, 10, MarbleColour.BLACK);
+    WorldState both = worldFromMarbles(MakeList(g, k));
+    WorldState onlyK = worldFromMarbles(MakeList(k));
+
+    testEqual(0, findClickedCell(new MouseEvent(MouseEventKind.LEFT_CLICK, 15, 5), both), "Inside cell 0");
+    testEqual(0, findClickedCell(new MouseEvent(MouseEventKind.LEFT_CLICK, 20, 10), both), "Shared edge: first cell wins");
+    testEqual(1, findClickedCell(new MouseEvent(MouseEventKind.LEFT_CLICK, 20, 10), onlyK), "Shared edge with empty cell");
+    testEqual(-1, findClickedCell(new MouseEvent(MouseEventKind.LEFT_CLICK, 10, 10), onlyK), "Empty cell is a miss");
+    testEqual(-1, findClickedCell(new MouseEvent(MouseEventKind.LEFT_CLICK, 9999, 9999), both), "Outside the grid is a miss");
+}
+
+void testHitTest() {
+    BoardConfig board = defaultBoard();
+    int rows = board.rows(), cols = board.cols();
+    int d = 2 * board.marbleRadius();
+
+    // Corner shared by four cells: the first occupied one in row-major order wins
+    testEqual(0, hitTest(d, d, board, i -> true), "Shared corner: cell 0 first");
+    testEqual(cols + 1, hitTest(d, d, board, i -> i == cols + 1), "Shared corner: only cell cols+1 occupied");
+    testEqual(1, hitTest(d, d, board, i -> i == 1 || i == cols), "Shared corner: row 0 before row 1");
+
+    // Outer edges of the grid still belong to the border cells
+    testEqual(0, hitTest(0, 0, board, i -> true), "Top-left corner of the grid");
+    testEqual(rows * cols - 1, hitTest(cols * d, rows * d, board, i -> true), "Bottom-right corner of the grid");
+    testEqual(-1, hitTest(cols * d + 1, 10, board, i -> true), "Right of the grid");
+    testEqual(-1, hitTest(10, rows * d + 1, board, i -> true), "Below the grid");
+    testEqual(-1, hitTest(-1, 10, board, i -> true), "Left of the grid");
+    testEqual(-1, hitTest(10, -1, board, i -> true), "Above the grid");
+
+    // Agrees with the list scan of findClickedMarble around a corner of the grid and on each side of it
+    WorldState w = worldFromMarbles(MakeList(
+        new Marble(10, 10, MarbleColour.RED), new Marble(50, 10, MarbleColour.BLUE),
+        new Marble(30, 30, MarbleColour.GREEN), new Marble(10, 50, MarbleColour.BLACK),
+        new Marble(cellX(defaultBoard(), cols - 1), cellY(defaultBoard(), rows - 1), MarbleColour.RED)));
+    boolean same = true;
+    for (int x = -2; x <= 3 * d + 2; x++) {
+        for (int y = -2; y <= 3 * d + 2; y++) {
+            same = same && Equals(getMarbleAt(w, x, y),
+                findClickedMarble(new MouseEvent(MouseEventKind.LEFT_CLICK, x, y), marbles(w)));
+            int fx = cols * d + 2 - x;
+            int fy = rows * d + 2 - y;
+            same = same && Equals(getMarbleAt(w, fx, fy),
+                findClickedMarble(new MouseEvent(MouseEventKind.LEFT_CLICK, fx, fy), marbles(w)));
+        }
+    }
+    testEqual(true, same, "Grid hit test agrees with findClickedMarble on every pixel");
+}
+
+void testCrushColour() {
+    Marble r1 = new Marble(10, 10, MarbleColour.RED);
+    Marble b = new Marble(30, 10, MarbleColour.BLUE);
+    Marble r2 = new Marble(50, 10, MarbleColour.RED);
+    WorldState w = worldFromMarbles(MakeList(r1, b, r2));
+
+    WorldState crushed = crushColour(w, cellOf(MarbleColour.RED));
+    testEqual(true, Equals(MakeList(b), marbles(crushed)), "All RED crushed, BLUE kept");
+    testEqual(EMPTY, crushed.cells()[0], "Crushed cell is EMPTY");
+
+    WorldState same = crushColour(w, cellOf(MarbleColour.GREEN));
+    testEqual(true, Equals(marbles(w), marbles(same)), "Absent colour: nothing crushed");
+}
+
+void testVacancyIndex() {
+    int total = numMarbleRows * numMarbleCols;
+    Marble r1 = new Marble(10, 10, MarbleColour.RED);
+    Marble b = new Marble(30, 10, MarbleColour.BLUE);
+    Marble r2 = new Marble(10, 30, MarbleColour.RED);
+    WorldState w = worldFromMarbles(MakeList(r1, b, r2));
+
+    // The index lists the empty cells in row-major order, like the list-based findVacancies
+    testEqual(total - 3, w.vacancies().length, "Index holds every empty cell");
+    testEqual(true, Equals(findVacancies(marbles(w)), findVacancies(w)), "Same vacancies as the list version");
+
+    // Crushing merges the crushed cells into the index, keeping it in order
+    WorldState crushed = leftClick(w, new MouseEvent(MouseEventKind.LEFT_CLICK, 10, 10));
+    testEqual(total - 1, numberOfEmptyLocations(crushed), "Two REDs crushed");
+    testEqual(true, Equals(findVacancies(marbles(crushed)), findVacancies(crushed)), "Index in order after crush");
+    testEqual(true, Arrays.equals(worldFromCells(crushed.board(), crushed.cells()).vacancies(),
+                                  crushed.vacancies()), "Index matches a rebuilt one");
+
+    // Refilling empties the index
+    WorldState filled = processKeyEvent(crushed, KeyEventKind.KEY_PRESSED, "Space");
+    testEqual(0, filled.vacancies().length, "No vacancies after SPACE");
+    testEqual(0, Length(findVacancies(filled)), "findVacancies of a full world is empty");
+    testEqual(true, processKeyEvent(filled, KeyEventKind.KEY_PRESSED, "Space") == filled,
+        "SPACE on a full world returns it unchanged");
+
+    testEqual(true, Arrays.equals(new int[] {0, 2, 3, 5}, mergeVacancies(new int[] {2, 5}, new int[] {0, 3})),
+        "mergeVacancies keeps increasing order");
+}
+
+void testColourCounts() {
+    // After every crush and refill, the kept counts equal the list-walking countColour
+    WorldState w = getInitialState();
+    boolean same = true;
+    for (int step = 0; step < 20; step++) {
+        w = (step % 3 == 2)
+            ? processKeyEvent(w, KeyEventKind.KEY_PRESSED, "Space")
+            : leftClick(w, new MouseEvent(MouseEventKind.LEFT_CLICK, cellX(defaultBoard(), step % numMarbleCols), cellY(defaultBoard(), step)));
+        for (MarbleColour c : MARBLE_COLOURS) {
+            same = same && numberOfMarblesOfColour(w, convertToColour(c)) == countColour(marbles(w), convertToColour(c));
+        }
+    }
+    testEqual(true, same, "Kept counts match countColour after crushes and refills");
+
+    // Counts of a crushed colour drop to 0 and the others are kept
+    WorldState mixed = worldFromMarbles(MakeList(
+        new Marble(10, 10, MarbleColour.RED), new Marble(30, 10, MarbleColour.BLUE),
+        new Marble(50, 10, MarbleColour.RED)));
+    testEqual(true, Arrays.equals(new int[] {1, 2, 0, 0}, mixed.colourCounts()), "Counts built from the cells");
+    WorldState crushed = crushColour(mixed, cellOf(MarbleColour.RED));
+    testEqual(true, Arrays.equals(new int[] {1, 0, 0, 0}, crushed.colourCounts()), "RED count dropped to 0");
+    testEqual(true, Arrays.equals(new int[] {1, 2, 0, 0}, mixed.colourCounts()), "Original counts unchanged");
+}
+
+void testBoardConfig() {
+    // The standard board matches the canvas
+    testEqual(WORLD_WIDTH, boardWidth(defaultBoard()), "Standard board is WORLD_WIDTH wide");
+    testEqual(WORLD_HEIGHT, boardHeight(defaultBoard()), "Standard board is WORLD_HEIGHT high");
+
+    // A 3x4 board of radius 5
+    BoardConfig small = new BoardConfig(3, 4, 5);
+    testEqual(40, boardWidth(small), "4 columns of diameter 10");
+    testEqual(30, boardHeight(small), "3 rows of diameter 10");
+    testEqual(15, cellX(small, 1), "Column 1 centre");
+    testEqual(25, cellY(small, 2), "Row 2 centre");
+
+    WorldState empty = emptyWorld(small);
+    testEqual(true, Equals(Rectangle(40, 30, Colour.WHITE), draw(empty)), "Empty board draws its own background");
+    testEqual(5, centreToCell(empty, 15, 15), "Centre of row 1, column 1");
+
+    WorldState full = buildFullBoard(small);
+    testEqual(12, numberOfMarbles(full), "3x4 board holds 12 marbles");
+    testEqual(0, hitTest(10, 5, small, i -> true), "Shared edge at the board's own diameter");
+    WorldState crushed = leftClick(full, new MouseEvent(MouseEventKind.LEFT_CLICK, 35, 25));
+    byte clicked = full.cells()[11];
+    testEqual(full.colourCounts()[clicked], numberOfEmptyLocations(crushed), "Click crushes the colour of cell 11");
+    testEqual(0, numberOfEmptyLocations(processKeyEvent(crushed, KeyEventKind.KEY_PRESSED, "Space")),
+        "SPACE refills the small board");
+}
+
+void testLargeBoards() {
+    // A 2000x2000 board runs without deep recursion
+    WorldState w = buildFullBoard(new BoardConfig(2000, 2000, marbleRadius));
+    byte clicked = w.cells()[0];
+    WorldState crushed = leftClick(w, new MouseEvent(MouseEventKind.LEFT_CLICK, 10, 10));
+    testEqual(w.colourCounts()[clicked], numberOfEmptyLocations(crushed), "Crush on a 2000x2000 board");
+    WorldState filled = processKeyEvent(crushed, KeyEventKind.KEY_PRESSED, "Space");
+    testEqual(0, numberOfEmptyLocations(filled), "Refill of a 2000x2000 board");
+    testEqual(EMPTY, crushed.cells()[0], "Clicked cell crushed");
+
+    // The list helpers handle lists of hundreds of thousands of marbles
+    // (lengths are taken with elementsOf, which walks the list with a loop)
+    int rows = 500, cols = 300;
+    ConsList<Marble> list = marbles(buildFullBoard(new BoardConfig(rows, cols, marbleRadius)));
+    ConsList<Pair<Integer,Integer>> all = generateAllMarblesCenterPositionRecursively(marbleRadius, rows, cols);
+    testEqual(rows * cols, elementsOf(positionsFromMarbles(list)).size(), "positionsFromMarbles on a long list");
+    testEqual(0, elementsOf(subtractPositions(all, positionsFromMarbles(list))).size(), "subtractPositions on long lists");
+    int red = countColour(list, Colour.RED);
+    testEqual(rows * cols - red, elementsOf(filterOutSameColour(new Marble(0, 0, MarbleColour.RED), list)).size(),
+        "filterOutSameColour on a long list");
+    testEqual(false, containsPos(all, new Pair<Integer,Integer>(0, 0)), "containsPos on a long list");
+    testEqual(true, drawMarbles(list, Rectangle(cols * 20, rows * 20, Colour.WHITE)) != null, "drawMarbles on a long list");
+}
+
+void testBitBoardFromWorld() {
+    Marble b = new Marble(10, 10, MarbleColour.BLUE);
+    Marble r = new Marble(50, 10, MarbleColour.RED);
+    WorldState w = worldFromMarbles(MakeList(b, r));
+    BitBoard bits = bitBoardFromWorld(w);
+
+    testEqual(1L, bits.colourBits()[cellOf(MarbleColour.BLUE)][0], "BLUE bitset holds cell 0");
+    testEqual(4L, bits.colourBits()[cellOf(MarbleColour.RED)][0], "RED bitset holds cell 2");
+    testEqual(5L, bits.occupied()[0], "Occupancy holds cells 0 and 2");
+    testEqual(EMPTY, bitCell(bits, 1), "Cell 1 is empty");
+    testEqual(true, Equals(marbles(w), marbles(worldFromBitBoard(bits))), "Round trip keeps the marbles");
+
+    // The last word has no bits past the last cell
+    int numCells = numMarbleRows * numMarbleCols;
+    testEqual(numCells, popCount(allCellsBits(numCells)), "All-cells bitset has one bit per cell");
+    testEqual(64, popCount(allCellsBits(64)), "Whole word when cells fill it exactly");
+}
+
+void testBitBoardLeftClick() {
+    Marble r1 = new Marble(50, 50, MarbleColour.RED);
+    Marble r2 = new Marble(150, 150, MarbleColour.RED);
+    Marble b1 = new Marble(210, 210, MarbleColour.BLUE);
+    WorldState w = worldFromMarbles(MakeList(r1, r2, b1));
+    BitBoard bits = bitBoardFromWorld(w);
+
+    // Same outcome as leftClick on the grid
+    MouseEvent hitR2 = new MouseEvent(MouseEventKind.LEFT_CLICK, r2.x(), r2.y());
+    BitBoard afterHit = leftClick(bits, hitR2);
+    testEqual(true, Equals(marbles(leftClick(w, hitR2)), marbles(worldFromBitBoard(afterHit))),
+        "Bitboard crush matches grid crush");
+    testEqual(0, numberOfMarblesOfColour(afterHit, Colour.RED), "No RED left");
+    testEqual(1, numberOfMarblesOfColour(afterHit, Colour.BLUE), "BLUE kept");
+    testEqual(numMarbleRows * numMarbleCols - 1, numberOfEmptyLocations(afterHit), "Only BLUE occupies a cell");
+
+    // Edge hit counts, a miss leaves the board unchanged
+    MouseEvent edgeHit = new MouseEvent(MouseEventKind.LEFT_CLICK, r1.x() + marbleRadius, r1.y());
+    testEqual(0, numberOfMarblesOfColour(leftClick(bits, edgeHit), Colour.RED), "Edge hit crushes RED");
+    MouseEvent miss = new MouseEvent(MouseEventKind.LEFT_CLICK, 20, 20);
+    testEqual(true, leftClick(bits, miss) == bits, "Miss returns the same board");
 }
 
-/**
- * Launch the Marble Crush game using the BigBang.  
- * Provide initial world state, draw/step/key/mouse handlers, and then run tests. 
- * 
- * Examples:  
- *   - When run, opens a game window titled "Marble Crush".  
- *   - World starts with the initial arrangement of marbles.  
- *   - User interactions (keyboard/mouse) update the world accordingly.  
- * 
- * Design Strategy: Combining functions  
- * 
- * @return Opens a Marble Crush game window, executes the interactive loop until the user closes it.  
- */
-void main() {
-    BigBang("Marble Crush", getInitialState(), this::draw, this::step, this::keyEvent, this::mouseEvent);
-    test();
+void testBitBoardProcessKeyEvent() {
+    WorldState w = worldFromMarbles(MakeList(new Marble(10, 10, MarbleColour.BLACK)));
+    BitBoard bits = bitBoardFromWorld(w);
+
+    BitBoard filled = processKeyEvent(bits, KeyEventKind.KEY_PRESSED, "Space");
+    testEqual(0, numberOfEmptyLocations(filled), "SPACE fills every vacancy");
+    testEqual(cellOf(MarbleColour.BLACK), bitCell(filled, 0), "Occupied cell keeps its marble");
+    int sum = 0;
+    for (MarbleColour c : MARBLE_COLOURS) {
+        sum += numberOfMarblesOfColour(filled, convertToColour(c));
+    }
+    testEqual(numMarbleRows * numMarbleCols, sum, "Each cell has exactly one colour");
+    testEqual(numMarbleRows * numMarbleCols - 1, numberOfEmptyLocations(bits), "Original board is not modified");
+
+    testEqual(true, processKeyEvent(bits, KeyEventKind.KEY_PRESSED, "X") == bits, "Other key: unchanged");
+    testEqual(true, processKeyEvent(bits, KeyEventKind.KEY_RELEASED, "Space") == bits, "KEY_RELEASED: unchanged");
+
+    // A seeded refill is reproducible and gives the same colours as the WorldState refill
+    BitBoard seeded = fillVacantBits(bits, new ColourSource(4));
+    testEqual(true, Arrays.deepEquals(seeded.colourBits(), fillVacantBits(bits, new ColourSource(4)).colourBits()),
+        "Seeded refills are equal");
+    testEqual(true, Arrays.equals(fillEmptyCells(w, new ColourSource(4)).cells(), worldFromBitBoard(seeded).cells()),
+        "Same colours as fillEmptyCells");
 }
 
-void test() {
-    runAsTest(this::testRandomColour);
-    runAsTest(this::testConvertToColour);
-    runAsTest(this::testStep);
-    runAsTest(this::testDraw);
-    runAsTest(this::testGetInitialState);
-    runAsTest(this::testMarblesFromPositions);
+void testApplyEvent() {
+    WorldState w = worldFromMarbles(MakeList(
+        new Marble(10, 10, MarbleColour.RED), new Marble(30, 10, MarbleColour.BLUE), new Marble(50, 10, MarbleColour.RED)));
+    WorldState clicked = applyEvent(w, new Click(10, 10));
+    testEqual(MakeList(new Marble(30, 10, MarbleColour.BLUE)), marbles(clicked), "Click crushes RED");
+    testEqual(marbles(leftClick(w, new MouseEvent(MouseEventKind.LEFT_CLICK, 10, 10))), marbles(clicked),
+        "Click matches leftClick");
+    testEqual(true, applyEvent(w, new Click(9999, 9999)) == w, "Missed click: unchanged");
 
-    runAsTest(this::testKeyEvent);
-    runAsTest(this::testProcessKeyEvent);
-    runAsTest(this::testFindVacancies);
-    runAsTest(this::testGenerateAllPositions);
-    runAsTest(this::testPositionsFromMarbles);
-    runAsTest(this::testSubtractPositions);
-    runAsTest(this::testContainsPos);
-    runAsTest(this::testAddMarblesAtVacancies);
+    WorldState full = applyEvent(clicked, new Press("Space"));
+    testEqual(0, numberOfEmptyLocations(full), "Space fills the board");
+    testEqual(true, applyEvent(w, new Press("A")) == w, "Other key: unchanged");
+}
 
-    runAsTest(this::testMouseEvent);
-    runAsTest(this::testLeftClick);
-    runAsTest(this::testFindClickedMarble);
-    runAsTest(this::testFilterOutSameColour);
+void testSimulate() {
+    WorldState w = buildFullBoard(defaultBoard());
+    SimulationReport none = simulate(w, new ArrayList<GameEvent>());
+    testEqual(true, none.world() == w, "No events: unchanged");
+    testEqual(0, none.events(), "No events counted");
 
-    runAsTest(this::testGetMarbleAt);
-    runAsTest(this::testGetColour);
-    runAsTest(this::testCountColour);
-    runAsTest(this::testNumberOfMarblesOfColour);
-    runAsTest(this::testNumberOfEmptyLocations);
+    // Replaying the same batch event by event gives the same world
+    List<GameEvent> events = syntheticEvents(defaultBoard(), 200, 3);
+    SimulationReport report = simulate(w, events);
+    WorldState expected = w;
+    for (GameEvent event : events) {
+        expected = applyEvent(expected, event);
+    }
+    testEqual(200, report.events(), "All events counted");
+    testEqual(true, report.nanos() >= 0, "Time is never negative");
+    testEqual(true, eventsPerSecond(report) >= 0, "Throughput is never negative");
+    testEqual(numberOfMarbles(expected), numberOfMarbles(report.world()), "Same final marble count");
+    testEqual(1000000.0, eventsPerSecond(new SimulationReport(w, 1000, 1000000)), "1000 events in 1 ms");
+    testEqual(0.0, eventsPerSecond(new SimulationReport(w, 0, 0)), "No time: no throughput");
 }
 
-void testRandomColour() {
-    MarbleColour c = randomColour();
-    boolean valid = (c == MarbleColour.BLUE || c == MarbleColour.RED 
-                        || c == MarbleColour.GREEN || c == MarbleColour.BLACK);
-    testEqual(true, valid, "randomColour() must return one of the 4 colours");
+void testSyntheticEvents() {
+    BoardConfig board = defaultBoard();
+    List<GameEvent> events = syntheticEvents(board, 3, 2);
+    testEqual(3, events.size(), "Three events");
+    testEqual(new Click(cellX(board, 0), cellY(board, 0)), events.get(0), "First click on cell 0");
+    testEqual(new Click(cellX(board, 44 % numMarbleCols), cellY(board, 44 / numMarbleCols)), events.get(1),
+        "Second click on cell 7919 % 375 = 44");
+    testEqual(new Press("Space"), events.get(2), "Then a SPACE press");
+    testEqual(0, syntheticEvents(board, 0, 5).size(), "No events");
+    testEqual(List.of(new Press("Space")), syntheticEvents(new BoardConfig(0, 0, marbleRadius), 1, 5),
+        "Empty board: only SPACE presses");
 }
 
-void testConvertToColour() {
-    testEqual(Colour.BLUE, convertToColour(MarbleColour.BLUE), "convert BLUE");
-    testEqual(Colour.RED, convertToColour(MarbleColour.RED), "convert RED");
-    testEqual(Colour.GREEN, convertToColour(MarbleColour.GREEN), "convert GREEN");
-    testEqual(Colour.BLACK, convertToColour(MarbleColour.BLACK), "convert BLACK");
+void testWorldWithFill() {
+    BoardConfig board = defaultBoard();
+    testEqual(0, numberOfEmptyLocations(worldWithFill(board, 1.0)), "Full board");
+    testEqual(0, numberOfMarbles(worldWithFill(board, 0.0)), "Empty board");
+    testEqual(188, numberOfMarbles(worldWithFill(board, 0.5)), "Half of 375 cells emptied");
+    testEqual(0, worldWithFill(new BoardConfig(0, 0, marbleRadius), 0.5).cells().length, "No cells");
 }
 
-void testStep() {
-    WorldState empty = new WorldState(MakeList());
-    testEqual(empty, step(empty), "step() on empty world should not change");
+void testBenchmark() {
+    BoardConfig board = new BoardConfig(4, 5, marbleRadius);
+    BenchmarkResult r = benchmark("numberOfEmptyLocations", board, 0.5, 10, w -> numberOfEmptyLocations(w));
+    testEqual("numberOfEmptyLocations", r.name(), "Name is kept");
+    testEqual(10, r.ops(), "Measured calls");
+    testEqual(true, r.nanos() >= 0, "Time is never negative");
+    testEqual(true, r.allocatedBytes() >= -1, "Allocation is counted or n/a");
+    testEqual(10, benchmarkSink, "Result of the last call is kept");
 
-    WorldState one = new WorldState(MakeList(new Marble(10, 20, MarbleColour.BLUE)));
-    testEqual(one, step(one), "step() on non-empty world should not change");
+    List<BenchmarkResult> all = benchmarkHandlers(board, 1.0, 5);
+    testEqual(List.of("leftClick", "processKeyEvent", "findVacancies", "getInitialState", "numberOfEmptyLocations"),
+        all.stream().map(BenchmarkResult::name).toList(), "One result per handler");
+    testEqual(5, benchmarkHandlers(board, 0.0, 5).size(), "Empty board is measured too");
 
-    WorldState many = new WorldState(
-        MakeList(
-            new Marble(10, 10, MarbleColour.RED),
-            new Marble(30, 40, MarbleColour.GREEN),
-            new Marble(70, 80, MarbleColour.BLACK),
-            new Marble(90, 15, MarbleColour.BLUE)
-        )
-    );
-    testEqual(many, step(many), "step(many) should not change the world");
+    testEqual("h 4x5 fill=0.50: 2.0 ns/op, 500000000 ops/s, 1.5 B/op",
+        formatBenchmark(new BenchmarkResult("h", board, 0.5, 10, 20, 15)), "Report line");
+    testEqual("h 4x5 fill=0.50: 2.0 ns/op, 500000000 ops/s, n/a B/op",
+        formatBenchmark(new BenchmarkResult("h", board, 0.5, 10, 20, -1)), "Allocation not measured");
+}
 
-    WorldState edges = new WorldState(
-        MakeList(
-            new Marble(0, 0, MarbleColour.RED),
-            new Marble(WORLD_WIDTH, 0, MarbleColour.GREEN),
-            new Marble(0, WORLD_HEIGHT, MarbleColour.BLUE)
-        )
-    );
-    testEqual(edges, step(edges), "step(edges) should not move or alter marbles at boundaries");
+void testFirstOccupiedCell() {
+    testEqual(1, firstOccupiedCell(worldFromCells(new BoardConfig(1, 3, marbleRadius),
+        new byte[] {EMPTY, cellOf(MarbleColour.RED), cellOf(MarbleColour.BLUE)})), "Cell 1 is the first marble");
+    testEqual(-1, firstOccupiedCell(emptyWorld(defaultBoard())), "Empty board");
+}
 
+void writeTestLog(Path path, int rows, int cols, int radius, byte[]... records) {
+    ByteBuffer bytes = ByteBuffer.allocate(LOG_HEADER_BYTES + records.length * LOG_RECORD_BYTES);
+    bytes.putInt(LOG_MAGIC).putLong(3).putInt(rows).putInt(cols).putInt(radius)
+        .putInt(CrushMode.REGION.ordinal()).putInt(1);
+    for (byte[] record : records) {
+        bytes.put(record);
+    }
+    bytes.flip();
+    try (FileChannel channel = FileChannel.open(path,
+             StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    } catch (IOException e) {
+        testEqual(true, false, "Test log can be written");
+    }
 }
 
-void testDraw() {
-    Image img = draw(getInitialState());
-    testEqual(false, img == null, "draw should not return null.");
-    
-    Image bg = Rectangle(WORLD_WIDTH, WORLD_HEIGHT, Colour.WHITE);
-    Image res = drawMarbles(MakeList(), bg);
-    testEqual(true, Equals(res, bg), "empty world should equal plain white background.");
+void testMalformedLogs() {
+    Path path = Path.of(System.getProperty("java.io.tmpdir"), "marblecrush-malformed.mclog");
+    byte[] click = {LOG_MOUSE, 0, 0, 0, 0, 0, 0, 10, 0, 0, 0, 10, 0, 0, 0, 0};
+    writeTestLog(path, 3, 4, 10, click);
+    testEqual(true, replay(path) instanceof Something<SimulationReport>, "Well-formed log");
+
+    writeTestLog(path, -1, 4, 10, click);
+    testEqual(new Nothing<SimulationReport>(), replay(path), "Negative rows");
+    writeTestLog(path, 3, 0, 10, click);
+    testEqual(new Nothing<SimulationReport>(), replay(path), "No columns");
+    writeTestLog(path, 3, 4, 0, click);
+    testEqual(new Nothing<SimulationReport>(), replay(path), "No radius");
+    writeTestLog(path, 100000, 100000, 10, click);
+    testEqual(new Nothing<SimulationReport>(), replay(path), "Board too large");
+    writeTestLog(path, 3, 4, 10, new byte[] {LOG_KEY, 0, 100, 'S', 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0});
+    testEqual(new Nothing<SimulationReport>(), replay(path), "Key longer than LOG_KEY_CHARS");
+    writeTestLog(path, 3, 4, 10, new byte[] {LOG_KEY, 0, -1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0});
+    testEqual(new Nothing<SimulationReport>(), replay(path), "Negative key length");
+    writeTestLog(path, 3, 4, 10, click, new byte[] {9, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0});
+    testEqual(new Nothing<SimulationReport>(), replay(path), "Unknown record type");
+
+    // A replay of a REGION session with gravity leaves the seed, rules and history of the game alone
+    long seed = sessionSeed;
+    ColourSource colours = sessionColours;
+    Rules rules = gameRules();
+    Maybe<History> h = history;
+    writeTestLog(path, 3, 4, 10, click, new byte[] {LOG_KEY, 0, 1, 'M', 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0});
+    replay(path);
+    testEqual(seed, sessionSeed, "Seed of the game is kept");
+    testEqual(true, colours == sessionColours, "Colours of the game are kept");
+    testEqual(rules, gameRules(), "Rules of the game are kept");
+    testEqual(true, h == history, "History of the game is kept");
+    path.toFile().delete();
 }
 
+void testEventLog() {
+    Path path = Path.of(System.getProperty("java.io.tmpdir"), "marblecrush-test.mclog");
+    BoardConfig board = new BoardConfig(6, 5, marbleRadius);
+    reseed(7);
+    WorldState w = buildFullBoard(board);
+    switch (openEventLog(path, 7, board)) {
+        case Nothing<EventLog>() -> testEqual(true, false, "Log can be created");
+        case Something<EventLog>(EventLog log) -> {
+            eventLog = new Something<EventLog>(log);
+            // Enough events to fill the buffer several times
+            for (GameEvent event : syntheticEvents(board, 10000, 4)) {
+                switch (event) {
+                    case Click(int x, int y) -> {
+                        w = mouseEvent(w, new MouseEvent(MouseEventKind.LEFT_CLICK, x, y));
+                    }
+                    case Press(String key) -> {
+                        KeyEvent press = new KeyEvent(KeyEventKind.KEY_PRESSED, key);
+                        recordKeyEvent(press);
+                        w = processKeyEvent(w, press.kind(), press.key());
+                    }
+                }
+            }
+            w = mouseEvent(w, new MouseEvent(MouseEventKind.RIGHT_CLICK, 10, 10));
+            recordKeyEvent(new KeyEvent(KeyEventKind.KEY_PRESSED, "AVeryLongKeyNameIndeed"));
+            testEqual(true, closeEventLog(log), "Log is written and closed");
+            eventLog = new Nothing<EventLog>();
+        }
+    }
+    testEqual((long) LOG_HEADER_BYTES + (10002L + 8001L) * LOG_RECORD_BYTES, path.toFile().length(),
+        "Header, one record per event and a frame marker per mouse event");
 
-void testGetInitialState() {
-    // Case 1: Normal case
-    WorldState init = getInitialState();
-    int expectedCount = numMarbleRows * numMarbleCols;
-    testEqual(expectedCount, Length(init.marbles()),
-        "initial state should have rows * cols marbles");
+    // Replaying from the seed gives the same final world
+    switch (replay(path)) {
+        case Nothing<SimulationReport>() -> testEqual(true, false, "Log can be replayed");
+        case Something<SimulationReport>(SimulationReport r) -> {
+            testEqual(10002, r.events(), "Every event is replayed");
+            testEqual(board, r.world().board(), "Board of the session");
+            testEqual(true, Arrays.equals(w.cells(), r.world().cells()), "Same final cells");
+        }
+    }
+    path.toFile().delete();
+    testEqual(new Nothing<SimulationReport>(), replay(path), "Missing log");
+    testEqual(new Nothing<EventLog>(), openEventLog(Path.of("/no/such/directory/log"), 7, board), "Log cannot be created");
+}
 
-    // Case 2: Edge case (0 rows or 0 cols: empty world)
-    WorldState emptyInit = new WorldState(MakeList());
-    testEqual(true, Equals(Length(emptyInit.marbles()), 0),
-        "if no rows or cols, initial state should be empty");
+void testReseed() {
+    reseed(42);
+    MarbleColour[] first = {randomColour(), randomColour(), randomColour(), randomColour()};
+    reseed(42);
+    MarbleColour[] again = {randomColour(), randomColour(), randomColour(), randomColour()};
+    testEqual(true, Arrays.equals(first, again), "Same seed, same colours");
+    testEqual(42L, sessionSeed, "Seed is kept");
+}
 
-    // Case 3: Sanity check (length is never negative)
-    testEqual(true, Length(init.marbles()) >= 0,
-        "initial state marble count should never be negative");
+void testColourSource() {
+    // 32 colours are taken from each 64-bit draw, 2 bits at a time
+    long bits = new SplittableRandom(5).nextLong();
+    ColourSource source = new ColourSource(5);
+    boolean sameBits = true;
+    for (int i = 0; i < 32; i++) {
+        sameBits = sameBits && source.nextOrdinal() == (int) ((bits >>> (2 * i)) & 3);
+    }
+    testEqual(true, sameBits, "Colours are the 2-bit groups of one draw");
+
+    // Same seed, same colours; a split source has its own stream
+    ColourSource a = new ColourSource(9);
+    ColourSource b = new ColourSource(9);
+    ColourSource c = new ColourSource(9).split();
+    boolean same = true;
+    boolean differs = false;
+    for (int i = 0; i < 200; i++) {
+        int x = a.nextOrdinal();
+        same = same && x == b.nextOrdinal();
+        differs = differs || x != c.nextOrdinal();
+    }
+    testEqual(true, same, "Same seed gives the same colours");
+    testEqual(true, differs, "Split source gives other colours");
+    testEqual(MARBLE_COLOURS[new ColourSource(3).nextOrdinal()], randomColour(new ColourSource(3)), "randomColour uses the source");
 }
 
-void testMarblesFromPositions() {
-    // Case 1: Empty input: should return empty list
-    ConsList<Pair<Integer,Integer>> emptyPos = MakeList();
-    ConsList<Marble> resultEmpty = marblesFromPositions(emptyPos, MakeList());
-    testEqual(0, Length(resultEmpty), "empty positions should give no marbles");
+void testSeededBoards() {
+    BoardConfig board = new BoardConfig(10, 10, marbleRadius);
+    testEqual(true, Arrays.equals(buildFullBoard(board, new ColourSource(1)).cells(),
+        buildFullBoard(board, new ColourSource(1)).cells()), "Seeded full boards are equal");
+    testEqual(true, Arrays.equals(getInitialState(new ColourSource(2)).cells(),
+        getInitialState(new ColourSource(2)).cells()), "Seeded initial states are equal");
 
-    // Case 2: Single position: produces exactly one marble with same x,y
-    ConsList<Pair<Integer,Integer>> onePos = MakeList(new Pair<Integer,Integer>(10,20));
-    ConsList<Marble> resultOne = marblesFromPositions(onePos, MakeList());
-    testEqual(1, Length(resultOne), "one position should give one marble");
-    testEqual(10, Nth(resultOne,0).x(), "x coordinate matches input");
-    testEqual(20, Nth(resultOne,0).y(), "y coordinate matches input");
+    WorldState crushed = crushColour(buildFullBoard(board, new ColourSource(1)), cellOf(MarbleColour.RED));
+    testEqual(true, Arrays.equals(fillEmptyCells(crushed, new ColourSource(4)).cells(),
+        fillEmptyCells(crushed, new ColourSource(4)).cells()), "Seeded refills are equal");
 
-    // Case 3: Multiple positions: produces same number of marbles in same order
-    ConsList<Pair<Integer,Integer>> twoPos = MakeList(
-        new Pair<Integer,Integer>(5, 5),new Pair<Integer,Integer>(100, 200));
-    ConsList<Marble> resultTwo = marblesFromPositions(twoPos, MakeList());
-    testEqual(2, Length(resultTwo), "two positions should give two marbles");
-    testEqual(5, Nth(resultTwo,0).x(), "first marble x");
-    testEqual(5, Nth(resultTwo,0).y(), "first marble y");
-    testEqual(100, Nth(resultTwo,1).x(), "second marble x");
-    testEqual(200, Nth(resultTwo,1).y(), "second marble y");
+    ConsList<Pair<Integer,Integer>> positions = MakeList(new Pair<Integer,Integer>(10, 10), new Pair<Integer,Integer>(30, 10));
+    testEqual(marblesFromPositions(positions, MakeList(), new ColourSource(6)),
+        marblesFromPositions(positions, MakeList(), new ColourSource(6)), "Seeded marblesFromPositions");
+    testEqual(addMarblesAtVacancies(positions, MakeList(), new ColourSource(6)),
+        marblesFromPositions(positions, MakeList(), new ColourSource(6)), "Seeded addMarblesAtVacancies");
+}
 
-    // Case 4: Boundary positions
-    ConsList<Pair<Integer,Integer>> edgePos = MakeList(
-        new Pair<Integer,Integer>(0, 0), new Pair<Integer,Integer>(WORLD_WIDTH, WORLD_HEIGHT));
-    ConsList<Marble> resultEdges = marblesFromPositions(edgePos, MakeList());
-    testEqual(2, Length(resultEdges), "two edge positions → two marbles");
-    testEqual(0, Nth(resultEdges,0).x(), "left/top corner x");
-    testEqual(0, Nth(resultEdges,0).y(), "left/top corner y");
-    testEqual(WORLD_WIDTH, Nth(resultEdges,1).x(), "right/bottom corner x");
-    testEqual(WORLD_HEIGHT, Nth(resultEdges,1).y(), "right/bottom corner y");
+void testParallelRefill() {
+    int threshold = PARALLEL_REFILL_THRESHOLD;
+    int stripe = REFILL_STRIPE_CELLS;
+    // The thresholds are restored even if a check throws, so later tests see the defaults
+    try {
+        PARALLEL_REFILL_THRESHOLD = 0;
+        REFILL_STRIPE_CELLS = 35;
+
+        // 3 rows per stripe of a 20x12 board: 7 stripes, the last one of 2 rows
+        BoardConfig board = new BoardConfig(20, 12, marbleRadius);
+        WorldState crushed = crushColour(buildFullBoard(board, new ColourSource(1)), cellOf(MarbleColour.BLUE));
+        WorldState filled = fillEmptyCells(crushed, new ColourSource(2));
+        testEqual(0, numberOfEmptyLocations(filled), "Every vacancy is filled");
+        int total = 0;
+        boolean countsMatch = true;
+        for (MarbleColour colour : MARBLE_COLOURS) {
+            int counted = 0;
+            for (byte cell : filled.cells()) {
+                counted += (cell == cellOf(colour)) ? 1 : 0;
+            }
+            countsMatch = countsMatch && counted == filled.colourCounts()[cellOf(colour)];
+            total += counted;
+        }
+        testEqual(true, countsMatch, "Colour counts match the cells");
+        testEqual(240, total, "240 marbles");
+        boolean kept = true;
+        for (int i = 0; i < crushed.cells().length; i++) {
+            kept = kept && (crushed.cells()[i] == EMPTY || crushed.cells()[i] == filled.cells()[i]);
+        }
+        testEqual(true, kept, "Occupied cells keep their marble");
+        testEqual(true, Arrays.equals(filled.cells(), fillEmptyCells(crushed, new ColourSource(2)).cells()),
+            "Seeded parallel refills are equal");
+
+        // A single stripe holding the whole board
+        REFILL_STRIPE_CELLS = 1 << 16;
+        testEqual(0, numberOfEmptyLocations(fillEmptyCells(crushed, new ColourSource(2))), "One stripe fills the board");
+        testEqual(0, numberOfEmptyLocations(fillEmptyCells(emptyWorld(new BoardConfig(7, 3, marbleRadius)))),
+            "Empty board is filled");
+    } finally {
+        PARALLEL_REFILL_THRESHOLD = threshold;
+        REFILL_STRIPE_CELLS = stripe;
+    }
+    WorldState big = fillEmptyCells(emptyWorld(new BoardConfig(1000, 1000, marbleRadius)), new ColourSource(3));
+    testEqual(1000000, numberOfMarbles(big), "Large board is filled in parallel");
 }
 
+void testApplyBatch() {
+    WorldState w = worldFromMarbles(MakeList(
+        new Marble(10, 10, MarbleColour.RED), new Marble(30, 10, MarbleColour.BLUE), new Marble(50, 10, MarbleColour.RED)));
+    testEqual(true, applyBatch(w, List.of(), new ColourSource(1)) == w, "Empty batch: unchanged");
+    testEqual(true, applyBatch(w, List.of(new Click(9999, 9999), new Press("A")), new ColourSource(1)) == w,
+        "Only no-ops: unchanged");
 
-void testKeyEvent() {
-    // Prepare a partially-filled world: occupy 1 known grid position.
-    ConsList<Pair<Integer,Integer>> all =
-        generateAllMarblesCenterPositionRecursively(marbleRadius, numMarbleRows, numMarbleCols);
-    Pair<Integer,Integer> p0 = Nth(all, 0); // first grid position
-    ConsList<Marble> partial = MakeList(new Marble(p0.first(), p0.second(), MarbleColour.BLUE));
-    WorldState w = new WorldState(partial);
+    // The second click hits the cell emptied by the first one
+    WorldState crushed = applyBatch(w, List.of(new Click(10, 10), new Click(10, 10)), new ColourSource(1));
+    testEqual(MakeList(new Marble(30, 10, MarbleColour.BLUE)), marbles(crushed), "RED is crushed once");
+    testEqual(0, numberOfMarblesOfColour(crushed, Colour.RED), "No RED left");
+    testEqual(numMarbleRows * numMarbleCols - 1, numberOfEmptyLocations(crushed), "Vacancies are rebuilt");
 
-    int total = numMarbleRows * numMarbleCols;
-    int before = Length(w.marbles());
+    WorldState full = buildFullBoard(defaultBoard(), new ColourSource(2));
+    testEqual(true, applyBatch(full, List.of(new Press("Space"), new Press("Space")), new ColourSource(1)) == full,
+        "SPACE on a full board: unchanged");
 
-    // SPACE (KEY_PRESSED + "Space") should fill all vacancies
-    KeyEvent space = new KeyEvent(KeyEventKind.KEY_PRESSED, "Space");
-    WorldState afterSpace = keyEvent(w, space);
-    testEqual(total, Length(afterSpace.marbles()),
-        "SPACE should fill all vacancies (length == rows*cols)");
+    // Same result as applying the events one by one with the same colours
+    List<GameEvent> events = syntheticEvents(defaultBoard(), 500, 3);
+    reseed(11);
+    WorldState expected = simulate(full, events).world();
+    WorldState batched = applyBatch(full, events, new ColourSource(11));
+    testEqual(true, Arrays.equals(expected.cells(), batched.cells()), "Batch matches one-by-one");
+    testEqual(true, Arrays.equals(expected.vacancies(), batched.vacancies()), "Same vacancies");
+    testEqual(true, Arrays.equals(expected.colourCounts(), batched.colourCounts()), "Same colour counts");
 
-    // Non-space key should keep world unchanged in size
-    KeyEvent other = new KeyEvent(KeyEventKind.KEY_PRESSED, "A");
-    WorldState afterOther = keyEvent(w, other);
-    testEqual(before, Length(afterOther.marbles()),
-        "Non-space key should leave world unchanged in size");
+    // On a board with more vacancies than PARALLEL_REFILL_THRESHOLD the refill is striped,
+    // and a batch still gets the same colours as one event at a time
+    BoardConfig large = new BoardConfig(300, 300, marbleRadius);
+    List<GameEvent> refills = List.of(new Press("Space"), new Click(10, 10), new Press(GRAVITY_KEY),
+        new Click(cellX(large, 150), cellY(large, 150)), new Press(CRUSH_MODE_KEY), new Click(10, 10), new Press("Space"));
+    WorldState oneByOne = emptyWorld(large);
+    Rules rules = new Rules(CrushMode.COLOUR, false);
+    ColourSource colours = new ColourSource(12);
+    for (GameEvent event : refills) {
+        switch (event) {
+            case Click(int x, int y) -> {
+                oneByOne = clickAt(oneByOne, rules, x, y);
+            }
+            case Press(String key) -> {
+                rules = switchedRules(rules, key);
+                oneByOne = Equals(key, "Space") ? fillEmptyCells(oneByOne, colours) : oneByOne;
+            }
+        }
+    }
+    testEqual(true, large.rows() * large.cols() >= PARALLEL_REFILL_THRESHOLD, "Board is above the threshold");
+    Played inBatch = applyBatch(emptyWorld(large), new Rules(CrushMode.COLOUR, false), refills, new ColourSource(12));
+    testEqual(true, Arrays.equals(oneByOne.cells(), inBatch.world().cells()), "Large batch matches one-by-one");
+    testEqual(true, Arrays.equals(oneByOne.vacancies(), inBatch.world().vacancies()), "Large batch: same vacancies");
+    testEqual(true, Arrays.equals(oneByOne.colourCounts(), inBatch.world().colourCounts()), "Large batch: same colour counts");
+    testEqual(rules, inBatch.rules(), "Large batch: same rules");
+}
 
-    // Wrong kind (e.g., KEY_RELEASED "Space") should not trigger fill
-    KeyEvent releasedSpace = new KeyEvent(KeyEventKind.KEY_RELEASED, "Space");
-    WorldState afterReleased = keyEvent(w, releasedSpace);
-    testEqual(before, Length(afterReleased.marbles()),
-        "KEY_RELEASED Space should not change the world");
+void testBatchInput() {
+    WorldState w = worldFromMarbles(MakeList(
+        new Marble(10, 10, MarbleColour.RED), new Marble(30, 10, MarbleColour.BLUE)));
+    batchInput = true;
+    WorldState afterClick = mouseEvent(w, new MouseEvent(MouseEventKind.LEFT_CLICK, 10, 10));
+    WorldState afterMove = mouseEvent(afterClick, new MouseEvent(MouseEventKind.RIGHT_CLICK, 30, 10));
+    WorldState afterKey = keyEvent(afterMove, new KeyEvent(KeyEventKind.KEY_RELEASED, "Space"));
+    testEqual(true, afterKey == w, "Events are queued, the world is unchanged");
+    testEqual(List.of(new Click(10, 10)), pendingEvents, "Only the left click is queued");
+
+    WorldState next = step(afterKey);
+    testEqual(MakeList(new Marble(30, 10, MarbleColour.BLUE)), marbles(next), "step applies the batch");
+    testEqual(true, pendingEvents.isEmpty(), "Queue is emptied");
+    testEqual(true, step(next) == next, "Nothing queued: unchanged");
+    batchInput = false;
 }
 
-void testProcessKeyEvent() {
-    ConsList<Pair<Integer,Integer>> all =
-        generateAllMarblesCenterPositionRecursively(marbleRadius, numMarbleRows, numMarbleCols);
+void testSnapshotOf() {
+    BoardConfig board = new BoardConfig(40, 3, marbleRadius);
+    WorldState w = buildFullBoard(board, new ColourSource(1));
+    Snapshot first = snapshotOf(w, new Nothing<Snapshot>());
+    testEqual(2, first.chunks().length, "40 rows: chunks of 32 and 8 rows");
+    testEqual(8, first.chunks()[1].length, "Last chunk is shorter");
+    testEqual(true, Arrays.equals(w.cells(), worldFromSnapshot(first).cells()), "Snapshot keeps the cells");
+    testEqual(true, Arrays.equals(w.colourCounts(), worldFromSnapshot(first).colourCounts()), "Counts are kept");
+    testEqual(true, worldFromSnapshot(first).vacancies() == w.vacancies(), "Index is kept, not rebuilt");
 
-    ConsList<Marble> full =
-        marblesFromPositions(all, MakeList());  
+    // Change row 35 only: the first chunk and the other rows are shared
+    byte[] cells = w.cells().clone();
+    cells[35 * 3] = EMPTY;
+    WorldState changed = worldFromCells(board, cells);
+    Snapshot second = snapshotOf(changed, new Something<Snapshot>(first));
+    testEqual(true, second.chunks()[0] == first.chunks()[0], "Unchanged chunk is shared");
+    testEqual(true, second.chunks()[1] != first.chunks()[1], "Changed chunk is new");
+    testEqual(true, second.chunks()[1][0] == first.chunks()[1][0], "Unchanged row is shared");
+    testEqual(true, second.chunks()[1][3] != first.chunks()[1][3], "Changed row is copied");
+    testEqual(true, Arrays.equals(cells, worldFromSnapshot(second).cells()), "Second snapshot keeps its cells");
+    testEqual(true, Arrays.equals(w.cells(), worldFromSnapshot(first).cells()), "First snapshot is not modified");
 
-    WorldState fullWorld = new WorldState(full);
-        int total = numMarbleRows * numMarbleCols;
+    Snapshot other = snapshotOf(emptyWorld(new BoardConfig(2, 2, marbleRadius)), new Something<Snapshot>(first));
+    testEqual(0, numberOfMarbles(worldFromSnapshot(other)), "Other board shares nothing");
 
-    // SPACE on full world: still full
-    WorldState ws1 = processKeyEvent(fullWorld, KeyEventKind.KEY_PRESSED, "Space");
-    testEqual(total, Length(ws1.marbles()),
-        "SPACE on full world should keep it full (no vacancies to fill)");
+    // With the changed rows given, the other rows are shared without being compared
+    boolean[] row35 = new boolean[40];
+    row35[35] = true;
+    testEqual(true, Arrays.equals(row35, changedRows(withEmptyRow(w, 35), new Something<Snapshot>(first))), "Row 35 changed");
+    Snapshot hinted = snapshotOf(withEmptyRow(w, 35), new Something<Snapshot>(first), row35);
+    testEqual(true, hinted.chunks()[0] == first.chunks()[0], "Hinted: unchanged chunk is shared");
+    testEqual(true, hinted.chunks()[1][3] != first.chunks()[1][3], "Hinted: changed row is copied");
+    testEqual(true, Arrays.equals(cells, worldFromSnapshot(hinted).cells()), "Hinted snapshot keeps its cells");
 
-    // Wrong key or wrong kind: unchanged
-    WorldState ws2 = processKeyEvent(fullWorld, KeyEventKind.KEY_PRESSED, "X");
-    testEqual(total, Length(ws2.marbles()),
-        "Non-space key should not change a full world");
+    // A batch marks the rows it changed, and the history shares the others
+    WorldState small = worldFromCells(new BoardConfig(3, 2, marbleRadius),
+        new byte[] {cellOf(MarbleColour.BLUE), cellOf(MarbleColour.GREEN), cellOf(MarbleColour.RED), cellOf(MarbleColour.GREEN),
+            cellOf(MarbleColour.BLUE), cellOf(MarbleColour.BLUE)});
+    Played click = applyBatch(small, new Rules(CrushMode.COLOUR, false), List.of(new Click(30, 10)), new ColourSource(1));
+    testEqual(true, Arrays.equals(new boolean[] {true, true, false}, click.changedRows()), "GREEN rows are marked");
+    Played fall = applyBatch(small, new Rules(CrushMode.COLOUR, true), List.of(new Click(10, 30)), new ColourSource(1));
+    testEqual(true, Arrays.equals(new boolean[] {true, true, false}, fall.changedRows()), "Rows above the crush are marked");
+    testEqual(true, Arrays.equals(changedRows(fall.world(), new Something<Snapshot>(snapshotOf(small, new Nothing<Snapshot>()))),
+        new boolean[] {true, true, false}), "Marked rows are the changed ones");
+}
 
-    WorldState ws3 = processKeyEvent(fullWorld, KeyEventKind.KEY_RELEASED, "Space");
-    testEqual(total, Length(ws3.marbles()),
-        "KEY_RELEASED Space should not change a full world");
+WorldState withEmptyRow(WorldState w, int row) {
+    byte[] cells = w.cells().clone();
+    cells[row * w.board().cols()] = EMPTY;
+    return worldFromCells(w.board(), cells);
 }
 
-void testFindVacancies() {
-    // Start with empty world: all positions are vacant
-    ConsList<Marble> none = MakeList();
-    ConsList<Pair<Integer,Integer>> v1 = findVacancies(none);
-    int total = numMarbleRows * numMarbleCols;
-    testEqual(total, Length(v1), "Empty world: all positions vacant");
+void testHistory() {
+    WorldState w0 = buildFullBoard(defaultBoard(), new ColourSource(1));
+    WorldState w1 = crushColour(w0, cellOf(MarbleColour.RED));
+    WorldState w2 = fillEmptyCells(w1, new ColourSource(2));
+    History h = pushHistory(pushHistory(startHistory(w0), w1), w2);
+    testEqual(true, Arrays.equals(w2.cells(), worldFromSnapshot(h.current()).cells()), "Current is w2");
 
-    // Occupy one known position: vacancies = total-1, and not containing that position
-    ConsList<Pair<Integer,Integer>> all =
-        generateAllMarblesCenterPositionRecursively(marbleRadius, numMarbleRows, numMarbleCols);
-    Pair<Integer,Integer> p0 = Nth(all, 0);
-    ConsList<Marble> one = MakeList(new Marble(p0.first(), p0.second(), MarbleColour.RED));
-    ConsList<Pair<Integer,Integer>> v2 = findVacancies(one);
-    testEqual(total - 1, Length(v2), "One occupied: vacancies == total-1");
-    testEqual(false, containsPos(v2, p0), "Vacancies should not contain occupied p0");
+    History back = switch (undo(h)) {
+        case Nothing<History>() -> h;
+        case Something<History>(History u) -> u;
+    };
+    testEqual(true, Arrays.equals(w1.cells(), worldFromSnapshot(back.current()).cells()), "Undo gives w1");
+    History forward = switch (redo(back)) {
+        case Nothing<History>() -> back;
+        case Something<History>(History r) -> r;
+    };
+    testEqual(true, forward.current() == h.current(), "Redo gives the same snapshot back");
+    testEqual(new Nothing<History>(), redo(h), "Nothing to redo");
+    testEqual(new Nothing<History>(), undo(startHistory(w0)), "Nothing to undo");
 
-    // If we occupy two positions, both must be removed from vacancies
-    Pair<Integer,Integer> p1 = Nth(all, 1);
-    ConsList<Marble> two = MakeList(new Marble(p0.first(), p0.second(), MarbleColour.RED),
-                                    new Marble(p1.first(), p1.second(), MarbleColour.BLUE));
-    ConsList<Pair<Integer,Integer>> v3 = findVacancies(two);
-    testEqual(total - 2, Length(v3), "Two occupied: vacancies == total-2");
-    testEqual(false, containsPos(v3, p0), "Vacancies should not contain p0");
-    testEqual(false, containsPos(v3, p1), "Vacancies should not contain p1");
+    // A new change after an undo drops the redo stack
+    History branched = pushHistory(back, w0);
+    testEqual(new Nothing<History>(), redo(branched), "Redo stack is dropped");
 }
 
-void testGenerateAllPositions() {
-    // Use a tiny grid to verify exact coordinates (r=10, rows=2, cols=3)
-    int r = 10, rows = 2, cols = 3;
-    ConsList<Pair<Integer,Integer>> expect =
-        MakeList(new Pair<Integer,Integer>(10,10),
-                 new Pair<Integer,Integer>(30,10),
-                 new Pair<Integer,Integer>(50,10),
-                 new Pair<Integer,Integer>(10,30),
-                 new Pair<Integer,Integer>(30,30),
-                 new Pair<Integer,Integer>(50,30));
+void testUndoRedoKeys() {
+    history = new Nothing<History>();
+    WorldState w = worldFromMarbles(MakeList(
+        new Marble(10, 10, MarbleColour.RED), new Marble(30, 10, MarbleColour.BLUE)));
+    testEqual(true, applyKey(w, KeyEventKind.KEY_PRESSED, UNDO_KEY) == w, "Nothing to undo");
+    WorldState crushed = mouseEvent(w, new MouseEvent(MouseEventKind.LEFT_CLICK, 10, 10));
+    WorldState undone = applyKey(crushed, KeyEventKind.KEY_PRESSED, UNDO_KEY);
+    testEqual(marbles(w), marbles(undone), "Undo brings RED back");
+    WorldState redone = applyKey(undone, KeyEventKind.KEY_PRESSED, REDO_KEY);
+    testEqual(marbles(crushed), marbles(redone), "Redo crushes RED again");
 
-    ConsList<Pair<Integer,Integer>> got = generateAllMarblesCenterPositionRecursively(r, rows, cols);
-    testEqual(true, Equals(expect, got), "generateAllMarblesCenterPositionRecursively should match row-major grid");
+    // In a frame, undo steps back over the events before it
+    history = new Nothing<History>();
+    WorldState framed = applyFrame(w, gameRules(), List.of(new Click(10, 10), new Click(30, 10), new Press(UNDO_KEY)),
+        new ColourSource(1)).world();
+    testEqual(marbles(w), marbles(framed), "Undo in a frame undoes the whole batch before it");
+    testEqual(marbles(crushed), marbles(applyFrame(w, gameRules(), List.of(new Click(10, 10)), new ColourSource(1)).world()),
+        "Frame without undo");
+    history = new Nothing<History>();
+}
 
-    // Helper base case: if row >= rows, returns acc unchanged
-    ConsList<Pair<Integer,Integer>> acc = MakeList(new Pair<Integer,Integer>(1,1));
-    ConsList<Pair<Integer,Integer>> base = generateAllGridCentersRecursively(r, rows, 0, rows, cols, acc);
-    testEqual(true, Equals(acc, base), "generateAllGridCentersRecursively base case should return acc");
+void testFloodFill() {
+    byte R = cellOf(MarbleColour.RED);
+    byte B = cellOf(MarbleColour.BLUE);
+    byte[] square = {R, R, B, R};
+    testEqual(3, floodFill(square, new BoardConfig(2, 2, marbleRadius), 0, 3), "Three connected REDs");
+    testEqual(true, Arrays.equals(new byte[] {EMPTY, EMPTY, B, EMPTY}, square), "Region is emptied");
+
+    // No wrapping from the end of a row to the start of the next one
+    byte[] wrap = {B, R, R, B};
+    testEqual(1, floodFill(wrap, new BoardConfig(2, 2, marbleRadius), 1, 2), "Diagonal is not connected");
+    testEqual(true, Arrays.equals(new byte[] {B, EMPTY, R, B}, wrap), "Only the start is emptied");
+    byte[] line = {R, B, R};
+    testEqual(1, floodFill(line, new BoardConfig(1, 3, marbleRadius), 0, 2), "Separated by BLUE");
 }
 
-void testPositionsFromMarbles() {
-    // Empty
-    ConsList<Pair<Integer,Integer>> p0 = positionsFromMarbles(MakeList());
-    testEqual(0, Length(p0), "Empty marbles: empty positions");
+void testCrushRegion() {
+    byte R = cellOf(MarbleColour.RED);
+    byte B = cellOf(MarbleColour.BLUE);
+    WorldState w = worldFromCells(new BoardConfig(1, 4, marbleRadius), new byte[] {R, R, B, R});
+    WorldState crushed = crushRegion(w, 1);
+    testEqual(true, Arrays.equals(new byte[] {EMPTY, EMPTY, B, R}, crushed.cells()), "Left REDs are crushed");
+    testEqual(true, Arrays.equals(new int[] {0, 1}, crushed.vacancies()), "Vacancies in increasing order");
+    testEqual(1, crushed.colourCounts()[R], "One RED left");
 
-    // One
-    Marble m1 = new Marble(10, 20, MarbleColour.BLUE);
-    ConsList<Pair<Integer,Integer>> p1 = positionsFromMarbles(MakeList(m1));
-    testEqual(1, Length(p1), "One marble: one position");
-    testEqual(true, Equals(new Pair<Integer,Integer>(10,20), Nth(p1,0)), "Position equals (10,20)");
+    // The crush mode decides what a click removes
+    crushMode = CrushMode.REGION;
+    testEqual(true, Arrays.equals(crushed.cells(), clickAt(w, 10, 10).cells()), "REGION mode click");
+    testEqual(true, Arrays.equals(crushed.cells(), applyBatch(w, List.of(new Click(10, 10)), new ColourSource(1)).cells()),
+        "REGION mode in a batch");
+    crushMode = CrushMode.COLOUR;
+    testEqual(0, clickAt(w, 10, 10).colourCounts()[R], "COLOUR mode click");
 
-    // Many (preserve order)
-    Marble m2 = new Marble(30, 40, MarbleColour.RED);
-    Marble m3 = new Marble(50, 60, MarbleColour.GREEN);
-    ConsList<Pair<Integer,Integer>> p = positionsFromMarbles(MakeList(m1, m2, m3));
-    testEqual(3, Length(p), "Three marbles: three positions");
-    testEqual(true, Equals(new Pair<Integer,Integer>(10,20), Nth(p,0)), "pos[0] == (10,20)");
-    testEqual(true, Equals(new Pair<Integer,Integer>(30,40), Nth(p,1)), "pos[1] == (30,40)");
-    testEqual(true, Equals(new Pair<Integer,Integer>(50,60), Nth(p,2)), "pos[2] == (50,60)");
+    // A 1000x1000 board at 90% one colour: every tenth row is BLUE but for its first cell,
+    // so the REDs form one winding region of 900100 cells, crushed without recursion
+    BoardConfig board = new BoardConfig(1000, 1000, marbleRadius);
+    byte[] cells = new byte[1000 * 1000];
+    for (int i = 0; i < cells.length; i++) {
+        cells[i] = (i / 1000 % 10 == 9 && i % 1000 != 0) ? B : R;
+    }
+    WorldState big = crushRegion(worldFromCells(board, cells), 0);
+    testEqual(900100, numberOfEmptyLocations(big), "Whole RED region is crushed");
+    testEqual(0, big.colourCounts()[R], "No RED left");
 }
 
-void testSubtractPositions() {
-    ConsList<Pair<Integer,Integer>> all =
-        MakeList(new Pair<Integer,Integer>(10,10),
-                 new Pair<Integer,Integer>(30,10),
-                 new Pair<Integer,Integer>(50,10));
+void testCrushModeKey() {
+    byte R = cellOf(MarbleColour.RED);
+    byte B = cellOf(MarbleColour.BLUE);
+    WorldState w = worldFromCells(new BoardConfig(1, 4, marbleRadius), new byte[] {R, R, B, R});
+    testEqual(false, switchRule("Space"), "SPACE is not a rule key");
+    testEqual(true, applyKey(w, KeyEventKind.KEY_PRESSED, CRUSH_MODE_KEY) == w, "Mode key leaves the world");
+    testEqual(CrushMode.REGION, crushMode, "Mode key switches to REGION");
+    testEqual(true, switchRule(CRUSH_MODE_KEY), "Mode key is a rule key");
+    testEqual(CrushMode.COLOUR, crushMode, "and back to COLOUR");
 
-    // No occupied: get all
-    ConsList<Pair<Integer,Integer>> occ0 = MakeList();
-    ConsList<Pair<Integer,Integer>> v0 = subtractPositions(all, occ0);
-    testEqual(true, Equals(all, v0), "No occupied: vacancies == all");
+    testEqual(new Rules(CrushMode.REGION, false), switchedRules(new Rules(CrushMode.COLOUR, false), CRUSH_MODE_KEY),
+        "Mode key switches the rules");
+    testEqual(new Rules(CrushMode.COLOUR, true), switchedRules(new Rules(CrushMode.COLOUR, false), GRAVITY_KEY),
+        "Gravity key switches the rules");
 
-    // Occupy middle
-    ConsList<Pair<Integer,Integer>> occ1 = MakeList(new Pair<Integer,Integer>(30,10));
-    ConsList<Pair<Integer,Integer>> v1 = subtractPositions(all, occ1);
-    ConsList<Pair<Integer,Integer>> exp1 =
-        MakeList(new Pair<Integer,Integer>(10,10), new Pair<Integer,Integer>(50,10));
-    testEqual(true, Equals(exp1, v1), "Occupied {30,10}: vacancies exclude it, preserve order");
+    // In a batch, the clicks after the key use the new mode, and the game keeps its own
+    Played batched = applyBatch(w, new Rules(CrushMode.COLOUR, false), List.of(new Press(CRUSH_MODE_KEY), new Click(10, 10)),
+        new ColourSource(1));
+    testEqual(true, Arrays.equals(new byte[] {EMPTY, EMPTY, B, R}, batched.world().cells()), "REGION click after the key");
+    testEqual(new Rules(CrushMode.REGION, false), batched.rules(), "Batch returns the switched mode");
+    testEqual(CrushMode.COLOUR, crushMode, "Batch leaves the mode of the game");
 
-    // Occupy all
-    ConsList<Pair<Integer,Integer>> occAll =
-        MakeList(new Pair<Integer,Integer>(10,10),
-                 new Pair<Integer,Integer>(30,10),
-                 new Pair<Integer,Integer>(50,10));
-    ConsList<Pair<Integer,Integer>> vAll = subtractPositions(all, occAll);
-    testEqual(0, Length(vAll), "Occupied all: vacancies empty");
+    // step commits the rules switched by the queued keys
+    pendingEvents.add(new Press(CRUSH_MODE_KEY));
+    step(w);
+    testEqual(CrushMode.REGION, crushMode, "step commits the switched mode");
+    crushMode = CrushMode.COLOUR;
+    history = new Nothing<History>();
+
+    // A session started in REGION mode replays in REGION mode
+    Path path = Path.of(System.getProperty("java.io.tmpdir"), "marblecrush-mode.mclog");
+    BoardConfig board = new BoardConfig(6, 5, marbleRadius);
+    reseed(9);
+    WorldState played = buildFullBoard(board);
+    switch (openEventLog(path, 9, board)) {
+        case Nothing<EventLog>() -> testEqual(true, false, "Log can be created");
+        case Something<EventLog>(EventLog log) -> {
+            eventLog = new Something<EventLog>(log);
+            for (GameEvent event : syntheticEvents(board, 50, 3)) {
+                played = switch (event) {
+                    case Click(int x, int y) -> mouseEvent(played, new MouseEvent(MouseEventKind.LEFT_CLICK, x, y));
+                    case Press(String key) -> keyEvent(played, new KeyEvent(KeyEventKind.KEY_PRESSED, key));
+                };
+            }
+            played = keyEvent(played, new KeyEvent(KeyEventKind.KEY_PRESSED, CRUSH_MODE_KEY));
+            played = mouseEvent(played, new MouseEvent(MouseEventKind.LEFT_CLICK, 10, 10));
+            closeEventLog(log);
+            eventLog = new Nothing<EventLog>();
+        }
+    }
+    crushMode = CrushMode.COLOUR;
+    switch (replay(path)) {
+        case Nothing<SimulationReport>() -> testEqual(true, false, "Log can be replayed");
+        case Something<SimulationReport>(SimulationReport r) -> {
+            testEqual(true, Arrays.equals(played.cells(), r.world().cells()), "Replay uses the logged mode and its switch");
+        }
+    }
+    testEqual(CrushMode.COLOUR, crushMode, "Replay leaves the mode of the game");
+    path.toFile().delete();
+    crushMode = CrushMode.COLOUR;
+    history = new Nothing<History>();
 }
 
-void testContainsPos() {
-    ConsList<Pair<Integer,Integer>> ps =
-        MakeList(new Pair<Integer,Integer>(1,1),
-                 new Pair<Integer,Integer>(2,2),
-                 new Pair<Integer,Integer>(3,3));
+void testCompactColumns() {
+    byte R = cellOf(MarbleColour.RED);
+    byte B = cellOf(MarbleColour.BLUE);
+    byte G = cellOf(MarbleColour.GREEN);
+    byte[] cells = {R, EMPTY, EMPTY, B, B, EMPTY};
+    int[] gaps = compactColumns(cells, new BoardConfig(3, 2, marbleRadius));
+    testEqual(true, Arrays.equals(new byte[] {EMPTY, EMPTY, R, EMPTY, B, B}, cells), "Marbles fall to the bottom");
+    testEqual(true, Arrays.equals(new int[] {1, 2}, gaps), "Gap at the top of each column");
 
-    testEqual(true,  containsPos(ps, new Pair<Integer,Integer>(2,2)), "Should find existing (2,2)");
-    testEqual(false, containsPos(ps, new Pair<Integer,Integer>(4,4)), "Should not find absent (4,4)");
-    testEqual(false, containsPos(MakeList(), new Pair<Integer,Integer>(1,1)), "Empty list: always false");
+    // The order of the marbles in a column is kept
+    byte[] column = {R, EMPTY, G, EMPTY, B};
+    compactColumns(column, new BoardConfig(5, 1, marbleRadius));
+    testEqual(true, Arrays.equals(new byte[] {EMPTY, EMPTY, R, G, B}, column), "Order is kept");
+
+    testEqual(true, Arrays.equals(new int[] {0, 1, 3}, vacanciesOfGaps(new BoardConfig(3, 2, marbleRadius), gaps, 3)),
+        "Vacancies from the gaps");
+    testEqual(0, vacanciesOfGaps(defaultBoard(), new int[numMarbleCols], 0).length, "No gaps");
 }
 
-void testAddMarblesAtVacancies() {
-    // current: one marble at (5,5)
-    ConsList<Marble> current = MakeList(new Marble(5, 5, MarbleColour.BLACK));
+void testApplyGravity() {
+    byte R = cellOf(MarbleColour.RED);
+    byte B = cellOf(MarbleColour.BLUE);
+    WorldState w = worldFromCells(new BoardConfig(3, 1, marbleRadius), new byte[] {R, EMPTY, B});
+    WorldState fallen = applyGravity(w);
+    testEqual(true, Arrays.equals(new byte[] {EMPTY, R, B}, fallen.cells()), "RED falls");
+    testEqual(true, Arrays.equals(new int[] {0}, fallen.vacancies()), "Vacancy at the top");
+    testEqual(true, Arrays.equals(w.colourCounts(), fallen.colourCounts()), "Counts are unchanged");
 
-    // empty positions to fill: (10,10), (30,10)
-    ConsList<Pair<Integer,Integer>> empties =
-        MakeList(new Pair<Integer,Integer>(10,10),
-                 new Pair<Integer,Integer>(30,10));
+    // Clicking the middle BLUE lets the RED above fall, and SPACE refills the top
+    WorldState column = worldFromCells(new BoardConfig(3, 1, marbleRadius), new byte[] {R, B, B});
+    gravity = true;
+    WorldState clicked = clickAt(column, 10, 30);
+    testEqual(true, Arrays.equals(new byte[] {EMPTY, EMPTY, R}, clicked.cells()), "Click then fall");
+    testEqual(true, Arrays.equals(new int[] {0, 1}, clicked.vacancies()), "Vacancies at the top");
+    testEqual(true, Arrays.equals(clicked.cells(), applyBatch(column, List.of(new Click(10, 30)), new ColourSource(1)).cells()),
+        "Gravity in a batch");
+    gravity = false;
+    WorldState refilled = fillEmptyCells(clicked);
+    testEqual(R, refilled.cells()[2], "Bottom marble is kept");
+    testEqual(0, numberOfEmptyLocations(refilled), "Top is refilled");
 
-    ConsList<Marble> out = addMarblesAtVacancies(empties, current);
+    // A full crushed board: the free-cell index matches a full sweep
+    WorldState board = crushColour(buildFullBoard(defaultBoard(), new ColourSource(3)), cellOf(MarbleColour.GREEN));
+    WorldState compacted = applyGravity(board);
+    testEqual(true, Arrays.equals(worldFromCells(defaultBoard(), compacted.cells()).vacancies(), compacted.vacancies()),
+        "Index matches the cells");
+}
 
-    // Length check: 1 existing + 2 new = 3
-    testEqual(3, Length(out), "Length should be current + vacancies");
+void testGravityKey() {
+    byte R = cellOf(MarbleColour.RED);
+    byte B = cellOf(MarbleColour.BLUE);
+    WorldState w = worldFromCells(new BoardConfig(2, 1, marbleRadius), new byte[] {R, B});
+    testEqual(true, applyKey(w, KeyEventKind.KEY_PRESSED, GRAVITY_KEY) == w, "Gravity key leaves the world");
+    testEqual(true, gravity, "Gravity key turns gravity on");
+    testEqual(true, Arrays.equals(new byte[] {EMPTY, R}, clickAt(w, 10, 30).cells()), "RED falls into the crushed cell");
+    testEqual(true, switchRule(GRAVITY_KEY), "Gravity key is a rule key");
+    testEqual(false, gravity, "and turns gravity off");
 
-    // Order check: first is the original (5,5)
-    testEqual(5, Nth(out,0).x(), "First marble keeps original x=5");
-    testEqual(5, Nth(out,0).y(), "First marble keeps original y=5");
+    // A session played with gravity replays with gravity
+    Path path = Path.of(System.getProperty("java.io.tmpdir"), "marblecrush-gravity.mclog");
+    BoardConfig board = new BoardConfig(6, 5, marbleRadius);
+    reseed(10);
+    gravity = true;
+    WorldState played = buildFullBoard(board);
+    switch (openEventLog(path, 10, board)) {
+        case Nothing<EventLog>() -> testEqual(true, false, "Log can be created");
+        case Something<EventLog>(EventLog log) -> {
+            eventLog = new Something<EventLog>(log);
+            for (GameEvent event : syntheticEvents(board, 50, 3)) {
+                played = switch (event) {
+                    case Click(int x, int y) -> mouseEvent(played, new MouseEvent(MouseEventKind.LEFT_CLICK, x, y));
+                    case Press(String key) -> keyEvent(played, new KeyEvent(KeyEventKind.KEY_PRESSED, key));
+                };
+            }
+            closeEventLog(log);
+            eventLog = new Nothing<EventLog>();
+        }
+    }
+    gravity = false;
+    switch (replay(path)) {
+        case Nothing<SimulationReport>() -> testEqual(true, false, "Log can be replayed");
+        case Something<SimulationReport>(SimulationReport r) -> {
+            testEqual(true, Arrays.equals(played.cells(), r.world().cells()), "Replay uses the logged gravity");
+        }
+    }
+    testEqual(false, gravity, "Replay leaves the gravity of the game");
+    path.toFile().delete();
+    gravity = false;
+    history = new Nothing<History>();
+}
 
-    // New marbles appear in the order of vacancies, coordinates must match
-    testEqual(10, Nth(out,1).x(), "Second marble x from first vacancy");
-    testEqual(10, Nth(out,1).y(), "Second marble y from first vacancy");
-    testEqual(30, Nth(out,2).x(), "Third marble x from second vacancy");
-    testEqual(10, Nth(out,2).y(), "Third marble y from second vacancy");
+void testBucketOf() {
+    testEqual(5, bucketOf(5), "Small latencies have their own bucket");
+    testEqual(0, bucketOf(-3), "Negative latency counts as 0");
+    testEqual(16, bucketOf(16), "16 ns");
+    testEqual(111, bucketOf(1000), "1000 ns");
+    testEqual(1023L, bucketLimit(111), "Largest latency of bucket 111");
+    testEqual(5L, bucketLimit(5), "Small bucket limit");
+    testEqual(HISTOGRAM_BUCKETS - 1, bucketOf(Long.MAX_VALUE), "Largest latency fits");
+
+    // Every latency is at most its bucket limit, and above the limit of the bucket before
+    boolean inBucket = true;
+    for (long nanos = 0; nanos < 100000; nanos += 7) {
+        int b = bucketOf(nanos);
+        inBucket = inBucket && nanos <= bucketLimit(b) && (b == 0 || nanos > bucketLimit(b - 1));
+    }
+    testEqual(true, inBucket, "Buckets cover the latencies in order");
 }
 
-void testMouseEvent() {
-    // Prepare a world with two RED marbles and one BLUE marble.
-    Marble r1 = new Marble(50, 50, MarbleColour.RED);
-    Marble r2 = new Marble(90, 50, MarbleColour.RED);
-    Marble b1 = new Marble(200, 200, MarbleColour.BLUE);
-    WorldState w = new WorldState(MakeList(r1, r2, b1));
-    int before = Length(w.marbles());
+void testSummarise() {
+    testEqual(new LatencySummary("draw", 0, 0, 0, 0, 0), summarise("draw", newHistogram()), "Empty histogram");
+    LatencyHistogram h = newHistogram();
+    for (int i = 1; i <= 1000; i++) {
+        recordLatency(h, i);
+    }
+    LatencySummary s = summarise("step", h);
+    testEqual(1000L, s.count(), "Every latency is counted");
+    testEqual(true, s.p50() >= 500 && s.p50() <= 500 * 1.07, "Median close to 500");
+    testEqual(true, s.p90() >= 900 && s.p90() <= 900 * 1.07, "p90 close to 900");
+    testEqual(true, s.p99() >= 990 && s.p99() <= 990 * 1.07, "p99 close to 990");
+    testEqual(true, s.p999() >= 999 && s.p999() <= 1023, "p99.9 close to 999");
+    testEqual("step n=1000 p50=0.5us p90=0.9us p99=1.0us p99.9=1.0us\nmarbles=3",
+        formatMetrics(List.of(new LatencySummary("step", 1000, 500, 900, 1000, 1000)), 3).replace(System.lineSeparator(), "\n"),
+        "Report line");
+}
 
-    // LEFT_CLICK exactly on r1 center: all RED marbles removed
-    MouseEvent hitR1 = new MouseEvent(MouseEventKind.LEFT_CLICK, r1.x(), r1.y());
-    WorldState afterLeft = mouseEvent(w, hitR1);
-    testEqual(1, Length(afterLeft.marbles()),
-        "LEFT_CLICK on RED should remove all RED marbles (only BLUE remains)");
-    testEqual(true, Equals(Nth(afterLeft.marbles(), 0), b1),
-        "Remaining marble should be the BLUE one");
+void testTimedHandlers() {
+    keyEventLatency = newHistogram();
+    mouseEventLatency = newHistogram();
+    drawLatency = newHistogram();
+    stepLatency = newHistogram();
+    WorldState w = worldFromMarbles(MakeList(
+        new Marble(10, 10, MarbleColour.RED), new Marble(30, 10, MarbleColour.BLUE)));
+    WorldState clicked = timedMouseEvent(w, new MouseEvent(MouseEventKind.LEFT_CLICK, 10, 10));
+    testEqual(marbles(mouseEvent(w, new MouseEvent(MouseEventKind.LEFT_CLICK, 10, 10))), marbles(clicked), "Same as mouseEvent");
+    testEqual(1, lastMarbleCount, "Marble count after the click");
+    WorldState pressed = timedKeyEvent(clicked, new KeyEvent(KeyEventKind.KEY_PRESSED, "Space"));
+    testEqual(numMarbleRows * numMarbleCols, lastMarbleCount, "Marble count after SPACE");
+    timedStep(pressed);
+    timedDraw(pressed);
+    timedDraw(pressed);
+    List<LatencySummary> metrics = handlerMetrics();
+    testEqual(List.of(1L, 1L, 2L, 1L), metrics.stream().map(LatencySummary::count).toList(), "Events per handler");
+    testEqual(List.of("keyEvent", "mouseEvent", "draw", "step"), metrics.stream().map(LatencySummary::handler).toList(),
+        "Handlers in order");
+}
 
-    // LEFT_CLICK that misses everything: unchanged
-    MouseEvent miss = new MouseEvent(MouseEventKind.LEFT_CLICK, 9999, 9999);
-    WorldState afterMiss = mouseEvent(w, miss);
-    testEqual(before, Length(afterMiss.marbles()),
-        "LEFT_CLICK on empty space should leave world unchanged");
-    testEqual(true, Equals(afterMiss.marbles(), w.marbles()),
-        "World content unchanged when clicking empty space");
+void testCandidateMoves() {
+    byte R = cellOf(MarbleColour.RED);
+    byte B = cellOf(MarbleColour.BLUE);
+    WorldState w = worldFromCells(new BoardConfig(1, 5, marbleRadius), new byte[] {R, R, B, EMPTY, R});
+    testEqual(true, Arrays.equals(new int[] {0, 2}, candidateMoves(w)), "One move per colour");
+    crushMode = CrushMode.REGION;
+    testEqual(true, Arrays.equals(new int[] {0, 2, 4}, candidateMoves(w)), "One move per region");
+    crushMode = CrushMode.COLOUR;
+    testEqual(0, candidateMoves(emptyWorld(defaultBoard())).length, "No marble, no move");
+}
 
-    // Non-left event: unchanged
-    MouseEvent notLeft = new MouseEvent(MouseEventKind.RIGHT_CLICK, r1.x(), r1.y());
-    WorldState afterRight = mouseEvent(w, notLeft);
-    testEqual(true, Equals(afterRight.marbles(), w.marbles()),
-        "Non-LEFT mouse event should not change the world");
+void testRollout() {
+    byte R = cellOf(MarbleColour.RED);
+    byte B = cellOf(MarbleColour.BLUE);
+    WorldState w = worldFromCells(new BoardConfig(1, 4, marbleRadius), new byte[] {R, B, R, R});
+    byte[] board = new byte[4];
+    int[] queue = new int[4];
+    testEqual(3L, rollout(w, 0, 1, board, queue, new ColourSource(1)), "One cycle: the move alone");
+    testEqual(true, Arrays.equals(w.cells(), new byte[] {R, B, R, R}), "The world is not modified");
+    long crushed = rollout(w, 1, 5, board, queue, new ColourSource(1));
+    testEqual(true, crushed >= 5 && crushed <= 1 + 4 * 4, "Each later click crushes 1 to 4 marbles");
+    testEqual(crushed, rollout(w, 1, 5, board, queue, new ColourSource(1)), "Same seed, same rollout");
+
+    crushMode = CrushMode.REGION;
+    testEqual(2L, rollout(w, 3, 1, board, queue, new ColourSource(1)), "REGION mode crushes the region");
+    crushMode = CrushMode.COLOUR;
 }
 
-void testLeftClick() {
-    // World with two REDs and one BLUE
-    Marble r1 = new Marble(50, 50, MarbleColour.RED);
-    Marble r2 = new Marble(150, 150, MarbleColour.RED);
-    Marble b1 = new Marble(200, 200, MarbleColour.BLUE);
-    WorldState w = new WorldState(MakeList(r1, r2, b1));
+void testAdviseMove() {
+    testEqual(new Nothing<MoveAdvice>(), adviseMove(emptyWorld(defaultBoard())), "Nothing to click");
 
-    // Hit r2: remove all REDs
-    MouseEvent hitR2 = new MouseEvent(MouseEventKind.LEFT_CLICK, r2.x(), r2.y());
-    WorldState afterHitR2 = leftClick(w, hitR2);
-    testEqual(1, Length(afterHitR2.marbles()),
-        "Hitting a RED should remove all REDs, leaving only BLUE");
-    testEqual(true, Equals(Nth(afterHitR2.marbles(), 0), b1),
-        "Remaining marble should be BLUE");
+    // With one cycle, the best move is the most common colour
+    byte R = cellOf(MarbleColour.RED);
+    byte B = cellOf(MarbleColour.BLUE);
+    WorldState w = worldFromCells(new BoardConfig(1, 4, marbleRadius), new byte[] {B, R, R, R});
+    testEqual(new Something<MoveAdvice>(new MoveAdvice(1, 3.0)), adviseMove(w, 1, 100, new ColourSource(1)),
+        "Crush the three REDs");
 
-    // Not hit: unchanged
-    MouseEvent notHit = new MouseEvent(MouseEventKind.LEFT_CLICK, 20, 20);
-    WorldState afterMiss = leftClick(w, notHit);
-    testEqual(true, Equals(afterMiss.marbles(), w.marbles()),
-        "Not hit Left-click should not change the world");
+    // The same source gives the same advice, in both crush modes
+    WorldState full = buildFullBoard(defaultBoard(), new ColourSource(2));
+    Maybe<MoveAdvice> advice = adviseMove(full, ADVICE_CYCLES, ROLLOUT_BUDGET, new ColourSource(3));
+    testEqual(false, advice.equals(new Nothing<MoveAdvice>()), "Full board has advice");
+    testEqual(advice, adviseMove(full, ADVICE_CYCLES, ROLLOUT_BUDGET, new ColourSource(3)), "Advice is repeatable");
+    crushMode = CrushMode.REGION;
+    Maybe<MoveAdvice> region = adviseMove(full, ADVICE_CYCLES, ROLLOUT_BUDGET, new ColourSource(3));
+    testEqual(false, region.equals(new Nothing<MoveAdvice>()), "Full board has REGION advice");
+    testEqual(region, adviseMove(full, ADVICE_CYCLES, ROLLOUT_BUDGET, new ColourSource(3)), "REGION advice is repeatable");
+    crushMode = CrushMode.COLOUR;
 
-    // Edge hit (on bounding box edge): x = center + R, y = center
-    MouseEvent edgeHit = new MouseEvent(MouseEventKind.LEFT_CLICK, r1.x() + marbleRadius, r1.y());
-    WorldState afterEdge = leftClick(w, edgeHit);
-    testEqual(1, Length(afterEdge.marbles()),
-        "Edge hit should count as hit (remove all REDs)");
-    testEqual(true, Equals(Nth(afterEdge.marbles(), 0), b1),
-        "After edge hit, only BLUE remains");
+    // Asking for advice leaves the colours of the game alone
+    reseed(5);
+    int next = new ColourSource(5).nextOrdinal();
+    adviseMove(w);
+    testEqual(next, sessionColours.nextOrdinal(), "Session colours are not drawn by the advisor");
 }
 
-void testFindClickedMarble() {
-    // Case 1: Empty list -> Nothing
-    testEqual(
-        new Nothing<Marble>(),
-        findClickedMarble(new MouseEvent(MouseEventKind.LEFT_CLICK, 0, 0), MakeList()),
-        "Empty list should return Nothing"
-    );
+void testHandleCommand() {
+    ArrayList<WorldState> boards = new ArrayList<WorldState>();
+    ColourSource source = new ColourSource(1);
+    Rules rules = new Rules(CrushMode.COLOUR, false);
+    testEqual("OK 0", handleCommand(boards, "NEW", source, rules), "New standard board");
+    testEqual("OK 1", handleCommand(boards, "NEW 2 3", source, rules), "New 2x3 board");
+    testEqual(6, boards.get(1).cells().length, "2x3 board has 6 cells");
+    testEqual("OK 0", handleCommand(boards, "EMPTY 1", source, rules), "Full board");
 
-    // Prepare a single marble
-    Marble m = new Marble(100, 100, MarbleColour.BLUE);
-    ConsList<Marble> one = MakeList(m);
+    WorldState before = boards.get(1);
+    byte colour = before.cells()[0];
+    String reply = handleCommand(boards, "CLICK 1 10 10", source, rules);
+    testEqual("OK " + (6 - before.colourCounts()[colour]), reply, "Click crushes the colour of cell 0");
+    testEqual("OK " + before.colourCounts()[colour], handleCommand(boards, "EMPTY 1", source, rules), "Crushed cells are empty");
+    testEqual("OK 0", handleCommand(boards, "COUNT 1 " + MARBLE_COLOURS[colour], source, rules), "No marble of that colour");
+    testEqual("OK 6", handleCommand(boards, "SPACE 1", source, rules), "SPACE refills");
 
-    // Case 2: Center hit -> Something(m)
-    testEqual(
-        new Something<Marble>(m),
-        findClickedMarble(new MouseEvent(MouseEventKind.LEFT_CLICK, 100, 100), one),
-        "Center click should hit the marble"
-    );
+    testEqual("ERR unknown command JUMP", handleCommand(boards, "JUMP", source, rules), "Unknown command");
+    testEqual("ERR cannot serve CLICK 9 1 1", handleCommand(boards, "CLICK 9 1 1", source, rules), "No such board");
+    testEqual("ERR cannot serve COUNT 0 PINK", handleCommand(boards, "COUNT 0 PINK", source, rules), "No such colour");
+    testEqual("ERR cannot serve SPACE x", handleCommand(boards, "SPACE x", source, rules), "Not a number");
+    testEqual(true, handleCommand(boards, "NEW 0 5", source, rules).startsWith("ERR"), "Empty board is refused");
+    testEqual(true, handleCommand(boards, "NEW 100000 100000", source, rules).startsWith("ERR"), "Huge board is refused");
 
-    // Case 3: Edge hit (x+R, y) -> Something(m)
-    testEqual(
-        new Something<Marble>(m),
-        findClickedMarble(new MouseEvent(MouseEventKind.LEFT_CLICK, m.x() + marbleRadius, m.y()), one),
-        "Edge point should be considered a hit"
-    );
+    // A connection cannot create boards without end
+    while (boards.size() < MAX_SERVER_BOARDS) {
+        handleCommand(boards, "NEW 1 1", source, rules);
+    }
+    testEqual(true, handleCommand(boards, "NEW 1 1", source, rules).startsWith("ERR"), "Too many boards are refused");
+    testEqual(MAX_SERVER_BOARDS, boards.size(), "No board is added past the cap");
+    ArrayList<WorldState> large = new ArrayList<WorldState>();
+    for (int i = 0; i < MAX_CONNECTION_CELLS / MAX_SERVER_CELLS; i++) {
+        large.add(new WorldState(new BoardConfig(2000, 2000, marbleRadius), new byte[MAX_SERVER_CELLS], new int[0], new int[4]));
+    }
+    testEqual(true, handleCommand(large, "NEW 1 1", source, rules).startsWith("ERR"), "Too many cells are refused");
 
-    // Case 4: Outside by 1px (x+R+1, y) -> Nothing
-    testEqual(
-        new Nothing<Marble>(),
-        findClickedMarble(new MouseEvent(MouseEventKind.LEFT_CLICK, m.x() + marbleRadius + 1, m.y()), one),
-        "Outside bounding box by 1px should be miss"
-    );
+    // Clicks follow the rules given, whatever the rules of the game
+    ArrayList<WorldState> region = new ArrayList<WorldState>();
+    region.add(worldFromCells(new BoardConfig(1, 4, marbleRadius), new byte[] {0, 0, 1, 0}));
+    crushMode = CrushMode.COLOUR;
+    testEqual("OK 2", handleCommand(region, "CLICK 0 10 10", source, new Rules(CrushMode.REGION, false)), "REGION click");
+    testEqual(CrushMode.COLOUR, crushMode, "The game keeps its mode");
+}
 
-    // Case 5: Overlapping two marbles at same center -> first wins
-    Marble g = new Marble(300, 300, MarbleColour.GREEN);
-    Marble k = new Marble(300, 300, MarbleColour.BLACK);
-    ConsList<Marble> two = MakeList(g, k);
-    testEqual(
-        new Something<Marble>(g),
-        findClickedMarble(new MouseEvent(MouseEventKind.LEFT_CLICK, 300, 300), two),
-        "When overlapping, should return the first in the list"
-    );
+void testBoardServer() {
+    switch (startServer(0, 1)) {
+        case Nothing<BoardServer>() -> testEqual(true, false, "Server starts");
+        case Something<BoardServer>(BoardServer server) -> {
+            int port = server.socket().getLocalPort();
+            switch (runLoad(port, 4, 5, 20)) {
+                case Nothing<LoadReport>() -> testEqual(true, false, "Load run succeeds");
+                case Something<LoadReport>(LoadReport r) -> {
+                    testEqual(20, r.boards(), "4 connections of 5 boards");
+                    testEqual(4L * 5 * 20 * 2, r.commands(), "A click and a SPACE per board per round");
+                    testEqual(true, commandsPerSecond(r) > 0, "Throughput is measured");
+                }
+            }
+            testEqual(4L * 5 * 20 * 2 + 20, server.commands().sum(), "Server counted every command");
+            stopServer(server);
+            testEqual(new Nothing<LoadReport>(), runLoad(port, 1, 1, 1), "Stopped server cannot be reached");
+        }
+    }
+    testEqual(1000000.0, commandsPerSecond(new LoadReport(1, 1, 1000, 1000000)), "1000 commands in 1 ms");
 }
 
-void testFilterOutSameColour() {
-    // Empty list -> empty
-    ConsList<Marble> empty = MakeList();
-    ConsList<Marble> out0 = filterOutSameColour(new Marble(0, 0, MarbleColour.RED), empty);
-    testEqual(0, Length(out0), "Empty list remains empty");
+void testNibblesEqual() {
+    testEqual(0x1010L, nibblesEqual(0xF1F0L, 0xF) & 0xFFFFL, "Nibbles 1 and 3 are EMPTY");
+    testEqual(0x0001L, nibblesEqual(0xF1F0L, 0x0) & 0xFFFFL, "Nibble 0 is BLUE");
+    testEqual(0L, nibblesEqual(0xF1F0L, 0x2) & 0xFFFFL, "No GREEN nibble");
+    testEqual(NIBBLE_LOW_BITS, nibblesEqual(-1L, 0xF), "Every nibble is EMPTY");
+}
 
-    // All same colour -> all removed
-    Marble r1 = new Marble(10, 10, MarbleColour.RED);
-    Marble r2 = new Marble(20, 20, MarbleColour.RED);
-    ConsList<Marble> reds = MakeList(r1, r2);
-    ConsList<Marble> outR = filterOutSameColour(r1, reds);
-    testEqual(0, Length(outR), "All RED removed");
+void testSharedBoard() {
+    BoardConfig small = new BoardConfig(1, 3, 10);
+    SharedBoard s = sharedBoardOf(worldFromCells(small, new byte[] {0, EMPTY, 1}));
+    testEqual(0xEEEEEEEEEEEEE1F0L, s.words().get(0), "Packed cells with padding");
+    testEqual((byte) 0, sharedCell(s, 0), "BLUE cell");
+    testEqual(EMPTY, sharedCell(s, 1), "EMPTY cell");
+    testEqual(1, sharedCount(s, EMPTY), "One EMPTY cell");
+    testEqual(1, crushShared(s, (byte) 1), "One RED crushed");
+    testEqual(0, crushShared(s, (byte) 1), "RED is already crushed");
+    testEqual(0, clickShared(s, 50, 10), "Click on a crushed cell does nothing");
+    testEqual(1, clickShared(s, 10, 10), "Click on BLUE crushes it");
+    testEqual(3, refillShared(s, new ColourSource(1)), "Refill fills the 3 cells");
+    testEqual(0, sharedCount(s, EMPTY), "No EMPTY cell after a refill");
+    testEqual(0xEEEEEEEEEEEE0000L, s.words().get(0) & 0xFFFFFFFFFFFF0000L, "Padding is untouched");
 
-    // Mixed colours -> only target colour removed; order preserved for others
-    Marble b = new Marble(30, 30, MarbleColour.BLUE);
-    Marble g = new Marble(40, 40, MarbleColour.GREEN);
-    Marble r3 = new Marble(50, 50, MarbleColour.RED);
-    ConsList<Marble> mixed = MakeList(r1, b, g, r3);
-    ConsList<Marble> outMix = filterOutSameColour(r1, mixed);
-    testEqual(2, Length(outMix), "Should keep only non-RED marbles");
-    testEqual(true, Equals(Nth(outMix, 0), b), "First kept should be BLUE (order preserved)");
-    testEqual(true, Equals(Nth(outMix, 1), g), "Second kept should be GREEN (order preserved)");
+    WorldState w = buildFullBoard(new BoardConfig(7, 9, 10), new ColourSource(2));
+    WorldState back = worldFromShared(sharedBoardOf(w));
+    testEqual(true, Arrays.equals(w.cells(), back.cells()), "Round trip keeps the cells");
+    testEqual(true, Arrays.equals(w.colourCounts(), back.colourCounts()), "Round trip keeps the counts");
+}
 
-    // No target colour present -> list unchanged
-    Marble k = new Marble(60, 60, MarbleColour.BLACK);
-    ConsList<Marble> onlyBGK = MakeList(b, g, k);
-    ConsList<Marble> outNoRed = filterOutSameColour(r1, onlyBGK);
-    testEqual(true, Equals(outNoRed, onlyBGK), "If target colour absent, list unchanged");
+void testStressShared() {
+    BoardConfig board = new BoardConfig(100, 100, 10);
+    SharedBoard s = sharedBoardOf(buildFullBoard(board, new ColourSource(3)));
+    int before = board.rows() * board.cols() - sharedCount(s, EMPTY);
+    switch (stressShared(s, 4, 2000, 3)) {
+        case Nothing<StressReport>() -> testEqual(true, false, "Stress run completes");
+        case Something<StressReport>(StressReport r) -> {
+            testEqual(8000L, r.operations(), "4 players of 2000 operations");
+            int after = board.rows() * board.cols() - sharedCount(s, EMPTY);
+            testEqual((long) after, before + r.refilled() - r.crushed(), "Every crush and refill is counted once");
+            testEqual(board.rows() * board.cols(), after + sharedCount(s, EMPTY), "Every cell is a colour or EMPTY");
+            WorldState w = worldFromShared(s);
+            testEqual(after, numberOfMarbles(w), "The world of the board has the same marbles");
+        }
+    }
+    testEqual(1000000.0, operationsPerSecond(new StressReport(1, 1000, 0, 0, 1000000)), "1000 operations in 1 ms");
 }
 
+void testPackedPlanes() {
+    byte[] cells = {0, EMPTY, 1};
+    testEqual(true, Arrays.equals(new long[] {0b01_00_00}, colourPlane(cells)), "Colour plane of BLUE, EMPTY, RED");
+    testEqual(true, Arrays.equals(new long[] {0b101}, occupancyBitmap(cells)), "Occupancy of BLUE, EMPTY, RED");
+    testEqual(true, Arrays.equals(cells, unpackCells(3, colourPlane(cells), occupancyBitmap(cells))), "Cells unpack");
+    testEqual(32L, checkpointBytes(3), "Header and one long per plane");
+    testEqual(40L, checkpointBytes(64), "Two longs of colours, one of occupancy");
 
-void testGetMarbleAt() {
-    // Case 1: Empty world -> Nothing
-    WorldState empty = new WorldState(MakeList());
-    testEqual(
-        new Nothing<Marble>(),
-        getMarbleAt(empty, 0, 0), "Empty world should return Nothing"
-    );
+    WorldState w = worldWithFill(new BoardConfig(37, 41, 10), 0.5);
+    testEqual(true, Arrays.equals(w.cells(), unpackCells(w.cells().length, colourPlane(w.cells()), occupancyBitmap(w.cells()))),
+        "Half-full board unpacks");
+}
 
-    // Prepare single-marble world
-    Marble m = new Marble(100, 100, MarbleColour.BLUE);
-    WorldState one = new WorldState(MakeList(m));
+void testCheckpoint() {
+    Path path = Path.of(System.getProperty("java.io.tmpdir"), "marblecrush-test.mcck");
+    WorldState w = worldWithFill(new BoardConfig(1000, 1000, 10), 0.75);
+    testEqual(true, saveCheckpoint(path, w), "Checkpoint is written");
+    testEqual(checkpointBytes(1000000), path.toFile().length(), "3 bits per cell and a header");
+    switch (loadCheckpoint(path)) {
+        case Nothing<WorldState>() -> testEqual(true, false, "Checkpoint can be loaded");
+        case Something<WorldState>(WorldState back) -> {
+            testEqual(w.board(), back.board(), "Same board");
+            testEqual(true, Arrays.equals(w.cells(), back.cells()), "Same cells");
+            testEqual(true, Arrays.equals(w.vacancies(), back.vacancies()), "Same vacancies");
+            testEqual(true, Arrays.equals(w.colourCounts(), back.colourCounts()), "Same colour counts");
+        }
+    }
+    testEqual(true, saveCheckpoint(path, buildFullBoard(new BoardConfig(2, 3, 10), new ColourSource(1))), "Smaller board replaces the file");
+    testEqual(checkpointBytes(6), path.toFile().length(), "The file shrinks");
+    testEqual(true, saveCheckpoint(path, w), "The same path is saved to again");
 
-    // Case 2: Center hit -> Something(m)
-    testEqual(
-        new Something<Marble>(m),
-        getMarbleAt(one, 100, 100), "Center click should hit"
-    );
+    // A board without cells cannot be saved, since it could not be loaded back
+    testEqual(false, saveCheckpoint(path, emptyWorld(new BoardConfig(0, 5, 10))), "0 rows is refused");
+    testEqual(false, saveCheckpoint(path, emptyWorld(new BoardConfig(5, 0, 10))), "0 columns is refused");
+    for (BoardConfig board : List.of(new BoardConfig(1, 1, 10), new BoardConfig(1, 65, 10), new BoardConfig(7, 3, 10))) {
+        WorldState small = worldWithFill(board, 0.5);
+        testEqual(true, saveCheckpoint(path, small), "Small board is saved");
+        switch (loadCheckpoint(path)) {
+            case Nothing<WorldState>() -> testEqual(true, false, "Every saved board loads back");
+            case Something<WorldState>(WorldState back) -> {
+                testEqual(true, Arrays.equals(small.cells(), back.cells()), "Round trip keeps the cells");
+            }
+        }
+    }
 
-    // Case 3: Edge hit (x+R, y) -> Something(m)
-    testEqual(
-        new Something<Marble>(m),
-        getMarbleAt(one, m.x() + marbleRadius, m.y()), "Edge point should be considered a hit"
-    );
+    // A log file is not a checkpoint
+    switch (openEventLog(path, 7, defaultBoard())) {
+        case Nothing<EventLog>() -> testEqual(true, false, "Log can be created");
+        case Something<EventLog>(EventLog log) -> {
+            testEqual(true, closeEventLog(log), "Log is written");
+        }
+    }
+    testEqual(new Nothing<WorldState>(), loadCheckpoint(path), "Wrong magic number");
+    path.toFile().delete();
+    testEqual(new Nothing<WorldState>(), loadCheckpoint(path), "Missing checkpoint");
+    testEqual(false, saveCheckpoint(Path.of("/no/such/directory/board"), w), "Checkpoint cannot be created");
+}
 
-    // Case 4: Outside -> Nothing
-    testEqual(
-        new Nothing<Marble>(),
-        getMarbleAt(one, m.x() + marbleRadius + 1, m.y()), "Outside by 1px should miss"
-    );
+byte[] bytesOf(WorldDelta delta) {
+    ByteBuffer buffer = encodeDelta(delta);
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    return bytes;
+}
 
-    // Case 5: Overlapping two marbles -> first wins
-    Marble g = new Marble(300, 300, MarbleColour.GREEN);
-    Marble k = new Marble(300, 300, MarbleColour.BLACK);
-    WorldState two = new WorldState(MakeList(g, k));
-    testEqual(
-        new Something<Marble>(g),
-        getMarbleAt(two, 300, 300), "When overlapping, should return the first in the list"
-    );
+byte[] decodedBytes(ByteBuffer buffer) {
+    return switch (decodeDelta(buffer)) {
+        case Nothing<WorldDelta>() -> new byte[0];
+        case Something<WorldDelta>(WorldDelta delta) -> bytesOf(delta);
+    };
 }
 
-void testGetColour() {
-    // BLUE
-    Marble mb = new Marble(10, 10, MarbleColour.BLUE);
-    testEqual(Colour.BLUE, getColour(mb), "BLUE should map to Colour.BLUE");
+void testDeltaOf() {
+    BoardConfig board = new BoardConfig(1, 4, 10);
+    WorldState w = worldFromCells(board, new byte[] {0, 1, 1, EMPTY});
+    testEqual(new CrushDelta((byte) 1), deltaOf(w, crushColour(w, (byte) 1)), "Crush of RED");
+    WorldState filled = worldFromCells(board, new byte[] {0, 1, 1, 3});
+    testEqual(true, Arrays.equals(bytesOf(new RefillDelta(new long[] {3})), bytesOf(deltaOf(w, filled))), "Refill with BLACK");
+    testEqual(true, Arrays.equals(bytesOf(new PatchDelta(new int[] {1, 1, 3, 1}, new byte[] {EMPTY, 2})),
+        bytesOf(deltaOf(w, worldFromCells(board, new byte[] {0, EMPTY, 1, 2})))), "A region crush and a refill together is a patch");
+    testEqual(true, Arrays.equals(bytesOf(new PatchDelta(new int[0], new byte[0])), bytesOf(deltaOf(w, w))), "No change");
 
-    // RED
-    Marble mr = new Marble(10, 10, MarbleColour.RED);
-    testEqual(Colour.RED, getColour(mr), "RED should map to Colour.RED");
+    // Every delta rebuilds its successor
+    WorldState region = worldFromCells(board, new byte[] {0, EMPTY, 1, EMPTY});
+    for (WorldState next : List.of(crushColour(w, (byte) 1), filled, region, w, emptyWorld(board))) {
+        WorldState back = switch (applyDelta(w, deltaOf(w, next))) {
+            case Nothing<WorldState>() -> w;
+            case Something<WorldState>(WorldState applied) -> applied;
+        };
+        testEqual(true, Arrays.equals(next.cells(), back.cells()), "Cells rebuilt");
+        testEqual(true, Arrays.equals(next.vacancies(), back.vacancies()), "Vacancies rebuilt");
+        testEqual(true, Arrays.equals(next.colourCounts(), back.colourCounts()), "Counts rebuilt");
+    }
+}
 
-    // GREEN
-    Marble mg = new Marble(10, 10, MarbleColour.GREEN);
-    testEqual(Colour.GREEN, getColour(mg), "GREEN should map to Colour.GREEN");
+void testMalformedDeltas() {
+    BoardConfig board = new BoardConfig(1, 4, 10);
+    WorldState w = worldFromCells(board, new byte[] {0, 1, 1, EMPTY});
+    testEqual(true, fitsWorld(w, new CrushDelta((byte) 3)), "BLACK is a colour");
+    testEqual(new Nothing<WorldState>(), applyDelta(w, new CrushDelta((byte) 4)), "No colour 4");
+    testEqual(new Nothing<WorldState>(), applyDelta(w, new CrushDelta(EMPTY)), "EMPTY is not a colour");
+    testEqual(new Nothing<WorldState>(), applyDelta(emptyWorld(new BoardConfig(1, 40, 10)), new RefillDelta(new long[] {0})),
+        "40 vacancies need 2 longs");
+    testEqual(new Nothing<WorldState>(), applyDelta(w, new RefillDelta(new long[] {0, 0})), "1 vacancy needs 1 long");
+    testEqual(new Nothing<WorldState>(), applyDelta(w, new RefillDelta(new long[0])), "No colours for the vacancy");
+    testEqual(new Nothing<WorldState>(), applyDelta(w, new PatchDelta(new int[] {3, 2}, new byte[] {EMPTY, EMPTY})),
+        "Run past the last cell");
+    testEqual(new Nothing<WorldState>(), applyDelta(w, new PatchDelta(new int[] {-1, 1}, new byte[] {EMPTY})),
+        "Run before the first cell");
+    testEqual(new Nothing<WorldState>(), applyDelta(w, new PatchDelta(new int[] {0, -1}, new byte[0])), "Negative run");
+    testEqual(new Nothing<WorldState>(), applyDelta(w, new PatchDelta(new int[] {Integer.MAX_VALUE, 2}, new byte[] {0, 0})),
+        "Run end overflows");
+    testEqual(new Nothing<WorldState>(), applyDelta(w, new PatchDelta(new int[] {0, 2}, new byte[] {0})), "Too few values");
+    testEqual(new Nothing<WorldState>(), applyDelta(w, new PatchDelta(new int[] {0, 1}, new byte[] {0, 0})), "Too many values");
+    testEqual(new Nothing<WorldState>(), applyDelta(w, new PatchDelta(new int[] {0, 1}, new byte[] {9})), "No colour 9");
+    testEqual(new Nothing<WorldState>(), applyDelta(w, new PatchDelta(new int[] {0}, new byte[0])), "Half a run");
 
-    // BLACK
-    Marble mk = new Marble(10, 10, MarbleColour.BLACK);
-    testEqual(Colour.BLACK, getColour(mk), "BLACK should map to Colour.BLACK");
-} 
+    // A decoded delta from a bigger board is refused rather than crashing the replica
+    ByteBuffer foreign = encodeDelta(new PatchDelta(new int[] {100, 1}, new byte[] {0}));
+    switch (decodeDelta(foreign)) {
+        case Nothing<WorldDelta>() -> testEqual(true, false, "Well-formed delta decodes");
+        case Something<WorldDelta>(WorldDelta delta) -> {
+            testEqual(new Nothing<WorldState>(), applyDelta(w, delta), "Foreign delta is refused");
+        }
+    }
+}
 
-void testCountColour() {
-    // Case 1: Empty list
-    testEqual(0, countColour(MakeList(), Colour.RED), "Empty list should count 0");
+void testSessionLog() {
+    testEqual(Path.of("session-42.mclog"), sessionLog(42), "Log named after the seed");
+    testEqual(false, sessionLog(1).equals(sessionLog(2)), "Sessions do not share a log");
+}
 
-    // Case 2: Single match
-    ConsList<Marble> oneR = MakeList(new Marble(10, 10, MarbleColour.RED));
-    testEqual(1, countColour(oneR, Colour.RED), "Single matching marble should count 1");
+void testDeltaEncoding() {
+    testEqual(true, Arrays.equals(new byte[] {0, 1}, bytesOf(new CrushDelta((byte) 1))), "Crush is 2 bytes");
+    WorldDelta patch = new PatchDelta(new int[] {3, 2}, new byte[] {EMPTY, EMPTY});
+    testEqual(true, Arrays.equals(new byte[] {2, 0, 0, 0, 1, 0, 0, 0, 3, 0, 0, 0, 2, -1, -1}, bytesOf(patch)), "Patch bytes");
+    WorldDelta refill = new RefillDelta(new long[] {5, -1});
+    testEqual(1 + 4 + 16, bytesOf(refill).length, "Refill is a length and 2 longs");
 
-    // Case 3: Multiple: two RED, one BLUE
-    ConsList<Marble> mix = MakeList(
-        new Marble(0, 0, MarbleColour.RED),
-        new Marble(1, 1, MarbleColour.BLUE),
-        new Marble(2, 2, MarbleColour.RED)
-    );
-    testEqual(2, countColour(mix, Colour.RED), "Two RED should count 2");
-    testEqual(1, countColour(mix, Colour.BLUE), "One BLUE should count 1");
-    testEqual(0, countColour(mix, Colour.GREEN), "No GREEN should count 0");
+    for (WorldDelta delta : List.of(new CrushDelta((byte) 1), patch, refill)) {
+        testEqual(true, Arrays.equals(bytesOf(delta), decodedBytes(encodeDelta(delta))), "Delta decodes");
+    }
+    testEqual(new Nothing<WorldDelta>(), decodeDelta(ByteBuffer.wrap(new byte[] {9})), "Unknown kind");
+    testEqual(new Nothing<WorldDelta>(), decodeDelta(ByteBuffer.wrap(new byte[] {1, 0, 0, 0, 2, 0})), "Refill cut short");
+    testEqual(new Nothing<WorldDelta>(), decodeDelta(ByteBuffer.wrap(new byte[] {2, 127, 0, 0, 0})), "Too many runs");
+    testEqual(new Nothing<WorldDelta>(), decodeDelta(ByteBuffer.wrap(new byte[0])), "Empty buffer");
 }
 
-void testNumberOfMarblesOfColour() {
-    // Case 1: Empty world
-    WorldState empty = new WorldState(MakeList());
-    testEqual(0, numberOfMarblesOfColour(empty, Colour.RED), "Empty world: 0");
+void testReplicate() {
+    BoardConfig board = new BoardConfig(60, 50, marbleRadius);
+    reseed(11);
+    ReplicationReport r = replicate(buildFullBoard(board), syntheticEvents(board, 200, 2));
+    testEqual(true, Arrays.equals(r.world().cells(), r.replica().cells()), "Replica follows the game");
+    testEqual(true, r.transitions() > 100, "Most events change the world");
+    testEqual(true, r.deltaBytes() * 5 < r.fullBytes(), "Deltas are much smaller than worlds");
 
-    // Case 2: Mixed colours
-    WorldState w = new WorldState(MakeList(
-        new Marble(0, 0, MarbleColour.RED),
-        new Marble(1, 1, MarbleColour.BLUE),
-        new Marble(2, 2, MarbleColour.RED),
-        new Marble(3, 3, MarbleColour.GREEN)
-    ));
-    testEqual(2, numberOfMarblesOfColour(w, Colour.RED), "Two RED in world: 2");
-    testEqual(1, numberOfMarblesOfColour(w, Colour.BLUE), "One BLUE in world: 1");
-    testEqual(1, numberOfMarblesOfColour(w, Colour.GREEN), "One GREEN in world: 1");
-    testEqual(0, numberOfMarblesOfColour(w, Colour.BLACK), "No BLACK in world: 0");
+    crushMode = CrushMode.REGION;
+    gravity = true;
+    r = replicate(buildFullBoard(board), syntheticEvents(board, 200, 2));
+    testEqual(true, Arrays.equals(r.world().cells(), r.replica().cells()), "Replica follows a region game with gravity");
+    gravity = false;
+    crushMode = CrushMode.COLOUR;
 }
 
-void testNumberOfEmptyLocations() {
-    int total = numMarbleRows * numMarbleCols;
+void testScheduledDraw() {
+    retainedFrame = new Nothing<RetainedFrame>();
+    renderedFrames = new LongAdder();
+    skippedFrames = new LongAdder();
+    frameNanos = new LongAdder();
+    WorldState w = buildFullBoard(defaultBoard(), new ColourSource(1));
+    Image first = scheduledDraw(w);
+    testEqual(true, first == scheduledDraw(w), "Unchanged world shows the same frame");
+    testEqual(1L, frameStats().rendered(), "One frame composed");
+    testEqual(1L, frameStats().skipped(), "One frame skipped");
+    testEqual(true, frameStats().frameNanos() > 0, "Frame time is measured");
 
-    // Case 1: Empty world -> all vacant
-    WorldState empty = new WorldState(MakeList());
-    testEqual(total, numberOfEmptyLocations(empty), "Empty world should have all positions vacant");
+    WorldState crushed = clickAt(w, 10, 10);
+    Image changed = scheduledDraw(crushed);
+    testEqual(true, changed != first, "A changed world is composed at once");
+    testEqual(true, changed == draw(crushed), "The frame of the changed world");
+    testEqual(2L, frameStats().rendered(), "Two frames composed");
+    testEqual("frames rendered=10 skipped=90 idleTicks=85 avg=500.0us", formatFrameStats(new FrameStats(10, 90, 85, 5000000)),
+        "Frame stats line");
+    retainedFrame = new Nothing<RetainedFrame>();
+}
 
-    // Prepare all grid centers
-    ConsList<Pair<Integer,Integer>> all =
-        generateAllMarblesCenterPositionRecursively(marbleRadius, numMarbleRows, numMarbleCols);
+void testScheduledStep() {
+    idleTicks = new LongAdder();
+    pendingEvents.clear();
+    WorldState w = buildFullBoard(defaultBoard(), new ColourSource(1));
+    testEqual(true, w == scheduledStep(w), "Idle tick returns the same world");
+    testEqual(true, w == scheduledStep(w), "Idle tick returns the same world again");
+    testEqual(2L, frameStats().idleTicks(), "Two idle ticks");
+    batchInput = true;
+    testEqual(true, w == timedMouseEvent(w, new MouseEvent(MouseEventKind.LEFT_CLICK, 10, 10)), "Click is queued");
+    WorldState next = scheduledStep(w);
+    testEqual(true, next != w, "Tick with input applies it");
+    testEqual(2L, frameStats().idleTicks(), "Not an idle tick");
+    batchInput = false;
+    history = new Nothing<History>();
+}
 
-    // Case 2: Full world -> 0 vacancies
-    ConsList<Marble> fullList = marblesFromPositions(all, MakeList()); 
-    WorldState full = new WorldState(fullList);
-    testEqual(0, numberOfEmptyLocations(full), "Full grid should have 0 vacancies");
+void testFramePacing() {
+    // Ticks as BigBang runs them: step, then draw
+    retainedFrame = new Nothing<RetainedFrame>();
+    renderedFrames = new LongAdder();
+    skippedFrames = new LongAdder();
+    idleTicks = new LongAdder();
+    frameNanos = new LongAdder();
+    pendingEvents.clear();
+    batchInput = true;
+    WorldState w = buildFullBoard(defaultBoard(), new ColourSource(1));
+    scheduledDraw(w);
 
-    // Case 3: Occupy first two centers -> total-2 
-    Pair<Integer,Integer> p0 = Nth(all, 0);
-    Pair<Integer,Integer> p1 = Nth(all, 1);
-    WorldState twoTaken = new WorldState(MakeList(
-        new Marble(p0.first(), p0.second(), MarbleColour.RED),
-        new Marble(p1.first(), p1.second(), MarbleColour.BLUE)
-    ));
-    testEqual(total - 2, numberOfEmptyLocations(twoTaken),
-        "With two occupied centers, vacancies should be total-2");
+    // An idle game composes no frame, however many ticks pass
+    for (int tick = 0; tick < 100; tick++) {
+        w = scheduledStep(w);
+        scheduledDraw(w);
+    }
+    testEqual(new FrameStats(1, 100, 100, frameStats().frameNanos()), frameStats(), "Idle ticks do no work");
+
+    // Input wakes the scheduler: the very next tick applies it and composes its frame
+    timedMouseEvent(w, new MouseEvent(MouseEventKind.LEFT_CLICK, 10, 10));
+    WorldState before = w;
+    w = scheduledStep(w);
+    Image woken = scheduledDraw(w);
+    testEqual(true, w != before, "The tick after input changes the world");
+    testEqual(2L, frameStats().rendered(), "and composes its frame at once");
+    testEqual(true, woken == draw(w), "The frame shows the new world");
+
+    // and the game is idle again after it
+    w = scheduledStep(w);
+    testEqual(true, woken == scheduledDraw(w), "Idle again: the frame is shown again");
+    testEqual(new FrameStats(2, 101, 101, frameStats().frameNanos()), frameStats(), "One more idle tick");
+    batchInput = false;
+    history = new Nothing<History>();
+    retainedFrame = new Nothing<RetainedFrame>();
 }